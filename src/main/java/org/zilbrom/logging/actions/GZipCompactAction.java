@@ -0,0 +1,534 @@
+package org.zilbrom.logging.actions;
+
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.zilbrom.logging.strategies.ArchiveCatalog;
+import org.zilbrom.logging.strategies.ArchiveSizeLedger;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+import org.zilbrom.logging.streams.CompanionArchive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges adjacent small rolled archives into one archive without recompressing them, so a size based policy
+ * with a small size or a busy period of short rollovers does not leave thousands of tiny files.
+ * <p>
+ * A gzip file may consist of several members, so archives are merged by appending their bytes in chronological
+ * order with {@link FileChannel#transferTo}, which copies in the kernel where it can. Nothing is inflated or
+ * deflated. The archives are selected by the file pattern of the appender: archives which differ only in
+ * the %i index form a group, and runs of consecutive archives smaller than {@code smallerThan} are merged
+ * up to {@code maxSize}. The newest archive of a group is never merged, it may still be written or processed
+ * by another action. The merged archive is written to a temporary file, forced to disk and atomically moved over
+ * the oldest index of the run, then the other inputs are deleted and the remaining archives of the group are
+ * renumbered without gaps, so the fixed window of the rollover strategy stays consistent. The
+ * {@link ArchiveSizeLedger} and the {@link ArchiveCatalog} are updated for every step, and when all inputs carry
+ * statistics the merged archive ends with their sum, see {@link ArchiveMetadata}. The companions of the inputs,
+ * see {@link CompanionArchive}, are merged into the companion of the merged archive with the pointers moved by
+ * the offsets of the inputs. A crash between the move and
+ * the deletes leaves the data of the deleted inputs twice, never lost; stale temporary files are removed by
+ * the next run.
+ * <p>
+ * The action is meant to run as a custom action of a rollover strategy, which runs it on the
+ * {@link RolloverWorkScheduler} within its disk bandwidth budget, or on a schedule by
+ * {@link org.zilbrom.logging.tools.ArchiveCompactor}. It must not be used with the direct write strategy,
+ * whose active file matches the file pattern.
+ */
+@Plugin(name = GZipCompactAction.PLUGIN_NAME, category = Core.CATEGORY_NAME, printObject = true)
+public class GZipCompactAction extends AbstractAction {
+    public static final String PLUGIN_NAME = "GZipCompact";
+    public static final String TEMP_EXTENSION = ".compact.tmp";
+    public static final long DEFAULT_SMALLER_THAN = 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+    private static final AtomicLong mergedFiles = new AtomicLong();
+    private static final AtomicLong compactedArchives = new AtomicLong();
+    private static final AtomicLong mergedBytes = new AtomicLong();
+
+    private final String filePattern;
+    private final Path directory;
+    private final Pattern namePattern;
+    private final long smallerThan;
+    private final long maxSize;
+
+    /**
+     * Creates the action.
+     * @param filePattern the file pattern of the archives, it must contain the %i index
+     * @param smallerThan archives smaller than this size are merged
+     * @param maxSize the maximum size of a merged archive
+     */
+    public GZipCompactAction(final String filePattern, final long smallerThan, final long maxSize) {
+        final Path pattern = Paths.get(filePattern);
+        this.filePattern = filePattern;
+        this.directory = pattern.toAbsolutePath().getParent();
+        this.namePattern = toRegex(pattern.getFileName().toString());
+        this.smallerThan = smallerThan;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates the action which compacts the archives of a file pattern.
+     *
+     * @param filePattern the file pattern of the appender, e.g. logs/app-%d{yyyy-MM-dd}-%i.log.gz
+     * @param smallerThan archives smaller than this size are merged, 1 MB by default
+     * @param maxSize the maximum size of a merged archive, 64 MB by default
+     * @param config The Configuration
+     * @return A GZipCompactAction
+     */
+    @PluginFactory
+    public static GZipCompactAction createAction(@PluginAttribute("filePattern") final String filePattern,
+                                                 @PluginAttribute("smallerThan") final String smallerThan,
+                                                 @PluginAttribute("maxSize") final String maxSize,
+                                                 @PluginConfiguration final Configuration config) {
+        if (filePattern == null) {
+            LOGGER.error("GZipCompactAction: filePattern is required");
+            return null;
+        }
+
+        final String pattern = config.getStrSubstitutor().replace(filePattern);
+
+        if (!pattern.contains("%i")) {
+            LOGGER.error("GZipCompactAction: filePattern {} has no %i index", pattern);
+            return null;
+        }
+
+        return new GZipCompactAction(pattern, FileSize.parse(smallerThan, DEFAULT_SMALLER_THAN),
+                FileSize.parse(maxSize, DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Converts the name part of a file pattern to a regex whose first group is the index.
+     */
+    private static Pattern toRegex(String name) {
+        final StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        int i = 0;
+
+        while (i < name.length()) {
+            if (name.charAt(i) != '%' || i + 1 == name.length()) {
+                i++;
+                continue;
+            }
+
+            if (i > literal) {
+                regex.append(Pattern.quote(name.substring(literal, i)));
+            }
+
+            if (name.charAt(i + 1) == 'i') {
+                regex.append("(\\d+)");
+                i += 2;
+            } else {
+                // A date or another converter, with its options
+                i++;
+
+                while (i < name.length() && Character.isLetter(name.charAt(i))) {
+                    i++;
+                }
+
+                if (i < name.length() && name.charAt(i) == '{') {
+                    final int end = name.indexOf('}', i);
+                    i = end < 0 ? name.length() : end + 1;
+                }
+
+                regex.append("(?:.+?)");
+            }
+
+            literal = i;
+        }
+
+        if (literal < name.length()) {
+            regex.append(Pattern.quote(name.substring(literal)));
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Compacts the archives.
+     * @return true, the result of every merge is logged
+     */
+    @Override
+    public boolean execute() {
+        deleteStaleFiles();
+
+        for (List<Archive> group : findGroups()) {
+            compact(group);
+        }
+
+        return true;
+    }
+
+    private void deleteStaleFiles() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_EXTENSION)) {
+            for (Path stale : stream) {
+                LOGGER.debug("Deleting stale compaction file {}", stale);
+                Files.deleteIfExists(stale);
+            }
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to delete stale compaction files in {}", directory, ioException);
+        }
+    }
+
+    /**
+     * Lists the archives of the pattern, grouped by their names without the index.
+     */
+    private List<List<Archive>> findGroups() {
+        final Map<String, List<Archive>> groups = new LinkedHashMap<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                final Matcher matcher = namePattern.matcher(name);
+
+                if (!matcher.matches() || !Files.isRegularFile(path)) {
+                    continue;
+                }
+
+                final Archive archive = new Archive(path, name.substring(0, matcher.start(1)),
+                        name.substring(matcher.end(1)), Integer.parseInt(matcher.group(1)), Files.size(path),
+                        Files.getLastModifiedTime(path));
+                groups.computeIfAbsent(archive.prefix + '\0' + archive.suffix, key -> new ArrayList<>())
+                        .add(archive);
+            }
+        } catch (IOException | NumberFormatException exception) {
+            LOGGER.error("Unable to list archives {} in {}", namePattern, directory, exception);
+        }
+
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Merges the runs of small archives of one group and renumbers the group.
+     * @param group the archives which differ only in the index
+     */
+    private void compact(final List<Archive> group) {
+        if (group.size() < 3) {
+            return;
+        }
+
+        final List<Archive> chronological = new ArrayList<>(group);
+        chronological.sort(Comparator.comparing((Archive archive) -> archive.lastModified)
+                .thenComparingInt(archive -> archive.index));
+        final List<Archive> remaining = new ArrayList<>(group);
+        final List<Archive> run = new ArrayList<>();
+        long runBytes = 0;
+        boolean merged = false;
+
+        // The newest archive is never merged
+        for (Archive archive : chronological.subList(0, chronological.size() - 1)) {
+            final boolean small = archive.size < smallerThan;
+
+            if (small && runBytes + archive.size <= maxSize) {
+                run.add(archive);
+                runBytes += archive.size;
+                continue;
+            }
+
+            merged |= mergeRun(run, remaining);
+            run.clear();
+            runBytes = 0;
+
+            if (small) {
+                run.add(archive);
+                runBytes = archive.size;
+            }
+        }
+
+        merged |= mergeRun(run, remaining);
+
+        if (merged) {
+            renumber(remaining);
+        }
+    }
+
+    private boolean mergeRun(final List<Archive> run, final List<Archive> remaining) {
+        if (run.size() < 2) {
+            return false;
+        }
+
+        final List<Archive> inputs = new ArrayList<>(run);
+        final Archive target = inputs.stream().min(Comparator.comparingInt((Archive archive) -> archive.index))
+                .orElseThrow(IllegalStateException::new);
+
+        if (!merge(inputs, target)) {
+            return false;
+        }
+
+        for (Archive input : inputs) {
+            if (input != target) {
+                remaining.remove(input);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Appends the inputs to one file which replaces the target.
+     * @param inputs the archives in chronological order
+     * @param target the input whose name the merged archive takes
+     * @return true if the inputs were merged
+     */
+    boolean merge(final List<Archive> inputs, final Archive target) {
+        final Path temp = target.path.resolveSibling(target.path.getFileName() + TEMP_EXTENSION);
+        final FileTime newest = inputs.get(inputs.size() - 1).lastModified;
+
+        try {
+            final ArchiveMetadata metadata = mergeMetadata(inputs);
+            final List<CompanionArchive.Relocation> relocations = relocations(inputs);
+
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Archive input : inputs) {
+                    transfer(input.path, out);
+                }
+
+                if (metadata != null) {
+                    metadata.setCompressedBytes(out.position());
+                    out.write(ByteBuffer.wrap(metadata.encodeMember()));
+                }
+
+                out.force(true);
+            }
+
+            // An input may be renamed or deleted by a purge in the meantime, it must not be resurrected
+            for (Archive input : inputs) {
+                if (!Files.exists(input.path) || Files.size(input.path) != input.size
+                        || !Files.getLastModifiedTime(input.path).equals(input.lastModified)) {
+                    LOGGER.debug("Archive {} changed during compaction, skipped", input.path);
+                    Files.deleteIfExists(temp);
+                    return false;
+                }
+            }
+
+            final long newSize = Files.size(temp);
+            Files.setLastModifiedTime(temp, newest);
+            Files.move(temp, target.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            ArchiveSizeLedger.archiveChanged(target.path, newSize);
+
+            if (metadata != null) {
+                ArchiveCatalog.archiveChanged(target.path, metadata);
+            }
+
+            if (relocations != null) {
+                mergeCompanions(inputs, relocations, target);
+            }
+
+            for (Archive input : inputs) {
+                if (input != target) {
+                    Files.deleteIfExists(input.path);
+                    ArchiveSizeLedger.archiveDeleted(input.path);
+                    ArchiveCatalog.archiveDeleted(input.path);
+                    CompanionArchive.deleteCompanion(input.path);
+                }
+            }
+
+            target.size = newSize;
+            target.lastModified = newest;
+            mergedFiles.addAndGet(inputs.size());
+            compactedArchives.incrementAndGet();
+            mergedBytes.addAndGet(newSize);
+            LOGGER.info("Compacted {} archives into {}, {} bytes", inputs.size(), target.path, newSize);
+            return true;
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to compact archives into {}", target.path, ioException);
+
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteException) {
+                LOGGER.warn("Unable to delete {}", temp, deleteException);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Sums the statistics of the inputs.
+     * @return the statistics or null if an input has none
+     */
+    private static ArchiveMetadata mergeMetadata(final List<Archive> inputs) throws IOException {
+        final ArchiveMetadata merged = new ArchiveMetadata();
+
+        for (Archive input : inputs) {
+            final ArchiveMetadata metadata = ArchiveMetadata.readTail(input.path);
+
+            if (metadata == null) {
+                return null;
+            }
+
+            merged.merge(metadata);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns how the back-pointers of the companions of the inputs move in the merged archive, or null if
+     * no input has a companion. Raw offsets move by the inflated sizes from the statistics of the inputs
+     * and become unknown after an input without statistics.
+     */
+    private static List<CompanionArchive.Relocation> relocations(final List<Archive> inputs) throws IOException {
+        final List<CompanionArchive.Relocation> relocations = new ArrayList<>();
+        boolean companions = false;
+        long blockShift = 0;
+        long rawShift = 0;
+
+        for (Archive input : inputs) {
+            final long block = blockShift;
+            final long raw = rawShift;
+            relocations.add((blockOffset, rawOffset) -> new long[]{blockOffset < 0 ? -1 : blockOffset + block,
+                    rawOffset < 0 || raw < 0 ? -1 : rawOffset + raw});
+            companions |= Files.exists(CompanionArchive.companionOf(input.path));
+            blockShift += input.size;
+            final ArchiveMetadata metadata = rawShift < 0 ? null : ArchiveMetadata.readTail(input.path);
+            rawShift = metadata == null ? -1 : rawShift + metadata.getRawBytes();
+        }
+
+        return companions ? relocations : null;
+    }
+
+    private static void mergeCompanions(final List<Archive> inputs, final List<CompanionArchive.Relocation> relocations,
+                                        final Archive target) {
+        final List<Path> archives = new ArrayList<>();
+
+        for (Archive input : inputs) {
+            archives.add(input.path);
+        }
+
+        try {
+            CompanionArchive.rewrite(archives, relocations, target.path);
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to merge the companions of {}", target.path, ioException);
+        }
+    }
+
+    private static void transfer(final Path input, final FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            final long size = in.size();
+            long position = 0;
+
+            while (position < size) {
+                final long count = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+
+                if (count <= 0) {
+                    throw new IOException("Unable to transfer " + input + " at " + position);
+                }
+
+                // Read and written bytes
+                RolloverWorkScheduler.getInstance().throttle(2 * count);
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Renames the archives of a group to consecutive indexes from the lowest one, keeping their order.
+     * Every archive moves to a lower or the same index, so ascending renames never overwrite an archive.
+     */
+    private void renumber(final List<Archive> group) {
+        group.sort(Comparator.comparingInt((Archive archive) -> archive.index));
+        int index = group.get(0).index;
+
+        for (Archive archive : group) {
+            if (archive.index != index) {
+                final Path renamed = archive.path.resolveSibling(archive.prefix + index + archive.suffix);
+
+                try {
+                    Files.move(archive.path, renamed, StandardCopyOption.ATOMIC_MOVE);
+                    ArchiveSizeLedger.archiveRenamed(archive.path, renamed);
+                    ArchiveCatalog.archiveRenamed(archive.path, renamed);
+                    CompanionArchive.renameCompanion(archive.path, renamed);
+                    LOGGER.debug("Renamed {} to {}", archive.path, renamed);
+                } catch (IOException ioException) {
+                    LOGGER.warn("Unable to rename {} to {}", archive.path, renamed, ioException);
+                    return;
+                }
+            }
+
+            index++;
+        }
+    }
+
+    /**
+     * Returns the number of archives merged by all actions, including the ones whose names were kept.
+     */
+    public static long getMergedFiles() {
+        return mergedFiles.get();
+    }
+
+    /**
+     * Returns the number of archives written by all actions.
+     */
+    public static long getCompactedArchives() {
+        return compactedArchives.get();
+    }
+
+    /**
+     * Returns the number of bytes transferred into merged archives by all actions.
+     */
+    public static long getMergedBytes() {
+        return mergedBytes.get();
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    public long getSmallerThan() {
+        return smallerThan;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "GZipCompactAction(" + filePattern + ", smallerThan = " + smallerThan + ", maxSize = " + maxSize + ')';
+    }
+
+    /**
+     * An archive of the pattern.
+     */
+    static final class Archive {
+        final Path path;
+        final String prefix;
+        final String suffix;
+        final int index;
+        long size;
+        FileTime lastModified;
+
+        Archive(Path path, String prefix, String suffix, int index, long size, FileTime lastModified) {
+            this.path = path;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.index = index;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
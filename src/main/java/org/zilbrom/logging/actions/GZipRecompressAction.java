@@ -0,0 +1,425 @@
+package org.zilbrom.logging.actions;
+
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.zilbrom.logging.strategies.ArchiveCatalog;
+import org.zilbrom.logging.strategies.ArchiveSizeLedger;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+import org.zilbrom.logging.streams.CompanionArchive;
+import org.zilbrom.logging.streams.GZipHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Recompresses rolled gzip archives with a higher deflater level, so the active file can be written
+ * with a fast level while the archives are stored with the best one.
+ * <p>
+ * The action is meant to run on the {@link RolloverWorkScheduler}, which strategies use for all post rollover work,
+ * so it reads and writes within the disk bandwidth budget of the scheduler. Every archive is inflated and deflated
+ * into a temporary file in the same directory, which is forced to disk and atomically moved over the archive.
+ * The recompressed archive carries the level in the 'ZL' subfield of its gzip header, so archives which were already
+ * processed are skipped and a run interrupted by a crash is resumed by the next run in the same directory, for one
+ * archive or a glob: stale temporary files are removed and the archives they belonged to are processed again.
+ * The statistics member at the end of an archive, see {@link ArchiveMetadata}, is kept with the new compressed size.
+ * If the archive has a {@link CompanionArchive}, the deflater is fully flushed at the raw offsets of its events,
+ * so they stay seek points, and the companion is rewritten with the new block offsets.
+ */
+@Plugin(name = GZipRecompressAction.PLUGIN_NAME, category = Core.CATEGORY_NAME, printObject = true)
+public class GZipRecompressAction extends AbstractAction {
+    public static final String PLUGIN_NAME = "GZipRecompress";
+    public static final String TEMP_EXTENSION = ".recompress.tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicLong recompressedFiles = new AtomicLong();
+    private static final AtomicLong bytesSaved = new AtomicLong();
+    private static final AtomicLong cpuNanos = new AtomicLong();
+
+    private final Path basePath;
+    private final String glob;
+    private final Path file;
+    private final int level;
+
+    /**
+     * Creates the action which recompresses one archive.
+     * @param file the archive
+     * @param level the deflater level of the archive
+     */
+    public GZipRecompressAction(final Path file, final int level) {
+        this(null, null, file, level);
+    }
+
+    private GZipRecompressAction(final Path basePath, final String glob, final Path file, final int level) {
+        this.basePath = basePath;
+        this.glob = glob;
+        this.file = file;
+        this.level = level;
+    }
+
+    /**
+     * Creates the action which recompresses all archives in a directory.
+     *
+     * @param basePath the directory of the archives
+     * @param glob the glob of the archive names, it must not match the active file
+     * @param level the deflater level of the archives, {@link Deflater#BEST_COMPRESSION} by default
+     * @param config The Configuration
+     * @return A GZipRecompressAction
+     */
+    @PluginFactory
+    public static GZipRecompressAction createAction(@PluginAttribute("basePath") final String basePath,
+                                                    @PluginAttribute("glob") final String glob,
+                                                    @PluginAttribute(value = "level",
+                                                            defaultInt = Deflater.BEST_COMPRESSION) final int level,
+                                                    @PluginConfiguration final Configuration config) {
+        if (basePath == null || glob == null) {
+            LOGGER.error("GZipRecompressAction: basePath and glob are required");
+            return null;
+        }
+
+        final String path = config.getStrSubstitutor().replace(basePath);
+        return new GZipRecompressAction(Paths.get(path), glob, null, level);
+    }
+
+    /**
+     * Recompresses the archives.
+     * @return true, the recompression result of every archive is logged
+     */
+    @Override
+    public boolean execute() {
+        for (Path archive : findArchives()) {
+            recompress(archive);
+        }
+
+        return true;
+    }
+
+    private Collection<Path> findArchives() {
+        final Path directory = file != null ? file.toAbsolutePath().getParent() : basePath;
+        final SortedSet<Path> archives = new TreeSet<>(resumeInterrupted(directory));
+
+        if (file != null) {
+            archives.add(file);
+            return archives;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(basePath, glob)) {
+            for (Path archive : stream) {
+                archives.add(archive);
+            }
+        } catch (IOException ioException) {
+            LOGGER.error("Unable to list archives {} in {}", glob, basePath, ioException);
+        }
+
+        return archives;
+    }
+
+    /**
+     * Deletes the temporary files a crash left in a directory.
+     * @param directory the directory
+     * @return the archives of the temporary files which still exist, they are recompressed again
+     */
+    private static List<Path> resumeInterrupted(final Path directory) {
+        final List<Path> archives = new ArrayList<>();
+
+        if (directory == null) {
+            return archives;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_EXTENSION)) {
+            for (Path stale : stream) {
+                LOGGER.debug("Deleting stale recompression file {}", stale);
+                Files.deleteIfExists(stale);
+                final String name = stale.getFileName().toString();
+                final Path archive = stale.resolveSibling(name.substring(0, name.length() - TEMP_EXTENSION.length()));
+
+                if (Files.exists(archive)) {
+                    archives.add(archive);
+                }
+            }
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to delete stale recompression files in {}", directory, ioException);
+        }
+
+        return archives;
+    }
+
+    /**
+     * Recompresses one archive.
+     * @param archive the archive
+     * @return true if the archive was replaced with the recompressed one
+     */
+    boolean recompress(final Path archive) {
+        final Path temp = archive.resolveSibling(archive.getFileName() + TEMP_EXTENSION);
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final boolean measureCpu = threadBean.isCurrentThreadCpuTimeSupported()
+                && threadBean.getCurrentThreadCpuTime() >= 0;
+        final long startCpu = measureCpu ? threadBean.getCurrentThreadCpuTime() : 0;
+
+        try {
+            if (!Files.exists(archive) || isRecompressed(archive)) {
+                return false;
+            }
+
+            final long originalSize = Files.size(archive);
+            final FileTime originalTime = Files.getLastModifiedTime(archive);
+            final ArchiveMetadata metadata = ArchiveMetadata.readTail(archive);
+            final Path companion = CompanionArchive.companionOf(archive);
+            final long[] seekPoints = Files.exists(companion) ? readSeekPoints(companion) : new long[0];
+            final Map<Long, Long> blocks = new HashMap<>();
+
+            try (InputStream in = new GZIPInputStream(new ThrottledInputStream(Files.newInputStream(archive)),
+                    BUFFER_SIZE);
+                 FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeMember(in, new ThrottledOutputStream(Channels.newOutputStream(channel)), seekPoints, blocks);
+
+                if (metadata != null) {
+                    metadata.setCompressedBytes(channel.position());
+                    channel.write(ByteBuffer.wrap(metadata.encodeMember()));
+                }
+
+                channel.force(true);
+            }
+
+            final long newSize = Files.size(temp);
+            Files.setLastModifiedTime(temp, originalTime);
+
+            // The archive may be renamed or deleted by a purge in the meantime, it must not be resurrected,
+            // so it is checked right before the move to keep the window of the race as short as possible
+            if (!Files.exists(archive) || Files.size(archive) != originalSize
+                    || !Files.getLastModifiedTime(archive).equals(originalTime)) {
+                LOGGER.debug("Archive {} changed during recompression, skipped", archive);
+                Files.deleteIfExists(temp);
+                return false;
+            }
+
+            Files.move(temp, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            ArchiveSizeLedger.archiveChanged(archive, newSize);
+
+            if (metadata != null) {
+                ArchiveCatalog.archiveChanged(archive, metadata);
+            }
+
+            if (seekPoints.length > 0) {
+                CompanionArchive.rewrite(Collections.singletonList(archive), Collections.singletonList(
+                        (block, raw) -> new long[]{blocks.getOrDefault(raw, -1L), raw}), archive);
+            }
+
+            final long spent = measureCpu ? threadBean.getCurrentThreadCpuTime() - startCpu : 0;
+            recompressedFiles.incrementAndGet();
+            bytesSaved.addAndGet(originalSize - newSize);
+            cpuNanos.addAndGet(spent);
+            LOGGER.info("Recompressed {} at level {}: {} -> {} bytes, saved {} bytes using {} ms of CPU", archive,
+                    level, originalSize, newSize, originalSize - newSize, spent / 1000000);
+            return true;
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to recompress {}", archive, ioException);
+
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteException) {
+                LOGGER.warn("Unable to delete {}", temp, deleteException);
+            }
+
+            return false;
+        }
+    }
+
+    private boolean isRecompressed(Path archive) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(archive))) {
+            final GZipHeader header = GZipHeader.read(in);
+            final byte[] field = header == null ? null : header.getExtraField('Z', 'L');
+            return field != null && field.length == 1 && field[0] >= level;
+        }
+    }
+
+    /**
+     * Returns the sorted raw offsets of the events of a companion.
+     */
+    private static long[] readSeekPoints(final Path companion) throws IOException {
+        final List<Long> offsets = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(companion)), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final long[] pointer = CompanionArchive.parsePointer(line);
+
+                if (pointer != null && pointer[1] >= 0) {
+                    offsets.add(pointer[1]);
+                }
+            }
+        }
+
+        return offsets.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Writes the inflated archive as one member.
+     * @param seekPoints the sorted raw offsets at which the deflater is fully flushed
+     * @param blocks receives the compressed offset of every seek point
+     */
+    private void writeMember(InputStream in, ThrottledOutputStream out, long[] seekPoints, Map<Long, Long> blocks)
+            throws IOException {
+        final byte[] extra = GZipHeader.extraField('Z', 'L', new byte[]{(byte) level});
+        out.write(GZipHeader.encode(level, extra, null));
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = new Deflater(level, true);
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int next = 0;
+
+        try {
+            final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                int start = 0;
+
+                // The read is split at the seek points it contains
+                while (next < seekPoints.length && seekPoints[next] < total + read) {
+                    final int end = (int) Math.max(start, seekPoints[next] - total);
+                    deflaterStream.write(buffer, start, end - start);
+                    start = end;
+                    fullFlush(deflater, out);
+                    blocks.put(seekPoints[next++], out.getWritten());
+                }
+
+                deflaterStream.write(buffer, start, read - start);
+                crc.update(buffer, 0, read);
+                total += read;
+            }
+
+            deflaterStream.finish();
+        } finally {
+            deflater.end();
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) total);
+        out.write(trailer.array());
+        out.flush();
+    }
+
+    /**
+     * Takes disk bandwidth tokens of the scheduler for the bytes read from the archive.
+     */
+    private static final class ThrottledInputStream extends FilterInputStream {
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            RolloverWorkScheduler.getInstance().throttle(count);
+            return count;
+        }
+    }
+
+    /**
+     * Takes disk bandwidth tokens of the scheduler for the bytes written to the temporary file.
+     */
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+        private long written;
+
+        ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+            RolloverWorkScheduler.getInstance().throttle(len);
+        }
+
+        /**
+         * Returns the number of written bytes.
+         */
+        long getWritten() {
+            return written;
+        }
+    }
+
+    private static void fullFlush(final Deflater deflater, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+
+        do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.FULL_FLUSH);
+            out.write(buffer, 0, length);
+        } while (length == buffer.length);
+    }
+
+    /**
+     * Returns the number of archives recompressed by all actions.
+     */
+    public static long getRecompressedFiles() {
+        return recompressedFiles.get();
+    }
+
+    /**
+     * Returns the number of bytes saved by all actions.
+     */
+    public static long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Returns the CPU time in nanos spent by all actions.
+     */
+    public static long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public String toString() {
+        return "GZipRecompressAction(" + (file != null ? file : basePath + "/" + glob) + ", level = " + level + ')';
+    }
+}
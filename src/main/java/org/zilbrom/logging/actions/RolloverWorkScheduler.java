@@ -0,0 +1,273 @@
+package org.zilbrom.logging.actions;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.rolling.action.Action;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work which follows a rollover (purges, recompression, custom actions) for all gzip appenders
+ * of the JVM, within a disk bandwidth and CPU budget, so it does not compete with the application
+ * right after the rollover.
+ * <p>
+ * Disk bandwidth is limited with a token bucket: tasks take tokens for the bytes they read and write
+ * and wait when the bucket is empty. CPU is limited by pausing the worker after every task for the time needed
+ * to keep its share of one core. Queued tasks run in priority order, so retention deletes go before optional work.
+ * <p>
+ * The budget is configured by the system properties {@value #BYTES_PER_SECOND_PROPERTY} (MB per second,
+ * 0 for unlimited) and {@value #CPU_SHARE_PROPERTY} (from 0 to 1, 1 for unlimited), or by {@link #configure}.
+ * Without a budget the callers run their work themselves, see {@link #isBudgeted()}. The worker is a platform
+ * thread with the minimum priority, started by the first submitted task.
+ */
+public final class RolloverWorkScheduler {
+    public static final String BYTES_PER_SECOND_PROPERTY = "log4j2.gzip.rolloverWorkMBps";
+    public static final String CPU_SHARE_PROPERTY = "log4j2.gzip.rolloverWorkCpuShare";
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final RolloverWorkScheduler INSTANCE = new RolloverWorkScheduler(
+            PropertiesUtil.getProperties().getLongProperty(BYTES_PER_SECOND_PROPERTY, 0) * MEGABYTE,
+            PropertiesUtil.getProperties().getDoubleProperty(CPU_SHARE_PROPERTY, 1.0));
+
+    /**
+     * The priority of the post rollover work, from the highest to the lowest one.
+     */
+    public enum Priority {
+        RETENTION, OPTIONAL
+    }
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    private volatile long bytesPerSecond;
+    private volatile double cpuShare;
+    private double availableBytes;
+    private long lastRefillNanos = System.nanoTime();
+    private volatile Task running;
+    private Thread worker;
+
+    private RolloverWorkScheduler(long bytesPerSecond, double cpuShare) {
+        configure(bytesPerSecond, cpuShare);
+    }
+
+    public static RolloverWorkScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the budget.
+     * @param bytesPerSecond the disk bandwidth in bytes per second, 0 or less for unlimited
+     * @param cpuShare the share of one core from 0 to 1, 1 or more for unlimited
+     */
+    public synchronized void configure(long bytesPerSecond, double cpuShare) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.cpuShare = cpuShare <= 0 ? 1.0 : Math.min(cpuShare, 1.0);
+        this.availableBytes = this.bytesPerSecond;
+    }
+
+    /**
+     * Returns true if a disk bandwidth or CPU budget is configured. Callers only submit their work when it is,
+     * otherwise they run it on their own thread, so one slow action does not delay the work of other appenders.
+     */
+    public boolean isBudgeted() {
+        return bytesPerSecond > 0 || cpuShare < 1.0;
+    }
+
+    /**
+     * Queues an action.
+     * @param action the action
+     * @param priority the priority of the action
+     * @param estimatedBytes the number of bytes the action reads and writes, taken from the bucket before
+     *                       it runs; actions which take tokens themselves by {@link #throttle} pass 0
+     */
+    public void submit(Action action, Priority priority, long estimatedBytes) {
+        queuedBytes.addAndGet(estimatedBytes);
+        queue.add(new Task(action, priority, estimatedBytes, sequence.incrementAndGet()));
+
+        synchronized (this) {
+            if (worker == null) {
+                worker = BackgroundThreads.startPlatform("GZipRolloverWork", Thread.MIN_PRIORITY, this::workLoop);
+            }
+        }
+    }
+
+    /**
+     * Takes tokens for the given number of bytes, waiting until the bucket has them.
+     * @param bytes the number of bytes read or written
+     */
+    public void throttle(long bytes) {
+        final long limit = bytesPerSecond;
+
+        if (limit <= 0 || bytes <= 0) {
+            return;
+        }
+
+        final long waitNanos;
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            availableBytes = Math.min(limit, availableBytes + (now - lastRefillNanos) * limit / 1e9);
+            lastRefillNanos = now;
+            availableBytes -= bytes;
+            waitNanos = availableBytes < 0 ? (long) (-availableBytes * 1e9 / limit) : 0;
+        }
+
+        if (waitNanos > 0) {
+            throttledNanos.addAndGet(waitNanos);
+            sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Returns the number of queued tasks, excluding the running one.
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of queued tasks with the given priority.
+     * @param priority the priority
+     */
+    public int getBacklog(Priority priority) {
+        int count = 0;
+
+        for (Task task : queue) {
+            if (task.priority == priority) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the queued tasks.
+     */
+    public long getBacklogBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    /**
+     * Returns the time in nanos the tasks waited for disk bandwidth.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getCpuShare() {
+        return cpuShare;
+    }
+
+    /**
+     * Returns true if the action is running or queued.
+     * @param action the action
+     */
+    public boolean isPending(Action action) {
+        final Task current = running;
+
+        if (current != null && current.action == action) {
+            return true;
+        }
+
+        for (Task task : queue) {
+            if (task.action == action) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void workLoop() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        // The CPU time is not measured on every JVM, the wall clock time is used instead
+        final boolean measureCpu = threadBean.isCurrentThreadCpuTimeSupported()
+                && threadBean.getCurrentThreadCpuTime() >= 0;
+
+        while (true) {
+            final Task task;
+
+            try {
+                task = queue.take();
+            } catch (InterruptedException interruptedException) {
+                continue;
+            }
+
+            running = task;
+            queuedBytes.addAndGet(-task.estimatedBytes);
+            throttle(task.estimatedBytes);
+            final long startCpu = measureCpu ? threadBean.getCurrentThreadCpuTime() : 0;
+            final long startNanos = System.nanoTime();
+
+            try {
+                LOGGER.debug("RolloverWorkScheduler executing {} with priority {}", task.action, task.priority);
+
+                task.action.run();
+
+                if (!task.action.isComplete()) {
+                    LOGGER.warn("RolloverWorkScheduler: {} was not completed", task.action);
+                }
+            } catch (Exception exception) {
+                LOGGER.warn("Exception during post rollover work {}", task.action, exception);
+            } finally {
+                running = null;
+                completedTasks.incrementAndGet();
+            }
+
+            final double share = cpuShare;
+
+            if (share < 1.0) {
+                final long spent = measureCpu
+                        ? threadBean.getCurrentThreadCpuTime() - startCpu
+                        : System.nanoTime() - startNanos;
+                sleep((long) (spent * (1 - share) / share));
+            }
+        }
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+        private final Action action;
+        private final Priority priority;
+        private final long estimatedBytes;
+        private final long sequence;
+
+        Task(Action action, Priority priority, long estimatedBytes, long sequence) {
+            this.action = action;
+            this.priority = priority;
+            this.estimatedBytes = estimatedBytes;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            final int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.zilbrom.logging.actions;
+
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+import org.apache.logging.log4j.core.appender.rolling.action.Action;
+import org.apache.logging.log4j.core.appender.rolling.action.CommonsCompressAction;
+import org.apache.logging.log4j.core.appender.rolling.action.CompositeAction;
+import org.apache.logging.log4j.core.appender.rolling.action.DeleteAction;
+import org.apache.logging.log4j.core.appender.rolling.action.GzCompressAction;
+import org.apache.logging.log4j.core.appender.rolling.action.ZipCompressAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An action which hands the wrapped action over to the {@link RolloverWorkScheduler} instead of running it
+ * on the rollover thread. Without a budget the wrapped action runs on the asynchronous action thread of log4j,
+ * as it would without this wrapper.
+ */
+public class ScheduledAction extends AbstractAction {
+    private static final long ESTIMATE = -1;
+
+    private final Action action;
+    private final Action work;
+    private final RolloverWorkScheduler.Priority priority;
+    private final long estimatedBytes;
+
+    /**
+     * Creates the action, which estimates the bytes of the wrapped action from its source files when it is
+     * submitted, after the rename of the rollover.
+     * @param action the wrapped action
+     * @param priority the priority of the action
+     */
+    public ScheduledAction(final Action action, final RolloverWorkScheduler.Priority priority) {
+        this(action, priority, ESTIMATE);
+    }
+
+    /**
+     * Creates the action.
+     * @param action the wrapped action
+     * @param priority the priority of the action
+     * @param estimatedBytes the number of bytes the action reads and writes
+     */
+    public ScheduledAction(final Action action, final RolloverWorkScheduler.Priority priority,
+                           final long estimatedBytes) {
+        this.action = action;
+        this.work = new Work(action);
+        this.priority = priority;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * Builds the asynchronous action of a rollover. Retention deletes are scheduled with the highest priority,
+     * the remaining actions as optional work. Each group keeps its order and the stop on error behaviour.
+     * @param actions the actions to perform after rollover
+     * @param stopOnError whether to stop executing a group if one of its actions fails
+     * @return the action which schedules the groups
+     */
+    public static Action schedule(final List<Action> actions, final boolean stopOnError) {
+        final List<Action> retention = new ArrayList<>();
+        final List<Action> optional = new ArrayList<>();
+
+        for (Action action : actions) {
+            if (action instanceof DeleteAction) {
+                retention.add(action);
+            } else {
+                optional.add(action);
+            }
+        }
+
+        final List<Action> scheduled = new ArrayList<>(2);
+
+        if (!retention.isEmpty()) {
+            scheduled.add(new ScheduledAction(new CompositeAction(retention, stopOnError),
+                    RolloverWorkScheduler.Priority.RETENTION));
+        }
+
+        if (!optional.isEmpty()) {
+            scheduled.add(new ScheduledAction(new CompositeAction(optional, stopOnError),
+                    RolloverWorkScheduler.Priority.OPTIONAL));
+        }
+
+        return new CompositeAction(scheduled, false);
+    }
+
+    /**
+     * Estimates the number of bytes an action reads and writes from the sizes of its source files. Compressions
+     * read their source and write a fraction of it, so they count the source. Renames and deletes move no file data
+     * and the gzip actions of this package take their tokens themselves, so they count nothing, as do actions
+     * the estimate does not know.
+     * @param action the action
+     * @return the estimated number of bytes
+     */
+    static long estimateBytes(final Action action) {
+        if (action instanceof CompositeAction) {
+            long bytes = 0;
+
+            for (Action part : ((CompositeAction) action).getActions()) {
+                bytes += estimateBytes(part);
+            }
+
+            return bytes;
+        }
+
+        if (action instanceof GzCompressAction) {
+            return length(((GzCompressAction) action).getSource());
+        }
+
+        if (action instanceof ZipCompressAction) {
+            return length(((ZipCompressAction) action).getSource());
+        }
+
+        if (action instanceof CommonsCompressAction) {
+            return length(((CommonsCompressAction) action).getSource());
+        }
+
+        return 0;
+    }
+
+    private static long length(final File file) {
+        return file == null ? 0 : file.length();
+    }
+
+    @Override
+    public boolean execute() {
+        final RolloverWorkScheduler scheduler = RolloverWorkScheduler.getInstance();
+
+        if (!scheduler.isBudgeted()) {
+            work.run();
+            return true;
+        }
+
+        final long bytes = estimatedBytes == ESTIMATE ? estimateBytes(action) : estimatedBytes;
+        scheduler.submit(work, priority, bytes);
+        return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return work.isComplete();
+    }
+
+    @Override
+    public void close() {
+        action.close();
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public RolloverWorkScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledAction(" + action + ", priority = " + priority + ')';
+    }
+
+    /**
+     * Runs the wrapped action for the scheduler. Completes when it has run even if the wrapped action
+     * does not complete itself, as CompositeAction does not.
+     */
+    private static final class Work extends AbstractAction {
+        private final Action action;
+
+        Work(final Action action) {
+            this.action = action;
+        }
+
+        @Override
+        public boolean execute() throws IOException {
+            final boolean successful = action.execute();
+
+            if (!successful) {
+                LOGGER.warn("RolloverWorkScheduler: {} was not successful", action);
+            }
+
+            return successful;
+        }
+
+        @Override
+        public void close() {
+            action.close();
+        }
+
+        @Override
+        public String toString() {
+            return action.toString();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.zilbrom.logging.analyzer;
+
+import org.zilbrom.logging.analyzer.runners.ManyGZipAppendersRunner;
+
+/**
+ * Compares platform and virtual background threads with hundreds of appenders. Run it from the multi-release jar
+ * on JDK 21 twice, with -Dlog4j2.gzip.virtualThreads=false and without it.
+ */
+public class VirtualThreadAnalyzer {
+    private static final int DEFAULT_NUMBER_OF_APPENDERS = 500;
+    private static final int DEFAULT_NUMBER_OF_THREADS = 8;
+    private static final long DEFAULT_CYCLE_SIZE = 5000000L;
+
+    public static void main(String[] args) {
+        int appendersNumber = DEFAULT_NUMBER_OF_APPENDERS;
+        int threadsNumber = DEFAULT_NUMBER_OF_THREADS;
+        long cycleSize = DEFAULT_CYCLE_SIZE;
+
+        try {
+            if (args.length > 0) {
+                appendersNumber = Integer.parseInt(args[0]);
+            }
+
+            if (args.length > 1) {
+                threadsNumber = Integer.parseInt(args[1]);
+            }
+
+            if (args.length > 2) {
+                cycleSize = Long.parseLong(args[2]);
+            }
+        } catch (NumberFormatException numberFormatException) {
+            System.out.println("Usage: VirtualThreadAnalyzer [appenders] [threads] [events]");
+            return;
+        }
+
+        ManyGZipAppendersRunner.run(appendersNumber, threadsNumber, cycleSize);
+    }
+}
@@ -64,7 +64,7 @@ public class GZipRollingFileAppenderRunner {
         OnStartupTriggeringPolicy startupTriggeringPolicy = OnStartupTriggeringPolicy.createPolicy(0);
         CompositeTriggeringPolicy policy = CompositeTriggeringPolicy.createPolicy(sizePolicy, startupTriggeringPolicy);
         GZipDefaultRolloverStrategy strategy = GZipDefaultRolloverStrategy.createStrategy("1000", null,
-                null, null, false, configuration);
+                null, null, null, null, null, false, configuration);
         return GZipRollingFileAppender
                 .newBuilder()
                 .setName(GZipRollingFileAppender.PLUGIN_NAME)
@@ -0,0 +1,112 @@
+package org.zilbrom.logging.analyzer.runners;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
+import org.apache.logging.log4j.core.config.AppenderRef;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.zilbrom.logging.analyzer.SpeedRollingFileAppenderAnalyzer;
+import org.zilbrom.logging.appenders.GZipRollingFileAppender;
+import org.zilbrom.logging.strategies.GZipDefaultRolloverStrategy;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes to hundreds of GZipRollingFileAppenders at once, to compare the cost of their background threads.
+ */
+public class ManyGZipAppendersRunner {
+    private static final String FILE_NAME = "out/out/many-appenders/%d/file.log";
+    private static final String FILE_PATTERN_NAME = FILE_NAME + ".%%i";
+    private static final String ROLLING_FILE_SIZE = "1MB";
+
+    private ManyGZipAppendersRunner() {}
+
+    public static void run(int appendersNumber, int threadsNumber, long cycleSize) {
+        LoggerContext loggerContext = (LoggerContext) LogManager.getContext(false);
+        Configuration configuration = loggerContext.getConfiguration();
+        List<Logger> loggers = new ArrayList<>(appendersNumber);
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < appendersNumber; i++) {
+            loggers.add(prepareLogger(loggerContext, configuration, i));
+        }
+
+        long startedTime = System.currentTimeMillis();
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        List<Thread> threads = new ArrayList<>(threadsNumber);
+
+        for (int t = 0; t < threadsNumber; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                for (long i = offset; i < cycleSize; i += threadsNumber) {
+                    loggers.get((int) (i % appendersNumber)).info("Line number: {} of {}", i, cycleSize);
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("Background threads: " + (BackgroundThreads.isVirtual() ? "virtual" : "platform"));
+        System.out.println("Appenders: " + appendersNumber + ", started in " + (startedTime - startTime) + " ms");
+        System.out.println("New platform threads: " + platformThreads);
+        System.out.println("Events: " + cycleSize + " from " + threadsNumber + " threads in "
+                + (endTime - startedTime) + " ms");
+        System.out.println("Used heap: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB");
+        loggerContext.stop();
+    }
+
+    private static Logger prepareLogger(LoggerContext loggerContext, Configuration configuration, int index) {
+        String name = GZipRollingFileAppender.PLUGIN_NAME + index;
+        Appender appender = createAppender(configuration, name, index);
+        configuration.addAppender(appender);
+        appender.start();
+        AppenderRef[] refs = new AppenderRef[] {AppenderRef.createAppenderRef(name, Level.INFO, null)};
+        String loggerName = ManyGZipAppendersRunner.class.getName() + '.' + index;
+        LoggerConfig loggerConfig = LoggerConfig.createLogger(false, Level.ALL, loggerName, null, refs, null,
+                configuration, null);
+        loggerConfig.addAppender(appender, null, null);
+        configuration.addLogger(loggerName, loggerConfig);
+        loggerContext.updateLoggers();
+        return loggerContext.getLogger(loggerName);
+    }
+
+    private static Appender createAppender(Configuration configuration, String name, int index) {
+        PatternLayout layout = PatternLayout
+                .newBuilder()
+                .withPattern(SpeedRollingFileAppenderAnalyzer.LAYOUT_PATTERN)
+                .build();
+
+        GZipDefaultRolloverStrategy strategy = GZipDefaultRolloverStrategy.createStrategy("10", null,
+                null, null, null, null, null, false, configuration);
+        return GZipRollingFileAppender
+                .newBuilder()
+                .setName(name)
+                .withFileName(String.format(FILE_NAME, index))
+                .withFilePattern(String.format(FILE_PATTERN_NAME, index))
+                .withPolicy(SizeBasedTriggeringPolicy.createPolicy(ROLLING_FILE_SIZE))
+                .withStrategy(strategy)
+                .setLayout(layout)
+                .setConfiguration(configuration)
+                .build();
+    }
+}
@@ -0,0 +1,80 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.core.util.Constants;
+import org.zilbrom.logging.managers.GZipRollingFileManager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer of the current thread which a text layout encodes one event into before the event is written to
+ * the manager. Log4j's encoders synchronize on their destination, this way they synchronize on a buffer only
+ * the current thread uses and the event is formatted without the manager lock. The buffer grows to hold
+ * the whole event, so the event reaches the manager in one write, and is replaced by a small one after an event
+ * larger than {@link #MAX_RETAINED_SIZE}.
+ */
+final class EncodingBuffer implements ByteBufferDestination {
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+    private static final ThreadLocal<EncodingBuffer> BUFFERS = ThreadLocal.withInitial(EncodingBuffer::new);
+
+    private ByteBuffer buffer = ByteBuffer.wrap(new byte[Constants.ENCODER_BYTE_BUFFER_SIZE]);
+
+    private EncodingBuffer() {
+    }
+
+    /**
+     * Returns the buffer of the current thread.
+     */
+    static EncodingBuffer get() {
+        return BUFFERS.get();
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Grows the buffer instead of writing it, the event is written as a whole by {@link #writeTo}.
+     */
+    @Override
+    public ByteBuffer drain(final ByteBuffer buf) {
+        final ByteBuffer grown = ByteBuffer.wrap(new byte[buffer.capacity() * 2]);
+        buf.flip();
+        grown.put(buf);
+        buffer = grown;
+        return grown;
+    }
+
+    @Override
+    public void writeBytes(final ByteBuffer data) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+    }
+
+    @Override
+    public void writeBytes(final byte[] data, final int offset, final int length) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+    }
+
+    /**
+     * Writes the encoded event to the manager and empties the buffer.
+     * @param manager the manager
+     * @param flush true to flush the manager after the event
+     */
+    void writeTo(final GZipRollingFileManager manager, final boolean flush) {
+        try {
+            if (buffer.position() > 0) {
+                manager.writeEncoded(buffer.array(), buffer.arrayOffset(), buffer.position(), flush);
+            } else if (flush) {
+                manager.flush();
+            }
+        } finally {
+            buffer.clear();
+
+            if (buffer.capacity() > MAX_RETAINED_SIZE) {
+                buffer = ByteBuffer.wrap(new byte[Constants.ENCODER_BYTE_BUFFER_SIZE]);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.streams.GZipHeader;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps the events below the recording level, usually DEBUG and TRACE, in a ring of gzip members in memory
+ * instead of writing them to the file, so the detail around a failure is available without logging it to disk.
+ * <p>
+ * Events are compressed by one raw deflater into a memory sink, with the gzip header and trailer of the member
+ * written by the recorder, so the ring needs no stream or thread of its own. The member is sealed when it holds
+ * {@value #MEMBER_RAW_SIZE} uncompressed bytes, then the deflater is reset for the next one, and the oldest members
+ * are dropped when the ring exceeds its capacity. An event at or above the dump level, or the JMX operation dump,
+ * seals the open member and writes the members with events of the last seconds to the side file
+ * {@code <file>.flight-<time>.gz}, which a gzip reader reads as one stream. Dumps triggered by events are written
+ * on a background thread and at most once per dump window.
+ */
+public final class FlightRecorder implements FlightRecorderMBean {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    private static final int MEMBER_RAW_SIZE = 1024 * 1024;
+    private static final int DEFLATE_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] HEADER = GZipHeader.encode(Deflater.BEST_SPEED, null, null);
+
+    private final String name;
+    private final String fileName;
+    private final Level level;
+    private final Level dumpLevel;
+    private final long capacityBytes;
+    private final long dumpMillis;
+    private final ArrayDeque<Member> ring = new ArrayDeque<>();
+    private final AtomicBoolean dumping = new AtomicBoolean();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] deflateBuffer = new byte[DEFLATE_BUFFER_SIZE];
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(DEFLATE_BUFFER_SIZE);
+
+    private boolean open;
+    private boolean stopped;
+    private long currentLastMillis;
+    private long currentRawBytes;
+    private long ringBytes;
+    private long ringRawBytes;
+    private long recordedEvents;
+    private long dumps;
+    private long lastDumpMillis;
+    private String lastDumpFile;
+    private ObjectName objectName;
+
+    /**
+     * Creates the recorder.
+     * @param name the name of the appender
+     * @param fileName the file of the appender, the side files are written next to it
+     * @param level events less specific than this level are recorded
+     * @param dumpLevel events at or above this level trigger a dump, null for dumps by JMX only
+     * @param capacityBytes the number of compressed bytes the ring holds
+     * @param dumpSeconds the number of seconds before the dump which are written
+     */
+    FlightRecorder(final String name, final String fileName, final Level level, final Level dumpLevel,
+                   final long capacityBytes, final long dumpSeconds) {
+        this.name = name;
+        this.fileName = fileName.endsWith(GZipRollingFileAppender.GZIP_EXTENSION)
+                ? fileName.substring(0, fileName.length() - GZipRollingFileAppender.GZIP_EXTENSION.length())
+                : fileName;
+        this.level = level;
+        this.dumpLevel = dumpLevel;
+        this.capacityBytes = capacityBytes;
+        this.dumpMillis = TimeUnit.SECONDS.toMillis(dumpSeconds);
+    }
+
+    /**
+     * Returns true if the event is kept in the ring instead of the file.
+     * @param event The LogEvent.
+     */
+    boolean records(final LogEvent event) {
+        return !event.getLevel().isMoreSpecificThan(level);
+    }
+
+    /**
+     * Compresses the event into the ring.
+     * @param event The LogEvent.
+     * @param layout the layout of the appender
+     */
+    void record(final LogEvent event, final Layout<?> layout) {
+        final byte[] bytes = layout.toByteArray(event);
+
+        if (bytes == null || bytes.length == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+
+            if (!open) {
+                sink.write(HEADER, 0, HEADER.length);
+                open = true;
+            }
+
+            crc.update(bytes, 0, bytes.length);
+            deflater.setInput(bytes, 0, bytes.length);
+
+            while (!deflater.needsInput()) {
+                sink.write(deflateBuffer, 0, deflater.deflate(deflateBuffer, 0, deflateBuffer.length));
+            }
+
+            currentRawBytes += bytes.length;
+            currentLastMillis = event.getTimeMillis();
+            recordedEvents++;
+
+            if (currentRawBytes >= MEMBER_RAW_SIZE) {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * Dumps the ring in background if the event is at or above the dump level and no dump was triggered
+     * within the dump window.
+     * @param event The LogEvent which was written to the file.
+     */
+    void written(final LogEvent event) {
+        if (dumpLevel == null || !event.getLevel().isMoreSpecificThan(dumpLevel)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (lastDumpMillis != 0 && event.getTimeMillis() - lastDumpMillis < dumpMillis) {
+                return;
+            }
+
+            lastDumpMillis = event.getTimeMillis();
+        }
+
+        if (dumping.compareAndSet(false, true)) {
+            BackgroundThreads.start("GZipFlightDump-" + name, () -> {
+                try {
+                    dump();
+                } finally {
+                    dumping.set(false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String dump() {
+        final List<Member> members = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            seal();
+
+            for (Member member : ring) {
+                if (member.lastMillis >= now - dumpMillis) {
+                    members.add(member);
+                }
+            }
+        }
+
+        if (members.isEmpty()) {
+            return null;
+        }
+
+        final String file = fileName + ".flight-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now))
+                + GZipRollingFileAppender.GZIP_EXTENSION;
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (Member member : members) {
+                out.write(member.data);
+            }
+        } catch (IOException ioException) {
+            LOGGER.error("FlightRecorder '{}': unable to dump to {}", name, file, ioException);
+            return null;
+        }
+
+        synchronized (this) {
+            dumps++;
+            lastDumpFile = file;
+        }
+
+        LOGGER.debug("FlightRecorder '{}': dumped {} members to {}", name, members.size(), file);
+        return file;
+    }
+
+    /**
+     * Finishes the open member with the gzip trailer, adds it to the ring and resets the deflater for the next one.
+     */
+    private void seal() {
+        if (!open) {
+            return;
+        }
+
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            sink.write(deflateBuffer, 0, deflater.deflate(deflateBuffer, 0, deflateBuffer.length));
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) currentRawBytes);
+        sink.write(trailer.array(), 0, trailer.capacity());
+        final Member member = new Member(sink.toByteArray(), currentLastMillis, currentRawBytes);
+        sink.reset();
+        deflater.reset();
+        crc.reset();
+        open = false;
+        currentRawBytes = 0;
+        ring.addLast(member);
+        ringBytes += member.data.length;
+        ringRawBytes += member.rawBytes;
+
+        while (ringBytes > capacityBytes && ring.size() > 1) {
+            final Member dropped = ring.removeFirst();
+            ringBytes -= dropped.data.length;
+            ringRawBytes -= dropped.rawBytes;
+        }
+    }
+
+    /**
+     * Registers the recorder as org.zilbrom.logging:type=FlightRecorder,name=APPENDER.
+     */
+    void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.zilbrom.logging:type=FlightRecorder,name=" + ObjectName.quote(name));
+
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException | SecurityException exception) {
+            LOGGER.warn("FlightRecorder '{}': unable to register the MBean", name, exception);
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | SecurityException exception) {
+            LOGGER.warn("FlightRecorder '{}': unable to unregister the MBean", name, exception);
+        }
+
+        objectName = null;
+    }
+
+    /**
+     * Seals the open member and releases the deflater.
+     */
+    synchronized void stop() {
+        unregister();
+
+        if (!stopped) {
+            seal();
+            deflater.end();
+            stopped = true;
+        }
+    }
+
+    @Override
+    public synchronized long getRecordedEvents() {
+        return recordedEvents;
+    }
+
+    @Override
+    public synchronized long getRawBytes() {
+        return ringRawBytes + currentRawBytes;
+    }
+
+    @Override
+    public synchronized long getCompressedBytes() {
+        return ringBytes + sink.size();
+    }
+
+    @Override
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    @Override
+    public synchronized long getDumps() {
+        return dumps;
+    }
+
+    @Override
+    public synchronized String getLastDumpFile() {
+        return lastDumpFile;
+    }
+
+    /**
+     * A sealed gzip member.
+     */
+    private static final class Member {
+        final byte[] data;
+        final long lastMillis;
+        final long rawBytes;
+
+        Member(byte[] data, long lastMillis, long rawBytes) {
+            this.data = data;
+            this.lastMillis = lastMillis;
+            this.rawBytes = rawBytes;
+        }
+    }
+}
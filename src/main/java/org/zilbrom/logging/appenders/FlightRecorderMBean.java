@@ -0,0 +1,30 @@
+package org.zilbrom.logging.appenders;
+
+/**
+ * The JMX view of a {@link FlightRecorder}.
+ */
+public interface FlightRecorderMBean {
+    /**
+     * Writes the recorded events of the last seconds to a new side file.
+     * @return the path of the file or null if nothing was recorded
+     */
+    String dump();
+
+    long getRecordedEvents();
+
+    /**
+     * Returns the number of uncompressed bytes in the ring.
+     */
+    long getRawBytes();
+
+    /**
+     * Returns the number of compressed bytes in the ring.
+     */
+    long getCompressedBytes();
+
+    long getCapacityBytes();
+
+    long getDumps();
+
+    String getLastDumpFile();
+}
@@ -1,24 +1,45 @@
 package org.zilbrom.logging.appenders;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.*;
 import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.rolling.DirectFileRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
 import org.apache.logging.log4j.core.appender.rolling.RolloverStrategy;
 import org.apache.logging.log4j.core.appender.rolling.TriggeringPolicy;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.config.plugins.*;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
 import org.apache.logging.log4j.core.net.Advertiser;
 import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.Strings;
+import org.zilbrom.logging.layouts.CompactBinaryLayout;
+import org.zilbrom.logging.managers.Durability;
+import org.zilbrom.logging.managers.GZipManagerOptions;
 import org.zilbrom.logging.managers.GZipRollingFileManager;
 import org.zilbrom.logging.strategies.GZipDefaultRolloverStrategy;
 import org.zilbrom.logging.strategies.GZipDirectWriteRolloverStrategy;
+import org.zilbrom.logging.streams.CompanionArchive;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /**
  * An appender that writes to .gz files and can roll over at intervals.
@@ -28,17 +49,55 @@ import java.util.concurrent.TimeUnit;
 public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRollingFileManager> {
     public static final String PLUGIN_NAME = "GZipRollingFileAppender";
     public static final String GZIP_EXTENSION = ".gz";
+    public static final String STACK_TRACE_PREFIX = "[stack trace ";
+    private static final int MAX_STACK_TRACES = 4096;
+    private static final long DEFAULT_FLIGHT_RECORDER_SIZE = 8 * 1024 * 1024;
+    private static final long DEFAULT_BLOCK_RETENTION = 4 * 1024 * 1024;
 
     private final String fileName;
     private final String filePattern;
     private final Advertiser advertiser;
+    private final OverloadPolicy overloadPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final boolean deduplicateStackTraces;
+    private final RepeatCollapser repeatCollapser;
+    private final Runnable repeatFlush = this::flushExpiredRepeats;
+
+    /**
+     * The events at or above the level or with the marker wait for a group commit, null if no event waits
+     */
+    private final Level durableLevel;
+    private final String durableMarker;
+    private final PriorityLane priorityLane;
+    private final FlightRecorder flightRecorder;
+    private final LoggerCosts loggerCosts;
+
+    /**
+     * The sequence of the events written in segment mode, null if events are not numbered
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * The fingerprints of the stack traces written in full to the current file and the lengths of the traces,
+     * guarded by the manager
+     */
+    private final Map<Long, Integer> stackTraces = new HashMap<>();
+    private long stackTraceGeneration = -1;
+    private final AtomicLong deduplicatedStackTraces = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
 
     private Object advertisement;
 
     private GZipRollingFileAppender(final String name, final Layout<? extends Serializable> layout, final Filter filter,
                                     final GZipRollingFileManager manager, final String fileName,
                                     final String filePattern, final boolean ignoreExceptions,
-                                    final boolean immediateFlush, final Advertiser advertiser) {
+                                    final boolean immediateFlush, final Advertiser advertiser,
+                                    final OverloadPolicy overloadPolicy, final boolean deduplicateStackTraces,
+                                    final long collapseRepeatsMillis, final Level durableLevel,
+                                    final String durableMarker, final Level priorityLevel,
+                                    final long priorityWindowMillis, final boolean priorityFsync,
+                                    final boolean sequenceNumbers, final FlightRecorder flightRecorder,
+                                    final LoggerCosts loggerCosts) {
         super(name, layout, filter, ignoreExceptions, immediateFlush, Property.EMPTY_ARRAY, manager);
 
         if (advertiser != null) {
@@ -51,28 +110,280 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
         this.fileName = fileName;
         this.filePattern = filePattern;
         this.advertiser = advertiser;
+        this.overloadPolicy = overloadPolicy;
+        this.deduplicateStackTraces = deduplicateStackTraces && layout instanceof StringLayout;
+        this.repeatCollapser = collapseRepeatsMillis > 0 ? new RepeatCollapser(collapseRepeatsMillis) : null;
+        final boolean groupCommit = manager.getDurability() == Durability.GROUP_COMMIT;
+        this.durableLevel = groupCommit ? durableLevel : null;
+        this.durableMarker = groupCommit ? durableMarker : null;
+        this.priorityLane = priorityLevel != null
+                ? new PriorityLane(manager, priorityLevel, priorityWindowMillis, priorityFsync, name)
+                : null;
+        this.sequence = sequenceNumbers && manager.isSegmented() && layout instanceof StringLayout
+                ? new AtomicLong()
+                : null;
+        this.flightRecorder = flightRecorder;
+        this.loggerCosts = loggerCosts;
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        if (flightRecorder != null) {
+            flightRecorder.register();
+        }
+
+        if (loggerCosts != null) {
+            loggerCosts.register();
+        }
+
+        if (repeatCollapser != null) {
+            getManager().addPeriodicTask(repeatFlush);
+        }
     }
 
     @Override
     public boolean stop(long timeout, TimeUnit timeUnit) {
         setStopping();
+
+        if (priorityLane != null) {
+            priorityLane.stop();
+        }
+
+        if (flightRecorder != null) {
+            flightRecorder.stop();
+        }
+
+        if (loggerCosts != null) {
+            loggerCosts.unregister();
+        }
+
+        if (repeatCollapser != null) {
+            getManager().removePeriodicTask(repeatFlush);
+            final LogEvent summary;
+            final ReentrantLock managerLock = getManager().getLock();
+            managerLock.lock();
+
+            try {
+                summary = repeatCollapser.endRun();
+            } finally {
+                managerLock.unlock();
+            }
+
+            if (summary != null) {
+                writeEvent(summary);
+            }
+        }
+
         final boolean stopped = super.stop(timeout, timeUnit, false);
 
         if (advertiser != null) {
             advertiser.unadvertise(advertisement);
         }
 
+        if (overloadPolicy != null) {
+            overloadPolicy.closeSpill();
+        }
+
         setStopped();
         return stopped;
     }
 
     @Override
     public void append(LogEvent event) {
-        getManager().checkRollover(event);
+        if (flightRecorder != null && flightRecorder.records(event)) {
+            flightRecorder.record(event, getLayout());
+            return;
+        }
+
+        if (overloadPolicy == null) {
+            write(event);
+            writeCostSummary(event.getTimeMillis());
+            bringToDisk(event);
+            return;
+        }
+
+        if (!overloadPolicy.enter(lock, event)) {
+            overloadPolicy.shed(event, getLayout());
+            return;
+        }
 
         try {
-            if (Constants.ENABLE_DIRECT_ENCODERS) {
-                directEncodeEvent(event);
+            final String report = overloadPolicy.caughtUp(lock);
+
+            if (report != null) {
+                LOGGER.warn("GZipRollingFileAppender '{}': {}", getName(), report);
+                write(Log4jLogEvent.newBuilder()
+                        .setLoggerName(getClass().getName())
+                        .setLevel(Level.WARN)
+                        .setMessage(new SimpleMessage(report))
+                        .setTimeMillis(event.getTimeMillis())
+                        .build());
+            }
+
+            write(event);
+            writeCostSummary(event.getTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+
+        bringToDisk(event);
+    }
+
+    private void write(final LogEvent event) {
+        if (repeatCollapser == null) {
+            writeEvent(event);
+            return;
+        }
+
+        final ReentrantLock managerLock = getManager().getLock();
+        managerLock.lock();
+
+        try {
+            if (repeatCollapser.collapse(event)) {
+                return;
+            }
+
+            final LogEvent summary = repeatCollapser.startRun(event);
+
+            if (summary != null) {
+                writeEvent(summary);
+            }
+
+            writeEvent(event);
+        } finally {
+            managerLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the summary of a run which is longer than the window, so a run is summarized even if no other event
+     * follows it. Run by the periodic thread of the manager.
+     */
+    private void flushExpiredRepeats() {
+        final ReentrantLock managerLock = getManager().getLock();
+        managerLock.lock();
+
+        try {
+            final LogEvent summary = repeatCollapser.endExpiredRun(System.currentTimeMillis());
+
+            if (summary != null) {
+                writeEvent(summary);
+            }
+        } finally {
+            managerLock.unlock();
+        }
+    }
+
+    /**
+     * Requests a priority flush for an important event and waits for a group commit if the event must be
+     * on the storage device before append returns. Called without any lock held, so concurrent durable events
+     * share one force.
+     * @param event The LogEvent.
+     */
+    private void bringToDisk(final LogEvent event) {
+        if (priorityLane != null) {
+            priorityLane.written(event);
+        }
+
+        if (flightRecorder != null) {
+            flightRecorder.written(event);
+        }
+
+        final boolean durable = durableLevel != null && event.getLevel().isMoreSpecificThan(durableLevel)
+                || durableMarker != null && event.getMarker() != null && event.getMarker().isInstanceOf(durableMarker);
+
+        if (durable) {
+            getManager().syncFlush();
+        }
+    }
+
+    private void writeEvent(final LogEvent event) {
+        writeEvent(event, loggerCosts != null);
+    }
+
+    private void writeEvent(final LogEvent event, final boolean accounted) {
+        if (getManager().isSegmented()) {
+            writeSegment(event, accounted);
+        } else {
+            getManager().checkRollover(event);
+            getManager().recordEvent(event);
+
+            if (accounted) {
+                writeAccounted(event);
+            } else {
+                writeToFile(event);
+            }
+        }
+    }
+
+    /**
+     * Writes the summary of the logger costs if it is due. The summary follows the event which made it due
+     * and is not accounted itself, so it does not appear in the next summary.
+     * @param timeMillis the time of the event just written
+     */
+    private void writeCostSummary(final long timeMillis) {
+        final String summary = loggerCosts == null ? null : loggerCosts.summary(timeMillis);
+
+        if (summary != null) {
+            writeEvent(Log4jLogEvent.newBuilder()
+                    .setLoggerName(getClass().getName())
+                    .setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage(summary))
+                    .setTimeMillis(timeMillis)
+                    .build(), false);
+        }
+    }
+
+    /**
+     * Writes an event and accounts its size and, if it is sampled, its time to its logger. The manager lock
+     * is held while the event is encoded, so the bytes of other threads are not counted, and the time starts
+     * once the lock is acquired, so it is not the wait for the lock.
+     * @param event The LogEvent.
+     */
+    private void writeAccounted(final LogEvent event) {
+        final GZipRollingFileManager manager = getManager();
+        manager.getLock().lock();
+
+        try {
+            final long start = loggerCosts.samples() ? System.nanoTime() : -1;
+            final long encodedBytes = manager.getEncodedBytes();
+            writeToFile(event);
+            loggerCosts.account(event, manager.getEncodedBytes() - encodedBytes, manager.getCompressionRatio(),
+                    start < 0 ? -1 : System.nanoTime() - start);
+        } finally {
+            manager.getLock().unlock();
+        }
+    }
+
+    private void writeToFile(final LogEvent event) {
+        final CompanionArchive companion = getManager().getCompanion();
+
+        if (companion != null && companion.accepts(event)) {
+            // The event must follow the seek point the companion points to
+            final ReentrantLock managerLock = getManager().getLock();
+            managerLock.lock();
+
+            try {
+                getManager().writeCompanion(event, getLayout());
+                encodeEvent(event);
+            } finally {
+                managerLock.unlock();
+            }
+        } else {
+            encodeEvent(event);
+        }
+    }
+
+    private void encodeEvent(final LogEvent event) {
+        try {
+            if (deduplicateStackTraces && event.getThrown() != null) {
+                writeDeduplicated(event);
+            } else if (getManager().isBatchEncoding()) {
+                batchEncodeEvent(event);
+            } else if (isDirectEncoding()) {
+                encodeDirect(event, getImmediateFlush() || event.isEndOfBatch());
             } else {
                 writeByteArrayToManager(event);
             }
@@ -82,6 +393,267 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
         }
     }
 
+    /**
+     * Encodes the event and writes it to the segment of the current thread. Threads of different segments
+     * do not share a lock, except for the rollover check the manager samples.
+     * @param event The LogEvent.
+     * @param accounted true to account the event to the logger costs
+     */
+    private void writeSegment(final LogEvent event, final boolean accounted) {
+        final GZipRollingFileManager manager = getManager();
+        manager.checkSegmentRollover(event);
+        final long start = accounted && loggerCosts.samples() ? System.nanoTime() : -1;
+        byte[] bytes = getLayout().toByteArray(event);
+
+        if (sequence != null) {
+            final byte[] prefix = ("#" + sequence.getAndIncrement() + " ")
+                    .getBytes(((StringLayout) getLayout()).getCharset());
+            final byte[] numbered = new byte[prefix.length + bytes.length];
+            System.arraycopy(prefix, 0, numbered, 0, prefix.length);
+            System.arraycopy(bytes, 0, numbered, prefix.length, bytes.length);
+            bytes = numbered;
+        }
+
+        try {
+            manager.writeSegment(bytes, event.getTimeMillis());
+
+            if (accounted) {
+                loggerCosts.account(event, bytes.length, manager.getCompressionRatio(),
+                        start < 0 ? -1 : System.nanoTime() - start);
+            }
+        } catch (final AppenderLoggingException exception) {
+            error("Unable to write to stream GZIPRollingFileManager for appender" + getName() + ": " + exception);
+            throw exception;
+        }
+    }
+
+    /**
+     * Encodes the event into the manager's batch buffer. The batch is compressed only when the event
+     * is the last one of a batch (as marked by an async appender or async logger) or when the buffer is full,
+     * so the immediateFlush setting is not honoured in this mode. Synchronous loggers never end a batch, their
+     * events are written by the manager once they waited for the maximum batch delay.
+     * @param event The LogEvent.
+     */
+    private void batchEncodeEvent(final LogEvent event) {
+        final GZipRollingFileManager manager = getManager();
+
+        if (isDirectEncoding()) {
+            encodeDirect(event, event.isEndOfBatch());
+        } else {
+            final byte[] bytes = getLayout().toByteArray(event);
+
+            if (bytes != null && bytes.length > 0) {
+                manager.writeBatched(bytes, event.isEndOfBatch());
+            }
+        }
+    }
+
+    /**
+     * Encodes an event without allocating. Text layouts encode into an {@link EncodingBuffer} of the current thread,
+     * which is written to the manager, so the event is formatted without the manager lock. CompactBinaryLayout
+     * keeps a dictionary per file and encodes into the manager under its lock.
+     * @param event The LogEvent.
+     * @param flush true to flush the manager after the event
+     */
+    private void encodeDirect(final LogEvent event, final boolean flush) {
+        final GZipRollingFileManager manager = getManager();
+
+        if (getLayout() instanceof CompactBinaryLayout) {
+            manager.getLock().lock();
+
+            try {
+                getLayout().encode(event, manager);
+
+                if (flush) {
+                    manager.flush();
+                }
+            } finally {
+                manager.getLock().unlock();
+            }
+        } else {
+            final EncodingBuffer buffer = EncodingBuffer.get();
+            getLayout().encode(event, buffer);
+            buffer.writeTo(manager, flush);
+        }
+    }
+
+    /**
+     * Writes an event with an exception, replacing its stack trace with a reference if the same trace
+     * was already written to the current file. Traces are told apart by a fingerprint of the exception, see
+     * {@link #fingerprint}, so a repeat is rendered once, without its trace. The first occurrence is rendered
+     * with and without the trace, the trace is the part the layout adds because of the exception, and it is
+     * preceded by the line "[stack trace HASH, N lines]"; the repeats are written as "[stack trace HASH repeated]".
+     * Traces which are not rendered at the end of the event are written as usual.
+     * @param event The LogEvent.
+     */
+    private void writeDeduplicated(final LogEvent event) {
+        final GZipRollingFileManager manager = getManager();
+        final StringLayout layout = (StringLayout) getLayout();
+        final long hash = fingerprint(event.getThrown());
+        final String reference = STACK_TRACE_PREFIX + Long.toHexString(hash);
+        final String withoutTrace = layout.toSerializable(new Log4jLogEvent.Builder(event)
+                .setThrown(null)
+                .setThrownProxy(null)
+                .build());
+        final StringBuilder text = new StringBuilder(withoutTrace);
+        manager.getLock().lock();
+
+        try {
+            if (stackTraceGeneration != manager.getFileGeneration() || stackTraces.size() >= MAX_STACK_TRACES) {
+                stackTraces.clear();
+                stackTraceGeneration = manager.getFileGeneration();
+            }
+
+            final Integer length = stackTraces.get(hash);
+
+            if (length != null) {
+                text.append(reference).append(" repeated]").append(Strings.LINE_SEPARATOR);
+                deduplicatedStackTraces.incrementAndGet();
+                deduplicatedBytes.addAndGet(length);
+                writeBytes(text.toString().getBytes(layout.getCharset()), event.isEndOfBatch());
+                return;
+            }
+
+            // Only the first occurrence of a trace in a file is rendered in full, which is rare enough
+            // to be done under the lock
+            final String full = layout.toSerializable(event);
+
+            if (!full.startsWith(withoutTrace) || !full.endsWith("\n") || full.length() == withoutTrace.length()) {
+                writeBytes(full.getBytes(layout.getCharset()), event.isEndOfBatch());
+                return;
+            }
+
+            final String trace = full.substring(withoutTrace.length());
+            int lines = 0;
+
+            for (int i = 0; i < trace.length(); i++) {
+                if (trace.charAt(i) == '\n') {
+                    lines++;
+                }
+            }
+
+            stackTraces.put(hash, trace.length());
+            text.append(reference).append(", ").append(lines).append(" lines]").append(Strings.LINE_SEPARATOR)
+                    .append(trace);
+            writeBytes(text.toString().getBytes(layout.getCharset()), event.isEndOfBatch());
+        } finally {
+            manager.getLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the fingerprint of an exception: a hash of the classes, messages and stack frames of the exception,
+     * its suppressed exceptions and causes, which is what a layout prints of them. Messages are included,
+     * so the expanded file equals the one written without deduplication.
+     * @param thrown the exception
+     * @return the fingerprint
+     */
+    private static long fingerprint(final Throwable thrown) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        putThrowable(hasher, thrown, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return hasher.hash().asLong();
+    }
+
+    private static void putThrowable(final Hasher hasher, final Throwable thrown, final Set<Throwable> seen) {
+        // A circular reference is printed as such and ends the chain
+        if (thrown == null || !seen.add(thrown)) {
+            hasher.putBoolean(thrown != null);
+            return;
+        }
+
+        putString(hasher, thrown.toString());
+        final StackTraceElement[] frames = thrown.getStackTrace();
+        hasher.putInt(frames.length);
+
+        for (StackTraceElement frame : frames) {
+            putString(hasher, frame.getClassName());
+            putString(hasher, frame.getMethodName());
+            putString(hasher, frame.getFileName());
+            hasher.putInt(frame.getLineNumber());
+        }
+
+        final Throwable[] suppressed = thrown.getSuppressed();
+        hasher.putInt(suppressed.length);
+
+        for (Throwable throwable : suppressed) {
+            putThrowable(hasher, throwable, seen);
+        }
+
+        putThrowable(hasher, thrown.getCause(), seen);
+    }
+
+    private static void putString(final Hasher hasher, final String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putUnencodedChars(value);
+        }
+    }
+
+    private void writeBytes(final byte[] bytes, final boolean endOfBatch) {
+        final GZipRollingFileManager manager = getManager();
+
+        manager.writeBytes(bytes, 0, bytes.length);
+
+        if (endOfBatch || (getImmediateFlush() && !manager.isBatchEncoding())) {
+            manager.flush();
+        }
+    }
+
+    /**
+     * Returns the number of stack traces written as references.
+     */
+    public long getDeduplicatedStackTraces() {
+        return deduplicatedStackTraces.get();
+    }
+
+    /**
+     * Returns the number of characters of the stack traces written as references.
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    public boolean isDeduplicateStackTraces() {
+        return deduplicateStackTraces;
+    }
+
+    /**
+     * Returns the number of events which requested a priority flush.
+     */
+    public long getPriorityEvents() {
+        return priorityLane == null ? 0 : priorityLane.getRequests();
+    }
+
+    /**
+     * Returns the number of priority flushes, each serving all requests of its window.
+     */
+    public long getPriorityFlushes() {
+        return priorityLane == null ? 0 : priorityLane.getFlushes();
+    }
+
+    /**
+     * Returns the costs of the loggers or null if they are not accounted.
+     */
+    public LoggerCosts getLoggerCosts() {
+        return loggerCosts;
+    }
+
+    /**
+     * Returns the number of repeated events which were counted instead of written.
+     */
+    public long getCollapsedEvents() {
+        return repeatCollapser == null ? 0 : repeatCollapser.getCollapsed();
+    }
+
+    /**
+     * Returns true if events are encoded directly into the manager. CompactBinaryLayout is always used this way,
+     * as its byte array form carries a header per event.
+     */
+    private boolean isDirectEncoding() {
+        return Constants.ENABLE_DIRECT_ENCODERS || getLayout() instanceof CompactBinaryLayout;
+    }
+
     /**
      * Returns the File name for the Appender.
      * @return The file name.
@@ -107,6 +679,14 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
         return getManager().getTriggeringPolicy();
     }
 
+    /**
+     * Returns the overload policy.
+     * @return The OverloadPolicy or null if events always wait for the appender.
+     */
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
     @PluginBuilderFactory
     public static <B extends GZipRollingFileAppender.Builder<B>> B newBuilder() {
         return new GZipRollingFileAppender.Builder<B>().asBuilder();
@@ -141,6 +721,87 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
         @PluginBuilderAttribute
         private boolean createOnDemand;
 
+        @PluginBuilderAttribute
+        private boolean batchEncoding;
+
+        @PluginBuilderAttribute
+        private long maxBatchDelayMillis = GZipRollingFileManager.DEFAULT_MAX_BATCH_DELAY_MILLIS;
+
+        @PluginBuilderAttribute
+        private boolean pipelined;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        @PluginBuilderAttribute
+        private boolean deduplicateStackTraces;
+
+        @PluginBuilderAttribute
+        private long collapseRepeatsMillis;
+
+        @PluginBuilderAttribute
+        private String stripeDirectories;
+
+        @PluginBuilderAttribute
+        private int threadSegments;
+
+        @PluginBuilderAttribute
+        private boolean sequenceNumbers;
+
+        @PluginBuilderAttribute
+        private String durability;
+
+        @PluginBuilderAttribute
+        private Level durableLevel = Level.ERROR;
+
+        @PluginBuilderAttribute
+        private String durableMarker;
+
+        @PluginBuilderAttribute
+        private Level priorityLevel;
+
+        @PluginBuilderAttribute
+        private long priorityWindowMillis = 20;
+
+        @PluginBuilderAttribute
+        private boolean priorityFsync;
+
+        @PluginBuilderAttribute
+        private long hibernateAfterMillis;
+
+        @PluginBuilderAttribute
+        private String catalog;
+
+        @PluginBuilderAttribute
+        private String blockRetention;
+
+        @PluginBuilderAttribute
+        private Level companionLevel;
+
+        @PluginBuilderAttribute
+        private String flightRecorderSize;
+
+        @PluginBuilderAttribute
+        private Level flightRecorderLevel = Level.INFO;
+
+        @PluginBuilderAttribute
+        private Level flightRecorderDumpLevel = Level.ERROR;
+
+        @PluginBuilderAttribute
+        private long flightRecorderSeconds = 30;
+
+        @PluginBuilderAttribute
+        private boolean loggerCosts;
+
+        @PluginBuilderAttribute
+        private int loggerCostSampleRate = 64;
+
+        @PluginBuilderAttribute
+        private long loggerCostSummarySeconds = 300;
+
+        @PluginBuilderAttribute
+        private int loggerCostSummaryLoggers = 10;
+
         @PluginElement("Policy")
         @Required
         private TriggeringPolicy policy;
@@ -148,6 +809,9 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
         @PluginElement("Strategy")
         private RolloverStrategy strategy;
 
+        @PluginElement("OverloadPolicy")
+        private OverloadPolicy overloadPolicy;
+
         public GZipRollingFileAppender build() {
             // Even though some variables may be annotated with @Required,
             // we must still perform validation here for call sites that build builders programmatically.
@@ -177,8 +841,8 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
             if (strategy == null) {
                 strategy = fileName != null
                         ? GZipDefaultRolloverStrategy.createStrategy(null, null, null,
-                        null, true, getConfiguration())
-                        : GZipDirectWriteRolloverStrategy.createStrategy(null, null,
+                        null, null, null, null, true, getConfiguration())
+                        : GZipDirectWriteRolloverStrategy.createStrategy(null, null, null, null,
                         true, getConfiguration());
             } else if (fileName == null && !(strategy instanceof DirectFileRolloverStrategy)) {
                 LOGGER.error ("GZipRollingFileAppender '{}':"
@@ -187,20 +851,98 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
                 return null;
             }
 
+            final Durability fileDurability = Durability.parse(durability);
+
+            if (fileDurability == null) {
+                LOGGER.error("GZipRollingFileAppender '{}': Unknown durability {}, use none, periodic or group-commit",
+                        getName(), durability);
+                return null;
+            }
+
+            List<File> stripes = null;
+
+            if (Strings.isNotBlank(stripeDirectories)) {
+                if (fileName == null || locking) {
+                    LOGGER.error("GZipRollingFileAppender '{}': Striping needs a file name and no locking", getName());
+                    return null;
+                }
+
+                stripes = new ArrayList<>();
+
+                for (String directory : stripeDirectories.split(",")) {
+                    stripes.add(new File(directory.trim()));
+                }
+            }
+
             fileName += GZIP_EXTENSION;
             filePattern += GZIP_EXTENSION;
             final  Layout<? extends Serializable> layout = getOrCreateLayout();
+
+            if (threadSegments > 0 && (locking || stripes != null || layout instanceof CompactBinaryLayout)) {
+                LOGGER.error("GZipRollingFileAppender '{}': Thread segments can not be combined with locking, "
+                        + "striping or CompactBinaryLayout", getName());
+                return null;
+            }
+
+            if (locking && layout instanceof CompactBinaryLayout) {
+                // Every process keeps its own dictionary, but the members of all processes form one file
+                LOGGER.error("GZipRollingFileAppender '{}': Locking can not be combined with CompactBinaryLayout",
+                        getName());
+                return null;
+            }
+
+            if (threadSegments > 0 && overloadPolicy != null) {
+                // The overload policy waits for the appender lock, which would serialise the segment writers again
+                LOGGER.error("GZipRollingFileAppender '{}': Thread segments can not be combined with an OverloadPolicy",
+                        getName());
+                return null;
+            }
+
+            final GZipManagerOptions options = GZipManagerOptions.newBuilder()
+                    .withBatchEncoding(batchEncoding)
+                    .withMaxBatchDelayMillis(maxBatchDelayMillis)
+                    .withPipelined(pipelined)
+                    .withCompressionLevel(compressionLevel)
+                    .withLocking(locking)
+                    .withStripeDirectories(stripes)
+                    .withThreadSegments(threadSegments)
+                    .withDurability(fileDurability)
+                    .withHibernateMillis(hibernateAfterMillis)
+                    .withCatalogFile(catalog)
+                    .withBlockRetention(Strings.isNotBlank(blockRetention)
+                            ? FileSize.parse(blockRetention, DEFAULT_BLOCK_RETENTION)
+                            : 0)
+                    .withCompanionLevel(companionLevel)
+                    .build();
             final GZipRollingFileManager manager = GZipRollingFileManager.getFileManager(fileName, filePattern, append,
                     isBufferedTo, policy, strategy, advertiseUri, layout, bufferSize, isImmediateFlush(),
-                    createOnDemand, getConfiguration());
+                    createOnDemand, options, getConfiguration());
 
             if (manager == null) {
                 return null;
             }
 
             manager.initialize();
+
+            if (strategy instanceof GZipDefaultRolloverStrategy) {
+                ((GZipDefaultRolloverStrategy) strategy).registerArchives(manager);
+            } else if (strategy instanceof GZipDirectWriteRolloverStrategy) {
+                ((GZipDirectWriteRolloverStrategy) strategy).registerArchives(manager);
+            }
+
+            final FlightRecorder flightRecorder = Strings.isNotBlank(flightRecorderSize)
+                    ? new FlightRecorder(getName(), fileName, flightRecorderLevel, flightRecorderDumpLevel,
+                            FileSize.parse(flightRecorderSize, DEFAULT_FLIGHT_RECORDER_SIZE), flightRecorderSeconds)
+                    : null;
+            final LoggerCosts costs = loggerCosts
+                    ? new LoggerCosts(getName(), loggerCostSampleRate, loggerCostSummarySeconds,
+                            loggerCostSummaryLoggers)
+                    : null;
             return new GZipRollingFileAppender(getName(), layout, getFilter(), manager, fileName, filePattern,
-                    isIgnoreExceptions(), isImmediateFlush(), advertise ? getConfiguration().getAdvertiser() : null);
+                    isIgnoreExceptions(), isImmediateFlush(), advertise ? getConfiguration().getAdvertiser() : null,
+                    overloadPolicy, deduplicateStackTraces, collapseRepeatsMillis, durableLevel, durableMarker,
+                    priorityLevel, priorityWindowMillis, priorityFsync, sequenceNumbers, flightRecorder,
+                    costs);
         }
 
         public String getAdvertiseUri() {
@@ -227,6 +969,26 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
             return locking;
         }
 
+        public boolean isBatchEncoding() {
+            return batchEncoding;
+        }
+
+        public boolean isPipelined() {
+            return pipelined;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public boolean isDeduplicateStackTraces() {
+            return deduplicateStackTraces;
+        }
+
+        public long getCollapseRepeatsMillis() {
+            return collapseRepeatsMillis;
+        }
+
         public String getFilePattern() {
             return filePattern;
         }
@@ -239,6 +1001,10 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
             return strategy;
         }
 
+        public OverloadPolicy getOverloadPolicy() {
+            return overloadPolicy;
+        }
+
         public B withAdvertise(final boolean advertise) {
             this.advertise = advertise;
             return asBuilder();
@@ -264,6 +1030,281 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
             return asBuilder();
         }
 
+        public B withBatchEncoding(final boolean batchEncoding) {
+            this.batchEncoding = batchEncoding;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the time after which the events of a batch which was not ended are written to the file.
+         * Synchronous loggers never end a batch, so without the delay their events wait until the batch buffer
+         * is full. The delay is checked once per flush period.
+         * @param maxBatchDelayMillis the delay in millis, 1000 by default, 0 to wait for the end of a batch
+         * @return this builder
+         */
+        public B withMaxBatchDelayMillis(final long maxBatchDelayMillis) {
+            this.maxBatchDelayMillis = maxBatchDelayMillis;
+            return asBuilder();
+        }
+
+        public B withPipelined(final boolean pipelined) {
+            this.pipelined = pipelined;
+            return asBuilder();
+        }
+
+        public B withCompressionLevel(final int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        public B withDeduplicateStackTraces(final boolean deduplicateStackTraces) {
+            this.deduplicateStackTraces = deduplicateStackTraces;
+            return asBuilder();
+        }
+
+        /**
+         * Collapses runs of consecutive events with the same logger, level and message into the first event
+         * and a summary of the repeats.
+         * @param collapseRepeatsMillis the maximum duration of a collapsed run, 0 to write every event
+         * @return this builder
+         */
+        public B withCollapseRepeatsMillis(final long collapseRepeatsMillis) {
+            this.collapseRepeatsMillis = collapseRepeatsMillis;
+            return asBuilder();
+        }
+
+        /**
+         * Spreads the compressed data over stripe files in the given directories, one per device, and writes
+         * a manifest of the stripes to the file.
+         * @param stripeDirectories comma separated directories, null to write the file itself
+         * @return this builder
+         */
+        public B withStripeDirectories(final String stripeDirectories) {
+            this.stripeDirectories = stripeDirectories;
+            return asBuilder();
+        }
+
+        /**
+         * Gives every thread stripe its own deflater and temporary segment, which are appended to the file
+         * as gzip members at rollover, so threads compress in parallel. Batch encoding, direct encoding and
+         * stack trace deduplication are not used in this mode, and it can not be combined with an OverloadPolicy,
+         * whose lock would serialise the threads again.
+         * @param threadSegments the number of thread stripes, 0 to compress all threads in one deflater
+         * @return this builder
+         */
+        public B withThreadSegments(final int threadSegments) {
+            this.threadSegments = threadSegments;
+            return asBuilder();
+        }
+
+        /**
+         * Prefixes every event written in segment mode with #sequence, so the total order of the events
+         * of different segments can be restored.
+         * @param sequenceNumbers true to number the events
+         * @return this builder
+         */
+        public B withSequenceNumbers(final boolean sequenceNumbers) {
+            this.sequenceNumbers = sequenceNumbers;
+            return asBuilder();
+        }
+
+        /**
+         * Sets when written bytes are forced to the storage device.
+         * @param durability none, periodic (once per flush period) or group-commit (durable events wait
+         *                   for a force shared with the other waiting writers)
+         * @return this builder
+         */
+        public B withDurability(final String durability) {
+            this.durability = durability;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the level from which events wait for a group commit, null for none.
+         * @param durableLevel the level, ERROR by default
+         * @return this builder
+         */
+        public B withDurableLevel(final Level durableLevel) {
+            this.durableLevel = durableLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the marker of the events which wait for a group commit regardless of their level, like an audit marker.
+         * @param durableMarker the marker name
+         * @return this builder
+         */
+        public B withDurableMarker(final String durableMarker) {
+            this.durableMarker = durableMarker;
+            return asBuilder();
+        }
+
+        /**
+         * Flushes the deflater soon after an event at or above the level instead of at the next periodic flush.
+         * @param priorityLevel the level, null to flush important events periodically like the others
+         * @return this builder
+         */
+        public B withPriorityLevel(final Level priorityLevel) {
+            this.priorityLevel = priorityLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the window in which priority flush requests are coalesced into one flush.
+         * @param priorityWindowMillis the window, 20 millis by default
+         * @return this builder
+         */
+        public B withPriorityWindowMillis(final long priorityWindowMillis) {
+            this.priorityWindowMillis = priorityWindowMillis;
+            return asBuilder();
+        }
+
+        /**
+         * Forces the file to the storage device after a priority flush.
+         * @param priorityFsync true to force the file
+         * @return this builder
+         */
+        public B withPriorityFsync(final boolean priorityFsync) {
+            this.priorityFsync = priorityFsync;
+            return asBuilder();
+        }
+
+        /**
+         * Closes the file after the given idle time, which finishes the gzip member and releases the deflater
+         * and the file descriptor. The next event reopens the file and starts a new member.
+         * Only the plain gzip stream hibernates, not the locking, striped or segmented ones.
+         * @param hibernateAfterMillis the idle time in millis, 0 to keep the file open
+         * @return this builder
+         */
+        public B withHibernateAfterMillis(final long hibernateAfterMillis) {
+            this.hibernateAfterMillis = hibernateAfterMillis;
+            return asBuilder();
+        }
+
+        /**
+         * Keeps the time range, event count, sizes and level histogram of every file in the catalog file and
+         * in a metadata member at the end of the file, so the files of a time range are found without opening
+         * them. Only the plain gzip stream keeps statistics, not the locking, striped or segmented ones.
+         * @param catalog the catalog file, usually in the directory of the archives, null to keep no statistics
+         * @return this builder
+         */
+        public B withCatalog(final String catalog) {
+            this.catalog = catalog;
+            return asBuilder();
+        }
+
+        /**
+         * Publishes the compressed bytes of the file in blocks at every flush, see
+         * {@link GZipRollingFileManager#getBlockPublisher}, so a shipper in the process reads no file.
+         * Only the plain gzip stream publishes blocks, not the locking, striped or segmented ones.
+         * @param blockRetention the compressed bytes retained for subscribers which fall behind, like 4MB,
+         *                       null to publish no blocks
+         * @return this builder
+         */
+        public B withBlockRetention(final String blockRetention) {
+            this.blockRetention = blockRetention;
+            return asBuilder();
+        }
+
+        /**
+         * Copies the events at or above the level into a small companion gzip file next to the file, which rolls
+         * with the file, see {@link CompanionArchive}. Every copy points to a seek
+         * point in the file before the event. Only the plain, not pipelined gzip stream writes companions.
+         * @param companionLevel the level of the copied events, usually ERROR, null to write no companion
+         * @return this builder
+         */
+        public B withCompanionLevel(final Level companionLevel) {
+            this.companionLevel = companionLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Keeps the events below the flight recorder level compressed in a ring in memory instead of the file,
+         * and dumps the last seconds of the ring to a side file when an event at the dump level is written.
+         * @param flightRecorderSize the compressed size of the ring, like 8MB, null to write all events to the file
+         * @return this builder
+         */
+        public B withFlightRecorderSize(final String flightRecorderSize) {
+            this.flightRecorderSize = flightRecorderSize;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the level below which events are kept in the flight recorder.
+         * @param flightRecorderLevel the level, INFO by default
+         * @return this builder
+         */
+        public B withFlightRecorderLevel(final Level flightRecorderLevel) {
+            this.flightRecorderLevel = flightRecorderLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the level from which a written event dumps the flight recorder.
+         * @param flightRecorderDumpLevel the level, ERROR by default, null to dump by JMX only
+         * @return this builder
+         */
+        public B withFlightRecorderDumpLevel(final Level flightRecorderDumpLevel) {
+            this.flightRecorderDumpLevel = flightRecorderDumpLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Sets how many seconds before a dump are written to the side file.
+         * @param flightRecorderSeconds the number of seconds, 30 by default
+         * @return this builder
+         */
+        public B withFlightRecorderSeconds(final long flightRecorderSeconds) {
+            this.flightRecorderSeconds = flightRecorderSeconds;
+            return asBuilder();
+        }
+
+        /**
+         * Accounts the bytes and the time of the events to their loggers and levels, see {@link LoggerCosts}.
+         * @param loggerCosts true to account the costs, which holds the manager lock while an event is encoded
+         * @return this builder
+         */
+        public B withLoggerCosts(final boolean loggerCosts) {
+            this.loggerCosts = loggerCosts;
+            return asBuilder();
+        }
+
+        /**
+         * Sets how often the time of an event is measured for the logger costs.
+         * @param loggerCostSampleRate every loggerCostSampleRate-th event on average is timed, 64 by default
+         * @return this builder
+         */
+        public B withLoggerCostSampleRate(final int loggerCostSampleRate) {
+            this.loggerCostSampleRate = loggerCostSampleRate;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the interval of the summaries of the costliest loggers written to the file.
+         * @param loggerCostSummarySeconds the interval, 300 by default, 0 to read the costs over JMX only
+         * @return this builder
+         */
+        public B withLoggerCostSummarySeconds(final long loggerCostSummarySeconds) {
+            this.loggerCostSummarySeconds = loggerCostSummarySeconds;
+            return asBuilder();
+        }
+
+        /**
+         * Sets the number of loggers in a summary of the costs.
+         * @param loggerCostSummaryLoggers the number of loggers, 10 by default
+         * @return this builder
+         */
+        public B withLoggerCostSummaryLoggers(final int loggerCostSummaryLoggers) {
+            this.loggerCostSummaryLoggers = loggerCostSummaryLoggers;
+            return asBuilder();
+        }
+
+        /**
+         * Shares the file with other processes, each writing whole gzip members under a file lock. Can not be
+         * combined with CompactBinaryLayout, whose per-file dictionary is not shared between the processes.
+         * @param locking true to share the file
+         * @return this builder
+         */
         public B withLocking(final boolean locking) {
             this.locking = locking;
             return asBuilder();
@@ -283,5 +1324,10 @@ public class GZipRollingFileAppender extends AbstractOutputStreamAppender<GZipRo
             this.strategy = strategy;
             return asBuilder();
         }
+
+        public B withOverloadPolicy(final OverloadPolicy overloadPolicy) {
+            this.overloadPolicy = overloadPolicy;
+            return asBuilder();
+        }
     }
 }
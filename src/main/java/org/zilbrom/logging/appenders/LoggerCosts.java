@@ -0,0 +1,390 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounts the cost of the events of an appender to their loggers and levels, so the loggers which cost
+ * the most disk and CPU can be told and cut.
+ * <p>
+ * The encoded bytes of every event are counted exactly. A deflate block mixes the events of many loggers,
+ * so the compressed bytes are estimated with the running compression ratio of the manager. The deflater runs
+ * when the encoding buffer is flushed, by whichever event fills it, so every sampleRate-th event, chosen at random,
+ * is timed from its encoding until its bytes are handed on, including the compression of the buffers it flushed,
+ * and counts sampleRate times. The sums are LongAdders, which spread the updates of concurrent threads over cells,
+ * and loggers beyond {@value #MAX_LOGGERS} are accounted as {@value #OTHER_LOGGERS}. A reset swaps in new sums,
+ * so an event being accounted meanwhile lands wholly in the old or in the new ones.
+ * <p>
+ * The costs are registered as org.zilbrom.logging:type=LoggerCosts,name=APPENDER, and the appender writes
+ * the costliest loggers of every summary interval to its file.
+ */
+public final class LoggerCosts implements LoggerCostsMBean {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    private static final int MAX_LOGGERS = 1000;
+    private static final String OTHER_LOGGERS = "<other>";
+
+    private final String name;
+    private final int sampleRate;
+    private final long summaryMillis;
+    private final int summaryLoggers;
+    private volatile Sums sums = new Sums();
+
+    /**
+     * The costs at the last summary, guarded by this
+     */
+    private Map<String, Cost> summarized = new HashMap<>();
+    private volatile long nextSummaryMillis;
+    private ObjectName objectName;
+
+    /**
+     * Creates the costs.
+     * @param name the name of the appender
+     * @param sampleRate every sampleRate-th event is timed
+     * @param summarySeconds the interval of the summaries written to the file, 0 for none
+     * @param summaryLoggers the number of loggers in a summary
+     */
+    LoggerCosts(final String name, final int sampleRate, final long summarySeconds, final int summaryLoggers) {
+        this.name = name;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.summaryMillis = TimeUnit.SECONDS.toMillis(summarySeconds);
+        this.summaryLoggers = summaryLoggers;
+    }
+
+    /**
+     * Returns true if the next event is timed.
+     */
+    boolean samples() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Accounts an event.
+     * @param event The LogEvent.
+     * @param rawBytes the encoded bytes of the event
+     * @param compressionRatio the compressed bytes per encoded byte
+     * @param sampledNanos the time of the event if it was sampled, -1 otherwise
+     */
+    void account(final LogEvent event, final long rawBytes, final double compressionRatio,
+                 final long sampledNanos) {
+        final long compressedBytes = Math.round(rawBytes * compressionRatio);
+        final long nanos = sampledNanos < 0 ? 0 : sampledNanos * sampleRate;
+        final Sums current = sums;
+        current.counters(event.getLoggerName()).add(rawBytes, compressedBytes, nanos);
+        current.byLevel.get(event.getLevel().getStandardLevel()).add(rawBytes, compressedBytes, nanos);
+    }
+
+    /**
+     * Returns the summary of the costliest loggers since the last one if the summary interval has passed.
+     * @param timeMillis the time of the current event
+     * @return The summary or null if it is not due.
+     */
+    String summary(final long timeMillis) {
+        if (summaryMillis <= 0 || timeMillis < nextSummaryMillis) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (timeMillis < nextSummaryMillis) {
+                return null;
+            }
+
+            final boolean first = nextSummaryMillis == 0;
+            nextSummaryMillis = timeMillis + summaryMillis;
+            final Map<String, Cost> current = getCostsByLogger();
+            final Map<String, Cost> previous = summarized;
+            summarized = current;
+
+            if (first) {
+                return null;
+            }
+
+            final List<Map.Entry<String, Cost>> changed = new ArrayList<>();
+            Cost total = new Cost(0, 0, 0, 0);
+
+            for (Map.Entry<String, Cost> entry : current.entrySet()) {
+                final Cost cost = entry.getValue().minus(previous.get(entry.getKey()));
+
+                if (cost.getEvents() > 0) {
+                    changed.add(new AbstractMap.SimpleEntry<>(entry.getKey(), cost));
+                    total = total.plus(cost);
+                }
+            }
+
+            if (changed.isEmpty()) {
+                return null;
+            }
+
+            changed.sort(Comparator.comparingLong((Map.Entry<String, Cost> entry) ->
+                    entry.getValue().getCompressedBytes()).reversed());
+            final StringBuilder summary = new StringBuilder("Logging costs of the last ")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(summaryMillis)).append(" s: ").append(total)
+                    .append("; costliest of ").append(changed.size()).append(" loggers:");
+
+            for (int i = 0; i < Math.min(summaryLoggers, changed.size()); i++) {
+                summary.append(' ').append(changed.get(i).getKey()).append(" (").append(changed.get(i).getValue())
+                        .append(')');
+            }
+
+            return summary.toString();
+        }
+    }
+
+    /**
+     * Returns the costs per logger.
+     */
+    public Map<String, Cost> getCostsByLogger() {
+        final Map<String, Cost> result = new TreeMap<>();
+
+        for (Map.Entry<String, Counters> entry : sums.byLogger.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the costs per level, levels without events are omitted.
+     */
+    public Map<StandardLevel, Cost> getCostsByStandardLevel() {
+        final Map<StandardLevel, Cost> result = new EnumMap<>(StandardLevel.class);
+
+        for (Map.Entry<StandardLevel, Counters> entry : sums.byLevel.entrySet()) {
+            final Cost cost = entry.getValue().sum();
+
+            if (cost.getEvents() > 0) {
+                result.put(entry.getKey(), cost);
+            }
+        }
+
+        return result;
+    }
+
+    private Cost total() {
+        Cost total = new Cost(0, 0, 0, 0);
+
+        for (Counters counters : sums.byLevel.values()) {
+            total = total.plus(counters.sum());
+        }
+
+        return total;
+    }
+
+    @Override
+    public long getEvents() {
+        return total().getEvents();
+    }
+
+    @Override
+    public long getRawBytes() {
+        return total().getRawBytes();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return total().getCompressedBytes();
+    }
+
+    @Override
+    public long getMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(total().getNanos());
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public String[] getCostliestLoggers() {
+        final List<Map.Entry<String, Cost>> loggers = new ArrayList<>(getCostsByLogger().entrySet());
+        loggers.sort(Comparator.comparingLong((Map.Entry<String, Cost> entry) ->
+                entry.getValue().getCompressedBytes()).reversed());
+        final String[] result = new String[loggers.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = loggers.get(i).getKey() + ": " + loggers.get(i).getValue();
+        }
+
+        return result;
+    }
+
+    @Override
+    public String[] getCostsByLevel() {
+        final List<String> result = new ArrayList<>();
+
+        for (Map.Entry<StandardLevel, Cost> entry : getCostsByStandardLevel().entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public synchronized void reset() {
+        sums = new Sums();
+        summarized = new HashMap<>();
+    }
+
+    /**
+     * Registers the costs as org.zilbrom.logging:type=LoggerCosts,name=APPENDER.
+     */
+    void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.zilbrom.logging:type=LoggerCosts,name=" + ObjectName.quote(name));
+
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException | SecurityException exception) {
+            LOGGER.warn("LoggerCosts '{}': unable to register the MBean", name, exception);
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | SecurityException exception) {
+            LOGGER.warn("LoggerCosts '{}': unable to unregister the MBean", name, exception);
+        }
+
+        objectName = null;
+    }
+
+    /**
+     * The costs of a logger or level.
+     */
+    public static final class Cost {
+        private final long events;
+        private final long rawBytes;
+        private final long compressedBytes;
+        private final long nanos;
+
+        Cost(final long events, final long rawBytes, final long compressedBytes, final long nanos) {
+            this.events = events;
+            this.rawBytes = rawBytes;
+            this.compressedBytes = compressedBytes;
+            this.nanos = nanos;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        /**
+         * Returns the number of encoded bytes.
+         */
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        /**
+         * Returns the estimated number of compressed bytes.
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * Returns the estimated time in nanos spent encoding and compressing the events.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        Cost plus(final Cost other) {
+            return new Cost(events + other.events, rawBytes + other.rawBytes,
+                    compressedBytes + other.compressedBytes, nanos + other.nanos);
+        }
+
+        Cost minus(final Cost other) {
+            return other == null ? this : new Cost(events - other.events, rawBytes - other.rawBytes,
+                    compressedBytes - other.compressedBytes, nanos - other.nanos);
+        }
+
+        @Override
+        public String toString() {
+            return events + " events, " + rawBytes + " bytes, ~" + compressedBytes + " compressed, ~"
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+        }
+    }
+
+    private static final class Counters {
+        private final LongAdder events = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void add(final long raw, final long compressed, final long time) {
+            events.increment();
+            rawBytes.add(raw);
+            compressedBytes.add(compressed);
+
+            if (time > 0) {
+                nanos.add(time);
+            }
+        }
+
+        Cost sum() {
+            return new Cost(events.sum(), rawBytes.sum(), compressedBytes.sum(), nanos.sum());
+        }
+    }
+
+    /**
+     * The counters since the last reset
+     */
+    private static final class Sums {
+        private final Map<String, Counters> byLogger = new ConcurrentHashMap<>();
+        private final AtomicInteger loggers = new AtomicInteger();
+        private final Map<StandardLevel, Counters> byLevel = new EnumMap<>(StandardLevel.class);
+
+        Sums() {
+            for (StandardLevel standardLevel : StandardLevel.values()) {
+                byLevel.put(standardLevel, new Counters());
+            }
+        }
+
+        /**
+         * Returns the counters of a logger, or of {@value LoggerCosts#OTHER_LOGGERS} once
+         * {@value LoggerCosts#MAX_LOGGERS} loggers are counted. A logger takes one of the places before its counters
+         * are added, so concurrent new loggers cannot exceed the limit.
+         */
+        Counters counters(final String loggerName) {
+            final String key = loggerName == null ? "" : loggerName;
+            final Counters counters = byLogger.get(key);
+
+            if (counters != null) {
+                return counters;
+            }
+
+            final Counters added = byLogger.computeIfAbsent(key, logger ->
+                    loggers.getAndUpdate(count -> Math.min(count + 1, MAX_LOGGERS)) < MAX_LOGGERS
+                            ? new Counters() : null);
+            return added != null ? added : byLogger.computeIfAbsent(OTHER_LOGGERS, logger -> new Counters());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.zilbrom.logging.appenders;
+
+/**
+ * The JMX view of {@link LoggerCosts}.
+ */
+public interface LoggerCostsMBean {
+    long getEvents();
+
+    /**
+     * Returns the number of encoded bytes of the events.
+     */
+    long getRawBytes();
+
+    /**
+     * Returns the estimated number of compressed bytes of the events.
+     */
+    long getCompressedBytes();
+
+    /**
+     * Returns the estimated time in millis spent encoding and compressing the events.
+     */
+    long getMillis();
+
+    int getSampleRate();
+
+    /**
+     * Returns the loggers which cost the most compressed bytes, one line per logger.
+     */
+    String[] getCostliestLoggers();
+
+    /**
+     * Returns the costs per level, one line per level.
+     */
+    String[] getCostsByLevel();
+
+    /**
+     * Clears the costs.
+     */
+    void reset();
+}
@@ -0,0 +1,330 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.action.Action;
+import org.apache.logging.log4j.core.appender.rolling.action.GzCompressAction;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.actions.RolloverWorkScheduler;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Decides what happens to an event when the appender cannot take it within a bounded time
+ * because compression falls behind the event rate.
+ * <p>
+ * An application thread waits at most maxWaitMillis for the appender. If the wait times out, an event
+ * less specific than the level is dropped and counted. Any other event is written uncompressed
+ * to the spill file, which is compressed in background once the appender catches up. Without a spill file
+ * such events wait as long as needed, so the wait of every event is bounded only when a spill file is configured.
+ * <p>
+ * Dropped events are counted per level. Every sampleRate-th dropped event is also accounted to its logger,
+ * so the loggers which lose events can be told without counting every one of them.
+ */
+@Plugin(name = OverloadPolicy.PLUGIN_NAME, category = Core.CATEGORY_NAME, printObject = true)
+public final class OverloadPolicy {
+    public static final String PLUGIN_NAME = "OverloadPolicy";
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 100;
+    public static final int DEFAULT_SAMPLE_RATE = 64;
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 10000;
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final int MAX_SAMPLED_LOGGERS = 1000;
+    private static final String OTHER_LOGGERS = "<other>";
+
+    private final Level level;
+    private final long maxWaitNanos;
+    private final File spillFile;
+    private final int sampleRate;
+    private final long reportIntervalNanos;
+
+    private final Map<StandardLevel, LongAdder> droppedByLevel = new EnumMap<>(StandardLevel.class);
+    private final Map<String, LongAdder> sampledDroppedByLogger = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong spillFailures = new AtomicLong();
+
+    private OutputStream spillStream;
+    private long pendingSpillBytes;
+    private long reportedDropped;
+    private long reportedSpilled;
+    private long lastReportNanos = System.nanoTime();
+
+    private OverloadPolicy(final Level level, final long maxWaitMillis, final File spillFile, final int sampleRate,
+                           final long reportIntervalMillis) {
+        this.level = level;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.spillFile = spillFile;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+
+        for (StandardLevel standardLevel : StandardLevel.values()) {
+            droppedByLevel.put(standardLevel, new LongAdder());
+        }
+    }
+
+    /**
+     * Creates the OverloadPolicy.
+     * @param level Events less specific than this level are dropped when the appender is overloaded.
+     *              Nothing is dropped if not set.
+     * @param maxWaitMillis The maximum time in milliseconds a thread waits for the appender, 100 by default.
+     * @param spillFile The file events which are not dropped are written to when the appender is overloaded.
+     * @param sampleRate Every sampleRate-th dropped event is accounted to its logger, 64 by default.
+     * @param reportIntervalMillis The minimum interval between reports of dropped and spilled events,
+     *                             10 seconds by default.
+     * @param config The Configuration.
+     * @return An OverloadPolicy.
+     */
+    @PluginFactory
+    public static OverloadPolicy createPolicy(@PluginAttribute("level") final Level level,
+                                              @PluginAttribute(value = "maxWaitMillis",
+                                                      defaultLong = DEFAULT_MAX_WAIT_MILLIS) final long maxWaitMillis,
+                                              @PluginAttribute("spillFile") final String spillFile,
+                                              @PluginAttribute(value = "sampleRate",
+                                                      defaultInt = DEFAULT_SAMPLE_RATE) final int sampleRate,
+                                              @PluginAttribute(value = "reportIntervalMillis",
+                                                      defaultLong = DEFAULT_REPORT_INTERVAL_MILLIS)
+                                                  final long reportIntervalMillis,
+                                              @PluginConfiguration final Configuration config) {
+        if (level == null && spillFile == null) {
+            LOGGER.warn("OverloadPolicy: neither level nor spillFile is set, events will wait for the appender");
+        }
+
+        final File spill = spillFile == null ? null : new File(config.getStrSubstitutor().replace(spillFile));
+        return new OverloadPolicy(level, maxWaitMillis, spill, sampleRate, reportIntervalMillis);
+    }
+
+    /**
+     * Acquires the lock of the appender for the event, waiting no longer than allowed for the event.
+     * @param lock The lock of the appender.
+     * @param event The LogEvent.
+     * @return true if the lock was acquired
+     */
+    boolean enter(final ReentrantLock lock, final LogEvent event) {
+        if (lock.tryLock()) {
+            return true;
+        }
+
+        if (!isDroppable(event) && spillFile == null) {
+            lock.lock();
+            return true;
+        }
+
+        try {
+            return lock.tryLock(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Drops or spills an event the appender could not take in time.
+     * @param event The LogEvent.
+     * @param layout The layout of the appender.
+     */
+    void shed(final LogEvent event, final Layout<? extends Serializable> layout) {
+        if (isDroppable(event)) {
+            drop(event);
+            return;
+        }
+
+        final byte[] bytes = layout.toByteArray(event);
+
+        synchronized (this) {
+            try {
+                if (spillStream == null) {
+                    spillStream = new FileOutputStream(spillFile, true);
+                }
+
+                spillStream.write(bytes);
+                pendingSpillBytes += bytes.length;
+                spilled.incrementAndGet();
+                spilledBytes.addAndGet(bytes.length);
+            } catch (IOException ioException) {
+                LOGGER.error("OverloadPolicy: unable to write to spill file {}", spillFile, ioException);
+                spillFailures.incrementAndGet();
+                drop(event);
+            }
+        }
+    }
+
+    private boolean isDroppable(final LogEvent event) {
+        return level != null && event.getLevel().isLessSpecificThan(level) && !event.getLevel().equals(level);
+    }
+
+    private void drop(final LogEvent event) {
+        final long count = dropped.incrementAndGet();
+        droppedByLevel.get(event.getLevel().getStandardLevel()).increment();
+
+        if (count % sampleRate == 0) {
+            String loggerName = event.getLoggerName();
+
+            if (!sampledDroppedByLogger.containsKey(loggerName)
+                    && sampledDroppedByLogger.size() >= MAX_SAMPLED_LOGGERS) {
+                loggerName = OTHER_LOGGERS;
+            }
+
+            sampledDroppedByLogger.computeIfAbsent(loggerName, name -> new LongAdder()).add(sampleRate);
+        }
+    }
+
+    /**
+     * Called by the appender while it holds its lock. Closes the spill file and schedules its compression
+     * if nobody waits for the appender, and returns a report of the events shed since the last one
+     * if the report interval has passed.
+     * @param lock The lock of the appender.
+     * @return The report or null if there is nothing to report yet.
+     */
+    String caughtUp(final ReentrantLock lock) {
+        if (lock.hasQueuedThreads()) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (pendingSpillBytes > 0) {
+                closeSpill();
+            }
+
+            final long now = System.nanoTime();
+            final long currentDropped = dropped.get();
+            final long currentSpilled = spilled.get();
+
+            if (now - lastReportNanos < reportIntervalNanos
+                    || (currentDropped == reportedDropped && currentSpilled == reportedSpilled)) {
+                return null;
+            }
+
+            final String report = "Appender was overloaded: dropped " + (currentDropped - reportedDropped)
+                    + " events, spilled " + (currentSpilled - reportedSpilled) + " events to " + spillFile
+                    + "; dropped in total by level " + getDroppedByLevel()
+                    + ", sampled by logger " + getSampledDroppedByLogger();
+            reportedDropped = currentDropped;
+            reportedSpilled = currentSpilled;
+            lastReportNanos = now;
+            return report;
+        }
+    }
+
+    /**
+     * Closes the spill file, moves it aside and schedules its compression.
+     */
+    synchronized void closeSpill() {
+        if (spillStream == null) {
+            return;
+        }
+
+        try {
+            spillStream.close();
+        } catch (IOException ioException) {
+            LOGGER.warn("OverloadPolicy: unable to close spill file {}", spillFile, ioException);
+        }
+
+        spillStream = null;
+        final File rotated = new File(spillFile.getPath() + '.' + System.currentTimeMillis());
+
+        if (!spillFile.renameTo(rotated)) {
+            LOGGER.warn("OverloadPolicy: unable to rename spill file {} to {}", spillFile, rotated);
+            return;
+        }
+
+        final Action compress = new GzCompressAction(rotated,
+                new File(rotated.getPath() + GZipRollingFileAppender.GZIP_EXTENSION), true, Deflater.BEST_SPEED);
+        final RolloverWorkScheduler scheduler = RolloverWorkScheduler.getInstance();
+
+        if (scheduler.isBudgeted()) {
+            scheduler.submit(compress, RolloverWorkScheduler.Priority.OPTIONAL, pendingSpillBytes);
+        } else {
+            BackgroundThreads.start("GZipSpillCompress", compress);
+        }
+
+        pendingSpillBytes = 0;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public File getSpillFile() {
+        return spillFile;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    public long getSpillFailures() {
+        return spillFailures.get();
+    }
+
+    /**
+     * Returns the number of dropped events by level, levels without dropped events are omitted.
+     */
+    public Map<StandardLevel, Long> getDroppedByLevel() {
+        final Map<StandardLevel, Long> result = new EnumMap<>(StandardLevel.class);
+
+        for (Map.Entry<StandardLevel, LongAdder> entry : droppedByLevel.entrySet()) {
+            final long count = entry.getValue().sum();
+
+            if (count > 0) {
+                result.put(entry.getKey(), count);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the sampled number of dropped events by logger.
+     */
+    public Map<String, Long> getSampledDroppedByLogger() {
+        final Map<String, Long> result = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> entry : sampledDroppedByLogger.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "OverloadPolicy(level = " + level + ", maxWaitMillis = " + getMaxWaitMillis()
+                + ", spillFile = " + spillFile + ", sampleRate = " + sampleRate + ')';
+    }
+}
@@ -0,0 +1,103 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.managers.GZipRollingFileManager;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Brings important events to disk without waiting for the periodic flush of the deflater. An event at or above
+ * the level requests a flush; the flush thread waits for the window, so all requests of an error storm are
+ * served by one flush, then flushes the deflater and optionally forces the file. Writers never wait, an event
+ * reaches the file within the window plus the duration of the flush.
+ */
+final class PriorityLane {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    private final GZipRollingFileManager manager;
+    private final Level level;
+    private final long windowNanos;
+    private final boolean force;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final Thread flushThread;
+    private volatile boolean stopped;
+
+    PriorityLane(final GZipRollingFileManager manager, final Level level, final long windowMillis,
+                 final boolean force, final String name) {
+        this.manager = manager;
+        this.level = level;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.force = force;
+        this.flushThread = BackgroundThreads.start("GZipPriorityFlush-" + name, this::flushLoop);
+    }
+
+    /**
+     * Requests a flush if the event is important. Called after the event was written.
+     * @param event The LogEvent.
+     */
+    void written(final LogEvent event) {
+        if (event.getLevel().isMoreSpecificThan(level)) {
+            requests.incrementAndGet();
+
+            if (!pending.getAndSet(true)) {
+                LockSupport.unpark(flushThread);
+            }
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(flushThread);
+    }
+
+    private void flushLoop() {
+        while (!stopped) {
+            if (!pending.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            final long deadline = System.nanoTime() + windowNanos;
+            long remaining;
+
+            while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            // Requests after this point are not covered by the flush and start the next window
+            pending.set(false);
+
+            try {
+                if (force) {
+                    manager.syncFlush();
+                } else {
+                    manager.flushCompressed();
+                }
+
+                flushes.incrementAndGet();
+            } catch (final RuntimeException exception) {
+                LOGGER.error("Unable to flush priority events of {}", manager.getName(), exception);
+            }
+        }
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getFlushes() {
+        return flushes.get();
+    }
+}
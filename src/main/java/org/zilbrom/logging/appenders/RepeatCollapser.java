@@ -0,0 +1,112 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises runs of consecutive events with the same logger, level and message. The first event of a run
+ * is written, the repeats are only counted and written as one summary event when the run ends: when another event
+ * arrives, when the run gets longer than the window, checked by the periodic thread of the manager even if no event
+ * arrives, or when the appender stops. Callers must synchronize.
+ */
+final class RepeatCollapser {
+    private final long windowMillis;
+    private final AtomicLong collapsed = new AtomicLong();
+
+    private String loggerName;
+    private Level level;
+    private String message;
+    private String threadName;
+    private long runStartMillis;
+    private long repeats;
+    private long firstRepeatMillis;
+    private long lastRepeatMillis;
+
+    RepeatCollapser(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Counts the event if it repeats the previous one within the window.
+     * @param event The LogEvent.
+     * @return true if the event is collapsed and must not be written
+     */
+    boolean collapse(final LogEvent event) {
+        final String text = event.getMessage().getFormattedMessage();
+        final long timeMillis = event.getTimeMillis();
+
+        if (event.getLevel().equals(level) && Objects.equals(event.getLoggerName(), loggerName)
+                && text.equals(message) && timeMillis - runStartMillis < windowMillis) {
+            if (repeats++ == 0) {
+                firstRepeatMillis = timeMillis;
+            }
+
+            lastRepeatMillis = timeMillis;
+            threadName = event.getThreadName();
+            collapsed.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Ends the current run and starts a new one with the event.
+     * @param event The LogEvent which is written.
+     * @return the summary of the ended run, to be written before the event, or null if nothing was collapsed
+     */
+    LogEvent startRun(final LogEvent event) {
+        final LogEvent summary = endRun();
+        loggerName = event.getLoggerName();
+        level = event.getLevel();
+        message = event.getMessage().getFormattedMessage();
+        runStartMillis = event.getTimeMillis();
+        return summary;
+    }
+
+    /**
+     * Ends the current run if it is longer than the window, so no further event can be collapsed into it.
+     * @param timeMillis the current time
+     * @return the summary of the ended run or null if the run goes on or nothing was collapsed
+     */
+    LogEvent endExpiredRun(final long timeMillis) {
+        return repeats > 0 && timeMillis - runStartMillis >= windowMillis ? endRun() : null;
+    }
+
+    /**
+     * Ends the current run.
+     * @return the summary of the run or null if nothing was collapsed
+     */
+    LogEvent endRun() {
+        if (repeats == 0) {
+            level = null;
+            return null;
+        }
+
+        final LogEvent summary = Log4jLogEvent.newBuilder()
+                .setLoggerName(loggerName)
+                .setLevel(level)
+                .setThreadName(threadName)
+                .setTimeMillis(lastRepeatMillis)
+                .setMessage(new SimpleMessage("Previous message repeated " + repeats + " times between "
+                        + Instant.ofEpochMilli(firstRepeatMillis) + " and " + Instant.ofEpochMilli(lastRepeatMillis)))
+                .build();
+        repeats = 0;
+        level = null;
+        return summary;
+    }
+
+    long getCollapsed() {
+        return collapsed.get();
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+}
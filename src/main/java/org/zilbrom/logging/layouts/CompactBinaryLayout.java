@@ -0,0 +1,499 @@
+package org.zilbrom.logging.layouts;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.AbstractLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A binary layout which writes far fewer bytes than a pattern layout for the same events, so the deflater
+ * has less input to compress.
+ * <p>
+ * Message templates, levels, logger names, thread names, MDC keys and marker names are interned into a dictionary
+ * which lives as long as the file: a string is written in full the first two times it is used and as an id
+ * afterwards, so strings which occur once, such as one-off messages, do not fill the dictionary.
+ * The strings seen once are remembered by their hash in a table of {@value #SEEN_SLOTS} slots, a collision only
+ * interns a string early. A level is written with its int level the first time, so custom levels are read back.
+ * Timestamps are written as deltas from the previous event. A message is split into its template and parameters:
+ * a parameterized message keeps its own parameters, the numbers of any other message become parameters, so messages
+ * built by concatenation share a template too. Parameters are written as variable length numbers or strings.
+ * <p>
+ * Every file and every reopening of a file starts with the header, which resets the dictionary and carries
+ * the pattern used by {@link CompactBinaryReader} to render the events as text again. Source locations are not kept
+ * and exceptions are kept as their printed stack traces.
+ * <p>
+ * The dictionary makes the encoding of an event depend on the events written before it, so events are encoded
+ * while holding the lock of the destination. A layout instance must not be shared by appenders.
+ * {@link #toByteArray} returns a self-contained record with its own header.
+ */
+@Plugin(name = CompactBinaryLayout.PLUGIN_NAME, category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE,
+        printObject = true)
+public final class CompactBinaryLayout extends AbstractLayout<byte[]> {
+    public static final String PLUGIN_NAME = "CompactBinaryLayout";
+    public static final String CONTENT_TYPE = "application/x-compact-log";
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 65536;
+
+    static final byte[] MAGIC = {'Z', 'L', 'C', 'B'};
+    static final int VERSION = 2;
+    static final int EVENT = 1;
+    static final int FLAG_MARKER = 1;
+    static final int FLAG_THROWN = 2;
+    static final int FLAG_CONTEXT = 4;
+    static final int PARAM_LONG = 0;
+    static final int PARAM_STRING = 1;
+    static final int PARAM_NULL = 2;
+
+    /**
+     * A string reference: a string which is not interned follows
+     */
+    static final int REF_LITERAL = 0;
+
+    /**
+     * A string reference: a string follows and gets the next id
+     */
+    static final int REF_NEW = 1;
+
+    /**
+     * A string reference: the id plus REF_ID_OFFSET
+     */
+    static final int REF_ID_OFFSET = 2;
+
+    /**
+     * Marks the places of parameters in a template
+     */
+    static final char SLOT = '\0';
+
+    private static final String PLACEHOLDER = "{}";
+    private static final int MAX_NUMBERS = 32;
+    private static final int SEEN_SLOTS = 4096;
+    private static final String MAX_LONG_DIGITS = "9223372036854775807";
+    private static final String MIN_LONG_DIGITS = "9223372036854775808";
+
+    private final String pattern;
+    private final int maxDictionarySize;
+    private final Output output = new Output();
+    private Session session = new Session();
+
+    private CompactBinaryLayout(final Configuration configuration, final String pattern,
+                                final int maxDictionarySize) {
+        super(configuration, null, null);
+        this.pattern = pattern;
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * Creates the CompactBinaryLayout.
+     * @param pattern The pattern the events are rendered with when decoded,
+     *                {@link PatternLayout#SIMPLE_CONVERSION_PATTERN} by default.
+     * @param maxDictionarySize The maximum number of interned strings per file, 65536 by default.
+     * @param config The Configuration.
+     * @return A CompactBinaryLayout.
+     */
+    @PluginFactory
+    public static CompactBinaryLayout createLayout(@PluginAttribute("pattern") final String pattern,
+                                                   @PluginAttribute(value = "maxDictionarySize",
+                                                           defaultInt = DEFAULT_MAX_DICTIONARY_SIZE)
+                                                       final int maxDictionarySize,
+                                                   @PluginConfiguration final Configuration config) {
+        return new CompactBinaryLayout(config, pattern == null ? PatternLayout.SIMPLE_CONVERSION_PATTERN : pattern,
+                Math.max(0, maxDictionarySize));
+    }
+
+    /**
+     * Starts a new dictionary and returns the header which tells the reader to start one too.
+     * The manager writes it at the beginning of every file and whenever it reopens a file.
+     */
+    @Override
+    public byte[] getHeader() {
+        session = new Session();
+        return header();
+    }
+
+    private byte[] header() {
+        final Output out = new Output();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        out.writeString(pattern);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        synchronized (destination) {
+            output.reset();
+            writeEvent(event, session, output);
+            destination.writeBytes(output.bytes, 0, output.size);
+        }
+
+        markEvent();
+    }
+
+    /**
+     * Returns a self-contained record of the event: the header followed by the event encoded
+     * with an empty dictionary.
+     * @param event The LogEvent.
+     * @return The record.
+     */
+    @Override
+    public byte[] toByteArray(final LogEvent event) {
+        final Output out = new Output();
+        final byte[] header = header();
+        out.write(header, 0, header.length);
+        writeEvent(event, new Session(), out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] toSerializable(final LogEvent event) {
+        return toByteArray(event);
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public Map<String, String> getContentFormat() {
+        final Map<String, String> result = new HashMap<>();
+        result.put("version", Integer.toString(VERSION));
+        result.put("pattern", pattern);
+        return result;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public int getMaxDictionarySize() {
+        return maxDictionarySize;
+    }
+
+    private void writeEvent(final LogEvent event, final Session session, final Output out) {
+        final Marker marker = event.getMarker();
+        final Throwable thrown = event.getThrown();
+        final ReadOnlyStringMap contextData = event.getContextData();
+        final boolean hasContext = contextData != null && !contextData.isEmpty();
+        int flags = 0;
+
+        if (marker != null) {
+            flags |= FLAG_MARKER;
+        }
+
+        if (thrown != null) {
+            flags |= FLAG_THROWN;
+        }
+
+        if (hasContext) {
+            flags |= FLAG_CONTEXT;
+        }
+
+        out.write(EVENT);
+        out.write(flags);
+        final long timeMillis = event.getTimeMillis();
+        out.writeSignedVarLong(timeMillis - session.lastTimeMillis);
+        session.lastTimeMillis = timeMillis;
+        final Level level = event.getLevel();
+        writeReference(level.name(), session, out);
+
+        if (session.levels.add(level.name())) {
+            out.writeVarLong(level.intLevel());
+        }
+
+        writeReference(event.getLoggerName(), session, out);
+        writeReference(event.getThreadName(), session, out);
+        writeMessage(event.getMessage(), session, out);
+
+        if (marker != null) {
+            writeReference(marker.getName(), session, out);
+        }
+
+        if (hasContext) {
+            out.writeVarLong(contextData.size());
+            contextData.forEach((key, value) -> {
+                writeReference(key, session, out);
+                out.writeString(String.valueOf(value));
+            });
+        }
+
+        if (thrown != null) {
+            final StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            out.writeString(trace.toString());
+        }
+    }
+
+    private void writeReference(final String value, final Session session, final Output out) {
+        final String string = value == null ? "" : value;
+        final Integer id = session.ids.get(string);
+
+        if (id != null) {
+            out.writeVarLong(id + REF_ID_OFFSET);
+        } else if (session.ids.size() < maxDictionarySize && seenBefore(string, session)) {
+            session.ids.put(string, session.ids.size());
+            out.writeVarLong(REF_NEW);
+            out.writeString(string);
+        } else {
+            out.writeVarLong(REF_LITERAL);
+            out.writeString(string);
+        }
+    }
+
+    /**
+     * Returns true if the string was seen before and remembers it otherwise.
+     */
+    private static boolean seenBefore(final String string, final Session session) {
+        final int hash = string.hashCode() | 1;
+        final int slot = (hash ^ hash >>> 16) & (SEEN_SLOTS - 1);
+
+        if (session.seen[slot] == hash) {
+            return true;
+        }
+
+        session.seen[slot] = hash;
+        return false;
+    }
+
+    private void writeMessage(final Message message, final Session session, final Output out) {
+        final String format = message.getFormat();
+        final Object[] parameters = message.getParameters();
+
+        if (isTemplate(format, parameters)) {
+            writeReference(format.replace(PLACEHOLDER, String.valueOf(SLOT)), session, out);
+            out.writeVarLong(parameters.length);
+
+            for (Object parameter : parameters) {
+                if (parameter == null) {
+                    out.write(PARAM_NULL);
+                } else if (parameter instanceof Long || parameter instanceof Integer
+                        || parameter instanceof Short || parameter instanceof Byte) {
+                    out.write(PARAM_LONG);
+                    out.writeSignedVarLong(((Number) parameter).longValue());
+                } else {
+                    out.write(PARAM_STRING);
+                    out.writeString(String.valueOf(parameter));
+                }
+            }
+
+            return;
+        }
+
+        final String text = message.getFormattedMessage();
+
+        if (text.indexOf(SLOT) >= 0) {
+            writeReference(text, session, out);
+            out.writeVarLong(0);
+            return;
+        }
+
+        final StringBuilder template = session.template;
+        final long[] numbers = session.numbers;
+        template.setLength(0);
+        final int count = extractNumbers(text, template, numbers);
+        writeReference(template.toString(), session, out);
+        out.writeVarLong(count);
+
+        for (int i = 0; i < count; i++) {
+            out.write(PARAM_LONG);
+            out.writeSignedVarLong(numbers[i]);
+        }
+    }
+
+    /**
+     * Returns true if the message format can be used as a template: it has one unescaped placeholder
+     * per parameter and the parameters are rendered by String.valueOf.
+     */
+    private static boolean isTemplate(final String format, final Object[] parameters) {
+        if (format == null || parameters == null || parameters.length == 0
+                || format.indexOf('\\') >= 0 || format.indexOf(SLOT) >= 0) {
+            return false;
+        }
+
+        int placeholders = 0;
+
+        for (int index = format.indexOf(PLACEHOLDER); index >= 0;
+             index = format.indexOf(PLACEHOLDER, index + PLACEHOLDER.length())) {
+            placeholders++;
+        }
+
+        if (placeholders != parameters.length) {
+            return false;
+        }
+
+        for (Object parameter : parameters) {
+            if (parameter != null && !(parameter instanceof CharSequence || parameter instanceof Number
+                    || parameter instanceof Boolean || parameter instanceof Character
+                    || parameter instanceof Enum)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the numbers of the text with slots. Only numbers which are printed back exactly are replaced:
+     * without leading zeros and fitting a long.
+     * @param text the text
+     * @param template receives the text with slots
+     * @param numbers receives the numbers
+     * @return the number of the replaced numbers
+     */
+    static int extractNumbers(final String text, final StringBuilder template, final long[] numbers) {
+        final int length = text.length();
+        int count = 0;
+        int index = 0;
+
+        while (index < length) {
+            final char c = text.charAt(index);
+            final boolean negative = c == '-' && index + 1 < length && isDigit(text.charAt(index + 1));
+
+            if (count == numbers.length || !(negative || isDigit(c))) {
+                template.append(c);
+                index++;
+                continue;
+            }
+
+            final int digitsStart = negative ? index + 1 : index;
+            int end = digitsStart;
+
+            while (end < length && isDigit(text.charAt(end))) {
+                end++;
+            }
+
+            final boolean leadingZero = text.charAt(digitsStart) == '0' && (end - digitsStart > 1 || negative);
+
+            if (leadingZero || !fitsLong(text, digitsStart, end, negative)) {
+                template.append(text, index, end);
+            } else {
+                // Accumulated as a negative number, so Long.MIN_VALUE fits as well
+                long value = 0;
+
+                for (int i = digitsStart; i < end; i++) {
+                    value = value * 10 - (text.charAt(i) - '0');
+                }
+
+                numbers[count++] = negative ? value : -value;
+                template.append(SLOT);
+            }
+
+            index = end;
+        }
+
+        return count;
+    }
+
+    private static boolean fitsLong(final String text, final int start, final int end, final boolean negative) {
+        final String limit = negative ? MIN_LONG_DIGITS : MAX_LONG_DIGITS;
+        final int digits = end - start;
+
+        if (digits != limit.length()) {
+            return digits < limit.length();
+        }
+
+        for (int i = 0; i < digits; i++) {
+            final char c = text.charAt(start + i);
+
+            if (c != limit.charAt(i)) {
+                return c < limit.charAt(i);
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public String toString() {
+        return "CompactBinaryLayout(pattern = " + pattern + ", maxDictionarySize = " + maxDictionarySize + ')';
+    }
+
+    /**
+     * The state of the encoding of one file
+     */
+    private static final class Session {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final Set<String> levels = new HashSet<>();
+        private final int[] seen = new int[SEEN_SLOTS];
+        private final StringBuilder template = new StringBuilder();
+        private final long[] numbers = new long[MAX_NUMBERS];
+        private long lastTimeMillis;
+    }
+
+    /**
+     * A growable byte array with variable length numbers
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[512];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void write(final int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void write(final byte[] data, final int offset, final int length) {
+            ensureCapacity(length);
+            System.arraycopy(data, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            bytes[size++] = (byte) value;
+        }
+
+        void writeSignedVarLong(final long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(final String value) {
+            final byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(data.length);
+            write(data, 0, data.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensureCapacity(final int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.zilbrom.logging.layouts;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the events written by {@link CompactBinaryLayout} from an uncompressed stream.
+ */
+public class CompactBinaryReader implements Closeable {
+    private final InputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Level> levels = new HashMap<>();
+    private final StringBuilder message = new StringBuilder();
+    private String pattern;
+    private int version;
+    private long lastTimeMillis;
+    private String thrownText;
+
+    /**
+     * Creates the reader.
+     * @param in the uncompressed stream
+     */
+    public CompactBinaryReader(final InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * Reads the next event.
+     * @return the event or null at the end of the stream. A record cut off by the end of the stream,
+     * as the last one of a file which is still written, is treated as the end of the stream.
+     * @throws IOException if the stream is not written by CompactBinaryLayout
+     */
+    public LogEvent read() throws IOException {
+        try {
+            int tag;
+
+            while ((tag = in.read()) == CompactBinaryLayout.MAGIC[0]) {
+                readHeader();
+            }
+
+            if (tag < 0) {
+                return null;
+            }
+
+            if (tag != CompactBinaryLayout.EVENT || pattern == null) {
+                throw new IOException("Not a compact log record: " + tag);
+            }
+
+            return readEvent();
+        } catch (EOFException eofException) {
+            return null;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        for (int i = 1; i < CompactBinaryLayout.MAGIC.length; i++) {
+            if (readByte() != CompactBinaryLayout.MAGIC[i]) {
+                throw new IOException("Not a compact log header");
+            }
+        }
+
+        version = readByte();
+
+        if (version < 1 || version > CompactBinaryLayout.VERSION) {
+            throw new IOException("Unsupported compact log version " + version);
+        }
+
+        pattern = readString();
+        dictionary.clear();
+        levels.clear();
+        lastTimeMillis = 0;
+    }
+
+    private LogEvent readEvent() throws IOException {
+        final int flags = readByte();
+        lastTimeMillis += readSignedVarLong();
+        final Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder()
+                .setTimeMillis(lastTimeMillis)
+                .setLevel(readLevel())
+                .setLoggerName(readReference())
+                .setThreadName(readReference())
+                .setMessage(new SimpleMessage(readMessage()));
+
+        if ((flags & CompactBinaryLayout.FLAG_MARKER) != 0) {
+            builder.setMarker(MarkerManager.getMarker(readReference()));
+        }
+
+        if ((flags & CompactBinaryLayout.FLAG_CONTEXT) != 0) {
+            final int size = (int) readVarLong();
+            final SortedArrayStringMap contextData = new SortedArrayStringMap(size);
+
+            for (int i = 0; i < size; i++) {
+                contextData.putValue(readReference(), readString());
+            }
+
+            builder.setContextData(contextData);
+        }
+
+        thrownText = (flags & CompactBinaryLayout.FLAG_THROWN) != 0 ? readString() : null;
+        return builder.build();
+    }
+
+    /**
+     * Reads a level, a version 1 file has no int levels, so its custom levels are read as INFO.
+     */
+    private Level readLevel() throws IOException {
+        final String name = readReference();
+
+        if (version == 1) {
+            return Level.toLevel(name, Level.INFO);
+        }
+
+        Level level = levels.get(name);
+
+        if (level == null) {
+            level = Level.forName(name, (int) readVarLong());
+            levels.put(name, level);
+        }
+
+        return level;
+    }
+
+    private String readMessage() throws IOException {
+        final String template = readReference();
+        final int count = (int) readVarLong();
+
+        if (count == 0) {
+            return template;
+        }
+
+        message.setLength(0);
+        int start = 0;
+
+        for (int i = 0; i < count; i++) {
+            final int slot = template.indexOf(CompactBinaryLayout.SLOT, start);
+
+            if (slot < 0) {
+                throw new IOException("The template has less slots than parameters: " + template);
+            }
+
+            message.append(template, start, slot);
+            final int type = readByte();
+
+            if (type == CompactBinaryLayout.PARAM_LONG) {
+                message.append(readSignedVarLong());
+            } else if (type == CompactBinaryLayout.PARAM_STRING) {
+                message.append(readString());
+            } else {
+                message.append((String) null);
+            }
+
+            start = slot + 1;
+        }
+
+        return message.append(template, start, template.length()).toString();
+    }
+
+    private String readReference() throws IOException {
+        final long reference = readVarLong();
+
+        if (reference == CompactBinaryLayout.REF_LITERAL) {
+            return readString();
+        }
+
+        if (reference == CompactBinaryLayout.REF_NEW) {
+            final String value = readString();
+            dictionary.add(value);
+            return value;
+        }
+
+        final long id = reference - CompactBinaryLayout.REF_ID_OFFSET;
+
+        if (id >= dictionary.size()) {
+            throw new IOException("Unknown dictionary id " + id);
+        }
+
+        return dictionary.get((int) id);
+    }
+
+    private String readString() throws IOException {
+        final int length = (int) readVarLong();
+        final byte[] data = new byte[length];
+        int offset = 0;
+
+        while (offset < length) {
+            final int count = in.read(data, offset, length - offset);
+
+            if (count < 0) {
+                throw new EOFException();
+            }
+
+            offset += count;
+        }
+
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length number");
+    }
+
+    private long readSignedVarLong() throws IOException {
+        final long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+
+        if (b < 0) {
+            throw new EOFException();
+        }
+
+        return b;
+    }
+
+    /**
+     * Returns the pattern of the last header, used to render the events as text.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the printed stack trace of the exception of the last event or null if it had none.
+     */
+    public String getThrownText() {
+        return thrownText;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
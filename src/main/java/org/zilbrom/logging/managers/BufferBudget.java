@@ -0,0 +1,172 @@
+package org.zilbrom.logging.managers;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.util.PropertiesUtil;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A process-wide budget for the encoding buffers of the gzip managers.
+ * <p>
+ * When a ceiling is set, every manager starts with a buffer of {@link #MIN_BUFFER_SIZE} bytes and compresses
+ * with deflate buffers of the same size. A manager whose buffer fills up between flushes leases more memory from
+ * the budget and doubles the buffer, up to its configured buffer size. When the budget is exhausted the lease is
+ * denied and the buffer stays as it is: a full buffer is written through to the deflater, so an overloaded budget
+ * costs more deflater calls instead of an OutOfMemoryError. A background thread returns the grown buffers of
+ * managers which were idle for {@value #RECLAIM_IDLE_MILLIS} millis, and runs at once when a lease is denied.
+ * <p>
+ * The ceiling bounds the memory leased above the minimum buffers. The deflate buffers are not leased: they never
+ * grow, so like the native memory of the deflater they are part of the fixed cost of a manager, which only
+ * hibernation releases. The ceiling is configured by the system property {@value #BUDGET_PROPERTY} in megabytes
+ * or by {@link #configure}. Without a ceiling, the default, managers allocate their configured buffers up front
+ * as before.
+ */
+public final class BufferBudget {
+    public static final String BUDGET_PROPERTY = "log4j2.gzip.bufferBudgetMB";
+    public static final int MIN_BUFFER_SIZE = Constants.ENCODER_BYTE_BUFFER_SIZE;
+    public static final long RECLAIM_IDLE_MILLIS = 1000;
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final BufferBudget INSTANCE = new BufferBudget(
+            PropertiesUtil.getProperties().getLongProperty(BUDGET_PROPERTY, 0) * MEGABYTE);
+
+    private final List<GZipRollingFileManager> managers = new CopyOnWriteArrayList<>();
+    private final AtomicLong leasedBytes = new AtomicLong();
+    private final AtomicLong peakLeasedBytes = new AtomicLong();
+    private final AtomicLong deniedLeases = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private volatile long ceilingBytes;
+    private volatile Thread reclaimThread;
+
+    private BufferBudget(long ceilingBytes) {
+        configure(ceilingBytes);
+    }
+
+    public static BufferBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the ceiling. Managers created before keep the buffers they have.
+     * @param ceilingBytes the number of bytes which can be leased, 0 or less for no budget
+     */
+    public synchronized void configure(long ceilingBytes) {
+        this.ceilingBytes = Math.max(0, ceilingBytes);
+
+        if (this.ceilingBytes > 0 && reclaimThread == null) {
+            reclaimThread = BackgroundThreads.start("GZipBufferBudget", Thread.MIN_PRIORITY, this::reclaimLoop);
+        }
+    }
+
+    /**
+     * Returns true if a ceiling is set and managers lease their buffers.
+     */
+    public boolean isEnabled() {
+        return ceilingBytes > 0;
+    }
+
+    void register(final GZipRollingFileManager manager) {
+        managers.add(manager);
+    }
+
+    void unregister(final GZipRollingFileManager manager) {
+        managers.remove(manager);
+    }
+
+    /**
+     * Leases memory if the budget has it, otherwise wakes the reclaim thread.
+     * @param bytes the number of bytes
+     * @return true if the memory is leased
+     */
+    boolean tryLease(final long bytes) {
+        final long ceiling = ceilingBytes;
+
+        while (true) {
+            final long leased = leasedBytes.get();
+
+            if (ceiling > 0 && leased + bytes > ceiling) {
+                deniedLeases.incrementAndGet();
+                final Thread thread = reclaimThread;
+
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+
+                return false;
+            }
+
+            if (leasedBytes.compareAndSet(leased, leased + bytes)) {
+                peakLeasedBytes.accumulateAndGet(leased + bytes, Math::max);
+                return true;
+            }
+        }
+    }
+
+    void release(final long bytes) {
+        leasedBytes.addAndGet(-bytes);
+    }
+
+    public long getCeilingBytes() {
+        return ceilingBytes;
+    }
+
+    /**
+     * Returns the number of bytes leased above the minimum buffers.
+     */
+    public long getLeasedBytes() {
+        return leasedBytes.get();
+    }
+
+    public long getPeakLeasedBytes() {
+        return peakLeasedBytes.get();
+    }
+
+    /**
+     * Returns the number of times a buffer could not grow because the budget was exhausted.
+     */
+    public long getDeniedLeases() {
+        return deniedLeases.get();
+    }
+
+    /**
+     * Returns the number of bytes returned by idle managers.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * Returns the size of the encoding buffers of all managers, including the minimum buffers.
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+
+        for (GZipRollingFileManager manager : managers) {
+            bytes += manager.getBufferCapacity();
+        }
+
+        return bytes;
+    }
+
+    private void reclaimLoop() {
+        while (true) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RECLAIM_IDLE_MILLIS));
+
+            for (GZipRollingFileManager manager : managers) {
+                try {
+                    reclaimedBytes.addAndGet(manager.shrinkBufferIfIdle(RECLAIM_IDLE_MILLIS));
+                } catch (final RuntimeException exception) {
+                    LOGGER.error("Reclaiming the buffer of {} failed", manager.getName(), exception);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.zilbrom.logging.managers;
+
+/**
+ * Defines when the written bytes of the active file are forced to the storage device with FileChannel.force.
+ */
+public enum Durability {
+    /**
+     * The bytes are never forced, the operating system writes the page cache back when it decides to.
+     */
+    NONE,
+
+    /**
+     * The bytes are forced once per flush period if something was written.
+     */
+    PERIODIC,
+
+    /**
+     * Writers which need durability wait for a shared force which covers every writer queued since the previous one.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * Parses the configured value: none, periodic or group-commit, case insensitive.
+     * @param value the value, null means none
+     * @return the durability or null if the value is unknown
+     */
+    public static Durability parse(final String value) {
+        if (value == null) {
+            return NONE;
+        }
+
+        for (Durability durability : values()) {
+            if (durability.name().replace('_', '-').equalsIgnoreCase(value.trim())) {
+                return durability;
+            }
+        }
+
+        return null;
+    }
+}
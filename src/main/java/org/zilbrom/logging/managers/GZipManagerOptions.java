@@ -0,0 +1,222 @@
+package org.zilbrom.logging.managers;
+
+import org.apache.logging.log4j.Level;
+
+import java.io.File;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * The options of a {@link GZipRollingFileManager} beyond those of a log4j rolling file manager. The options
+ * are immutable and built with {@link #newBuilder()}, so a new option does not change the signature
+ * of the manager, its factory data or its callers.
+ */
+public final class GZipManagerOptions {
+    private final boolean batchEncoding;
+    private final long maxBatchDelayMillis;
+    private final boolean pipelined;
+    private final int compressionLevel;
+    private final boolean locking;
+    private final List<File> stripeDirectories;
+    private final int threadSegments;
+    private final Durability durability;
+    private final long hibernateMillis;
+    private final String catalogFile;
+    private final long blockRetention;
+    private final Level companionLevel;
+
+    private GZipManagerOptions(final Builder builder) {
+        this.batchEncoding = builder.batchEncoding;
+        this.maxBatchDelayMillis = builder.maxBatchDelayMillis;
+        this.pipelined = builder.pipelined;
+        this.compressionLevel = builder.compressionLevel;
+        this.locking = builder.locking;
+        this.stripeDirectories = builder.stripeDirectories;
+        this.threadSegments = builder.threadSegments;
+        this.durability = builder.durability;
+        this.hibernateMillis = builder.hibernateMillis;
+        this.catalogFile = builder.catalogFile;
+        this.blockRetention = builder.blockRetention;
+        this.companionLevel = builder.companionLevel;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns true to compress events in batches instead of one by one.
+     */
+    public boolean isBatchEncoding() {
+        return batchEncoding;
+    }
+
+    /**
+     * Returns the time in millis after which a batch which was not closed is written to the file, 0 for never.
+     */
+    public long getMaxBatchDelayMillis() {
+        return maxBatchDelayMillis;
+    }
+
+    /**
+     * Returns true to compress and write in dedicated threads.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Returns the deflater level of the active file.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns true to share the file with other processes.
+     */
+    public boolean isLocking() {
+        return locking;
+    }
+
+    /**
+     * Returns the directories to stripe the data over, null to write the file itself.
+     */
+    public List<File> getStripeDirectories() {
+        return stripeDirectories;
+    }
+
+    /**
+     * Returns the number of per-thread segments, 0 to compress all threads in one deflater.
+     */
+    public int getThreadSegments() {
+        return threadSegments;
+    }
+
+    /**
+     * Returns when written bytes are forced to the storage device.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the idle time after which the stream is closed until the next event, 0 for never.
+     */
+    public long getHibernateMillis() {
+        return hibernateMillis;
+    }
+
+    /**
+     * Returns the catalog of the archives, null to keep no statistics.
+     */
+    public String getCatalogFile() {
+        return catalogFile;
+    }
+
+    /**
+     * Returns the compressed bytes retained for block subscribers, 0 to publish no blocks.
+     */
+    public long getBlockRetention() {
+        return blockRetention;
+    }
+
+    /**
+     * Returns the level at or above which events are copied to the companion, null for no companion.
+     */
+    public Level getCompanionLevel() {
+        return companionLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "batchEncoding = " + batchEncoding + ", maxBatchDelayMillis = " + maxBatchDelayMillis
+                + ", pipelined = " + pipelined + ", compressionLevel = " + compressionLevel + ", locking = " + locking
+                + ", stripeDirectories = " + stripeDirectories
+                + ", threadSegments = " + threadSegments + ", durability = " + durability
+                + ", hibernateMillis = " + hibernateMillis + ", catalogFile = " + catalogFile
+                + ", blockRetention = " + blockRetention + ", companionLevel = " + companionLevel;
+    }
+
+    public static final class Builder {
+        private boolean batchEncoding;
+        private long maxBatchDelayMillis = GZipRollingFileManager.DEFAULT_MAX_BATCH_DELAY_MILLIS;
+        private boolean pipelined;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private boolean locking;
+        private List<File> stripeDirectories;
+        private int threadSegments;
+        private Durability durability = Durability.NONE;
+        private long hibernateMillis;
+        private String catalogFile;
+        private long blockRetention;
+        private Level companionLevel;
+
+        private Builder() {
+        }
+
+        public Builder withBatchEncoding(final boolean batchEncoding) {
+            this.batchEncoding = batchEncoding;
+            return this;
+        }
+
+        public Builder withMaxBatchDelayMillis(final long maxBatchDelayMillis) {
+            this.maxBatchDelayMillis = maxBatchDelayMillis;
+            return this;
+        }
+
+        public Builder withPipelined(final boolean pipelined) {
+            this.pipelined = pipelined;
+            return this;
+        }
+
+        public Builder withCompressionLevel(final int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        public Builder withLocking(final boolean locking) {
+            this.locking = locking;
+            return this;
+        }
+
+        public Builder withStripeDirectories(final List<File> stripeDirectories) {
+            this.stripeDirectories = stripeDirectories;
+            return this;
+        }
+
+        public Builder withThreadSegments(final int threadSegments) {
+            this.threadSegments = threadSegments;
+            return this;
+        }
+
+        public Builder withDurability(final Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public Builder withHibernateMillis(final long hibernateMillis) {
+            this.hibernateMillis = hibernateMillis;
+            return this;
+        }
+
+        public Builder withCatalogFile(final String catalogFile) {
+            this.catalogFile = catalogFile;
+            return this;
+        }
+
+        public Builder withBlockRetention(final long blockRetention) {
+            this.blockRetention = blockRetention;
+            return this;
+        }
+
+        public Builder withCompanionLevel(final Level companionLevel) {
+            this.companionLevel = companionLevel;
+            return this;
+        }
+
+        public GZipManagerOptions build() {
+            return new GZipManagerOptions(this);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.zilbrom.logging.managers;
 
 import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.appender.ConfigurationFactoryData;
@@ -9,30 +10,212 @@ import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
 import org.apache.logging.log4j.core.appender.rolling.RolloverStrategy;
 import org.apache.logging.log4j.core.appender.rolling.TriggeringPolicy;
 import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
 import org.apache.logging.log4j.core.util.Constants;
 import org.apache.logging.log4j.core.util.FileUtils;
+import org.zilbrom.logging.layouts.CompactBinaryLayout;
+import org.zilbrom.logging.strategies.ArchiveCatalog;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+import org.zilbrom.logging.streams.BlockPublisher;
+import org.zilbrom.logging.streams.CompanionArchive;
+import org.zilbrom.logging.streams.HibernatingOutputStream;
+import org.zilbrom.logging.streams.PipelinedGZIPOutputStream;
 import org.zilbrom.logging.streams.RollingCountingOutputStream;
 import org.zilbrom.logging.streams.RollingGZIPOutputStream;
+import org.zilbrom.logging.streams.SegmentedGZipOutputStream;
+import org.zilbrom.logging.streams.SharedGZipOutputStream;
+import org.zilbrom.logging.streams.StripedGZipOutputStream;
+import org.zilbrom.logging.util.BackgroundThreads;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class GZipRollingFileManager extends RollingFileManager {
+    /**
+     * The size of the encoding buffer in batch encoding mode. Events are collected in this buffer
+     * and handed to the deflater at the end of a batch or when the buffer is full.
+     */
+    public static final int DEFAULT_BATCH_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The time after which a batch which was not closed by the end of a batch is written to the file.
+     * Synchronous loggers never close a batch, so their events would otherwise wait until the buffer is full.
+     */
+    public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 1000;
+
+    /**
+     * The native memory of a zlib deflater with the default window and memory level:
+     * (1 << (windowBits + 2)) + (1 << (memLevel + 9)) plus its state.
+     */
+    private static final long DEFLATER_MEMORY_BYTES = (1 << 17) + (1 << 17) + 6 * 1024;
+
     private static GZipRollingFileManagerFactory factory = new GZipRollingFileManagerFactory();
     private static long flushPeriod = Constants.MILLIS_IN_SECONDS;
 
-    private static RollingCountingOutputStream countingOutputStream;
+    private RollingCountingOutputStream countingOutputStream;
+    private SharedGZipOutputStream sharedOutputStream;
+    private StripedGZipOutputStream stripedOutputStream;
+    private volatile SegmentedGZipOutputStream segmentedOutputStream;
+    private volatile HibernatingOutputStream hibernatingOutputStream;
+
+    private final boolean batchEncoding;
+    private final long maxBatchDelayMillis;
+    private final boolean pipelined;
+    private final int compressionLevel;
+    private final boolean locking;
+    private final List<File> stripeDirectories;
+    private final int threadSegments;
+    private final Durability durability;
+    private final long hibernateMillis;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private final ArchiveCatalog catalog;
+    private final BlockPublisher blockPublisher;
+    private final CompanionArchive companion;
+    private final GroupCommit groupCommit = new GroupCommit(this::syncToDisk);
+    private final List<Runnable> periodicTasks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Guards the encoding buffer and the streams of the file. A lock and not the monitor of the manager, so
+     * the periodic thread, which writes and flushes while it holds the lock, does not pin its carrier when it is
+     * virtual. The log4j methods which synchronize on the manager are overridden to take this lock first.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Syncs the file with periodic durability and runs the periodic tasks, started when it is first needed
+     */
+    private volatile Thread periodicThread;
+    private volatile boolean dirty;
+    private volatile boolean released;
+    private boolean rolloverPending;
+    private volatile long lastWriteMillis = System.currentTimeMillis();
+    private long hibernations;
+    private long reopens;
+    private long reopenNanos;
+    private long maxReopenNanos;
+
+    /**
+     * The bytes released by the last hibernation, 0 while the stream is open
+     */
+    private volatile long reclaimedBytes;
+
+    /**
+     * The statistics of the active file, null without a catalog
+     */
+    private volatile ArchiveMetadata metadata;
+    private Path activePath;
+
+    /**
+     * The uncompressed bytes written to the active file, -1 if the file was appended to without statistics
+     */
+    private long fileRawBytes;
+
+    /**
+     * The number of bytes of the encoding buffer leased from the {@link BufferBudget}
+     */
+    private long bufferLease;
+
+    /**
+     * The time and number of the events a thread wrote since it checked the triggering policy in segment mode
+     */
+    private final ThreadLocal<long[]> rolloverChecks = ThreadLocal.withInitial(() -> new long[]{Long.MIN_VALUE, 0});
+    private long batchCount;
+    private long batchedBytes;
+
+    /**
+     * The growth of the files while the batched bytes were written, and their ratio
+     */
+    private long compressedBytes;
+    private long countedSize;
+    private volatile boolean segmentsFinished;
+    private volatile double compressionRatio = 1;
+    private volatile long fileGeneration;
 
     protected GZipRollingFileManager(LoggerContext loggerContext, String fileName, String pattern, OutputStream os,
                                      boolean append, boolean createOnDemand, long size, long time,
                                      TriggeringPolicy triggeringPolicy, RolloverStrategy rolloverStrategy,
                                      String advertiseUri, Layout<? extends Serializable> layout, boolean writeHeader,
-                                     ByteBuffer buffer) {
+                                     ByteBuffer buffer, RollingCountingOutputStream countingOutputStream,
+                                     GZipManagerOptions options, int maxBufferSize, ArchiveCatalog catalog,
+                                     BlockPublisher blockPublisher, CompanionArchive companion) {
         super(loggerContext, fileName, pattern, os, append, createOnDemand, size, time, triggeringPolicy,
-                rolloverStrategy, advertiseUri, layout, "", "", "", writeHeader, buffer);
+                rolloverStrategy, advertiseUri, layout, null, null, null, writeHeader, buffer);
+        this.countingOutputStream = countingOutputStream;
+        this.batchEncoding = options.isBatchEncoding();
+        this.maxBatchDelayMillis = options.getMaxBatchDelayMillis();
+        this.pipelined = options.isPipelined();
+        this.compressionLevel = options.getCompressionLevel();
+        this.locking = options.isLocking();
+        this.stripeDirectories = options.getStripeDirectories();
+        this.threadSegments = options.getThreadSegments();
+        this.durability = options.getDurability();
+        this.hibernateMillis = options.getHibernateMillis();
+        this.minBufferSize = buffer.capacity();
+        this.maxBufferSize = Math.max(minBufferSize, maxBufferSize);
+        this.catalog = catalog;
+        this.blockPublisher = blockPublisher;
+        this.companion = companion;
+
+        if (os instanceof SharedGZipOutputStream) {
+            this.sharedOutputStream = (SharedGZipOutputStream) os;
+            sharedOutputStream.setForceOnClose(durability != Durability.NONE);
+        }
+
+        if (os instanceof StripedGZipOutputStream) {
+            this.stripedOutputStream = (StripedGZipOutputStream) os;
+            stripedOutputStream.setForceOnClose(durability != Durability.NONE);
+        }
+
+        if (os instanceof SegmentedGZipOutputStream) {
+            this.segmentedOutputStream = (SegmentedGZipOutputStream) os;
+            segmentedOutputStream.setForceOnClose(durability != Durability.NONE);
+        }
+
+        if (os instanceof HibernatingOutputStream) {
+            this.hibernatingOutputStream = (HibernatingOutputStream) os;
+            hibernatingOutputStream.setOpener(this::reopen);
+        }
+
+        if (countingOutputStream != null) {
+            countingOutputStream.setForceOnClose(durability != Durability.NONE);
+
+            if (catalog != null) {
+                startMetadata(getActiveFileName(), countingOutputStream);
+            }
+
+            final ArchiveMetadata fileMetadata = metadata;
+            fileRawBytes = size == 0 ? 0 : fileMetadata != null ? fileMetadata.getRawBytes() : -1;
+        }
+
+        if (durability == Durability.PERIODIC) {
+            startPeriodicThread();
+        }
+
+        if (batchEncoding && maxBatchDelayMillis > 0) {
+            addPeriodicTask(this::flushDelayedBatch);
+        }
+
+        if (pipelined) {
+            addPeriodicTask(this::flushPipeline);
+        }
+
+        RolloverCoordinator.getInstance().register(this);
+        BufferBudget.getInstance().register(this);
+
+        if (hibernateMillis > 0) {
+            IdleHibernator.getInstance().register(this);
+        }
     }
 
     public static GZipRollingFileManager getFileManager(final String fileName, final String pattern,
@@ -42,11 +225,78 @@ public class GZipRollingFileManager extends RollingFileManager {
                                                         final Layout<? extends Serializable> layout,
                                                         final int bufferSize, final boolean immediateFlush,
                                                         final boolean createOnDemand,
+                                                        final GZipManagerOptions options,
                                                         final Configuration configuration) {
         String name = fileName == null ? pattern : fileName;
         return (GZipRollingFileManager) getManager(name,
                 new FactoryData(fileName, pattern, append, bufferedIO, policy, strategy, advertiseURI, layout,
-                        bufferSize, immediateFlush, createOnDemand, configuration), factory);
+                        bufferSize, immediateFlush, createOnDemand, options, configuration),
+                factory);
+    }
+
+    /**
+     * Creates the compressing stream over the counting stream of the file.
+     * @param countingOutputStream the stream of the file
+     * @param bufferSize the size of the compression buffers
+     * @param addHeader flag to write gzip header
+     * @param pipelined true to compress and write in dedicated threads
+     * @param level the deflater level
+     * @param name the name of the file
+     * @return the compressing stream
+     * @throws IOException if writing of the header fails
+     */
+    private static OutputStream createGZipStream(RollingCountingOutputStream countingOutputStream, int bufferSize,
+                                                 boolean addHeader, boolean pipelined, int level, String name)
+            throws IOException {
+        if (pipelined) {
+            return new PipelinedGZIPOutputStream(countingOutputStream, bufferSize,
+                    PipelinedGZIPOutputStream.DEFAULT_QUEUE_CAPACITY, flushPeriod, addHeader, level, name);
+        }
+
+        return new RollingGZIPOutputStream(countingOutputStream, bufferSize, flushPeriod, addHeader, level, name);
+    }
+
+    /**
+     * Creates the stream which spreads gzip members over stripe files and writes the manifest to the file.
+     * @param file the manifest
+     * @param append true to continue an existing manifest
+     * @param directories the directories of the stripe files
+     * @param level the deflater level
+     * @return the striped stream
+     * @throws IOException if a file can not be created
+     */
+    private static StripedGZipOutputStream createStripedStream(File file, boolean append, List<File> directories,
+                                                               int level) throws IOException {
+        return new StripedGZipOutputStream(file, append, directories, StripedGZipOutputStream.DEFAULT_BLOCK_SIZE,
+                flushPeriod, level, file.getName());
+    }
+
+    /**
+     * Creates the stream which compresses the data of every thread stripe into its own segment and appends
+     * the segments to the file when it is closed.
+     * @param file the file
+     * @param append true to keep the members already in the file
+     * @param segments the number of thread stripes
+     * @param level the deflater level
+     * @return the segmented stream
+     * @throws IOException if the file can not be opened
+     */
+    private static SegmentedGZipOutputStream createSegmentedStream(File file, boolean append, int segments,
+                                                                   int level) throws IOException {
+        return new SegmentedGZipOutputStream(file, append, segments, Constants.ENCODER_BYTE_BUFFER_SIZE,
+                flushPeriod, level);
+    }
+
+    /**
+     * Creates the stream which appends whole gzip members under a file lock, so other processes can write
+     * the same file.
+     * @param file the file
+     * @param level the deflater level
+     * @return the shared stream
+     */
+    private static SharedGZipOutputStream createSharedStream(File file, int level) {
+        return new SharedGZipOutputStream(file, SharedGZipOutputStream.DEFAULT_MEMBER_SIZE, flushPeriod, level,
+                file.getName());
     }
 
     /**
@@ -61,8 +311,10 @@ public class GZipRollingFileManager extends RollingFileManager {
          * @return a RollingFileManager.
          */
         public GZipRollingFileManager createManager(final String name, final FactoryData data) {
+            final GZipManagerOptions options = data.options;
             long size = 0L;
-            boolean writeHeader = !data.append;
+            // The header of a compact layout starts a new dictionary, so it begins every session of appending
+            boolean writeHeader = !data.append || data.layout instanceof CompactBinaryLayout;
             File file = null;
             boolean newFileCreated = !data.createOnDemand;
 
@@ -83,22 +335,100 @@ public class GZipRollingFileManager extends RollingFileManager {
             }
 
             try {
-                final int actualSize = data.bufferedIO ? data.bufferedSize : Constants.ENCODER_BYTE_BUFFER_SIZE;
-                final ByteBuffer buffer = ByteBuffer.wrap(new byte[actualSize]);
+                int actualSize = data.bufferedIO ? data.bufferedSize : Constants.ENCODER_BYTE_BUFFER_SIZE;
+
+                if (options.isBatchEncoding()) {
+                    actualSize = Math.max(actualSize, DEFAULT_BATCH_BUFFER_SIZE);
+                }
+
+                // With a buffer budget the buffer starts small and grows by leases
+                final int initialSize = BufferBudget.getInstance().isEnabled()
+                        ? Math.min(actualSize, BufferBudget.MIN_BUFFER_SIZE)
+                        : actualSize;
+                final ByteBuffer buffer = ByteBuffer.wrap(new byte[initialSize]);
                 OutputStream os = null;
+                RollingCountingOutputStream countingOutputStream = null;
                 final long time = data.createOnDemand || file == null ? System.currentTimeMillis() : file.lastModified();
 
-                if (!data.createOnDemand && data.fileName != null) {
+                final boolean lockingStripedOrSegmented = options.isLocking()
+                        || options.getStripeDirectories() != null || options.getThreadSegments() > 0;
+
+                if (options.getHibernateMillis() > 0 && lockingStripedOrSegmented) {
+                    LOGGER.warn("Hibernation is not used by the locking, striped or segmented file manager {}", name);
+                }
+
+                ArchiveCatalog catalog = options.getCatalogFile() == null
+                        ? null
+                        : ArchiveCatalog.open(Paths.get(options.getCatalogFile()));
+
+                if (catalog != null && lockingStripedOrSegmented) {
+                    LOGGER.warn("The catalog is not written by the locking, striped or segmented file manager {}",
+                            name);
+                    catalog = null;
+                }
+
+                BlockPublisher blockPublisher = options.getBlockRetention() > 0
+                        ? new BlockPublisher(name, options.getBlockRetention())
+                        : null;
+
+                if (blockPublisher != null && lockingStripedOrSegmented) {
+                    LOGGER.warn("Blocks are not published by the locking, striped or segmented file manager {}",
+                            name);
+                    blockPublisher = null;
+                }
+
+                CompanionArchive companion = options.getCompanionLevel() == null
+                        ? null
+                        : new CompanionArchive(options.getCompanionLevel(), options.getCompressionLevel(),
+                                flushPeriod);
+
+                if (companion != null && (lockingStripedOrSegmented || options.isPipelined())) {
+                    LOGGER.warn("Companions are not written by the locking, striped, segmented or pipelined"
+                            + " file manager {}", name);
+                    companion = null;
+                }
+
+                if (options.isLocking() && data.fileName != null) {
+                    if (options.isPipelined()) {
+                        LOGGER.warn("Pipelined compression is not used by the locking file manager {}", name);
+                    }
+
+                    os = data.createOnDemand ? null : createSharedStream(file, options.getCompressionLevel());
+                } else if (options.getStripeDirectories() != null && data.fileName != null) {
+                    if (options.isPipelined()) {
+                        LOGGER.warn("Pipelined compression is not used by the striped file manager {}", name);
+                    }
+
+                    os = data.createOnDemand ? null : createStripedStream(file, data.append,
+                            options.getStripeDirectories(), options.getCompressionLevel());
+                } else if (options.getThreadSegments() > 0 && data.fileName != null) {
+                    if (options.isPipelined()) {
+                        LOGGER.warn("Pipelined compression is not used by the segmented file manager {}", name);
+                    }
+
+                    os = data.createOnDemand ? null : createSegmentedStream(file, data.append,
+                            options.getThreadSegments(), options.getCompressionLevel());
+                } else if (!data.createOnDemand && data.fileName != null) {
                     FileOutputStream fileOutputStream = new FileOutputStream(file, data.append);
                     countingOutputStream = new RollingCountingOutputStream(fileOutputStream);
 
+                    if (blockPublisher != null) {
+                        countingOutputStream.setPublisher(blockPublisher, file.getPath(), 0);
+                    }
+
                     //Add gzip header if new file was created
-                    os = new RollingGZIPOutputStream(countingOutputStream, actualSize, flushPeriod, newFileCreated);
+                    os = createGZipStream(countingOutputStream, initialSize, newFileCreated, options.isPipelined(),
+                            options.getCompressionLevel(), file.getName());
+
+                    if (options.getHibernateMillis() > 0) {
+                        os = new HibernatingOutputStream(os);
+                    }
                 }
 
                 return new GZipRollingFileManager(data.getLoggerContext(), data.fileName, data.pattern, os, data.append,
                         data.createOnDemand, size, time, data.policy, data.strategy, data.advertiseURI, data.layout,
-                        writeHeader, buffer);
+                        writeHeader, buffer, countingOutputStream, options, actualSize, catalog,
+                        blockPublisher, companion);
             } catch (final IOException exception) {
                 LOGGER.error("RollingFileManager ({}) {}", name, exception, exception);
             }
@@ -107,141 +437,1354 @@ public class GZipRollingFileManager extends RollingFileManager {
         }
     }
 
-    //override to make visible for unit tests
+    /**
+     * Checks the triggering policy. When the {@link RolloverCoordinator} is active, a rollover is only scheduled
+     * with the period of the current file and runs later on a background thread; the policy is not checked again
+     * until it ran.
+     * @param event The LogEvent.
+     */
     @Override
-    protected synchronized void write(final byte[] bytes, final int offset, final int length,
-                                      final boolean immediateFlush) {
-        super.write(bytes, offset, length, immediateFlush);
+    public void checkRollover(final LogEvent event) {
+        final RolloverCoordinator coordinator = RolloverCoordinator.getInstance();
+        lock.lock();
+
+        try {
+            if (!coordinator.isActive()) {
+                super.checkRollover(event);
+                return;
+            }
+
+            if (rolloverPending) {
+                return;
+            }
+
+            // A time based policy moves the next file time when a period ends
+            final long nextFileTime = getPatternProcessor().getNextFileTime();
+
+            if (getTriggeringPolicy().isTriggeringEvent(event)) {
+                rolloverPending = true;
+                coordinator.schedule(this, getPatternProcessor().getNextFileTime() != nextFileTime,
+                        getPatternProcessor().getPrevFileTime(), getPatternProcessor().getCurrentFileTime());
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private static class FactoryData extends ConfigurationFactoryData {
-        private final String fileName;
-        private final String pattern;
-        private final boolean append;
-        private final boolean bufferedIO;
-        private final int bufferedSize;
-        private final boolean immediateFlush;
-        private final boolean createOnDemand;
-        private final TriggeringPolicy policy;
-        private final RolloverStrategy strategy;
-        private final String advertiseURI;
-        private final Layout<? extends Serializable> layout;
+    @Override
+    public void rollover() {
+        lock.lock();
 
-        /**
-         * Creates the data for the factory.
-         *
-         * @param pattern The pattern.
-         * @param append The append flag.
-         * @param bufferedIO The bufferedIO flag.
-         * @param layout The Layout.
-         * @param bufferSize The buffer size.
-         * @param immediateFlush flush on every write or not
-         * @param createOnDemand true if you want to lazy-create the file (a.k.a. on-demand)
-         * @param configuration The configuration
-         */
-        public FactoryData(final String fileName, final String pattern, final boolean append, final boolean bufferedIO,
-                           final TriggeringPolicy policy, final RolloverStrategy strategy, final String advertiseURI,
-                           final Layout<? extends Serializable> layout, final int bufferSize,
-                           final boolean immediateFlush, final boolean createOnDemand,
-                           final Configuration configuration) {
-            super(configuration);
-            this.fileName = fileName;
-            this.pattern = pattern;
-            this.append = append;
-            this.bufferedIO = bufferedIO;
-            this.bufferedSize = bufferSize;
-            this.policy = policy;
-            this.strategy = strategy;
-            this.advertiseURI =advertiseURI;
-            this.layout = layout;
-            this.immediateFlush = immediateFlush;
-            this.createOnDemand = createOnDemand;
+        try {
+            super.rollover();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        public TriggeringPolicy getTriggeringPolicy() {
-            return policy;
+    @Override
+    public void rollover(final Date prevFileTime, final Date prevRollTime) {
+        lock.lock();
+
+        try {
+            super.rollover(prevFileTime, prevRollTime);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        public RolloverStrategy getRolloverStrategy() {
-            return strategy;
+    /**
+     * Runs a rollover scheduled by the coordinator, labelling the rolled file with the period recorded when
+     * the policy fired.
+     */
+    void rolloverPending(final long prevFileTime, final long currentFileTime) {
+        lock.lock();
+
+        try {
+            if (!rolloverPending || released) {
+                return;
+            }
+
+            rolloverPending = false;
+            rollover(new Date(prevFileTime), new Date(currentFileTime));
+        } finally {
+            lock.unlock();
         }
+    }
 
-        @Override
-        public String toString() {
-            return super.toString() + "[pattern = " + pattern + ", append = " + append + ", bufferedIO = " + bufferedIO
-                    + ", bufferedSize = " + bufferedSize + ", policy = " + policy + ", strategy = " + strategy
-                    + ", advertiseURI = " + advertiseURI + ", layout = " + layout + "]";
+    /**
+     * Returns the lock which guards the encoding buffer and the streams of the file. Callers which encode
+     * into the manager themselves or need several writes to follow each other hold it.
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    // Grows the encoding buffer by the budget before an event which does not fit
+    @Override
+    protected void write(final byte[] bytes, final int offset, final int length, final boolean immediateFlush) {
+        lock.lock();
+
+        try {
+            if (length > byteBuffer.remaining()) {
+                growBuffer(byteBuffer.position() + length);
+            }
+
+            if (immediateFlush && byteBuffer.position() == 0) {
+                writeToDestination(bytes, offset, length);
+                flushDestination();
+                return;
+            }
+
+            if (length >= byteBuffer.capacity()) {
+                flush();
+                writeToDestination(bytes, offset, length);
+            } else {
+                if (length > byteBuffer.remaining()) {
+                    flush();
+                }
+
+                byteBuffer.put(bytes, offset, length);
+            }
+
+            if (immediateFlush) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public void updateData(Object data) {
-        final FactoryData factoryData = (FactoryData) data;
-        setRolloverStrategy(factoryData.getRolloverStrategy());
-        setTriggeringPolicy(factoryData.getTriggeringPolicy());
+    public void writeBytes(final ByteBuffer data) {
+        if (data.remaining() == 0) {
+            return;
+        }
+
+        lock.lock();
+
+        try {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Writes the full encoding buffer to the file and grows it if the budget allows, so a manager under load
+     * flushes less often.
+     */
     @Override
-    protected OutputStream createOutputStream() throws FileNotFoundException {
-        String fileName = getFileName();
-        LOGGER.debug("Now writing to {} at {}", fileName, new Date());
+    public ByteBuffer drain(final ByteBuffer buf) {
+        lock.lock();
+
+        try {
+            flushBuffer(buf);
+
+            if (buf == byteBuffer) {
+                growBuffer(buf.capacity() + 1);
+            }
 
-        if (fileName.endsWith(".")) {
-            fileName = fileName.substring(0, fileName.length() - 1);
+            return byteBuffer;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        FileOutputStream fileOutputStream = new FileOutputStream(fileName, isAppend());
-        countingOutputStream = new RollingCountingOutputStream(fileOutputStream);
+    @Override
+    public void flush() {
+        lock.lock();
 
         try {
-            return new RollingGZIPOutputStream(countingOutputStream, Constants.ENCODER_BYTE_BUFFER_SIZE, flushPeriod,
-                    true);
-        } catch (IOException ioException) {
-            LOGGER.error("RollingGZIPOutputStream creating exception after rolling", ioException);
-            return countingOutputStream;
+            flushBuffer(byteBuffer);
+            flushDestination();
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public long getFileSize() {
-        size = countingOutputStream.getCurrentStreamSize();
-        return size + byteBuffer.position();
+    protected void flushBuffer(final ByteBuffer buf) {
+        lock.lock();
+
+        try {
+            buf.flip();
+
+            if (buf.remaining() > 0) {
+                writeToDestination(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            }
+        } finally {
+            buf.clear();
+            lock.unlock();
+        }
     }
 
     @Override
-    protected synchronized void writeToDestination(byte[] bytes, int offset, int length) {
-        if (isLocking()) {
-            try {
-                @SuppressWarnings("resourse")
-                final FileChannel channel = ((FileOutputStream) getOutputStream()).getChannel();
-
-                /*
-                    Lock the whole file. This could be optimized to only lock from the current file position.
-                    Note that locking may be advisory on some systems and mandatory on others,
-                    so locking just from current position would allow reading on systems where locking is mandatory.
-                     Also, Java 6 will throw an exception
-                     if the region of the file is already locked by another FileChannel in the same JVM.
-                      Hopefully, that will be avoided since every file should have a single file manager -
-                      unless two different files settings are configured that somehow map to the same file.
-                 */
-                try(final FileLock lock = channel.lock(0, Long.MAX_VALUE, false)) {
-                    writeToStream(bytes, offset, length);
-                }
-            } catch (final IOException ioException) {
-                throw new AppenderLoggingException("Unable to obtain lock on {}", getName(), ioException);
+    protected void flushDestination() {
+        lock.lock();
+
+        try {
+            if (hasOutputStream()) {
+                getOutputStream().flush();
             }
-        } else {
-            writeToStream(bytes, offset, length);
+        } catch (final IOException ioException) {
+            throw new AppenderLoggingException("Error flushing stream " + getName(), ioException);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        size = countingOutputStream.getCurrentStreamSize();
+    /**
+     * Doubles the encoding buffer, up to the configured buffer size, if the {@link BufferBudget} grants the memory.
+     * @param needed the number of bytes the buffer should hold
+     */
+    private void growBuffer(final int needed) {
+        final int capacity = byteBuffer.capacity();
+
+        if (needed <= capacity || capacity >= maxBufferSize) {
+            return;
+        }
+
+        final int grownCapacity = (int) Math.min(maxBufferSize, Math.max(2L * capacity, needed));
+
+        if (!BufferBudget.getInstance().tryLease(grownCapacity - capacity)) {
+            return;
+        }
+
+        bufferLease += grownCapacity - capacity;
+        final ByteBuffer grown = ByteBuffer.wrap(new byte[grownCapacity]);
+        byteBuffer.flip();
+        grown.put(byteBuffer);
+        byteBuffer = grown;
     }
 
-    private synchronized void writeToStream(byte[] bytes, int offset, int length) {
+    /**
+     * Writes the buffered events and returns the leased part of the encoding buffer to the {@link BufferBudget}
+     * if nothing was written to the file for the given time.
+     * @param idleMillis the idle time in millis
+     * @return the number of bytes returned
+     */
+    long shrinkBufferIfIdle(final long idleMillis) {
+        lock.lock();
+
         try {
-            getOutputStream().write(bytes, offset, length);
-        } catch (final IOException ioException) {
-            throw new AppenderLoggingException("Error writing to stream {}", getName(), ioException);
+            if (bufferLease == 0 || System.currentTimeMillis() - lastWriteMillis < idleMillis) {
+                return 0;
+            }
+
+            return releaseBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long releaseBuffer() {
+        lock.lock();
+
+        try {
+            final long released = bufferLease;
+
+            if (released > 0) {
+                flush();
+                byteBuffer = ByteBuffer.wrap(new byte[minBufferSize]);
+                bufferLease = 0;
+                BufferBudget.getInstance().release(released);
+            }
+
+            return released;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the encoding buffer.
+     */
+    public int getBufferCapacity() {
+        lock.lock();
+
+        try {
+            return byteBuffer.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an encoded event to the current batch. The batch is compressed when the event closes it
+     * or when the encoding buffer is full.
+     *
+     * @param bytes The encoded event.
+     * @param endOfBatch true if the event is the last one of the batch.
+     */
+    public void writeBatched(final byte[] bytes, final boolean endOfBatch) {
+        write(bytes, 0, bytes.length, endOfBatch);
+    }
+
+    /**
+     * Writes encoded events to the encoding buffer, or past it if they do not fit.
+     *
+     * @param bytes The encoded events.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     * @param immediateFlush true to write the encoding buffer through the compressing stream afterwards.
+     */
+    public void writeEncoded(final byte[] bytes, final int offset, final int length, final boolean immediateFlush) {
+        write(bytes, offset, length, immediateFlush);
+    }
+
+    /**
+     * Writes the encoding buffer through the deflater to the file if it holds events and nothing was written
+     * to the file for the maximum batch delay. Run by the periodic thread, so a batch waits at most the delay
+     * plus the flush period.
+     */
+    private void flushDelayedBatch() {
+        lock.lock();
+
+        try {
+            if (byteBuffer.position() == 0 || !hasOutputStream()
+                    || System.currentTimeMillis() - lastWriteMillis < maxBatchDelayMillis) {
+                return;
+            }
+
+            flushStreams();
+        } catch (final IOException ioException) {
+            LOGGER.error("Unable to write the delayed batch of {}", getName(), ioException);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the bytes waiting in the current block of the pipelined stream over to the compressor. The stream
+     * does not hand a block over on every flush, so this bounds the delay of the last events to the flush period.
+     */
+    private void flushPipeline() {
+        lock.lock();
+
+        try {
+            final PipelinedGZIPOutputStream stream = getPipelinedStream();
+
+            if (stream == null) {
+                return;
+            }
+
+            flush();
+            stream.flushPending();
+        } catch (final IOException ioException) {
+            LOGGER.error("Unable to hand over the pipelined blocks of {}", getName(), ioException);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the manager collects events in batches before compressing them.
+     */
+    public boolean isBatchEncoding() {
+        return batchEncoding;
+    }
+
+    /**
+     * Returns true if encoding, compression and file writing run in separate threads.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Returns the deflater level of the active file.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Waits until everything written before the call is on the storage device. Concurrent callers share one
+     * deflater flush and one FileChannel.force, callers arriving during a force are covered by the next one.
+     */
+    public void syncFlush() {
+        try {
+            groupCommit.commit();
+        } catch (final IOException ioException) {
+            throw new AppenderLoggingException("Unable to sync {}", getName(), ioException);
+        }
+    }
+
+    /**
+     * Flushes the encoding buffer and the deflater and forces the file. The force runs outside the manager lock,
+     * so writers keep appending while the device syncs.
+     */
+    private void syncToDisk() throws IOException {
+        final RollingCountingOutputStream counting;
+        final SharedGZipOutputStream shared;
+        final StripedGZipOutputStream striped;
+        final SegmentedGZipOutputStream segmented;
+
+        lock.lock();
+
+        try {
+            if (!hasOutputStream()) {
+                return;
+            }
+
+            flushStreams();
+            counting = countingOutputStream;
+            shared = sharedOutputStream;
+            striped = stripedOutputStream;
+            segmented = segmentedOutputStream;
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            if (shared != null) {
+                shared.force();
+            } else if (striped != null) {
+                striped.force();
+            } else if (segmented != null) {
+                segmented.force();
+            } else if (counting != null) {
+                counting.force();
+            }
+        } catch (final ClosedChannelException closedChannelException) {
+            // The file was rolled over meanwhile and forced when it was closed
+        }
+    }
+
+    /**
+     * Writes every encoded byte through the deflater to the file now instead of at the next periodic flush,
+     * without forcing the file to the storage device.
+     */
+    public void flushCompressed() {
+        lock.lock();
+
+        try {
+            if (hasOutputStream()) {
+                flushStreams();
+            }
+        } catch (final IOException ioException) {
+            throw new AppenderLoggingException("Unable to flush {}", getName(), ioException);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushStreams() throws IOException {
+        flush();
+        OutputStream os = getOutputStream();
+
+        if (os instanceof HibernatingOutputStream) {
+            os = ((HibernatingOutputStream) os).getDelegate();
+        }
+
+        if (os instanceof RollingGZIPOutputStream) {
+            ((RollingGZIPOutputStream) os).syncFlush();
+        } else if (os instanceof PipelinedGZIPOutputStream) {
+            ((PipelinedGZIPOutputStream) os).syncFlush();
+        } else if (os instanceof SharedGZipOutputStream) {
+            ((SharedGZipOutputStream) os).syncFlush();
+        } else if (os instanceof StripedGZipOutputStream) {
+            ((StripedGZipOutputStream) os).syncFlush();
+        } else if (os instanceof SegmentedGZipOutputStream) {
+            ((SegmentedGZipOutputStream) os).syncFlush();
+        }
+    }
+
+    /**
+     * Adds a task which the periodic thread of the manager runs every flush period, without the manager lock,
+     * until it is removed or the manager is released.
+     * @param task the task
+     */
+    public void addPeriodicTask(final Runnable task) {
+        periodicTasks.add(task);
+        startPeriodicThread();
+    }
+
+    /**
+     * Removes a periodic task.
+     * @param task the task
+     */
+    public void removePeriodicTask(final Runnable task) {
+        periodicTasks.remove(task);
+    }
+
+    private void startPeriodicThread() {
+        lock.lock();
+
+        try {
+            if (periodicThread == null && !released) {
+                periodicThread = BackgroundThreads.start("GZipPeriodic-" + getName(), this::runPeriodically);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runPeriodically() {
+        while (!released) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushPeriod));
+
+            if (released) {
+                return;
+            }
+
+            for (Runnable task : periodicTasks) {
+                try {
+                    task.run();
+                } catch (final RuntimeException exception) {
+                    LOGGER.error("Periodic task of {} failed", getName(), exception);
+                }
+            }
+
+            if (durability == Durability.PERIODIC && dirty) {
+                try {
+                    groupCommit.syncNow();
+                } catch (final IOException ioException) {
+                    LOGGER.error("Unable to sync {}", getName(), ioException);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+        released = true;
+        RolloverCoordinator.getInstance().unregister(this);
+        IdleHibernator.getInstance().unregister(this);
+        BufferBudget.getInstance().unregister(this);
+        releaseBuffer();
+
+        final Thread thread = periodicThread;
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+
+        final boolean stopped = super.releaseSub(timeout, timeUnit);
+
+        if (blockPublisher != null) {
+            blockPublisher.complete();
+        }
+
+        return stopped;
+    }
+
+    /**
+     * Returns when written bytes are forced to the storage device.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the number of forces of the file, periodic or shared by waiting writers.
+     */
+    public long getSyncCount() {
+        return groupCommit.getCommits();
+    }
+
+    /**
+     * Returns the number of syncFlush calls covered by the forces, divided by getSyncCount it gives
+     * the average batch size of a group commit.
+     */
+    public long getSyncRequests() {
+        return groupCommit.getCommitRequests();
+    }
+
+    /**
+     * Returns the total time in nanos of the forces including the flush of the deflater.
+     */
+    public long getSyncNanos() {
+        return groupCommit.getCommitNanos();
+    }
+
+    /**
+     * Returns the longest force in nanos.
+     */
+    public long getMaxSyncNanos() {
+        return groupCommit.getMaxCommitNanos();
+    }
+
+    /**
+     * Returns the duration of the last force in nanos.
+     */
+    public long getLastSyncNanos() {
+        return groupCommit.getLastCommitNanos();
+    }
+
+    /**
+     * Returns the number of syncFlush calls covered by the last force.
+     */
+    public long getLastSyncBatchSize() {
+        return groupCommit.getLastBatchSize();
+    }
+
+    /**
+     * Returns true if the file is shared with other processes and written as whole gzip members under a file lock.
+     */
+    @Override
+    public boolean isLocking() {
+        return locking;
+    }
+
+    /**
+     * Returns the shared stream of the current file, which exposes the number of appended members and the time
+     * spent waiting for the file lock, or null if the manager is not locking or no file is open.
+     */
+    public SharedGZipOutputStream getSharedStream() {
+        return sharedOutputStream;
+    }
+
+    /**
+     * Returns true if every thread stripe compresses into its own segment, see {@link #writeSegment}.
+     */
+    public boolean isSegmented() {
+        return threadSegments > 0;
+    }
+
+    /**
+     * Checks the triggering policy for an event written in segment mode. The check takes the manager lock, so
+     * a thread checks only when the event time differs from its previous check or after 256 events.
+     * A time based rollover therefore happens with the first event of the new period, a size based rollover
+     * may be late by a few events.
+     * @param event The LogEvent.
+     */
+    public void checkSegmentRollover(final LogEvent event) {
+        final long[] check = rolloverChecks.get();
+
+        if (event.getTimeMillis() != check[0] || ++check[1] >= 256) {
+            check[0] = event.getTimeMillis();
+            check[1] = 0;
+            checkRollover(event);
+
+            // The segments bypass writeToDestination, their deflaters hold back output, so the ratio of the
+            // active file is taken only until the first file is finished
+            final SegmentedGZipOutputStream segmented = segmentedOutputStream;
+            final long rawBytes = segmented == null || segmentsFinished ? 0 : segmented.getRawBytes();
+
+            if (rawBytes > 0) {
+                compressionRatio = (double) segmented.getSize() / rawBytes;
+            }
+        }
+    }
+
+    /**
+     * Writes an encoded event to the segment of the current thread without taking the manager lock.
+     * @param bytes the encoded event
+     * @param timeMillis the time of the event
+     */
+    public void writeSegment(final byte[] bytes, final long timeMillis) {
+        try {
+            final SegmentedGZipOutputStream segmented = segmentedOutputStream;
+
+            if (segmented != null && segmented.write(bytes, 0, bytes.length, timeMillis)) {
+                return;
+            }
+
+            // The file is created on demand or rolled over right now, the manager lock waits for the new stream
+            lock.lock();
+
+            try {
+                ((SegmentedGZipOutputStream) getOutputStream()).write(bytes, 0, bytes.length, timeMillis);
+            } finally {
+                lock.unlock();
+            }
+        } catch (final IOException ioException) {
+            throw new AppenderLoggingException("Error writing to segment of {}", getName(), ioException);
+        }
+    }
+
+    /**
+     * Returns the striped stream of the current file, or null if the manager does not stripe or no file is open.
+     */
+    public StripedGZipOutputStream getStripedStream() {
+        return stripedOutputStream;
+    }
+
+    /**
+     * Returns the pipelined stream of the current file, which exposes per-stage queue depth and busy time,
+     * or null if the manager is not pipelined or no file is open.
+     */
+    public PipelinedGZIPOutputStream getPipelinedStream() {
+        try {
+            OutputStream os = hasOutputStream() ? getOutputStream() : null;
+
+            if (os instanceof HibernatingOutputStream) {
+                os = ((HibernatingOutputStream) os).getDelegate();
+            }
+
+            return os instanceof PipelinedGZIPOutputStream ? (PipelinedGZIPOutputStream) os : null;
+        } catch (final IOException ioException) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of files the manager opened after it was created, so callers which keep
+     * per-file state can tell that a new file was started.
+     */
+    public long getFileGeneration() {
+        return fileGeneration;
+    }
+
+    /**
+     * Returns the number of blocks handed to the compressing stream.
+     */
+    public long getBatchCount() {
+        lock.lock();
+
+        try {
+            return batchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of uncompressed bytes handed to the compressing stream.
+     */
+    public long getBatchedBytes() {
+        lock.lock();
+
+        try {
+            return batchedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written to the manager, including the buffered ones. The callers
+     * which take the difference around an event hold the manager lock, so no other thread writes in between.
+     */
+    public long getEncodedBytes() {
+        lock.lock();
+
+        try {
+            return batchedBytes + byteBuffer.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the compressed bytes per uncompressed byte of the files written so far, or of the last finished
+     * file with thread segments, 1 until the first bytes reach the file.
+     */
+    public double getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    private static class FactoryData extends ConfigurationFactoryData {
+        private final String fileName;
+        private final String pattern;
+        private final boolean append;
+        private final boolean bufferedIO;
+        private final int bufferedSize;
+        private final boolean immediateFlush;
+        private final boolean createOnDemand;
+        private final GZipManagerOptions options;
+        private final TriggeringPolicy policy;
+        private final RolloverStrategy strategy;
+        private final String advertiseURI;
+        private final Layout<? extends Serializable> layout;
+
+        /**
+         * Creates the data for the factory.
+         *
+         * @param pattern The pattern.
+         * @param append The append flag.
+         * @param bufferedIO The bufferedIO flag.
+         * @param layout The Layout.
+         * @param bufferSize The buffer size.
+         * @param immediateFlush flush on every write or not
+         * @param createOnDemand true if you want to lazy-create the file (a.k.a. on-demand)
+         * @param options the options of the gzip manager
+         * @param configuration The configuration
+         */
+        public FactoryData(final String fileName, final String pattern, final boolean append, final boolean bufferedIO,
+                           final TriggeringPolicy policy, final RolloverStrategy strategy, final String advertiseURI,
+                           final Layout<? extends Serializable> layout, final int bufferSize,
+                           final boolean immediateFlush, final boolean createOnDemand,
+                           final GZipManagerOptions options, final Configuration configuration) {
+            super(configuration);
+            this.fileName = fileName;
+            this.pattern = pattern;
+            this.append = append;
+            this.bufferedIO = bufferedIO;
+            this.bufferedSize = bufferSize;
+            this.policy = policy;
+            this.strategy = strategy;
+            this.advertiseURI =advertiseURI;
+            this.layout = layout;
+            this.immediateFlush = immediateFlush;
+            this.createOnDemand = createOnDemand;
+            this.options = options;
+        }
+
+        public TriggeringPolicy getTriggeringPolicy() {
+            return policy;
+        }
+
+        public RolloverStrategy getRolloverStrategy() {
+            return strategy;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "[pattern = " + pattern + ", append = " + append + ", bufferedIO = " + bufferedIO
+                    + ", bufferedSize = " + bufferedSize + ", policy = " + policy + ", strategy = " + strategy
+                    + ", advertiseURI = " + advertiseURI + ", layout = " + layout + ", " + options + "]";
+        }
+    }
+
+    @Override
+    public void updateData(Object data) {
+        final FactoryData factoryData = (FactoryData) data;
+        setRolloverStrategy(factoryData.getRolloverStrategy());
+        setTriggeringPolicy(factoryData.getTriggeringPolicy());
+    }
+
+    @Override
+    protected OutputStream createOutputStream() throws FileNotFoundException {
+        final String fileName = getActiveFileName();
+        LOGGER.debug("Now writing to {} at {}", fileName, new Date());
+
+        if (locking) {
+            fileGeneration++;
+            sharedOutputStream = createSharedStream(new File(fileName), compressionLevel);
+            sharedOutputStream.setForceOnClose(durability != Durability.NONE);
+            return sharedOutputStream;
+        }
+
+        if (threadSegments > 0) {
+            fileGeneration++;
+
+            try {
+                segmentedOutputStream = createSegmentedStream(new File(fileName), isAppend(), threadSegments,
+                        compressionLevel);
+            } catch (IOException ioException) {
+                final FileNotFoundException exception = new FileNotFoundException("Unable to open " + fileName);
+                exception.initCause(ioException);
+                throw exception;
+            }
+
+            segmentedOutputStream.setForceOnClose(durability != Durability.NONE);
+            return segmentedOutputStream;
+        }
+
+        if (stripeDirectories != null) {
+            fileGeneration++;
+
+            try {
+                stripedOutputStream = createStripedStream(new File(fileName), isAppend(),
+                        stripeDirectories, compressionLevel);
+            } catch (IOException ioException) {
+                final FileNotFoundException exception = new FileNotFoundException("Unable to create stripes of "
+                        + fileName);
+                exception.initCause(ioException);
+                throw exception;
+            }
+
+            stripedOutputStream.setForceOnClose(durability != Durability.NONE);
+            return stripedOutputStream;
+        }
+
+        FileOutputStream fileOutputStream = new FileOutputStream(fileName, isAppend());
+        countingOutputStream = new RollingCountingOutputStream(fileOutputStream);
+        countingOutputStream.setForceOnClose(durability != Durability.NONE);
+        fileGeneration++;
+        fileRawBytes = 0;
+
+        if (catalog != null) {
+            startMetadata(fileName, countingOutputStream);
+        }
+
+        if (blockPublisher != null) {
+            countingOutputStream.setPublisher(blockPublisher, fileName, fileGeneration);
+        }
+
+        try {
+            final OutputStream gzip = createGZipStream(countingOutputStream, Constants.ENCODER_BYTE_BUFFER_SIZE, true,
+                    pipelined, compressionLevel, new File(fileName).getName());
+
+            if (hibernateMillis <= 0) {
+                return gzip;
+            }
+
+            hibernatingOutputStream = new HibernatingOutputStream(gzip);
+            hibernatingOutputStream.setOpener(this::reopen);
+            return hibernatingOutputStream;
+        } catch (IOException ioException) {
+            LOGGER.error("RollingGZIPOutputStream creating exception after rolling", ioException);
+            return countingOutputStream;
+        }
+    }
+
+    private String getActiveFileName() {
+        final String fileName = getFileName();
+        return fileName.endsWith(".") ? fileName.substring(0, fileName.length() - 1) : fileName;
+    }
+
+    /**
+     * Opens the active file again after hibernation and starts a new gzip member at its end. Called by
+     * the hibernating stream with the next write, under the manager lock.
+     */
+    private OutputStream reopen() throws IOException {
+        lock.lock();
+
+        try {
+            final long startNanos = System.nanoTime();
+            final String fileName = getActiveFileName();
+            final long previousSize = countingOutputStream == null ? 0 : countingOutputStream.getCurrentStreamSize();
+            final RollingCountingOutputStream counting = new RollingCountingOutputStream(
+                    new FileOutputStream(fileName, true), previousSize);
+            counting.setForceOnClose(durability != Durability.NONE);
+
+            if (metadata != null) {
+                attachMetadata(counting);
+            }
+
+            if (blockPublisher != null) {
+                counting.setPublisher(blockPublisher, fileName, fileGeneration);
+            }
+
+            final OutputStream gzip;
+
+            try {
+                gzip = createGZipStream(counting, Constants.ENCODER_BYTE_BUFFER_SIZE, true, pipelined, compressionLevel,
+                        new File(fileName).getName());
+            } catch (IOException ioException) {
+                counting.close();
+                throw ioException;
+            }
+
+            countingOutputStream = counting;
+            reclaimedBytes = 0;
+            final long durationNanos = System.nanoTime() - startNanos;
+            reopens++;
+            reopenNanos += durationNanos;
+            maxReopenNanos = Math.max(maxReopenNanos, durationNanos);
+            LOGGER.debug("Reopened {} after hibernation in {} microseconds", fileName,
+                    TimeUnit.NANOSECONDS.toMicros(durationNanos));
+            return gzip;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the stream of the file if nothing was written for the hibernation time, which finishes the gzip
+     * member and releases the deflater, its buffers and the file descriptor. Called by the {@link IdleHibernator}.
+     */
+    void hibernateIfIdle() {
+        lock.lock();
+
+        try {
+            final HibernatingOutputStream stream = hibernatingOutputStream;
+
+            if (stream == null || released || stream.isHibernated()) {
+                return;
+            }
+
+            if (byteBuffer.position() > 0) {
+                // Events still wait in the encoding buffer, they are written now and the file is idle from now on
+                flush();
+                return;
+            }
+
+            if (System.currentTimeMillis() - lastWriteMillis < hibernateMillis) {
+                return;
+            }
+
+            try {
+                final long streamBytes = DEFLATER_MEMORY_BYTES + bufferBytes(stream.getDelegate());
+                final int bufferCapacity = byteBuffer.capacity();
+
+                // The statistics are appended when the file is finally closed, the reopened stream carries them
+                if (countingOutputStream != null) {
+                    countingOutputStream.setClosingBytes(null);
+                }
+
+                if (stream.hibernate()) {
+                    releaseBuffer();
+                    reclaimedBytes = streamBytes + bufferCapacity - byteBuffer.capacity();
+
+                    if (companion != null) {
+                        companion.close();
+                    }
+
+                    hibernations++;
+                    LOGGER.debug("{} hibernates after {} idle milliseconds", getName(), hibernateMillis);
+                }
+            } catch (IOException ioException) {
+                LOGGER.error("Unable to hibernate {}", getName(), ioException);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the idle time in millis after which the stream of the file is closed until the next event,
+     * 0 if it is never closed.
+     */
+    public long getHibernateMillis() {
+        return hibernateMillis;
+    }
+
+    /**
+     * Returns true if the stream of the file is closed until the next event.
+     */
+    public boolean isHibernated() {
+        final HibernatingOutputStream stream = hibernatingOutputStream;
+        return stream != null && stream.isHibernated();
+    }
+
+    /**
+     * Returns the number of bytes released while the stream hibernates: the buffers of the closed gzip stream,
+     * the part of the encoding buffer given back, and the native deflater memory, which is computed by the zlib
+     * formula as it can not be measured. Returns 0 if the stream is open.
+     */
+    public long getReclaimedBytes() {
+        return isHibernated() ? reclaimedBytes : 0;
+    }
+
+    /**
+     * Returns the bytes of the buffers of a gzip stream.
+     */
+    private static long bufferBytes(final OutputStream stream) {
+        if (stream instanceof PipelinedGZIPOutputStream) {
+            return ((PipelinedGZIPOutputStream) stream).getBufferBytes();
+        }
+
+        if (stream instanceof RollingGZIPOutputStream) {
+            return ((RollingGZIPOutputStream) stream).getBufferSize();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the number of times the stream was closed because the file was idle.
+     */
+    public long getHibernations() {
+        lock.lock();
+
+        try {
+            return hibernations;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times the file was reopened after hibernation.
+     */
+    public long getReopens() {
+        lock.lock();
+
+        try {
+            return reopens;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total time in nanos the writing threads spent reopening the file.
+     */
+    public long getReopenNanos() {
+        lock.lock();
+
+        try {
+            return reopenNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the longest reopen in nanos.
+     */
+    public long getMaxReopenNanos() {
+        lock.lock();
+
+        try {
+            return maxReopenNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the statistics of a file. A file which is appended to continues the statistics stored at its end.
+     * @param fileName the file
+     * @param counting the stream of the file
+     */
+    private void startMetadata(final String fileName, final RollingCountingOutputStream counting) {
+        final Path path = Paths.get(fileName);
+        ArchiveMetadata started = null;
+
+        try {
+            if (isAppend() && counting.getCurrentStreamSize() == 0 && new File(fileName).length() > 0) {
+                started = ArchiveMetadata.readTail(path);
+            }
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to read the statistics of {}", fileName, ioException);
+        }
+
+        metadata = started == null ? new ArchiveMetadata() : started;
+        activePath = path;
+        catalog.fileOpened(path);
+        attachMetadata(counting);
+    }
+
+    /**
+     * Appends the statistics as a gzip member when the stream of the file is closed.
+     */
+    private void attachMetadata(final RollingCountingOutputStream counting) {
+        final ArchiveMetadata fileMetadata = metadata;
+        counting.setClosingBytes(() -> {
+            fileMetadata.setCompressedBytes(counting.getCurrentStreamSize());
+            return fileMetadata.encodeMember();
+        });
+    }
+
+    /**
+     * Counts an event in the statistics of the active file. Does nothing without a catalog.
+     * @param event The LogEvent.
+     */
+    public void recordEvent(final LogEvent event) {
+        final ArchiveMetadata fileMetadata = metadata;
+
+        if (fileMetadata != null) {
+            fileMetadata.recordEvent(event.getLevel(), event.getTimeMillis());
+        }
+    }
+
+    /**
+     * Closes the file and, if it was closed by a rollover, hands its statistics to the catalog.
+     */
+    @Override
+    protected boolean closeOutputStream() {
+        lock.lock();
+
+        try {
+            final SegmentedGZipOutputStream segmented = segmentedOutputStream;
+            final boolean closed = closeStream();
+
+            if (segmented != null && segmented.getRawBytes() > 0) {
+                compressionRatio = (double) segmented.getFileSize() / segmented.getRawBytes();
+                segmentsFinished = true;
+            }
+
+            if (companion != null) {
+                companion.close();
+            }
+
+            final ArchiveMetadata fileMetadata = metadata;
+
+            if (fileMetadata != null && activePath != null && !released) {
+                catalog.fileClosed(activePath, fileMetadata);
+                activePath = null;
+            }
+
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The stream is closed as log4j does, but under the manager lock instead of its monitor
+    private boolean closeStream() {
+        flush();
+
+        if (!hasOutputStream()) {
+            return true;
+        }
+
+        if (metadata != null && isHibernated()) {
+            appendMetadata();
+        }
+
+        try {
+            getOutputStream().close();
+            return true;
+        } catch (final IOException ioException) {
+            logError("Unable to close stream", ioException);
+            return false;
+        }
+    }
+
+    /**
+     * Appends the statistics to the file of a hibernating stream, whose closing did not append them.
+     */
+    private void appendMetadata() {
+        final ArchiveMetadata fileMetadata = metadata;
+
+        try (FileOutputStream outputStream = new FileOutputStream(getActiveFileName(), true)) {
+            fileMetadata.setCompressedBytes(countingOutputStream.getCurrentStreamSize());
+            outputStream.write(fileMetadata.encodeMember());
+
+            if (durability != Durability.NONE) {
+                outputStream.getChannel().force(false);
+            }
+        } catch (final IOException ioException) {
+            logError("Unable to append the statistics", ioException);
+        }
+    }
+
+    /**
+     * Returns the catalog of the archives or null if the manager keeps no statistics.
+     */
+    public ArchiveCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Returns the publisher of the compressed blocks written to the file or null if the manager publishes none.
+     */
+    public BlockPublisher getBlockPublisher() {
+        return blockPublisher;
+    }
+
+    /**
+     * Returns the writer of the companions or null if the manager writes none.
+     */
+    public CompanionArchive getCompanion() {
+        return companion;
+    }
+
+    /**
+     * Copies an event to the companion of the active file. The buffered events are written and the deflate
+     * block is finished with a full flush first, so the companion points to a seek point right before the event,
+     * which the caller writes next under the manager lock.
+     * @param event The LogEvent.
+     * @param layout the layout of the appender
+     */
+    public void writeCompanion(final LogEvent event, final Layout<?> layout) {
+        lock.lock();
+
+        try {
+            final byte[] bytes = layout.toByteArray(event);
+
+            if (companion == null || countingOutputStream == null || bytes == null || bytes.length == 0) {
+                return;
+            }
+
+            try {
+                flush();
+                OutputStream os = getOutputStream();
+
+                if (os instanceof HibernatingOutputStream) {
+                    // An empty write opens a hibernating file, its new member starts after the end of the file
+                    os.write(bytes, 0, 0);
+                    os = ((HibernatingOutputStream) os).getDelegate();
+                }
+
+                if (os instanceof RollingGZIPOutputStream) {
+                    ((RollingGZIPOutputStream) os).fullFlush();
+                }
+
+                final Path logFile = Paths.get(getActiveFileName());
+                companion.write(logFile, Files.size(logFile), fileRawBytes, bytes);
+            } catch (final IOException ioException) {
+                LOGGER.error("Unable to write the companion of {}", getName(), ioException);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the statistics of the active file or null if the manager keeps no statistics.
+     */
+    public ArchiveMetadata getMetadata() {
+        final ArchiveMetadata fileMetadata = metadata;
+        return fileMetadata == null ? null : fileMetadata.copy();
+    }
+
+    @Override
+    public long getFileSize() {
+        if (sharedOutputStream != null) {
+            size = sharedOutputStream.getFileSize();
+            return size + byteBuffer.position();
+        }
+
+        if (stripedOutputStream != null) {
+            size = stripedOutputStream.getWrittenBytes();
+            return size + byteBuffer.position();
+        }
+
+        if (segmentedOutputStream != null) {
+            size = segmentedOutputStream.getSize();
+            return size + byteBuffer.position();
+        }
+
+        if (countingOutputStream == null) {
+            return super.getFileSize();
+        }
+
+        size = countingOutputStream.getCurrentStreamSize();
+        return size + byteBuffer.position();
+    }
+
+    @Override
+    protected void writeToDestination(byte[] bytes, int offset, int length) {
+        lock.lock();
+
+        try {
+            writeToStream(bytes, offset, length);
+
+            lastWriteMillis = System.currentTimeMillis();
+            batchCount++;
+            batchedBytes += length;
+
+            if (metadata != null) {
+                metadata.recordBytes(length);
+            }
+
+            if (fileRawBytes >= 0) {
+                fileRawBytes += length;
+            }
+            dirty = true;
+
+            if (sharedOutputStream != null) {
+                size = sharedOutputStream.getFileSize();
+            } else if (stripedOutputStream != null) {
+                size = stripedOutputStream.getWrittenBytes();
+            } else if (segmentedOutputStream != null) {
+                size = segmentedOutputStream.getSize();
+            } else if (countingOutputStream != null) {
+                size = countingOutputStream.getCurrentStreamSize();
+            }
+
+            // A new file starts smaller than the size of the last one
+            if (size > countedSize) {
+                compressedBytes += size - countedSize;
+                compressionRatio = (double) compressedBytes / batchedBytes;
+            }
+
+            countedSize = size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeToStream(byte[] bytes, int offset, int length) {
+        lock.lock();
+
+        try {
+            try {
+                getOutputStream().write(bytes, offset, length);
+            } catch (final IOException ioException) {
+                throw new AppenderLoggingException("Error writing to stream {}", getName(), ioException);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,151 @@
+package org.zilbrom.logging.managers;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares one sync among all waiting writers. A writer takes a ticket after its bytes were written; the first waiter
+ * becomes the leader and syncs everything written up to the newest ticket, the others wait until a sync covers
+ * their tickets. Writers arriving during a sync are covered by the next one, so the number of syncs follows
+ * the sync latency instead of the number of writers.
+ */
+final class GroupCommit {
+    /**
+     * The sync shared by the writers.
+     */
+    interface Sync {
+        void sync() throws IOException;
+    }
+
+    private final Sync sync;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+
+    private long requested;
+    private long committedTicket;
+    private boolean syncing;
+    private IOException failure;
+    private long failedTicket;
+
+    private volatile long commits;
+    private volatile long commitRequests;
+    private volatile long commitNanos;
+    private volatile long maxCommitNanos;
+    private volatile long lastCommitNanos;
+    private volatile long lastBatchSize;
+
+    GroupCommit(final Sync sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Waits until a sync covers everything the caller has written.
+     * @throws IOException if the sync covering the caller failed
+     */
+    void commit() throws IOException {
+        lock.lock();
+
+        try {
+            final long ticket = ++requested;
+
+            while (committedTicket < ticket) {
+                if (failedTicket >= ticket) {
+                    throw failure;
+                }
+
+                if (syncing) {
+                    committed.awaitUninterruptibly();
+                } else {
+                    lead();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs once without a ticket, as the periodic sync does. Skips if another sync is running.
+     * @throws IOException if the sync fails
+     */
+    void syncNow() throws IOException {
+        lock.lock();
+
+        try {
+            if (!syncing) {
+                final IOException exception = lead();
+
+                if (exception != null) {
+                    throw exception;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs everything written up to the newest ticket. Called and returns with the lock held.
+     * @return the failure of the sync or null
+     */
+    private IOException lead() {
+        final long target = requested;
+        final long batch = target - committedTicket;
+        syncing = true;
+        lock.unlock();
+        final long start = System.nanoTime();
+        IOException exception = null;
+
+        try {
+            sync.sync();
+        } catch (IOException ioException) {
+            exception = ioException;
+        } finally {
+            final long nanos = System.nanoTime() - start;
+            lock.lock();
+            syncing = false;
+
+            if (exception == null) {
+                committedTicket = Math.max(committedTicket, target);
+                commits++;
+                commitRequests += batch;
+                commitNanos += nanos;
+                maxCommitNanos = Math.max(maxCommitNanos, nanos);
+                lastCommitNanos = nanos;
+                lastBatchSize = batch;
+            } else {
+                failure = exception;
+                failedTicket = target;
+            }
+
+            committed.signalAll();
+        }
+
+        return exception;
+    }
+
+    long getCommits() {
+        return commits;
+    }
+
+    long getCommitRequests() {
+        return commitRequests;
+    }
+
+    long getCommitNanos() {
+        return commitNanos;
+    }
+
+    long getMaxCommitNanos() {
+        return maxCommitNanos;
+    }
+
+    long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    long getLastBatchSize() {
+        return lastBatchSize;
+    }
+}
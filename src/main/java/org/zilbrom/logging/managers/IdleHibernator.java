@@ -0,0 +1,94 @@
+package org.zilbrom.logging.managers;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts the streams of idle gzip managers to sleep. One background thread checks all managers with a hibernation
+ * time, every half of the shortest time and at least once a second, so thousands of rarely used appenders
+ * do not need a thread each.
+ */
+public final class IdleHibernator {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final long MAX_CHECK_PERIOD_MILLIS = 1000;
+    private static final long MIN_CHECK_PERIOD_MILLIS = 10;
+    private static final IdleHibernator INSTANCE = new IdleHibernator();
+
+    private final List<GZipRollingFileManager> managers = new CopyOnWriteArrayList<>();
+    private volatile Thread checkThread;
+
+    private IdleHibernator() {
+    }
+
+    public static IdleHibernator getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void register(final GZipRollingFileManager manager) {
+        managers.add(manager);
+
+        if (checkThread == null) {
+            checkThread = BackgroundThreads.start("GZipHibernator", Thread.MIN_PRIORITY, this::checkLoop);
+        } else {
+            LockSupport.unpark(checkThread);
+        }
+    }
+
+    void unregister(final GZipRollingFileManager manager) {
+        managers.remove(manager);
+    }
+
+    /**
+     * Returns the number of managers whose stream hibernates now.
+     */
+    public int getHibernatedCount() {
+        int count = 0;
+
+        for (GZipRollingFileManager manager : managers) {
+            if (manager.isHibernated()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes, mostly native deflater memory, released by the streams which
+     * hibernate now.
+     */
+    public long getReclaimedBytes() {
+        long bytes = 0;
+
+        for (GZipRollingFileManager manager : managers) {
+            bytes += manager.getReclaimedBytes();
+        }
+
+        return bytes;
+    }
+
+    private void checkLoop() {
+        while (true) {
+            long periodMillis = MAX_CHECK_PERIOD_MILLIS;
+
+            for (GZipRollingFileManager manager : managers) {
+                try {
+                    manager.hibernateIfIdle();
+                } catch (final RuntimeException exception) {
+                    LOGGER.error("Hibernation check of {} failed", manager.getName(), exception);
+                }
+
+                periodMillis = Math.min(periodMillis, manager.getHibernateMillis() / 2);
+            }
+
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(MIN_CHECK_PERIOD_MILLIS, periodMillis)));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.zilbrom.logging.managers;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the rollovers of all gzip managers of the JVM, so appenders with the same time based policy do not
+ * finish, rename and purge their files at the same instant.
+ * <p>
+ * When a manager's triggering policy fires, the manager only records the period of its file and hands the rollover
+ * to the coordinator. A rollover at the end of a period is delayed by the offset of the manager within the stagger
+ * window: managers are spaced evenly over the window in the order they were created. A rollover triggered within
+ * a period, by size for example, is not delayed. The rollovers run on background threads, at most the configured
+ * number at once, and the file is renamed with the period recorded when the policy fired. Events written between
+ * the end of the period and the delayed rollover therefore go to the file of the ended period.
+ * <p>
+ * The coordinator is configured by the system properties {@value #STAGGER_MILLIS_PROPERTY} (the window in millis)
+ * and {@value #MAX_CONCURRENT_PROPERTY} (0 for unlimited), or by {@link #configure}. When both are 0, the default,
+ * managers roll over on the logging thread as usual. The window should be much shorter than the rollover period.
+ */
+public final class RolloverCoordinator {
+    public static final String STAGGER_MILLIS_PROPERTY = "log4j2.gzip.rolloverStaggerMillis";
+    public static final String MAX_CONCURRENT_PROPERTY = "log4j2.gzip.maxConcurrentRollovers";
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final RolloverCoordinator INSTANCE = new RolloverCoordinator(
+            PropertiesUtil.getProperties().getLongProperty(STAGGER_MILLIS_PROPERTY, 0),
+            PropertiesUtil.getProperties().getIntegerProperty(MAX_CONCURRENT_PROPERTY, 0));
+
+    private final List<GZipRollingFileManager> managers = new CopyOnWriteArrayList<>();
+    private final DelayQueue<PendingRollover> queue = new DelayQueue<>();
+    private final AtomicLong completedRollovers = new AtomicLong();
+    private final AtomicLong permitWaitNanos = new AtomicLong();
+
+    private volatile long staggerMillis;
+    private volatile int maxConcurrent;
+    private int running;
+    private int maxRunning;
+
+    /**
+     * The thread which starts due rollovers, started with the first rollover
+     */
+    private Thread dispatcher;
+
+    private RolloverCoordinator(long staggerMillis, int maxConcurrent) {
+        configure(staggerMillis, maxConcurrent);
+    }
+
+    public static RolloverCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the window and the limit. Rollovers which are already scheduled keep their time.
+     * @param staggerMillis the window over which rollovers at the end of a period are spread, 0 for none
+     * @param maxConcurrent the number of rollovers which may run at once, 0 or less for unlimited
+     */
+    public synchronized void configure(long staggerMillis, int maxConcurrent) {
+        this.staggerMillis = Math.max(0, staggerMillis);
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        notifyAll();
+    }
+
+    /**
+     * Returns true if rollovers are handed to the coordinator instead of running on the logging thread.
+     */
+    public boolean isActive() {
+        return staggerMillis > 0 || maxConcurrent > 0;
+    }
+
+    void register(final GZipRollingFileManager manager) {
+        managers.add(manager);
+    }
+
+    void unregister(final GZipRollingFileManager manager) {
+        managers.remove(manager);
+        queue.removeIf(pending -> pending.manager == manager);
+    }
+
+    /**
+     * Schedules the rollover of a manager whose triggering policy fired.
+     * @param manager the manager
+     * @param endOfPeriod true if the policy fired because a period ended, such rollovers are staggered
+     * @param prevFileTime the time which labels the rolled file
+     * @param currentFileTime the time which labels the new file
+     */
+    void schedule(final GZipRollingFileManager manager, final boolean endOfPeriod, final long prevFileTime,
+                  final long currentFileTime) {
+        final long delayMillis = endOfPeriod ? getOffsetMillis(manager) : 0;
+        LOGGER.debug("Rollover of {} scheduled in {} milliseconds", manager.getName(), delayMillis);
+
+        synchronized (this) {
+            if (dispatcher == null) {
+                dispatcher = BackgroundThreads.start("GZipRolloverCoordinator", this::dispatchLoop);
+            }
+        }
+
+        queue.add(new PendingRollover(manager, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                prevFileTime, currentFileTime));
+    }
+
+    /**
+     * Returns the delay of the manager's rollovers at the end of a period.
+     * @param manager the manager
+     */
+    public long getOffsetMillis(final GZipRollingFileManager manager) {
+        final int index = managers.indexOf(manager);
+        final int count = managers.size();
+        return index <= 0 ? 0 : staggerMillis * index / count;
+    }
+
+    public long getStaggerMillis() {
+        return staggerMillis;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Returns the number of rollovers waiting for their time or for a free slot.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getCompletedRollovers() {
+        return completedRollovers.get();
+    }
+
+    /**
+     * Returns the time in nanos due rollovers waited because the limit of concurrent rollovers was reached.
+     */
+    public long getPermitWaitNanos() {
+        return permitWaitNanos.get();
+    }
+
+    /**
+     * Returns the largest number of rollovers which ran at once.
+     */
+    public synchronized int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Returns the thread which starts due rollovers, null before the first rollover.
+     */
+    synchronized Thread getDispatcher() {
+        return dispatcher;
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            final PendingRollover pending;
+
+            try {
+                pending = queue.take();
+            } catch (InterruptedException interruptedException) {
+                continue;
+            }
+
+            try {
+                acquire();
+            } catch (InterruptedException interruptedException) {
+                // The rollover is due, put it back so it is taken again at once
+                queue.add(pending);
+                continue;
+            }
+
+            try {
+                BackgroundThreads.start("GZipRollover-" + pending.manager.getName(), () -> run(pending));
+            } catch (RuntimeException exception) {
+                // No thread, the rollover runs here so the manager does not wait for it forever
+                LOGGER.warn("Rollover thread of {} could not be started", pending.manager.getName(), exception);
+                run(pending);
+            }
+        }
+    }
+
+    private void run(final PendingRollover pending) {
+        try {
+            pending.manager.rolloverPending(pending.prevFileTime, pending.currentFileTime);
+            completedRollovers.incrementAndGet();
+        } catch (RuntimeException exception) {
+            LOGGER.error("Rollover of {} failed", pending.manager.getName(), exception);
+        } finally {
+            release();
+        }
+    }
+
+    private synchronized void acquire() throws InterruptedException {
+        final long startNanos = System.nanoTime();
+
+        while (maxConcurrent > 0 && running >= maxConcurrent) {
+            wait();
+        }
+
+        permitWaitNanos.addAndGet(System.nanoTime() - startNanos);
+        maxRunning = Math.max(maxRunning, ++running);
+    }
+
+    private synchronized void release() {
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * A rollover waiting for its time.
+     */
+    private static final class PendingRollover implements Delayed {
+        final GZipRollingFileManager manager;
+        final long dueNanos;
+        final long prevFileTime;
+        final long currentFileTime;
+
+        PendingRollover(GZipRollingFileManager manager, long dueNanos, long prevFileTime, long currentFileTime) {
+            this.manager = manager;
+            this.dueNanos = dueNanos;
+            this.prevFileTime = prevFileTime;
+            this.currentFileTime = currentFileTime;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((PendingRollover) other).dueNanos);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.zilbrom.logging.strategies;
+
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+import org.apache.logging.log4j.core.appender.rolling.action.FileRenameAction;
+import org.zilbrom.logging.streams.CompanionArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Renames the active file to the archive with its companion, adds the archive to the size ledger if there is one
+ * and reports the rename to the catalogs.
+ */
+class AccountingRenameAction extends AbstractAction {
+    private final FileRenameAction renameAction;
+    private final ArchiveSizeLedger ledger;
+
+    /**
+     * Wraps a rename.
+     * @param renameAction the rename of the active file
+     * @param ledger the size ledger or null
+     */
+    AccountingRenameAction(final FileRenameAction renameAction, final ArchiveSizeLedger ledger) {
+        this.renameAction = renameAction;
+        this.ledger = ledger;
+    }
+
+    @Override
+    public boolean execute() throws IOException {
+        if (!renameAction.execute()) {
+            return false;
+        }
+
+        final File destination = renameAction.getDestination();
+        ArchiveCatalog.archiveRenamed(renameAction.getSource().toPath(), destination.toPath());
+        CompanionArchive.renameCompanion(renameAction.getSource().toPath(), destination.toPath());
+
+        if (ledger != null && destination.exists()) {
+            ledger.add(destination.toPath(), Files.size(destination.toPath()));
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountingRenameAction(" + renameAction + ')';
+    }
+}
@@ -0,0 +1,369 @@
+package org.zilbrom.logging.strategies;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A catalog of rolled archives with their time ranges and statistics, kept in a text file next to the archives,
+ * so the files covering a time range are found without opening any archive.
+ * <p>
+ * The catalog file is a journal of tab separated records: {@code A name fields} adds an archive with the fields
+ * of {@link ArchiveMetadata#toFields}, {@code R from to} renames and {@code D name} deletes one. Names are relative
+ * to the directory of the catalog. A manager reports the statistics of its file when the file is closed by
+ * a rollover, and the archive is added under the name the strategy renames it to. The strategies and actions
+ * report renames, deletions and rewrites of archives like they do to the {@link ArchiveSizeLedger}.
+ * The journal is rewritten with one record per archive when it holds many stale records.
+ * <p>
+ * The same statistics are stored in the archives themselves, see {@link ArchiveMetadata}, so a lost or stale
+ * catalog is rebuilt from the archives by {@link #rebuild} without decompressing them.
+ */
+public final class ArchiveCatalog {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final Map<Path, ArchiveCatalog> CATALOGS = new ConcurrentHashMap<>();
+    private static final String HEADER = "# gzip archive catalog: A name first last events raw compressed levels"
+            + " | R from to | D name";
+    private static final int MIN_REWRITE_RECORDS = 256;
+
+    private final Path file;
+    private final Path directory;
+    private final Map<Path, ArchiveMetadata> entries = new LinkedHashMap<>();
+    private final Set<Path> activeFiles = new HashSet<>();
+    // Files closed by a rollover, waiting for the rename to their archive name
+    private final Map<Path, ArchiveMetadata> closedFiles = new HashMap<>();
+    // Active files renamed to their archive name before they were closed
+    private final Map<Path, Path> renamedFiles = new HashMap<>();
+    private List<Map.Entry<Path, ArchiveMetadata>> sorted;
+    private long[] maxLastMillis;
+    private long records;
+
+    private ArchiveCatalog(final Path file) {
+        this.file = file;
+        this.directory = file.getParent();
+    }
+
+    /**
+     * Returns the catalog of the given file, reading its journal on the first call.
+     * @param file the catalog file
+     */
+    public static ArchiveCatalog open(final Path file) {
+        return CATALOGS.computeIfAbsent(normalize(file), path -> {
+            final ArchiveCatalog catalog = new ArchiveCatalog(path);
+            catalog.load();
+            return catalog;
+        });
+    }
+
+    /**
+     * Accounts a rename of an archive or an active file in every catalog which knows it.
+     * @param from the old name
+     * @param to the new name
+     */
+    public static void archiveRenamed(final Path from, final Path to) {
+        for (ArchiveCatalog catalog : CATALOGS.values()) {
+            catalog.rename(from, to);
+        }
+    }
+
+    /**
+     * Removes an archive from every catalog which knows it.
+     * @param path the archive
+     */
+    public static void archiveDeleted(final Path path) {
+        for (ArchiveCatalog catalog : CATALOGS.values()) {
+            catalog.remove(path);
+        }
+    }
+
+    /**
+     * Replaces the statistics of an archive in every catalog which knows it, e.g. after recompression.
+     * @param path the archive
+     * @param metadata the new statistics
+     */
+    public static void archiveChanged(final Path path, final ArchiveMetadata metadata) {
+        for (ArchiveCatalog catalog : CATALOGS.values()) {
+            catalog.change(path, metadata);
+        }
+    }
+
+    /**
+     * Registers a file a manager writes to, so its rename before it is closed is recognized.
+     * @param path the active file
+     */
+    public synchronized void fileOpened(final Path path) {
+        activeFiles.add(normalize(path));
+    }
+
+    /**
+     * Adds the statistics of a file closed by a rollover. The archive is added when the file is renamed,
+     * or at once if it was renamed before.
+     * @param path the active file
+     * @param metadata the statistics of the file
+     */
+    public synchronized void fileClosed(final Path path, final ArchiveMetadata metadata) {
+        final Path active = normalize(path);
+        activeFiles.remove(active);
+        final Path archive = renamedFiles.remove(active);
+
+        if (archive != null) {
+            add(archive, metadata);
+        } else {
+            closedFiles.put(active, metadata);
+        }
+    }
+
+    private synchronized void rename(final Path from, final Path to) {
+        final Path source = normalize(from);
+        final Path target = normalize(to);
+        final ArchiveMetadata closed = closedFiles.remove(source);
+
+        if (closed != null) {
+            add(target, closed);
+        } else if (activeFiles.contains(source)) {
+            renamedFiles.put(source, target);
+        } else if (entries.containsKey(source)) {
+            entries.put(target, entries.remove(source));
+            append("R\t" + name(source) + '\t' + name(target));
+        }
+    }
+
+    private synchronized void remove(final Path path) {
+        final Path archive = normalize(path);
+
+        if (entries.remove(archive) != null) {
+            append("D\t" + name(archive));
+        }
+    }
+
+    private synchronized void change(final Path path, final ArchiveMetadata metadata) {
+        final Path archive = normalize(path);
+
+        if (entries.containsKey(archive)) {
+            add(archive, metadata);
+        }
+    }
+
+    private void add(final Path archive, final ArchiveMetadata metadata) {
+        entries.remove(archive);
+        entries.put(archive, metadata.copy());
+        append("A\t" + name(archive) + '\t' + metadata.toFields());
+    }
+
+    /**
+     * Returns the archives with events between the given times, oldest first. The archives are searched
+     * by a binary search over their first event times.
+     * @param fromMillis the start of the range
+     * @param toMillis the end of the range, inclusive
+     * @return the archives and their statistics
+     */
+    public synchronized List<Map.Entry<Path, ArchiveMetadata>> find(final long fromMillis, final long toMillis) {
+        if (sorted == null) {
+            sort();
+        }
+
+        // The archives whose first event is not after the range
+        int low = 0;
+        int high = sorted.size();
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (sorted.get(middle).getValue().getFirstMillis() <= toMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        final List<Map.Entry<Path, ArchiveMetadata>> found = new ArrayList<>();
+
+        // Going back stops at the first archive before which no archive reaches into the range
+        for (int i = low - 1; i >= 0 && maxLastMillis[i] >= fromMillis; i--) {
+            if (sorted.get(i).getValue().overlaps(fromMillis, toMillis)) {
+                found.add(sorted.get(i));
+            }
+        }
+
+        Collections.reverse(found);
+        return found;
+    }
+
+    private void sort() {
+        sorted = new ArrayList<>();
+
+        for (Map.Entry<Path, ArchiveMetadata> entry : entries.entrySet()) {
+            if (entry.getValue().getEvents() > 0) {
+                sorted.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        sorted.sort(Comparator.comparingLong(entry -> entry.getValue().getFirstMillis()));
+        maxLastMillis = new long[sorted.size()];
+        long max = Long.MIN_VALUE;
+
+        for (int i = 0; i < sorted.size(); i++) {
+            max = Math.max(max, sorted.get(i).getValue().getLastMillis());
+            maxLastMillis[i] = max;
+        }
+    }
+
+    /**
+     * Returns all archives in the order they were added.
+     */
+    public synchronized Map<Path, ArchiveMetadata> getEntries() {
+        return new LinkedHashMap<>(entries);
+    }
+
+    /**
+     * Replaces the catalog with the statistics stored in the given archives. Archives without statistics
+     * are skipped.
+     * @param archives the archives
+     * @return the number of archives in the catalog
+     */
+    public synchronized int rebuild(final List<Path> archives) {
+        entries.clear();
+
+        for (Path archive : archives) {
+            try {
+                final ArchiveMetadata metadata = ArchiveMetadata.readTail(archive);
+
+                if (metadata != null) {
+                    entries.put(normalize(archive), metadata);
+                } else {
+                    LOGGER.debug("Archive {} has no statistics", archive);
+                }
+            } catch (IOException ioException) {
+                LOGGER.warn("Unable to read statistics of {}", archive, ioException);
+            }
+        }
+
+        rewrite();
+        return entries.size();
+    }
+
+    private void load() {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                records++;
+                final String[] fields = line.split("\t");
+
+                try {
+                    if ("A".equals(fields[0]) && fields.length > 2) {
+                        final Path archive = resolve(fields[1]);
+                        entries.remove(archive);
+                        entries.put(archive, ArchiveMetadata.parseFields(fields, 2));
+                    } else if ("R".equals(fields[0]) && fields.length == 3) {
+                        final ArchiveMetadata metadata = entries.remove(resolve(fields[1]));
+
+                        if (metadata != null) {
+                            entries.put(resolve(fields[2]), metadata);
+                        }
+                    } else if ("D".equals(fields[0]) && fields.length == 2) {
+                        entries.remove(resolve(fields[1]));
+                    } else {
+                        LOGGER.warn("Skipping malformed catalog record in {}: {}", file, line);
+                    }
+                } catch (NumberFormatException numberFormatException) {
+                    LOGGER.warn("Skipping malformed catalog record in {}: {}", file, line);
+                }
+            }
+        } catch (NoSuchFileException noSuchFileException) {
+            LOGGER.debug("Catalog {} does not exist yet", file);
+        } catch (IOException ioException) {
+            LOGGER.error("Unable to read catalog {}", file, ioException);
+        }
+    }
+
+    private void append(final String record) {
+        sorted = null;
+        records++;
+
+        if (records > MIN_REWRITE_RECORDS && records > 2L * entries.size()) {
+            rewrite();
+            return;
+        }
+
+        final boolean created = Files.notExists(file);
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            if (created) {
+                writer.write(HEADER + '\n');
+            }
+
+            writer.write(record + '\n');
+        } catch (IOException ioException) {
+            LOGGER.error("Unable to write to catalog {}", file, ioException);
+        }
+    }
+
+    /**
+     * Writes the journal with one record per archive to a temporary file which replaces the catalog.
+     */
+    private void rewrite() {
+        sorted = null;
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER + '\n');
+
+                for (Map.Entry<Path, ArchiveMetadata> entry : entries.entrySet()) {
+                    writer.write("A\t" + name(entry.getKey()) + '\t' + entry.getValue().toFields() + '\n');
+                }
+            }
+
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            records = entries.size();
+        } catch (IOException ioException) {
+            LOGGER.error("Unable to rewrite catalog {}", file, ioException);
+        }
+    }
+
+    private String name(final Path archive) {
+        return archive.startsWith(directory) ? directory.relativize(archive).toString() : archive.toString();
+    }
+
+    private Path resolve(final String name) {
+        return normalize(directory.resolve(name));
+    }
+
+    private static Path normalize(final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized int getArchiveCount() {
+        return entries.size();
+    }
+}
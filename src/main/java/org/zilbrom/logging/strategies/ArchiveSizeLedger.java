@@ -0,0 +1,307 @@
+package org.zilbrom.logging.strategies;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.apache.logging.log4j.core.pattern.NotANumber;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.streams.CompanionArchive;
+import org.zilbrom.logging.streams.StripedGZipOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A running account of the sizes of rolled archives, used to keep their total size within a budget.
+ * <p>
+ * Archives of an appender are stat-ed once, when the appender starts and registers with the ledger. Afterwards
+ * the ledger is updated when archives are created, renamed, recompressed and deleted, so a rollover does not need
+ * to list and stat the whole directory. Archives are kept in the order of their last modification, oldest first,
+ * so the archives of all appenders sharing a directory are deleted by age.
+ * <p>
+ * A ledger is shared by all strategies using the same key: the directory for a directory wide budget
+ * or the file pattern for a budget of one appender.
+ */
+public final class ArchiveSizeLedger {
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final Map<String, ArchiveSizeLedger> LEDGERS = new ConcurrentHashMap<>();
+
+    /**
+     * Archives by the time of their last modification, then by the order of addition
+     */
+    private final TreeSet<Entry> entries = new TreeSet<>(Comparator.comparingLong((Entry entry) -> entry.modified)
+            .thenComparingLong(entry -> entry.order));
+    private final Map<Path, Entry> entriesByPath = new HashMap<>();
+    private final Set<String> owners = new HashSet<>();
+    private long sequence;
+    private long totalBytes;
+    private long deletedFiles;
+    private long deletedBytes;
+
+    private ArchiveSizeLedger() {
+    }
+
+    /**
+     * Returns the ledger with the given key, creating it if required.
+     * @param key the directory or the file pattern
+     */
+    public static ArchiveSizeLedger get(String key) {
+        return LEDGERS.computeIfAbsent(key, k -> new ArchiveSizeLedger());
+    }
+
+    /**
+     * Updates the size of an archive in every ledger which accounts it, e.g. after recompression.
+     * @param path the archive
+     * @param size the new size
+     */
+    public static void archiveChanged(Path path, long size) {
+        for (ArchiveSizeLedger ledger : LEDGERS.values()) {
+            ledger.update(path, size);
+        }
+    }
+
+    /**
+     * Removes an archive from every ledger which accounts it, e.g. after it was merged into another one.
+     * @param path the archive
+     */
+    public static void archiveDeleted(Path path) {
+        for (ArchiveSizeLedger ledger : LEDGERS.values()) {
+            ledger.remove(path);
+        }
+    }
+
+    /**
+     * Accounts a rename of an archive in every ledger which accounts it, e.g. after archives were renumbered.
+     * @param from the old name
+     * @param to the new name
+     */
+    public static void archiveRenamed(Path from, Path to) {
+        for (ArchiveSizeLedger ledger : LEDGERS.values()) {
+            ledger.rename(from, to);
+        }
+    }
+
+    /**
+     * Returns the ledger of the archives of a manager and registers its existing archives with it.
+     * @param manager the manager
+     * @param strSubstitutor the substitutor of the strategy
+     * @param directoryBudget true for the ledger of the archive directory, false for the one of the file pattern
+     * @param archives the existing archives of the manager
+     * @return the ledger
+     */
+    static ArchiveSizeLedger register(RollingFileManager manager, StrSubstitutor strSubstitutor,
+                                      boolean directoryBudget, Collection<Path> archives) {
+        final String pattern = manager.getPatternProcessor().getPattern();
+        final ArchiveSizeLedger ledger = get(directoryBudget ? archiveDirectory(manager, strSubstitutor) : pattern);
+        final List<Path> existing = new ArrayList<>(archives);
+
+        // A direct write manager writes the active file under its archive name, it is not an archive yet
+        existing.remove(new File(manager.getFileName()).toPath());
+        ledger.register(pattern, existing);
+        return ledger;
+    }
+
+    /**
+     * Returns the directory the archives of a manager are written to, which is the parent of the resolved
+     * file pattern and may differ from the directory of the active file.
+     * @param manager the manager
+     * @param strSubstitutor the substitutor of the strategy
+     * @return the absolute path of the directory
+     */
+    static String archiveDirectory(RollingFileManager manager, StrSubstitutor strSubstitutor) {
+        final StringBuilder buf = new StringBuilder();
+        manager.getPatternProcessor().formatFileName(strSubstitutor, buf, NotANumber.NAN);
+        final File parent = new File(buf.toString()).getAbsoluteFile().getParentFile();
+        return parent.toPath().normalize().toString();
+    }
+
+    /**
+     * Deletes an archive with its stripes and its companion and reports the deletion to the catalogs.
+     * The caller removes it from its ledger.
+     * @param path the archive
+     * @throws IOException if the archive could not be deleted
+     */
+    static void deleteArchive(Path path) throws IOException {
+        StripedGZipOutputStream.deleteStripes(path);
+        Files.delete(path);
+        ArchiveCatalog.archiveDeleted(path);
+        CompanionArchive.deleteCompanion(path);
+    }
+
+    /**
+     * Adds the existing archives of an owner. Only the first registration of an owner stats the files.
+     * @param owner the owner, e.g. the file pattern of an appender
+     * @param archives the archives
+     * @return true if the owner registered for the first time
+     */
+    public synchronized boolean register(String owner, Collection<Path> archives) {
+        if (!owners.add(owner)) {
+            return false;
+        }
+
+        for (Path archive : archives) {
+            if (!entriesByPath.containsKey(normalize(archive))) {
+                try {
+                    add(archive, Files.size(archive), Files.getLastModifiedTime(archive).toMillis());
+                } catch (IOException ioException) {
+                    LOGGER.warn("Unable to get size of {}", archive, ioException);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a new archive, with the time it was last modified as its age.
+     * @param path the archive
+     * @param size the size of the archive
+     */
+    public void add(Path path, long size) {
+        long modified;
+
+        try {
+            modified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ioException) {
+            modified = System.currentTimeMillis();
+        }
+
+        add(path, size, modified);
+    }
+
+    /**
+     * Adds an archive.
+     * @param path the archive
+     * @param size the size of the archive
+     * @param modified the time the archive was last modified in millis
+     */
+    public synchronized void add(Path path, long size, long modified) {
+        path = normalize(path);
+        remove(path);
+        final Entry entry = new Entry(path, size, modified, sequence++);
+        entries.add(entry);
+        entriesByPath.put(path, entry);
+        totalBytes += size;
+    }
+
+    /**
+     * Removes an archive.
+     * @param path the archive
+     */
+    public synchronized void remove(Path path) {
+        final Entry entry = entriesByPath.remove(normalize(path));
+
+        if (entry != null) {
+            entries.remove(entry);
+            totalBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Accounts a rename of an archive, keeping its age.
+     * @param from the old name
+     * @param to the new name
+     */
+    public synchronized void rename(Path from, Path to) {
+        to = normalize(to);
+        final Entry entry = entriesByPath.remove(normalize(from));
+
+        if (entry != null) {
+            final Entry replaced = entriesByPath.remove(to);
+
+            if (replaced != null) {
+                entries.remove(replaced);
+                totalBytes -= replaced.size;
+            }
+
+            entry.path = to;
+            entriesByPath.put(to, entry);
+        }
+    }
+
+    private synchronized void update(Path path, long size) {
+        final Entry entry = entriesByPath.get(normalize(path));
+
+        if (entry != null) {
+            totalBytes += size - entry.size;
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Deletes the oldest archives until their total size is within the budget.
+     * @param budget the maximum total size in bytes
+     * @return the deleted archives
+     */
+    public synchronized List<Path> trim(long budget) {
+        final List<Path> deleted = new ArrayList<>();
+
+        while (totalBytes > budget && !entries.isEmpty()) {
+            final Entry oldest = entries.first();
+
+            try {
+                LOGGER.debug("Deleting {} to keep archives within {} bytes", oldest.path, budget);
+                deleteArchive(oldest.path);
+                deleted.add(oldest.path);
+                deletedFiles++;
+                deletedBytes += oldest.size;
+            } catch (NoSuchFileException noSuchFileException) {
+                LOGGER.debug("Archive {} was already deleted", oldest.path);
+            } catch (IOException ioException) {
+                LOGGER.error("Unable to delete {}, {}", oldest.path, ioException.getMessage(), ioException);
+                break;
+            }
+
+            remove(oldest.path);
+        }
+
+        return deleted;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getArchiveCount() {
+        return entries.size();
+    }
+
+    public synchronized long getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public synchronized long getDeletedBytes() {
+        return deletedBytes;
+    }
+
+    private static final class Entry {
+        private Path path;
+        private long size;
+        private final long modified;
+        private final long order;
+
+        Entry(Path path, long size, long modified, long order) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.order = order;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.zilbrom.logging.strategies;
 
 import org.apache.logging.log4j.core.Core;
 import org.apache.logging.log4j.core.appender.rolling.AbstractRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
 import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
 import org.apache.logging.log4j.core.appender.rolling.RolloverDescription;
 import org.apache.logging.log4j.core.appender.rolling.RolloverDescriptionImpl;
@@ -11,11 +12,15 @@ import org.apache.logging.log4j.core.appender.rolling.action.FileRenameAction;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.*;
 import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.apache.logging.log4j.core.util.Integers;
+import org.zilbrom.logging.actions.GZipRecompressAction;
+import org.zilbrom.logging.actions.ScheduledAction;
+import org.zilbrom.logging.streams.CompanionArchive;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
@@ -39,6 +44,12 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
      * @param fileIndex If set to "max" (the default),
      *                 files with a higher index will be never than files with a smaller index.
      *                 If set to "min", file renaming and the counter will follow the Fixed Window Strategy.
+     * @param compressionLevel The deflater level of the archives. If set, every rolled archive is recompressed
+     *                         with this level in background, otherwise it keeps the level of the active file.
+     * @param maxTotalSize The maximum total size of the archives, e.g. "10 GB". The oldest archives are deleted
+     *                     when it is exceeded. Not limited by default.
+     * @param totalSizeScope "appender" (the default) to limit the archives of this appender only,
+     *                       "directory" to share the limit with all appenders writing archives to the same directory
      * @param customActions custom actions to perform asynchronously after rollover
      * @param stopCustomActionsOnError whether to stop executing asynchronous actions if an error occurs
      * @param config The Configuration
@@ -48,6 +59,12 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
     public static GZipDefaultRolloverStrategy createStrategy(@PluginAttribute("max") final String max,
                                                              @PluginAttribute("min") final String min,
                                                              @PluginAttribute("fileIndex") final String fileIndex,
+                                                             @PluginAttribute("compressionLevel")
+                                                                 final String compressionLevel,
+                                                             @PluginAttribute("maxTotalSize")
+                                                                 final String maxTotalSize,
+                                                             @PluginAttribute("totalSizeScope")
+                                                                 final String totalSizeScope,
                                                              @PluginElement("Actions") final Action[] customActions,
                                                              @PluginAttribute(value = "stopCustomActionsOnError",
                                                                      defaultBoolean = true)
@@ -86,7 +103,10 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
             }
         }
 
-        return new GZipDefaultRolloverStrategy(minIndex, maxIndex, useMax, Deflater.DEFAULT_COMPRESSION,
+        final int level = Integers.parseInt(compressionLevel, Deflater.DEFAULT_COMPRESSION);
+        final long totalSize = maxTotalSize == null ? 0 : FileSize.parse(maxTotalSize, 0);
+        return new GZipDefaultRolloverStrategy(minIndex, maxIndex, useMax, level, compressionLevel != null,
+                totalSize, "directory".equalsIgnoreCase(totalSizeScope),
                 config.getStrSubstitutor(), customActions, stopCustomActionsOnError);
     }
 
@@ -101,25 +121,38 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
     private final int minIndex;
     private final boolean useMax;
     private final int compressionLevel;
+    private final boolean recompressArchives;
+    private final long maxTotalSize;
+    private final boolean directoryBudget;
     private final List<Action> customActions;
     private final boolean stopCustomActionsOnError;
+    private volatile ArchiveSizeLedger ledger;
 
     /**
      * Constructs a new instance.
      *
      * @param minIndex The minimum index.
      * @param maxIndex The maximum index.
+     * @param compressionLevel The deflater level of the archives.
+     * @param recompressArchives whether to recompress rolled archives with the compression level
+     * @param maxTotalSize The maximum total size of the archives in bytes, 0 or less for unlimited.
+     * @param directoryBudget whether the maximum total size is shared by all appenders of the directory
      * @param customActions custom actions to perform asynchronously after rollover
      * @param stopCustomActionsOnError whether to stop executing asynchronous actions if an error occurs
      */
     protected GZipDefaultRolloverStrategy(final int minIndex, final int maxIndex, final boolean useMax,
-                                          final int compressionLevel, final StrSubstitutor strSubstitutor,
-                                          final Action[] customActions, final boolean stopCustomActionsOnError) {
+                                          final int compressionLevel, final boolean recompressArchives,
+                                          final long maxTotalSize, final boolean directoryBudget,
+                                          final StrSubstitutor strSubstitutor, final Action[] customActions,
+                                          final boolean stopCustomActionsOnError) {
         super(strSubstitutor);
         this.minIndex = minIndex;
         this.maxIndex = maxIndex;
         this.useMax = useMax;
         this.compressionLevel = compressionLevel;
+        this.recompressArchives = recompressArchives;
+        this.maxTotalSize = maxTotalSize;
+        this.directoryBudget = directoryBudget;
         this.stopCustomActionsOnError = stopCustomActionsOnError;
         this.customActions = customActions == null ? Collections.emptyList() : Arrays.asList(customActions);
     }
@@ -128,6 +161,82 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
         return compressionLevel;
     }
 
+    public boolean isRecompressArchives() {
+        return recompressArchives;
+    }
+
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public boolean isDirectoryBudget() {
+        return directoryBudget;
+    }
+
+    /**
+     * Returns the size ledger of the archives or null if the total size is not limited.
+     */
+    public ArchiveSizeLedger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * Registers the existing archives of the manager with the size ledger if the total size is limited.
+     * Called when the appender starts, so a directory wide budget accounts the archives of appenders
+     * which did not roll over yet.
+     * @param manager The RollingFileManager
+     */
+    public void registerArchives(final RollingFileManager manager) {
+        ledger(manager);
+    }
+
+    /**
+     * Returns the size ledger, registering the existing archives of the manager with it on the first call.
+     * @param manager The RollingFileManager
+     * @return the ledger or null if the total size is not limited
+     */
+    private ArchiveSizeLedger ledger(final RollingFileManager manager) {
+        if (maxTotalSize <= 0) {
+            return null;
+        }
+
+        ArchiveSizeLedger current = ledger;
+
+        if (current == null) {
+            current = ArchiveSizeLedger.register(manager, strSubstitutor, directoryBudget,
+                    getEligibleFiles(manager).values());
+            ledger = current;
+        }
+
+        return current;
+    }
+
+    @Override
+    protected SortedMap<Integer, Path> getEligibleFiles(final String currentFile, final String path,
+                                                        final String logfilePattern, final boolean isAscending) {
+        return CompanionArchive.withoutCompanions(super.getEligibleFiles(currentFile, path, logfilePattern,
+                isAscending));
+    }
+
+    private void deleteArchive(final Path path) throws IOException {
+        ArchiveSizeLedger.deleteArchive(path);
+        final ArchiveSizeLedger current = ledger;
+
+        if (current != null) {
+            current.remove(path);
+        }
+    }
+
+    private void accountRenamed(final FileRenameAction action) {
+        ArchiveCatalog.archiveRenamed(action.getSource().toPath(), action.getDestination().toPath());
+        CompanionArchive.renameCompanion(action.getSource().toPath(), action.getDestination().toPath());
+        final ArchiveSizeLedger current = ledger;
+
+        if (current != null) {
+            current.rename(action.getSource().toPath(), action.getDestination().toPath());
+        }
+    }
+
     public int getMaxIndex() {
         return maxIndex;
     }
@@ -171,7 +280,7 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
                 LOGGER.debug("Eligible files: {}", eligibleFiles);
                 Integer key = eligibleFiles.firstKey();
                 LOGGER.debug("Deleting {}", eligibleFiles.get(key).toFile().getAbsoluteFile());
-                Files.delete(eligibleFiles.get(key));
+                deleteArchive(eligibleFiles.get(key));
                 eligibleFiles.remove(key);
                 renameFiles = true;
             } catch(IOException ioe) {
@@ -186,7 +295,7 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
             for (Map.Entry<Integer, Path> entry: eligibleFiles.entrySet()) {
                 buf.setLength(0);
                 manager.getPatternProcessor().formatFileName(strSubstitutor, buf, entry.getKey() - 1);
-                Action action = this.createFileRenameAction(entry, buf);
+                FileRenameAction action = this.createFileRenameAction(entry, buf);
 
                 try {
                     LOGGER.debug("GZipDefaultRolloverStrategy.purgeAscending executing {}", action);
@@ -194,6 +303,8 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
                     if (!action.execute()) {
                         return -1;
                     }
+
+                    accountRenamed(action);
                 } catch (final Exception exception) {
                     LOGGER.warn("Exceptions during purge in GZipRollingFileAppender", exception);
                     return  -1;
@@ -224,7 +335,7 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
         while(eligibleFiles.size() >= maxFiles) {
             try {
                 Integer key = eligibleFiles.firstKey();
-                Files.delete(eligibleFiles.get(key));
+                deleteArchive(eligibleFiles.get(key));
                 eligibleFiles.remove(key);
             } catch (IOException ioException) {
                 LOGGER.error("Unable to delete {}, {}", eligibleFiles.firstKey(), ioException.getMessage(),
@@ -238,7 +349,7 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
         for (Map.Entry<Integer, Path> entry: eligibleFiles.entrySet()) {
             buf.setLength(0);
             manager.getPatternProcessor().formatFileName(strSubstitutor, buf, entry.getKey() + 1);
-            Action action = this.createFileRenameAction(entry, buf);
+            FileRenameAction action = this.createFileRenameAction(entry, buf);
 
             try {
                 LOGGER.debug("GZipDefaultRolloverStrategy.purgeDescending executing {}", action);
@@ -246,6 +357,8 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
                 if (!action.execute()) {
                     return -1;
                 }
+
+                accountRenamed(action);
             } catch (final Exception exception) {
                 LOGGER.warn("Exception during purge in GZipRollingFileAppender", exception);
                 return -1;
@@ -265,6 +378,7 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
     @Override
     public RolloverDescription rollover(RollingFileManager manager) throws SecurityException {
         int fileIndex;
+        final ArchiveSizeLedger currentLedger = ledger(manager);
 
         if (minIndex == Integer.MIN_VALUE) {
             final SortedMap<Integer, Path> eligibleFiles = getEligibleFiles(manager);
@@ -299,13 +413,27 @@ public class GZipDefaultRolloverStrategy extends AbstractRolloverStrategy {
 
         final FileRenameAction renameAction = new FileRenameAction(new File(currentFileName), new File(renameTo),
                 manager.isRenameEmptyFiles());
-        final Action asyncAction = new CompositeAction(getCustomActions(), isStopCustomActionsOnError());
-        return new RolloverDescriptionImpl(currentFileName, false, renameAction, asyncAction);
+        final Action syncAction = new AccountingRenameAction(renameAction, currentLedger);
+        final List<Action> asyncActions = new ArrayList<>(getCustomActions());
+
+        if (recompressArchives) {
+            asyncActions.add(0, new GZipRecompressAction(Paths.get(renameTo), compressionLevel));
+        }
+
+        Action asyncAction = ScheduledAction.schedule(asyncActions, isStopCustomActionsOnError());
+
+        if (currentLedger != null) {
+            asyncAction = new CompositeAction(Arrays.asList(new LedgerTrimAction(currentLedger, maxTotalSize),
+                    asyncAction), false);
+        }
+
+        return new RolloverDescriptionImpl(currentFileName, false, syncAction, asyncAction);
     }
 
     @Override
     public String toString() {
-        return "GZipDefaultRolloverStrategy(min = " + minIndex + ", max = " + maxIndex + ", useMax = " + useMax + ")";
+        return "GZipDefaultRolloverStrategy(min = " + minIndex + ", max = " + maxIndex + ", useMax = " + useMax
+                + ", maxTotalSize = " + maxTotalSize + ")";
     }
 
     private FileRenameAction createFileRenameAction(Map.Entry<Integer, Path> entry, StringBuilder buf) {
@@ -2,6 +2,7 @@ package org.zilbrom.logging.strategies;
 
 import org.apache.logging.log4j.core.Core;
 import org.apache.logging.log4j.core.appender.rolling.AbstractRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
 import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
 import org.apache.logging.log4j.core.appender.rolling.RolloverDescription;
 import org.apache.logging.log4j.core.appender.rolling.RolloverDescriptionImpl;
@@ -11,11 +12,12 @@ import org.apache.logging.log4j.core.appender.rolling.action.FileRenameAction;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.*;
 import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.zilbrom.logging.actions.ScheduledAction;
 import org.zilbrom.logging.appenders.GZipRollingFileAppender;
+import org.zilbrom.logging.streams.CompanionArchive;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collections;
@@ -38,6 +40,10 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
      * Creates the GZipDirectWriteRolloverStrategy.
      *
      * @param maxFiles The maximum number of files that match the date portion of the pattern to keep
+     * @param maxTotalSize The maximum total size of the archives, e.g. "10 GB". The oldest archives are deleted
+     *                     when it is exceeded. Not limited by default.
+     * @param totalSizeScope "appender" (the default) to limit the archives of this appender only,
+     *                       "directory" to share the limit with all appenders writing archives to the same directory
      * @param customActions custom actions to perform asynchronously after rollover
      * @param stopCustomActionsOnError whether to stop executing asynchronous actions if an error occurs
      * @param config The Configuration
@@ -45,6 +51,10 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
      */
     @PluginFactory
     public static GZipDirectWriteRolloverStrategy createStrategy(@PluginAttribute("maxFiles") final String maxFiles,
+                                                                 @PluginAttribute("maxTotalSize")
+                                                                     final String maxTotalSize,
+                                                                 @PluginAttribute("totalSizeScope")
+                                                                     final String totalSizeScope,
                                                                  @PluginElement("Actions") final Action[] customActions,
                                                                  @PluginAttribute(value = "stopCustomActionsOnError",
                                                                          defaultBoolean = true)
@@ -63,7 +73,9 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
             }
         }
 
-        return new GZipDirectWriteRolloverStrategy(maxIndex, config.getStrSubstitutor(), customActions,
+        final long totalSize = maxTotalSize == null ? 0 : FileSize.parse(maxTotalSize, 0);
+        return new GZipDirectWriteRolloverStrategy(maxIndex, totalSize,
+                "directory".equalsIgnoreCase(totalSizeScope), config.getStrSubstitutor(), customActions,
                 stopCustomActionsOnError);
     }
 
@@ -72,22 +84,30 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
      */
     private final int maxFiles;
     private final int compressionLevel;
+    private final long maxTotalSize;
+    private final boolean directoryBudget;
     private final List<Action> customActions;
     private final boolean stopCustomActionsOnError;
     private volatile String currentFileName;
     private int nextIndex = -1;
+    private volatile ArchiveSizeLedger ledger;
 
     /**
      * Constructs a nes instance.
      *
      * @param maxFiles The minimum index.
+     * @param maxTotalSize The maximum total size of the archives in bytes, 0 or less for unlimited.
+     * @param directoryBudget whether the maximum total size is shared by all appenders of the directory
      * @param customActions custom actions to perform asynchronously after rollover
      * @param stopCustomActionsOnError whether to stop executing asynchronous actions if an error occurs
      */
-    protected GZipDirectWriteRolloverStrategy(final int maxFiles, final StrSubstitutor strSubstitutor,
+    protected GZipDirectWriteRolloverStrategy(final int maxFiles, final long maxTotalSize,
+                                              final boolean directoryBudget, final StrSubstitutor strSubstitutor,
                                               final Action[] customActions, final boolean stopCustomActionsOnError) {
         super(strSubstitutor);
         this.maxFiles = maxFiles;
+        this.maxTotalSize = maxTotalSize;
+        this.directoryBudget = directoryBudget;
         this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
         this.stopCustomActionsOnError = stopCustomActionsOnError;
         this.customActions = customActions == null ? Collections.emptyList() : Arrays.asList(customActions);
@@ -97,6 +117,52 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
         return maxFiles;
     }
 
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public boolean isDirectoryBudget() {
+        return directoryBudget;
+    }
+
+    /**
+     * Returns the size ledger of the archives or null if the total size is not limited.
+     */
+    public ArchiveSizeLedger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * Registers the existing archives of the manager with the size ledger if the total size is limited.
+     * Called when the appender starts, so a directory wide budget accounts the archives of appenders
+     * which did not roll over yet.
+     * @param manager The RollingFileManager
+     */
+    public void registerArchives(final RollingFileManager manager) {
+        ledger(manager);
+    }
+
+    /**
+     * Returns the size ledger, registering the existing archives of the manager with it on the first call.
+     * @param manager The RollingFileManager
+     * @return the ledger or null if the total size is not limited
+     */
+    private ArchiveSizeLedger ledger(final RollingFileManager manager) {
+        if (maxTotalSize <= 0) {
+            return null;
+        }
+
+        ArchiveSizeLedger current = ledger;
+
+        if (current == null) {
+            current = ArchiveSizeLedger.register(manager, strSubstitutor, directoryBudget,
+                    getEligibleFiles(manager).values());
+            ledger = current;
+        }
+
+        return current;
+    }
+
     public int getCompressionLevel() {
         return compressionLevel;
     }
@@ -109,6 +175,13 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
         return stopCustomActionsOnError;
     }
 
+    @Override
+    protected SortedMap<Integer, Path> getEligibleFiles(final String currentFile, final String path,
+                                                        final String logfilePattern, final boolean isAscending) {
+        return CompanionArchive.withoutCompanions(super.getEligibleFiles(currentFile, path, logfilePattern,
+                isAscending));
+    }
+
     private int purge(final RollingFileManager manager) {
         SortedMap<Integer, Path> eligibleFiles = getEligibleFiles(manager);
         LOGGER.debug("Fount {} eligible files, max is {}", eligibleFiles.size(), maxFiles);
@@ -116,7 +189,12 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
         while (eligibleFiles.size() >= maxFiles) {
             try {
                 Integer key = eligibleFiles.firstKey();
-                Files.delete(eligibleFiles.get(key));
+                ArchiveSizeLedger.deleteArchive(eligibleFiles.get(key));
+
+                if (ledger != null) {
+                    ledger.remove(eligibleFiles.get(key));
+                }
+
                 eligibleFiles.remove(key);
             } catch (IOException ioException) {
                 LOGGER.error("Unable to delete {}", eligibleFiles.firstKey(), ioException);
@@ -157,6 +235,7 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
         }
 
         final long startNanos = System.nanoTime();
+        final ArchiveSizeLedger currentLedger = ledger(manager);
         final int fileIndex = purge(manager);
 
         if (LOGGER.isTraceEnabled()) {
@@ -167,8 +246,9 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
         final String sourceName = currentFileName;
         currentFileName = null;
         nextIndex = fileIndex + 1;
-        Action action = new FileRenameAction(new File(sourceName),
+        final FileRenameAction renameAction = new FileRenameAction(new File(sourceName),
                 new File(sourceName + GZipRollingFileAppender.GZIP_EXTENSION), true);
+        final Action action = new AccountingRenameAction(renameAction, currentLedger);
 
         try {
             LOGGER.debug("GZipDirectWriteRolloverStrategy.rollover executing {}", action);
@@ -180,12 +260,18 @@ public class GZipDirectWriteRolloverStrategy extends AbstractRolloverStrategy {
             LOGGER.warn("Exception during rollover in GZipRollingFileAppender", exception);
         }
 
-        final Action asyncAction = new CompositeAction(customActions, stopCustomActionsOnError);
+        Action asyncAction = ScheduledAction.schedule(customActions, stopCustomActionsOnError);
+
+        if (currentLedger != null) {
+            asyncAction = new CompositeAction(Arrays.asList(new LedgerTrimAction(currentLedger, maxTotalSize),
+                    asyncAction), false);
+        }
+
         return new RolloverDescriptionImpl(sourceName, false, null, asyncAction);
     }
 
     @Override
     public String toString() {
-        return "GZipDirectWriteRolloverStrategy(maxFiles = " + maxFiles + ')';
+        return "GZipDirectWriteRolloverStrategy(maxFiles = " + maxFiles + ", maxTotalSize = " + maxTotalSize + ')';
     }
 }
@@ -0,0 +1,34 @@
+package org.zilbrom.logging.strategies;
+
+import org.apache.logging.log4j.core.appender.rolling.action.AbstractAction;
+
+/**
+ * Deletes the oldest archives of a size ledger until their total size is within the budget. Runs with the
+ * asynchronous actions of a rollover, after the new archive was added to the ledger, so the deletes do not hold
+ * the lock of the manager.
+ */
+class LedgerTrimAction extends AbstractAction {
+    private final ArchiveSizeLedger ledger;
+    private final long maxTotalSize;
+
+    /**
+     * Creates the action.
+     * @param ledger the size ledger
+     * @param maxTotalSize the maximum total size of the archives in bytes
+     */
+    LedgerTrimAction(final ArchiveSizeLedger ledger, final long maxTotalSize) {
+        this.ledger = ledger;
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    @Override
+    public boolean execute() {
+        ledger.trim(maxTotalSize);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "LedgerTrimAction(maxTotalSize = " + maxTotalSize + ')';
+    }
+}
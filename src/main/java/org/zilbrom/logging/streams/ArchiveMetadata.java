@@ -0,0 +1,315 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.Level;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.zip.Deflater;
+
+/**
+ * The statistics of a log file: the time range, the number of events, the uncompressed and compressed bytes
+ * and the events per level.
+ * <p>
+ * The statistics are stored at the end of the file in an empty gzip member, in the 'ZM' subfield of its FEXTRA
+ * field and readable in its FCOMMENT field. The member decompresses to nothing, so the file stays a valid gzip
+ * stream, and {@link #readTail} finds it by reading the last bytes of the file without decompressing anything.
+ * A file which is appended to again gets another member at its new end, the last one describes the whole file.
+ */
+public final class ArchiveMetadata {
+    private static final char ID1 = 'Z';
+    private static final char ID2 = 'M';
+    private static final byte VERSION = 1;
+    private static final Level[] LEVELS = {Level.FATAL, Level.ERROR, Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE};
+    private static final int OTHER_LEVEL = LEVELS.length;
+    private static final int TAIL_SCAN_BYTES = 4096;
+    private static final int FIELD_LENGTH = 1 + 5 * 8 + (LEVELS.length + 1) * 8;
+    // An empty final deflate block, CRC32 and ISIZE of zero
+    private static final byte[] EMPTY_MEMBER_BODY = {3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private long firstMillis = Long.MAX_VALUE;
+    private long lastMillis = Long.MIN_VALUE;
+    private long events;
+    private long rawBytes;
+    private long compressedBytes;
+    private final long[] levelCounts = new long[LEVELS.length + 1];
+
+    /**
+     * Counts an event.
+     * @param level the level of the event
+     * @param timeMillis the time of the event
+     */
+    public synchronized void recordEvent(final Level level, final long timeMillis) {
+        firstMillis = Math.min(firstMillis, timeMillis);
+        lastMillis = Math.max(lastMillis, timeMillis);
+        events++;
+        levelCounts[levelIndex(level)]++;
+    }
+
+    private static int levelIndex(final Level level) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i] == level) {
+                return i;
+            }
+        }
+
+        return OTHER_LEVEL;
+    }
+
+    /**
+     * Counts uncompressed bytes handed to the compressing stream.
+     */
+    public synchronized void recordBytes(final long bytes) {
+        rawBytes += bytes;
+    }
+
+    /**
+     * Sets the number of bytes of the file before the metadata member.
+     */
+    public synchronized void setCompressedBytes(final long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    /**
+     * Adds the statistics of another file, e.g. when files are merged.
+     * @param other the statistics of the other file
+     */
+    public synchronized void merge(final ArchiveMetadata other) {
+        final ArchiveMetadata copy = other.copy();
+        firstMillis = Math.min(firstMillis, copy.firstMillis);
+        lastMillis = Math.max(lastMillis, copy.lastMillis);
+        events += copy.events;
+        rawBytes += copy.rawBytes;
+        compressedBytes += copy.compressedBytes;
+
+        for (int i = 0; i < levelCounts.length; i++) {
+            levelCounts[i] += copy.levelCounts[i];
+        }
+    }
+
+    public synchronized ArchiveMetadata copy() {
+        final ArchiveMetadata copy = new ArchiveMetadata();
+        copy.firstMillis = firstMillis;
+        copy.lastMillis = lastMillis;
+        copy.events = events;
+        copy.rawBytes = rawBytes;
+        copy.compressedBytes = compressedBytes;
+        System.arraycopy(levelCounts, 0, copy.levelCounts, 0, levelCounts.length);
+        return copy;
+    }
+
+    /**
+     * Encodes the statistics as an empty gzip member.
+     * @return the member
+     */
+    public synchronized byte[] encodeMember() {
+        final ByteBuffer field = ByteBuffer.allocate(FIELD_LENGTH);
+        field.order(ByteOrder.LITTLE_ENDIAN);
+        field.put(VERSION);
+        field.putLong(firstMillis);
+        field.putLong(lastMillis);
+        field.putLong(events);
+        field.putLong(rawBytes);
+        field.putLong(compressedBytes);
+
+        for (long count : levelCounts) {
+            field.putLong(count);
+        }
+
+        final byte[] header = GZipHeader.encode(Deflater.DEFAULT_COMPRESSION,
+                GZipHeader.extraField(ID1, ID2, field.array()), toString());
+        final byte[] member = new byte[header.length + EMPTY_MEMBER_BODY.length];
+        System.arraycopy(header, 0, member, 0, header.length);
+        System.arraycopy(EMPTY_MEMBER_BODY, 0, member, header.length, EMPTY_MEMBER_BODY.length);
+        return member;
+    }
+
+    /**
+     * Decodes the 'ZM' subfield.
+     * @param field the data of the subfield
+     * @return the statistics or null if the field has an unknown version
+     */
+    static ArchiveMetadata decode(final byte[] field) {
+        if (field.length < FIELD_LENGTH || field[0] != VERSION) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(field, 1, field.length - 1);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final ArchiveMetadata metadata = new ArchiveMetadata();
+        metadata.firstMillis = buffer.getLong();
+        metadata.lastMillis = buffer.getLong();
+        metadata.events = buffer.getLong();
+        metadata.rawBytes = buffer.getLong();
+        metadata.compressedBytes = buffer.getLong();
+
+        for (int i = 0; i < metadata.levelCounts.length; i++) {
+            metadata.levelCounts[i] = buffer.getLong();
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Reads the statistics from the metadata member at the end of a file.
+     * @param file the gzip file
+     * @return the statistics or null if the file does not end with a metadata member
+     * @throws IOException if the file can not be read
+     */
+    public static ArchiveMetadata readTail(final Path file) throws IOException {
+        final byte[] tail;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, TAIL_SCAN_BYTES));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, size - buffer.capacity() + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            tail = buffer.array();
+        }
+
+        for (int start = tail.length - EMPTY_MEMBER_BODY.length - 10; start >= 0; start--) {
+            if ((tail[start] & 0xff) != 0x1f || (tail[start + 1] & 0xff) != 0x8b) {
+                continue;
+            }
+
+            final GZipHeader header = GZipHeader.read(new ByteArrayInputStream(tail, start, tail.length - start));
+
+            if (header != null && start + header.getLength() + EMPTY_MEMBER_BODY.length == tail.length
+                    && endsWithEmptyBody(tail)) {
+                final byte[] field = header.getExtraField(ID1, ID2);
+                return field == null ? null : decode(field);
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean endsWithEmptyBody(final byte[] tail) {
+        final int offset = tail.length - EMPTY_MEMBER_BODY.length;
+
+        for (int i = 0; i < EMPTY_MEMBER_BODY.length; i++) {
+            if (tail[offset + i] != EMPTY_MEMBER_BODY[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if the file has events between the given times, both inclusive.
+     */
+    public synchronized boolean overlaps(final long fromMillis, final long toMillis) {
+        return events > 0 && firstMillis <= toMillis && lastMillis >= fromMillis;
+    }
+
+    /**
+     * Returns the time of the first event or Long.MAX_VALUE if there were no events.
+     */
+    public synchronized long getFirstMillis() {
+        return firstMillis;
+    }
+
+    /**
+     * Returns the time of the last event or Long.MIN_VALUE if there were no events.
+     */
+    public synchronized long getLastMillis() {
+        return lastMillis;
+    }
+
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Returns the number of events of a level. Levels other than the standard ones are counted together
+     * under any non standard level.
+     * @param level the level
+     */
+    public synchronized long getEvents(final Level level) {
+        return levelCounts[levelIndex(level)];
+    }
+
+    /**
+     * Encodes the statistics as tab separated fields: first and last time, events, raw and compressed bytes and
+     * the comma separated counts of FATAL, ERROR, WARN, INFO, DEBUG, TRACE and other levels.
+     */
+    public synchronized String toFields() {
+        final StringBuilder fields = new StringBuilder();
+        fields.append(firstMillis).append('\t').append(lastMillis).append('\t').append(events).append('\t')
+                .append(rawBytes).append('\t').append(compressedBytes).append('\t');
+
+        for (int i = 0; i < levelCounts.length; i++) {
+            fields.append(i == 0 ? "" : ",").append(levelCounts[i]);
+        }
+
+        return fields.toString();
+    }
+
+    /**
+     * Decodes the fields written by {@link #toFields}.
+     * @param fields the fields
+     * @param offset the index of the first field
+     * @return the statistics
+     * @throws NumberFormatException if the fields are malformed
+     */
+    public static ArchiveMetadata parseFields(final String[] fields, final int offset) {
+        if (fields.length < offset + 6) {
+            throw new NumberFormatException("Expected 6 fields after " + offset + ", found " + fields.length);
+        }
+
+        final ArchiveMetadata metadata = new ArchiveMetadata();
+        metadata.firstMillis = Long.parseLong(fields[offset]);
+        metadata.lastMillis = Long.parseLong(fields[offset + 1]);
+        metadata.events = Long.parseLong(fields[offset + 2]);
+        metadata.rawBytes = Long.parseLong(fields[offset + 3]);
+        metadata.compressedBytes = Long.parseLong(fields[offset + 4]);
+        final String[] counts = fields[offset + 5].split(",");
+
+        for (int i = 0; i < Math.min(counts.length, metadata.levelCounts.length); i++) {
+            metadata.levelCounts[i] = Long.parseLong(counts[i]);
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder text = new StringBuilder();
+
+        if (events > 0) {
+            text.append("first=").append(Instant.ofEpochMilli(firstMillis))
+                    .append(" last=").append(Instant.ofEpochMilli(lastMillis)).append(' ');
+        }
+
+        text.append("events=").append(events).append(" raw=").append(rawBytes)
+                .append(" compressed=").append(compressedBytes);
+
+        for (int i = 0; i < levelCounts.length; i++) {
+            if (levelCounts[i] > 0) {
+                text.append(' ').append(i == OTHER_LEVEL ? "OTHER" : LEVELS[i].name()).append('=')
+                        .append(levelCounts[i]);
+            }
+        }
+
+        return text.toString();
+    }
+}
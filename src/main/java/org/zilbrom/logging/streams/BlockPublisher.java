@@ -0,0 +1,428 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the compressed bytes of a file in blocks as they are written, so a shipper in the same process sends
+ * them without reading the file again.
+ * <p>
+ * The interfaces follow java.util.concurrent.Flow, which is not available on Java 8: a subscriber gets blocks only
+ * after it requested them. The last published blocks are retained up to the retention size for subscribers which
+ * fall behind; a subscriber whose next block was dropped gets a missed block instead, which names the file and
+ * the offset to read the dropped bytes from, and continues with the oldest retained block. Every subscriber gets
+ * its blocks on its own background thread, so a slow subscriber blocks neither the writers nor other subscribers.
+ * <p>
+ * A block ends where the compressing stream flushed, usually at a sync flush, so the blocks of a file
+ * concatenated in order are the file. A new subscriber starts with the next published block.
+ */
+public final class BlockPublisher {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    /**
+     * Receives the blocks, like java.util.concurrent.Flow.Subscriber. The methods are called on the thread
+     * of the subscription.
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(Block block);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * The demand of a subscriber, like java.util.concurrent.Flow.Subscription.
+     */
+    public interface Subscription {
+        /**
+         * Adds blocks to the demand of the subscriber.
+         * @param n the number of blocks, positive
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of blocks.
+         */
+        void cancel();
+    }
+
+    /**
+     * Compressed bytes of a file, or a gap of dropped bytes if the block is missed.
+     */
+    public static final class Block {
+        private final String file;
+        private final long generation;
+        private final long offset;
+        private final long length;
+        private final ByteBuffer data;
+
+        private Block(final String file, final long generation, final long offset, final long length,
+                      final ByteBuffer data) {
+            this.file = file;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+
+        /**
+         * Returns the file the bytes were written to. After a rollover which renames the file, the bytes of
+         * the earlier generations are in the archives.
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the number of the file, which grows with every file the manager opens.
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Returns the offset of the bytes in the file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the number of bytes, or -1 for a missed block whose gap reaches into a later file.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the bytes, read only, or null if the block is missed.
+         */
+        public ByteBuffer getData() {
+            return data == null ? null : data.duplicate();
+        }
+
+        /**
+         * Returns true if the bytes were dropped before the subscriber requested them. They are read from
+         * the file from the offset up to the offset of the next block, or to the end of the file and the files
+         * of the generations in between if the length is -1.
+         */
+        public boolean isMissed() {
+            return data == null;
+        }
+
+        @Override
+        public String toString() {
+            return (isMissed() ? "missed " : "") + file + '#' + generation + " @" + offset + " +" + length;
+        }
+    }
+
+    private final String name;
+    private final long retentionBytes;
+    // The retained blocks start at head, the dropped ones before are cleared in batches
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    private int head;
+    private final List<BlockSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private long firstSequence;
+    private long retainedBytes;
+    private Block firstPublished;
+    private Block lastPublished;
+    private boolean completed;
+    private long publishedBlocks;
+    private long publishedBytes;
+    private long droppedBlocks;
+    private final AtomicLong missedBlocks = new AtomicLong();
+
+    /**
+     * Creates the publisher.
+     * @param name the name of the manager
+     * @param retentionBytes the number of compressed bytes retained for subscribers which fall behind
+     */
+    public BlockPublisher(final String name, final long retentionBytes) {
+        this.name = name;
+        this.retentionBytes = retentionBytes;
+    }
+
+    /**
+     * Subscribes to the blocks published from now on. The subscriber is called on a new background thread,
+     * or at once with onComplete if the publisher completed.
+     * @param subscriber the subscriber
+     */
+    public void subscribe(final Subscriber subscriber) {
+        final BlockSubscription subscription;
+
+        synchronized (this) {
+            if (completed) {
+                subscription = null;
+            } else {
+                subscription = new BlockSubscription(subscriber, firstSequence + retainedBlocks(), lastPublished);
+                subscriptions.add(subscription);
+            }
+        }
+
+        if (subscription == null) {
+            subscriber.onSubscribe(new BlockSubscription(subscriber, 0, null));
+            subscriber.onComplete();
+        } else {
+            BackgroundThreads.start("GZipBlockPublisher-" + name, subscription::run);
+        }
+    }
+
+    /**
+     * Publishes bytes written to a file. The bytes are copied.
+     * @param file the file
+     * @param generation the number of the file
+     * @param offset the offset of the bytes in the file
+     * @param bytes the bytes
+     * @param off the start of the bytes
+     * @param len the number of bytes
+     */
+    public void publish(final String file, final long generation, final long offset, final byte[] bytes,
+                        final int off, final int len) {
+        if (len <= 0) {
+            return;
+        }
+
+        final Block block = new Block(file, generation, offset, len,
+                ByteBuffer.wrap(Arrays.copyOfRange(bytes, off, off + len)).asReadOnlyBuffer());
+
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+
+            if (firstPublished == null) {
+                firstPublished = block;
+            }
+
+            blocks.add(block);
+            lastPublished = block;
+            retainedBytes += len;
+            publishedBlocks++;
+            publishedBytes += len;
+
+            // The newest block is kept even if it exceeds the retention alone
+            while (retainedBytes > retentionBytes && retainedBlocks() > 1) {
+                retainedBytes -= blocks.set(head++, null).length;
+                firstSequence++;
+                droppedBlocks++;
+            }
+
+            if (head > 64 && head > blocks.size() / 2) {
+                blocks.subList(0, head).clear();
+                head = 0;
+            }
+        }
+
+        signal();
+    }
+
+    /**
+     * Completes the subscriptions after they received the retained blocks. Called when the manager is released.
+     */
+    public void complete() {
+        synchronized (this) {
+            completed = true;
+        }
+
+        signal();
+    }
+
+    private void signal() {
+        for (BlockSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Returns the next block for a subscription: a retained block, a missed block if its next block was
+     * dropped, or null if it received all blocks.
+     */
+    private synchronized Block next(final BlockSubscription subscription) {
+        if (subscription.sequence < firstSequence) {
+            final Block last = subscription.last == null ? firstPublished : subscription.last;
+            final long start = subscription.last == null ? last.offset : last.offset + last.length;
+            final Block first = blocks.get(head);
+            final long length = first.generation == last.generation ? first.offset - start : -1;
+            subscription.sequence = firstSequence;
+            missedBlocks.incrementAndGet();
+            return new Block(last.file, last.generation, start, length, null);
+        }
+
+        final long index = subscription.sequence - firstSequence;
+
+        if (index >= retainedBlocks()) {
+            return null;
+        }
+
+        final Block block = blocks.get(head + (int) index);
+        subscription.sequence++;
+        subscription.last = block;
+        return block;
+    }
+
+    private synchronized boolean isCompleted(final BlockSubscription subscription) {
+        return completed && subscription.sequence >= firstSequence + retainedBlocks();
+    }
+
+    private int retainedBlocks() {
+        return blocks.size() - head;
+    }
+
+    /**
+     * Returns the number of published blocks.
+     */
+    public synchronized long getPublishedBlocks() {
+        return publishedBlocks;
+    }
+
+    /**
+     * Returns the number of published compressed bytes.
+     */
+    public synchronized long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    /**
+     * Returns the number of blocks dropped from the retention.
+     */
+    public synchronized long getDroppedBlocks() {
+        return droppedBlocks;
+    }
+
+    /**
+     * Returns the number of missed blocks delivered to subscribers which fell behind.
+     */
+    public long getMissedBlocks() {
+        return missedBlocks.get();
+    }
+
+    /**
+     * Returns the number of active subscriptions.
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private final class BlockSubscription implements Subscription {
+        private final Subscriber subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile Thread thread;
+        private volatile boolean cancelled;
+        private boolean subscribed;
+        private volatile long invalidRequest;
+
+        /**
+         * The sequence number of the next block and the last delivered block, used by the delivery thread
+         */
+        private long sequence;
+        private Block last;
+
+        BlockSubscription(final Subscriber subscriber, final long sequence, final Block last) {
+            this.subscriber = subscriber;
+            this.sequence = sequence;
+            this.last = last;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                invalidRequest = n;
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE
+                        : current + added);
+            }
+
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        void signal() {
+            final Thread deliveryThread = thread;
+
+            if (deliveryThread != null) {
+                LockSupport.unpark(deliveryThread);
+            }
+        }
+
+        void run() {
+            thread = Thread.currentThread();
+
+            while (subscriptions.contains(this)) {
+                if (!deliver()) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        /**
+         * Delivers the requested blocks.
+         * @return true if a signal was delivered
+         */
+        private boolean deliver() {
+            try {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                    return true;
+                }
+
+                if (!cancelled && invalidRequest != 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Requested " + invalidRequest + " blocks"));
+                }
+
+                if (cancelled) {
+                    subscriptions.remove(this);
+                    return false;
+                }
+
+                boolean delivered = false;
+
+                while (!cancelled && demand.get() > 0) {
+                    final Block block = next(this);
+
+                    if (block == null) {
+                        break;
+                    }
+
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+
+                    subscriber.onNext(block);
+                    delivered = true;
+                }
+
+                if (!cancelled && isCompleted(this)) {
+                    cancelled = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                    return true;
+                }
+
+                return delivered;
+            } catch (RuntimeException exception) {
+                LOGGER.error("BlockPublisher {}: subscriber {} failed and is cancelled", name, subscriber, exception);
+                cancelled = true;
+                subscriptions.remove(this);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small gzip file next to a log file which receives a copy of the events at or above a level, so the errors
+ * of a file are read without inflating the file. The companion of {@code app.3.log.gz} is
+ * {@code app.3.log.companion.gz}; it is opened with the first such event of the file, closed with the file,
+ * and renamed and deleted with the archive by the strategies and actions.
+ * <p>
+ * Every event starts with the back-pointer {@code @block=OFFSET raw=OFFSET }: the manager finishes the deflate
+ * block before the event with a full flush, so a raw inflater started at the block offset of the log file
+ * reads the event and everything after it without the bytes before. The raw offset is the position of the event
+ * in the inflated file, -1 if it is unknown because the file was appended to without statistics, and the block
+ * offset is -1 if the seek point was lost.
+ */
+public final class CompanionArchive implements Closeable {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    public static final String EXTENSION = ".companion.gz";
+    public static final String POINTER_PREFIX = "@block=";
+    private static final String RAW_PREFIX = " raw=";
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Level level;
+    private final int compressionLevel;
+    private final long flushPeriod;
+    private Path file;
+    private RollingGZIPOutputStream out;
+    private long events;
+    private long bytes;
+
+    /**
+     * Maps the back-pointers of a companion when its archive is rewritten.
+     */
+    public interface Relocation {
+        /**
+         * Returns the new block and raw offsets of an event.
+         * @param block the block offset
+         * @param raw the raw offset
+         * @return the new block and raw offsets, -1 for unknown
+         */
+        long[] relocate(long block, long raw);
+    }
+
+    /**
+     * Creates the companion writer.
+     * @param level events at or above this level are copied
+     * @param compressionLevel the deflater level of the companions
+     * @param flushPeriod the flush period of the companion stream in millis
+     */
+    public CompanionArchive(final Level level, final int compressionLevel, final long flushPeriod) {
+        this.level = level;
+        this.compressionLevel = compressionLevel;
+        this.flushPeriod = flushPeriod;
+    }
+
+    /**
+     * Returns the companion of a log file.
+     * @param file the log file or archive
+     */
+    public static Path companionOf(final Path file) {
+        final String name = file.getFileName().toString();
+        final String base = name.endsWith(GZIP_EXTENSION) ? name.substring(0, name.length() - 3) : name;
+        return file.resolveSibling(base + EXTENSION);
+    }
+
+    /**
+     * Renames the companion of an archive which was renamed, if it has one.
+     * @param from the old name of the archive
+     * @param to the new name of the archive
+     */
+    public static void renameCompanion(final Path from, final Path to) {
+        if (from.getFileName().toString().endsWith(EXTENSION)) {
+            return;
+        }
+
+        final Path source = companionOf(from);
+
+        if (!Files.exists(source)) {
+            return;
+        }
+
+        try {
+            Files.move(source, companionOf(to), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to rename companion {} of {}", source, to, ioException);
+        }
+    }
+
+    /**
+     * Deletes the companion of an archive which was deleted, if it has one.
+     * @param file the archive
+     */
+    public static void deleteCompanion(final Path file) {
+        if (file.getFileName().toString().endsWith(EXTENSION)) {
+            return;
+        }
+
+        final Path companion = companionOf(file);
+
+        try {
+            Files.deleteIfExists(companion);
+        } catch (IOException ioException) {
+            LOGGER.warn("Unable to delete companion {}", companion, ioException);
+        }
+    }
+
+    /**
+     * Replaces the companions among the archives found by a rollover strategy with their archives, as the pattern
+     * of the archives matches the companions too, and drops the companions whose archive is gone.
+     * @param archives the archives by their index
+     * @return the archives
+     */
+    public static SortedMap<Integer, Path> withoutCompanions(final SortedMap<Integer, Path> archives) {
+        final Iterator<Map.Entry<Integer, Path>> entries = archives.entrySet().iterator();
+
+        while (entries.hasNext()) {
+            final Map.Entry<Integer, Path> entry = entries.next();
+            final String name = entry.getValue().getFileName().toString();
+
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+
+            final String base = name.substring(0, name.length() - EXTENSION.length());
+            final Path compressed = entry.getValue().resolveSibling(base + GZIP_EXTENSION);
+            final Path plain = entry.getValue().resolveSibling(base);
+
+            if (Files.exists(compressed)) {
+                entry.setValue(compressed);
+            } else if (Files.exists(plain)) {
+                entry.setValue(plain);
+            } else {
+                entries.remove();
+            }
+        }
+
+        return archives;
+    }
+
+    /**
+     * Writes the events of the companions of the archives, which were concatenated or rewritten, as the companion
+     * of the target with relocated back-pointers. The companions of the archives are not deleted.
+     * @param archives the archives in the order of their events
+     * @param relocations the relocation of the pointers of every archive
+     * @param target the rewritten archive
+     * @return the number of copied events
+     * @throws IOException if a companion can not be read or written
+     */
+    public static long rewrite(final List<Path> archives, final List<Relocation> relocations, final Path target)
+            throws IOException {
+        final Path companion = companionOf(target);
+        final Path temp = companion.resolveSibling(companion.getFileName() + ".tmp");
+        long copied = 0;
+
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),
+                BUFFER_SIZE), BUFFER_SIZE)) {
+            for (int i = 0; i < archives.size(); i++) {
+                copied += copy(companionOf(archives.get(i)), relocations.get(i), out);
+            }
+        }
+
+        if (copied == 0) {
+            Files.delete(temp);
+            Files.deleteIfExists(companion);
+        } else {
+            Files.move(temp, companion, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return copied;
+    }
+
+    private static long copy(final Path companion, final Relocation relocation, final OutputStream out)
+            throws IOException {
+        long copied = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(companion), BUFFER_SIZE), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final long[] pointer = parsePointer(line);
+
+                if (pointer != null) {
+                    final long[] relocated = relocation.relocate(pointer[0], pointer[1]);
+                    line = pointer(relocated[0], relocated[1]) + line.substring((int) pointer[2]);
+                    copied++;
+                }
+
+                out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (NoSuchFileException noSuchFileException) {
+            return 0;
+        }
+
+        return copied;
+    }
+
+    /**
+     * Parses the back-pointer at the start of a line of a companion.
+     * @param line the line
+     * @return the block offset, the raw offset and the length of the pointer, or null if the line has none
+     */
+    public static long[] parsePointer(final String line) {
+        if (!line.startsWith(POINTER_PREFIX)) {
+            return null;
+        }
+
+        final int raw = line.indexOf(RAW_PREFIX, POINTER_PREFIX.length());
+        final int end = raw < 0 ? -1 : line.indexOf(' ', raw + RAW_PREFIX.length());
+
+        if (end < 0) {
+            return null;
+        }
+
+        try {
+            return new long[]{Long.parseLong(line.substring(POINTER_PREFIX.length(), raw)),
+                    Long.parseLong(line.substring(raw + RAW_PREFIX.length(), end)), end + 1};
+        } catch (NumberFormatException numberFormatException) {
+            return null;
+        }
+    }
+
+    private static String pointer(final long block, final long raw) {
+        return POINTER_PREFIX + block + RAW_PREFIX + raw + ' ';
+    }
+
+    /**
+     * Returns true if the event is copied to the companion.
+     * @param event The LogEvent.
+     */
+    public boolean accepts(final LogEvent event) {
+        return event.getLevel().isMoreSpecificThan(level);
+    }
+
+    /**
+     * Appends an event to the companion of a log file and flushes it, so the event is readable at once.
+     * @param logFile the log file the event was written to
+     * @param block the offset of the seek point before the event in the log file
+     * @param raw the offset of the event in the inflated log file, -1 if unknown
+     * @param event the encoded event
+     * @throws IOException if the companion can not be written
+     */
+    public synchronized void write(final Path logFile, final long block, final long raw, final byte[] event)
+            throws IOException {
+        if (out == null || !logFile.equals(file)) {
+            close();
+            final File companion = companionOf(logFile).toFile();
+            out = new RollingGZIPOutputStream(new FileOutputStream(companion, true), BUFFER_SIZE, flushPeriod, true,
+                    compressionLevel, companion.getName());
+            file = logFile;
+        }
+
+        final byte[] pointer = pointer(block, raw).getBytes(StandardCharsets.UTF_8);
+        out.write(pointer, 0, pointer.length);
+        out.write(event, 0, event.length);
+        out.syncFlush();
+        events++;
+        bytes += event.length;
+    }
+
+    /**
+     * Closes the companion of the current file, the next event opens it again.
+     */
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ioException) {
+                LOGGER.error("Unable to close the companion of {}", file, ioException);
+            }
+
+            out = null;
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the number of events copied to companions.
+     */
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes of the events copied to companions.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+}
@@ -0,0 +1,224 @@
+package org.zilbrom.logging.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The header of a gzip member as described by RFC 1952.
+ * Besides the fixed part it supports the optional FEXTRA and FCOMMENT fields,
+ * which are used to keep metadata of the log files without compressing it.
+ */
+public final class GZipHeader {
+    public static final int FTEXT = 1;
+    public static final int FHCRC = 2;
+    public static final int FEXTRA = 4;
+    public static final int FNAME = 8;
+    public static final int FCOMMENT = 16;
+
+    private static final int FIXED_LENGTH = 10;
+
+    private final int flags;
+    private final int extraFlags;
+    private final byte[] extra;
+    private final String comment;
+    private final int length;
+
+    private GZipHeader(int flags, int extraFlags, byte[] extra, String comment, int length) {
+        this.flags = flags;
+        this.extraFlags = extraFlags;
+        this.extra = extra;
+        this.comment = comment;
+        this.length = length;
+    }
+
+    /**
+     * Returns the XFL value of the header for the given deflater level:
+     * 2 for the maximum compression, 4 for the fastest one and 0 otherwise.
+     * @param level the deflater level
+     */
+    public static int extraFlagsFor(int level) {
+        if (level == Deflater.BEST_COMPRESSION) {
+            return 2;
+        } else if (level == Deflater.BEST_SPEED) {
+            return 4;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Encodes a gzip header.
+     * @param level the deflater level used for the member
+     * @param extra the content of the FEXTRA field or null
+     * @param comment the content of the FCOMMENT field or null, it must not contain zero characters
+     * @return the encoded header
+     */
+    public static byte[] encode(int level, byte[] extra, String comment) {
+        final byte[] commentBytes = comment == null ? null : comment.getBytes(StandardCharsets.ISO_8859_1);
+        final int size = FIXED_LENGTH + (extra == null ? 0 : 2 + extra.length)
+                + (commentBytes == null ? 0 : commentBytes.length + 1);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) GZIPInputStream.GZIP_MAGIC);
+        buffer.put((byte) Deflater.DEFLATED); //compression method (8: deflate)
+        buffer.put((byte) ((extra == null ? 0 : FEXTRA) | (commentBytes == null ? 0 : FCOMMENT))); //flags
+        buffer.putInt(0); //modification time
+        buffer.put((byte) extraFlagsFor(level));
+        buffer.put((byte) 0); // operation system
+
+        if (extra != null) {
+            buffer.putShort((short) extra.length);
+            buffer.put(extra);
+        }
+
+        if (commentBytes != null) {
+            buffer.put(commentBytes);
+            buffer.put((byte) 0);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Builds one subfield of the FEXTRA field.
+     * @param id1 the first byte of the subfield id
+     * @param id2 the second byte of the subfield id
+     * @param data the subfield data
+     * @return the encoded subfield
+     */
+    public static byte[] extraField(char id1, char id2, byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + data.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) id1);
+        buffer.put((byte) id2);
+        buffer.putShort((short) data.length);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a gzip header from the stream.
+     * @param in the stream positioned at the start of a member
+     * @return the header or null if the stream does not start with a gzip member
+     * @throws IOException if reading fails
+     */
+    public static GZipHeader read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] fixed = new byte[FIXED_LENGTH];
+        int read = 0;
+
+        while (read < FIXED_LENGTH) {
+            final int count = data.read(fixed, read, FIXED_LENGTH - read);
+
+            if (count < 0) {
+                return null;
+            }
+
+            read += count;
+        }
+
+        if ((fixed[0] & 0xff) != (GZIPInputStream.GZIP_MAGIC & 0xff)
+                || (fixed[1] & 0xff) != (GZIPInputStream.GZIP_MAGIC >> 8) || fixed[2] != Deflater.DEFLATED) {
+            return null;
+        }
+
+        final int flags = fixed[3] & 0xff;
+        int length = FIXED_LENGTH;
+        byte[] extra = null;
+        String comment = null;
+
+        if ((flags & FEXTRA) != 0) {
+            final int extraLength = (data.readUnsignedByte()) | (data.readUnsignedByte() << 8);
+            extra = new byte[extraLength];
+            data.readFully(extra);
+            length += 2 + extraLength;
+        }
+
+        if ((flags & FNAME) != 0) {
+            length += readZeroTerminated(data).length + 1;
+        }
+
+        if ((flags & FCOMMENT) != 0) {
+            final byte[] bytes = readZeroTerminated(data);
+            comment = new String(bytes, StandardCharsets.ISO_8859_1);
+            length += bytes.length + 1;
+        }
+
+        if ((flags & FHCRC) != 0) {
+            data.readUnsignedShort();
+            length += 2;
+        }
+
+        return new GZipHeader(flags, fixed[8] & 0xff, extra, comment, length);
+    }
+
+    private static byte[] readZeroTerminated(DataInputStream data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int next;
+
+        while ((next = data.read()) != 0) {
+            if (next < 0) {
+                throw new EOFException("Unexpected end of gzip header");
+            }
+
+            bytes.write(next);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the data of the FEXTRA subfield with the given id or null if the header has no such subfield.
+     * @param id1 the first byte of the subfield id
+     * @param id2 the second byte of the subfield id
+     */
+    public byte[] getExtraField(char id1, char id2) {
+        if (extra == null) {
+            return null;
+        }
+
+        int position = 0;
+
+        while (position + 4 <= extra.length) {
+            final int size = (extra[position + 2] & 0xff) | ((extra[position + 3] & 0xff) << 8);
+
+            if (extra[position] == (byte) id1 && extra[position + 1] == (byte) id2
+                    && position + 4 + size <= extra.length) {
+                final byte[] field = new byte[size];
+                System.arraycopy(extra, position + 4, field, 0, size);
+                return field;
+            }
+
+            position += 4 + size;
+        }
+
+        return null;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getExtraFlags() {
+        return extraFlags;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * Returns the length of the encoded header in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+}
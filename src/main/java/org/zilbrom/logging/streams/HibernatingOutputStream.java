@@ -0,0 +1,109 @@
+package org.zilbrom.logging.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream which can close the compressing stream it wraps while it is idle and reopens it with the next write.
+ * <p>
+ * Hibernation closes the wrapped stream, which finishes its gzip member, ends the native deflater and closes
+ * the file. The next write opens a new stream by the opener, which appends a new gzip member to the same file,
+ * so a gzip reader reads the file as one stream. The layout header is not written again.
+ */
+public class HibernatingOutputStream extends OutputStream {
+    private Opener opener;
+    private OutputStream out;
+    private boolean closed;
+
+    /**
+     * Opens the stream which continues the file after hibernation.
+     */
+    public interface Opener {
+        OutputStream open() throws IOException;
+    }
+
+    /**
+     * Wraps an open stream. The opener must be set before the stream hibernates.
+     * @param out the compressing stream of the file
+     */
+    public HibernatingOutputStream(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Sets how the stream is reopened.
+     * @param opener opens a new compressing stream which appends to the file
+     */
+    public synchronized void setOpener(final Opener opener) {
+        this.opener = opener;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (out == null) {
+            out = opener.open();
+        }
+
+        out.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the wrapped stream until the next write.
+     * @return true if the stream was open
+     * @throws IOException if closing fails
+     */
+    public synchronized boolean hibernate() throws IOException {
+        if (closed || out == null) {
+            return false;
+        }
+
+        final OutputStream stream = out;
+        out = null;
+        stream.close();
+        return true;
+    }
+
+    /**
+     * Returns true if the wrapped stream is closed until the next write.
+     */
+    public synchronized boolean isHibernated() {
+        return !closed && out == null;
+    }
+
+    /**
+     * Returns the open wrapped stream or null if the stream hibernates.
+     */
+    public synchronized OutputStream getDelegate() {
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
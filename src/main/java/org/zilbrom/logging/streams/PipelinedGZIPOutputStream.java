@@ -0,0 +1,522 @@
+package org.zilbrom.logging.streams;
+
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream which splits the work between three stages:
+ * the calling thread copies encoded bytes into blocks, a compressor thread computes CRC and deflates the blocks,
+ * and a writer thread writes the compressed blocks to the underlying stream.
+ * The stages are connected by bounded queues of recycled blocks, so a slow disk delays compression only
+ * when all write blocks are in use and compression delays callers only when all input blocks are in use.
+ * <p>
+ * A flush does not hand the partly filled block over, so a flush after every event, as with immediateFlush,
+ * does not cost two handoffs per event. The block is handed over when it is full, by {@link #flushPending},
+ * which the file manager calls once per flush period, by {@link #syncFlush} or on close.
+ * <p>
+ * The stream expects a single producer: callers must serialize writes, which the file manager does.
+ * A caller waits at most {@value #STAGE_TIMEOUT_MILLIS} millis for the stages to sync or close, so a stage
+ * which died does not hang it.
+ */
+public class PipelinedGZIPOutputStream extends OutputStream {
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    static final long STAGE_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * The underlying stream, used by the writer thread only
+     */
+    private final OutputStream out;
+
+    /**
+     * The compressing stream, used by the compressor thread and its own flush thread
+     */
+    private final RollingGZIPOutputStream gzip;
+
+    private final BlockingQueue<Block> compressQueue;
+    private final BlockingQueue<Block> writeQueue;
+    private final BlockingQueue<Block> freeInputBlocks;
+    private final BlockingQueue<Block> freeOutputBlocks;
+    private final CountDownLatch writerFinished = new CountDownLatch(1);
+    private final long bufferBytes;
+
+    /**
+     * The block which is currently filled by the caller
+     */
+    private Block current;
+    private boolean closed = false;
+    private volatile IOException failure;
+
+    private volatile long encodeBusyNanos;
+    private volatile long encodeBlockedNanos;
+    private volatile long compressBusyNanos;
+    private volatile long writeBusyNanos;
+
+    /**
+     * Creates a pipelined gzip output stream and starts its compressor and writer threads.
+     * @param out the stream to write compressed data to
+     * @param bufferSize the size of every block
+     * @param flashPeriod the flush period of the deflater in millis
+     * @param addHeader flag to write gzip header
+     * @param name the name used for the stage threads
+     * @throws IOException if writing of the header fails
+     */
+    public PipelinedGZIPOutputStream(final OutputStream out, int bufferSize, long flashPeriod, boolean addHeader,
+                                     String name) throws IOException {
+        this(out, bufferSize, DEFAULT_QUEUE_CAPACITY, flashPeriod, addHeader, Deflater.DEFAULT_COMPRESSION, name);
+    }
+
+    /**
+     * Creates a pipelined gzip output stream and starts its compressor and writer threads.
+     * @param out the stream to write compressed data to
+     * @param bufferSize the size of every block
+     * @param queueCapacity the number of blocks per stage
+     * @param flashPeriod the flush period of the deflater in millis
+     * @param addHeader flag to write gzip header
+     * @param level the deflater level
+     * @param name the name used for the stage threads
+     * @throws IOException if writing of the header fails
+     */
+    public PipelinedGZIPOutputStream(final OutputStream out, int bufferSize, int queueCapacity, long flashPeriod,
+                                     boolean addHeader, int level, String name) throws IOException {
+        this.out = out;
+        this.compressQueue = new ArrayBlockingQueue<>(queueCapacity + 1);
+        this.writeQueue = new ArrayBlockingQueue<>(queueCapacity + 1);
+        this.freeInputBlocks = new ArrayBlockingQueue<>(queueCapacity);
+        this.freeOutputBlocks = new ArrayBlockingQueue<>(queueCapacity);
+
+        for (int i = 0; i < queueCapacity; i++) {
+            freeInputBlocks.add(new Block(bufferSize));
+            freeOutputBlocks.add(new Block(bufferSize));
+        }
+
+        this.current = freeInputBlocks.poll();
+        this.gzip = new RollingGZIPOutputStream(new BlockSink(), bufferSize, flashPeriod, addHeader, level, name);
+        this.bufferBytes = 2L * queueCapacity * bufferSize + gzip.getBufferSize();
+
+        // Compression is CPU bound and keeps a platform thread, the writer mostly blocks on the disk
+        BackgroundThreads.startPlatform("GZipPipeline-compress-" + name, Thread.NORM_PRIORITY, this::compressLoop);
+        BackgroundThreads.start("GZipPipeline-write-" + name, this::writeLoop);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+
+        if (closed) {
+            throw new IOException("Cannot write to closed pipelined stream");
+        }
+
+        final long start = System.nanoTime();
+
+        while (len > 0) {
+            final int count = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, count);
+            current.length += count;
+            off += count;
+            len -= count;
+
+            if (current.length == current.data.length) {
+                handOver(Block.DATA);
+            }
+        }
+
+        encodeBusyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Does not hand the current block over, the bytes are handed over when the block is full,
+     * by {@link #flushPending} or {@link #syncFlush}.
+     * @throws IOException if a stage failed
+     */
+    @Override
+    public void flush() throws IOException {
+        checkFailure();
+    }
+
+    /**
+     * Hands the filled part of the current block over to the compressor. The encoded bytes are compressed
+     * asynchronously, the deflater itself is flushed by its periodic flush thread. Must be called by the producer
+     * or under its lock.
+     * @throws IOException if a stage failed
+     */
+    public void flushPending() throws IOException {
+        checkFailure();
+
+        if (!closed && current.length > 0) {
+            handOver(Block.DATA);
+        }
+    }
+
+    /**
+     * Hands the current block over and waits until the compressor flushed the deflater and the writer wrote
+     * and flushed every compressed byte to the underlying stream.
+     * @throws IOException if a stage failed
+     */
+    public void syncFlush() throws IOException {
+        flushPending();
+
+        if (closed) {
+            return;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STAGE_TIMEOUT_MILLIS);
+        final Block marker = new Block(0);
+        marker.kind = Block.SYNC;
+        marker.written = new CountDownLatch(1);
+        offer(compressQueue, marker, deadline);
+
+        try {
+            if (!marker.written.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new IOException("The pipelined stages did not sync within " + STAGE_TIMEOUT_MILLIS + " ms");
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sync flush");
+        }
+
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STAGE_TIMEOUT_MILLIS);
+
+        try {
+            if (current.length > 0) {
+                current.kind = Block.DATA;
+                offer(compressQueue, current, deadline);
+                current = new Block(0);
+            }
+
+            current.kind = Block.CLOSE;
+            offer(compressQueue, current, deadline);
+
+            if (!writerFinished.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new IOException("The pipelined stages did not finish within " + STAGE_TIMEOUT_MILLIS
+                        + " ms, the file may be incomplete");
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing pipelined stream");
+        } finally {
+            closed = true;
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Returns the bytes of the input and output blocks and of the deflater buffer of the stream.
+     */
+    public long getBufferBytes() {
+        return bufferBytes;
+    }
+
+    /**
+     * Returns the number of blocks waiting for compression.
+     */
+    public int getCompressQueueDepth() {
+        return compressQueue.size();
+    }
+
+    /**
+     * Returns the number of compressed blocks waiting to be written.
+     */
+    public int getWriteQueueDepth() {
+        return writeQueue.size();
+    }
+
+    /**
+     * Returns the time in nanos the callers spent in copying and handing over encoded bytes.
+     */
+    public long getEncodeBusyNanos() {
+        return encodeBusyNanos;
+    }
+
+    /**
+     * Returns the time in nanos the callers waited for a free block because compression could not keep up.
+     */
+    public long getEncodeBlockedNanos() {
+        return encodeBlockedNanos;
+    }
+
+    /**
+     * Returns the time in nanos the compressor thread spent in CRC and deflate.
+     */
+    public long getCompressBusyNanos() {
+        return compressBusyNanos;
+    }
+
+    /**
+     * Returns the time in nanos the writer thread spent in writing to the underlying stream.
+     */
+    public long getWriteBusyNanos() {
+        return writeBusyNanos;
+    }
+
+    private void handOver(int kind) throws IOException {
+        current.kind = kind;
+        put(compressQueue, current);
+        final long start = System.nanoTime();
+        current = take(freeInputBlocks);
+        encodeBlockedNanos += System.nanoTime() - start;
+        checkFailure();
+    }
+
+    private void compressLoop() {
+        while (true) {
+            final Block block;
+
+            try {
+                block = compressQueue.take();
+            } catch (InterruptedException interruptedException) {
+                continue;
+            }
+
+            final long start = System.nanoTime();
+
+            try {
+                if (block.kind == Block.CLOSE) {
+                    gzip.close();
+                    return;
+                }
+
+                if (block.kind == Block.SYNC) {
+                    try {
+                        if (failure == null) {
+                            gzip.syncFlush();
+                        }
+                    } catch (IOException ioException) {
+                        fail(ioException);
+                    }
+
+                    // The marker follows the flushed blocks to the writer, which releases the waiting caller
+                    putUninterruptibly(writeQueue, block);
+                    continue;
+                }
+
+                if (failure == null) {
+                    gzip.write(block.data, 0, block.length);
+                }
+            } catch (IOException ioException) {
+                fail(ioException);
+
+                if (block.kind == Block.CLOSE) {
+                    passClose();
+                    return;
+                }
+            } finally {
+                compressBusyNanos += System.nanoTime() - start;
+            }
+
+            block.length = 0;
+            freeInputBlocks.offer(block);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                final Block block;
+
+                try {
+                    block = writeQueue.take();
+                } catch (InterruptedException interruptedException) {
+                    continue;
+                }
+
+                final long start = System.nanoTime();
+
+                try {
+                    if (block.kind == Block.CLOSE) {
+                        out.close();
+                        return;
+                    }
+
+                    if (block.kind == Block.SYNC) {
+                        try {
+                            if (failure == null) {
+                                out.flush();
+                            }
+                        } catch (IOException ioException) {
+                            fail(ioException);
+                        }
+
+                        block.written.countDown();
+                        continue;
+                    }
+
+                    if (failure == null) {
+                        out.write(block.data, 0, block.length);
+
+                        if (writeQueue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException ioException) {
+                    fail(ioException);
+                } finally {
+                    writeBusyNanos += System.nanoTime() - start;
+                }
+
+                block.length = 0;
+                freeOutputBlocks.offer(block);
+            }
+        } finally {
+            writerFinished.countDown();
+        }
+    }
+
+    private void passClose() {
+        Block close = new Block(0);
+        close.kind = Block.CLOSE;
+        putUninterruptibly(writeQueue, close);
+    }
+
+    private void fail(IOException ioException) {
+        if (failure == null) {
+            failure = ioException;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException exception = failure;
+
+        if (exception != null) {
+            throw new IOException("Pipelined gzip stage failed", exception);
+        }
+    }
+
+    private static void put(BlockingQueue<Block> queue, Block block) throws InterruptedIOException {
+        try {
+            queue.put(block);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over block");
+        }
+    }
+
+    /**
+     * Hands a block to a stage, failing if the stage does not take it before the deadline.
+     */
+    private static void offer(BlockingQueue<Block> queue, Block block, long deadline) throws IOException {
+        try {
+            if (!queue.offer(block, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new IOException("The pipelined stages did not take a block within " + STAGE_TIMEOUT_MILLIS
+                        + " ms");
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over block");
+        }
+    }
+
+    /**
+     * Hands a block to the next stage from a stage thread, which ignores interrupts like its loop does.
+     */
+    private static void putUninterruptibly(BlockingQueue<Block> queue, Block block) {
+        while (true) {
+            try {
+                queue.put(block);
+                return;
+            } catch (InterruptedException interruptedException) {
+                // The stage threads stop by a close block only
+            }
+        }
+    }
+
+    private static Block take(BlockingQueue<Block> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for free block");
+        }
+    }
+
+    /**
+     * A recycled buffer travelling between the stages.
+     */
+    private static final class Block {
+        static final int DATA = 0;
+        static final int CLOSE = 1;
+        static final int SYNC = 2;
+
+        final byte[] data;
+        int length;
+        int kind = DATA;
+        CountDownLatch written;
+
+        Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    /**
+     * The sink of the compressing stream. It collects compressed bytes into write blocks
+     * and hands them over to the writer thread.
+     */
+    private final class BlockSink extends OutputStream {
+        private Block block;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (block == null) {
+                    block = take(freeOutputBlocks);
+                }
+
+                final int count = Math.min(len, block.data.length - block.length);
+                System.arraycopy(b, off, block.data, block.length, count);
+                block.length += count;
+                off += count;
+                len -= count;
+
+                if (block.length == block.data.length) {
+                    passBlock();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (block != null && block.length > 0) {
+                passBlock();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+            passClose();
+        }
+
+        private void passBlock() throws InterruptedIOException {
+            block.kind = Block.DATA;
+            put(writeQueue, block);
+            block = null;
+        }
+    }
+}
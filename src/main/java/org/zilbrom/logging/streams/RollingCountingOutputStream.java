@@ -1,8 +1,12 @@
 package org.zilbrom.logging.streams;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -10,8 +14,20 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * An OutputStream that counts the number of bytes written.
  */
 public class RollingCountingOutputStream  extends FilterOutputStream {
-    private long currentStreamSize;
-    private long lastRecordSize;
+    private volatile long currentStreamSize;
+    private volatile long lastRecordSize;
+    private volatile boolean forceOnClose;
+    private volatile Supplier<byte[]> closingBytes;
+
+    /**
+     * The bytes written since the last flush, collected only with a publisher
+     */
+    private BlockPublisher publisher;
+    private String publishedFile;
+    private long generation;
+    private long baseOffset;
+    private byte[] pending;
+    private int pendingLength;
 
     /**
      * Wraps another output stream, counting the number of bytes written.
@@ -21,6 +37,16 @@ public class RollingCountingOutputStream  extends FilterOutputStream {
         super(checkNotNull(out));
     }
 
+    /**
+     * Wraps another output stream which continues a file, counting from the size of the file.
+     * @param out the output stream to be wrapped
+     * @param initialSize the number of bytes written before
+     */
+    public RollingCountingOutputStream(OutputStream out, long initialSize) {
+        super(checkNotNull(out));
+        this.currentStreamSize = initialSize;
+    }
+
     /**
      * Returns the number of bytes written
      */
@@ -35,11 +61,57 @@ public class RollingCountingOutputStream  extends FilterOutputStream {
         return lastRecordSize;
     }
 
+    /**
+     * Forces the written bytes to the storage device if the wrapped stream writes a file.
+     * @throws IOException if forcing fails
+     */
+    public void force() throws IOException {
+        if (out instanceof FileOutputStream) {
+            ((FileOutputStream) out).getChannel().force(false);
+        }
+    }
+
+    /**
+     * Sets whether closing forces the written bytes to the storage device first.
+     */
+    public void setForceOnClose(boolean forceOnClose) {
+        this.forceOnClose = forceOnClose;
+    }
+
+    /**
+     * Sets the bytes which are appended when the stream is closed, after everything written before,
+     * e.g. a metadata member of the file.
+     * @param closingBytes supplies the bytes when the stream is closed, null for none
+     */
+    public void setClosingBytes(Supplier<byte[]> closingBytes) {
+        this.closingBytes = closingBytes;
+    }
+
+    /**
+     * Publishes the written bytes in blocks which end at the flushes of the stream. Called before anything
+     * is written to the stream.
+     * @param publisher the publisher
+     * @param file the file the stream writes
+     * @param generation the number of the file
+     */
+    public synchronized void setPublisher(BlockPublisher publisher, String file, long generation) {
+        this.publisher = publisher;
+        this.publishedFile = file;
+        this.generation = generation;
+        // A stream which continues a file counts from 0 or from the size of its previous stream
+        this.baseOffset = new File(file).length() - currentStreamSize;
+        this.pending = new byte[8 * 1024];
+    }
+
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
         out.write(b, off, len);
         lastRecordSize = len;
         currentStreamSize += len;
+
+        if (publisher != null) {
+            collect(b, off, len);
+        }
     }
 
     @Override
@@ -47,6 +119,33 @@ public class RollingCountingOutputStream  extends FilterOutputStream {
         out.write(b);
         lastRecordSize = 1;
         currentStreamSize++;
+
+        if (publisher != null) {
+            collect(new byte[]{(byte) b}, 0, 1);
+        }
+    }
+
+    private synchronized void collect(byte[] b, int off, int len) {
+        if (pendingLength + len > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingLength + len));
+        }
+
+        System.arraycopy(b, off, pending, pendingLength, len);
+        pendingLength += len;
+    }
+
+    private synchronized void publish() {
+        if (publisher != null && pendingLength > 0) {
+            publisher.publish(publishedFile, generation, baseOffset + currentStreamSize - pendingLength, pending, 0,
+                    pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+        publish();
     }
 
     // Overriding close() because FilterOutputStream's close() method pre-JDK8 has had behavior:
@@ -54,6 +153,25 @@ public class RollingCountingOutputStream  extends FilterOutputStream {
     // It should flush itself if necessary.
     @Override
     public void close() throws IOException {
+        final Supplier<byte[]> closing = closingBytes;
+
+        if (closing != null) {
+            closingBytes = null;
+            final byte[] bytes = closing.get();
+            out.write(bytes);
+            currentStreamSize += bytes.length;
+
+            if (publisher != null) {
+                collect(bytes, 0, bytes.length);
+            }
+        }
+
+        publish();
+
+        if (forceOnClose) {
+            force();
+        }
+
         out.close();
     }
 }
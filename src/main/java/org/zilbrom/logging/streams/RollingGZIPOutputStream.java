@@ -1,18 +1,25 @@
 package org.zilbrom.logging.streams;
 
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.util.BackgroundThreads;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.GZIPInputStream;
 
 /**
  * This file is copy/paste of org.apache.commons.compress.compressors.gzipGzipCompressorOutputStream
  * with some minor changes and fixes for logging purpose.
  */
 public class RollingGZIPOutputStream extends OutputStream {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
     /**
      * The underlying stream
      */
@@ -23,6 +30,11 @@ public class RollingGZIPOutputStream extends OutputStream {
      */
     private final Deflater deflater;
 
+    /**
+     * The deflater level
+     */
+    private final int level;
+
     /**
      * The checksum of the uncompressed data
      */
@@ -37,7 +49,23 @@ public class RollingGZIPOutputStream extends OutputStream {
      * Indicates if the stream has been closed
      */
     private boolean closed = false;
-    private final Object lock = new Object();
+
+    /**
+     * Guards the deflater and the underlying stream. A lock and not a monitor, so the flush thread, which writes
+     * to the underlying stream while it holds the lock, does not pin its carrier when it is virtual.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Flushes the deflater periodically. It parks instead of waiting on a monitor, so a virtual thread
+     * does not pin its carrier while it sleeps.
+     */
+    private final Thread flushThread;
+
+    /**
+     * The number of times a block of input has been handed to the deflater
+     */
+    private long inputBlockCount;
 
     /**
      * Creates a gzip compressed output stream with noted size and add header if it is required.
@@ -51,50 +79,65 @@ public class RollingGZIPOutputStream extends OutputStream {
      */
     public RollingGZIPOutputStream(final OutputStream out, int bufferSize, final long flashPeriod, boolean addHeader)
             throws IOException {
+        this(out, bufferSize, flashPeriod, addHeader, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a gzip compressed output stream with noted size and compression level
+     * and add header if it is required.
+     * @param out the stream to compress to
+     * @param bufferSize the size of the buffer
+     * @param flashPeriod the flush period in millis
+     * @param addHeader flag to create header if file not exist before stream creation
+     * @param level the deflater level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     * @throws java.io.IOException if writing fails
+     */
+    public RollingGZIPOutputStream(final OutputStream out, int bufferSize, final long flashPeriod, boolean addHeader,
+                                   int level) throws IOException {
+        this(out, bufferSize, flashPeriod, addHeader, level, null);
+    }
+
+    /**
+     * Creates a gzip compressed output stream with noted size and compression level
+     * and add header if it is required.
+     * @param out the stream to compress to
+     * @param bufferSize the size of the buffer
+     * @param flashPeriod the flush period in millis
+     * @param addHeader flag to create header if file not exist before stream creation
+     * @param level the deflater level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     * @param name the name of the file, which is added to the name of the flush thread, or null
+     * @throws java.io.IOException if writing fails
+     */
+    public RollingGZIPOutputStream(final OutputStream out, int bufferSize, final long flashPeriod, boolean addHeader,
+                                   int level, String name) throws IOException {
         this.out = out;
         this.deflaterBuffer = new byte[bufferSize];
-        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.level = level;
+        this.deflater = new Deflater(level, true);
 
         if (addHeader) {
             writeHeader();
         }
 
-        Thread deflaterFlushThread = new Thread(() -> {
+        flushThread = BackgroundThreads.start(name == null ? "GZipFlush" : "GZipFlush-" + name, () -> {
             while (true) {
                 if (deflater.finished()) {
                     return;
                 } else {
-                    synchronized (lock) {
-                        try {
-                            lock.wait(flashPeriod);
-                        } catch (InterruptedException e) {
-                            continue;
-                        }
-                    }
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flashPeriod));
                 }
 
                 try {
-                    realFlush();
+                    realFlush(Deflater.SYNC_FLUSH);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    LOGGER.error("Unable to flush the gzip stream {}", name, e);
                 }
             }
         });
-
-        deflaterFlushThread.setDaemon(true);
-        deflaterFlushThread.start();
     }
 
     private void writeHeader() throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(10);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putShort((short) GZIPInputStream.GZIP_MAGIC);
-        buffer.put((byte) Deflater.DEFLATED); //compression method (8: deflate)
-        buffer.put((byte) 0); //flags
-        buffer.putInt(0); //modification time
-        buffer.put((byte) 0); // default compression level
-        buffer.put((byte) 0); // operation system
-        out.write(buffer.array());
+        out.write(GZipHeader.encode(level, null, null));
     }
 
     private void writeTrailer() throws IOException {
@@ -112,25 +155,57 @@ public class RollingGZIPOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        write(new byte[]{(byte) (b * 0xff)}, 0, 1);
+        write(new byte[]{(byte) b}, 0, 1);
     }
 
+    /**
+     * Returns the size in bytes of the buffer receiving the compressed data from the deflater.
+     */
+    public int getBufferSize() {
+        return deflaterBuffer.length;
+    }
+
+    /**
+     * Returns the number of input blocks passed to the deflater. Each block costs one setInput call
+     * and at least one deflate call, so the value shows how well writes are batched.
+     */
+    public long getInputBlockCount() {
+        lock.lock();
+
+        try {
+            return inputBlockCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compresses the given bytes. The whole block is deflated under a single lock acquisition,
+     * so callers writing large batches pay the native call and locking costs once per batch.
+     */
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        if (deflater.finished()) {
-            throw new IOException("Cannot write more data, the end of the compressed data stream has bean reached");
-        } else if (len > 0) {
-            deflater.setInput(b, off, len);
+        lock.lock();
 
-            while (!deflater.needsInput()) {
-                deflate();
-            }
+        try {
+            if (deflater.finished()) {
+                throw new IOException("Cannot write more data, the end of the compressed data stream has bean reached");
+            } else if (len > 0) {
+                deflater.setInput(b, off, len);
+                inputBlockCount++;
+
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
 
-            crc.update(b, off, len);
+                crc.update(b, off, len);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    private synchronized void deflate() throws IOException {
+    private void deflate() throws IOException {
         final int  length = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length);
 
         if (length > 0) {
@@ -146,9 +221,7 @@ public class RollingGZIPOutputStream extends OutputStream {
             deflater.finish();
         }
 
-        synchronized (lock) {
-            lock.notifyAll();;
-        }
+        LockSupport.unpark(flushThread);
 
         while (!deflater.finished()) {
             deflate();
@@ -162,35 +235,69 @@ public class RollingGZIPOutputStream extends OutputStream {
         out.flush();
     }
 
+    /**
+     * Flushes the deflater and writes every compressed byte to the underlying stream now instead of waiting
+     * for the periodic flush.
+     * @throws IOException if writing fails
+     */
+    public void syncFlush() throws IOException {
+        realFlush(Deflater.SYNC_FLUSH);
+    }
+
+    /**
+     * Flushes the deflater like {@link #syncFlush} and resets its dictionary, so a raw inflater can start
+     * reading the compressed data at the current end of the stream.
+     * @throws IOException if writing fails
+     */
+    public void fullFlush() throws IOException {
+        realFlush(Deflater.FULL_FLUSH);
+    }
+
     @Override
     public void close() throws IOException {
-        if (!closed) {
-            try {
-                finish();
-            } finally {
-                deflater.end();
-                out.close();
-                closed = true;
+        lock.lock();
+
+        try {
+            if (!closed) {
+                try {
+                    finish();
+                } finally {
+                    deflater.end();
+                    out.close();
+                    closed = true;
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    private synchronized void realFlush() throws IOException {
-        //synchronizing by this/method allows to useless entering the below 'if' block in the end of lock
-        if (!deflater.finished()) {
-            int length = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length, Deflater.SYNC_FLUSH);
+    private void realFlush(final int mode) throws IOException {
+        lock.lock();
 
-            while (length > 0) {
-                out.write(deflaterBuffer, 0, length);
+        try {
+            if (closed) {
+                return;
+            }
 
-                if (length < deflaterBuffer.length) {
-                    break;
-                } else {
-                    length = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length, Deflater.SYNC_FLUSH);
+            //locking the whole method allows to useless entering the below 'if' block in the end of lock
+            if (!deflater.finished()) {
+                int length = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length, mode);
+
+                while (length > 0) {
+                    out.write(deflaterBuffer, 0, length);
+
+                    if (length < deflaterBuffer.length) {
+                        break;
+                    } else {
+                        length = deflater.deflate(deflaterBuffer, 0, deflaterBuffer.length, mode);
+                    }
                 }
             }
-        }
 
-        out.flush();
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -0,0 +1,361 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A gzip stream which gives every thread stripe its own deflater and temporary segment file, so threads
+ * of different stripes compress and write without a shared lock.
+ * <p>
+ * A thread writes to the segment chosen by its id. Every segment is a {@link RollingGZIPOutputStream} over
+ * the file {@code <file>.seg<index>}. When the stream is closed, at rollover or shutdown, the segments are
+ * finished and appended to the file as gzip members without recompression, ordered by the time of their first
+ * write, and the segment files are deleted. Events of different segments are therefore ordered per segment only;
+ * the appender can prefix events with a sequence number to restore the total order. The file itself therefore stays
+ * empty until the next rollover or shutdown, the events of the active period are in the segment files.
+ * <p>
+ * Segment files left by a crash are recovered when the file is opened again, before new events are written:
+ * everything that can be inflated from them, which is everything up to the last flush, is compressed into
+ * a member appended to the file, and they are deleted.
+ */
+public class SegmentedGZipOutputStream extends OutputStream {
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECOVERY_BUFFER_SIZE = 64 * 1024;
+
+    private final RollingCountingOutputStream out;
+    private final Segment[] segments;
+    private final int bufferSize;
+    private final long flushPeriod;
+    private final int level;
+    private volatile boolean closed;
+    private volatile boolean forceOnClose;
+
+    /**
+     * Opens the file and recovers the segment files of an earlier stream. The segment files are created with
+     * the first write of their threads.
+     * @param file the file which receives the segments as gzip members
+     * @param append true to keep the members already in the file
+     * @param segmentCount the number of thread stripes
+     * @param bufferSize the size of the compression buffers of a segment
+     * @param flushPeriod the flush period of the segment deflaters in millis
+     * @param level the deflater level
+     * @throws IOException if the file can not be opened
+     */
+    public SegmentedGZipOutputStream(final File file, final boolean append, final int segmentCount,
+                                     final int bufferSize, final long flushPeriod, final int level)
+            throws IOException {
+        this.out = new RollingCountingOutputStream(new FileOutputStream(file, append));
+        this.segments = new Segment[segmentCount];
+        this.bufferSize = bufferSize;
+        this.flushPeriod = flushPeriod;
+        this.level = level;
+
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(new File(file.getPath() + SEGMENT_SUFFIX + i));
+        }
+
+        recoverSegments(file);
+    }
+
+    /**
+     * Appends the events of the segment files left by a stream which was not closed to the file, ordered by the time
+     * of their last write, and deletes them.
+     */
+    private void recoverSegments(final File file) throws IOException {
+        final String prefix = file.getName() + SEGMENT_SUFFIX;
+        final File[] leftovers = file.getAbsoluteFile().getParentFile().listFiles((directory, name) ->
+                name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+
+        if (leftovers == null || leftovers.length == 0) {
+            return;
+        }
+
+        Arrays.sort(leftovers, Comparator.comparingLong(File::lastModified));
+        final RecoveryMember member = new RecoveryMember(out, level);
+        long recovered = 0;
+
+        try {
+            for (File leftover : leftovers) {
+                recovered += recover(leftover, member);
+            }
+        } finally {
+            member.end();
+        }
+
+        for (File leftover : leftovers) {
+            Files.delete(leftover.toPath());
+        }
+
+        LOGGER.warn("Recovered {} bytes of {} segment files left by an unfinished stream into {}", recovered,
+                leftovers.length, file);
+    }
+
+    /**
+     * Inflates a segment file up to its last flush.
+     * @return the number of recovered bytes
+     */
+    private static long recover(final File segment, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[RECOVERY_BUFFER_SIZE];
+        long recovered = 0;
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(segment.toPath()), RECOVERY_BUFFER_SIZE)) {
+            int count;
+
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+                recovered += count;
+            }
+        } catch (EOFException | ZipException exception) {
+            // The segment ends with an unfinished deflate block or member, the bytes before it are recovered
+        }
+
+        return recovered;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!write(b, off, len, System.currentTimeMillis())) {
+            throw new IOException("Cannot write to closed segmented stream");
+        }
+    }
+
+    /**
+     * Writes to the segment of the current thread.
+     * @param b the bytes
+     * @param off the offset of the bytes
+     * @param len the number of bytes
+     * @param timeMillis the time of the written event, which orders the segments
+     * @return false if the stream is closed and nothing was written
+     * @throws IOException if writing fails
+     */
+    public boolean write(byte[] b, int off, int len, long timeMillis) throws IOException {
+        final Segment segment = segments[(int) (Thread.currentThread().getId() % segments.length)];
+        segment.lock.lock();
+
+        try {
+            if (closed) {
+                return false;
+            }
+
+            segment.write(b, off, len, timeMillis);
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Does nothing, the segment deflaters are flushed periodically and on syncFlush.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Flushes the deflaters of all segments to their files.
+     * @throws IOException if writing fails
+     */
+    public void syncFlush() throws IOException {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+
+            try {
+                if (segment.gzip != null) {
+                    segment.gzip.syncFlush();
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forces the segment files and the file to the storage device.
+     * @throws IOException if forcing fails
+     */
+    public void force() throws IOException {
+        for (Segment segment : segments) {
+            final RollingCountingOutputStream counting = segment.counting;
+
+            if (counting != null) {
+                counting.force();
+            }
+        }
+
+        out.force();
+    }
+
+    /**
+     * Sets whether closing forces the file to the storage device first.
+     */
+    public void setForceOnClose(boolean forceOnClose) {
+        this.forceOnClose = forceOnClose;
+        out.setForceOnClose(forceOnClose);
+    }
+
+    /**
+     * Finishes the segments, appends them to the file ordered by their first write and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        final List<Segment> written = new ArrayList<>();
+        boolean closing = false;
+
+        for (Segment segment : segments) {
+            segment.lock.lock();
+        }
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            closing = true;
+
+            for (Segment segment : segments) {
+                if (segment.gzip != null) {
+                    segment.gzip.close();
+                    written.add(segment);
+                }
+            }
+
+            written.sort(Comparator.comparingLong(segment -> segment.firstMillis));
+
+            for (Segment segment : written) {
+                Files.copy(segment.file.toPath(), out);
+                Files.delete(segment.file.toPath());
+            }
+        } finally {
+            for (Segment segment : segments) {
+                segment.lock.unlock();
+            }
+
+            if (closing) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of compressed bytes in the file and the segments.
+     */
+    public long getSize() {
+        long size = out.getCurrentStreamSize();
+
+        for (Segment segment : segments) {
+            final RollingCountingOutputStream counting = segment.counting;
+
+            if (counting != null) {
+                size += counting.getCurrentStreamSize();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the number of compressed bytes appended to the file, which are all segments once the stream is closed.
+     */
+    public long getFileSize() {
+        return out.getCurrentStreamSize();
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written to the segments.
+     */
+    public long getRawBytes() {
+        long rawBytes = 0;
+
+        for (Segment segment : segments) {
+            rawBytes += segment.rawBytes;
+        }
+
+        return rawBytes;
+    }
+
+    /**
+     * Returns the number of segments which were written since the file was opened.
+     */
+    public int getActiveSegmentCount() {
+        int count = 0;
+
+        for (Segment segment : segments) {
+            if (segment.counting != null) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * The member which receives the recovered segments, it leaves the file open.
+     */
+    private static final class RecoveryMember extends GZIPOutputStream {
+        RecoveryMember(final OutputStream out, final int level) throws IOException {
+            super(out, RECOVERY_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        void end() throws IOException {
+            try {
+                finish();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * A temporary segment with its own lock and deflater.
+     */
+    private final class Segment {
+        final File file;
+        final ReentrantLock lock = new ReentrantLock();
+        volatile RollingCountingOutputStream counting;
+        RollingGZIPOutputStream gzip;
+        long firstMillis;
+        volatile long rawBytes;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        void write(byte[] b, int off, int len, long timeMillis) throws IOException {
+            if (gzip == null) {
+                final RollingCountingOutputStream stream = new RollingCountingOutputStream(
+                        new FileOutputStream(file, true));
+                stream.setForceOnClose(forceOnClose);
+                gzip = new RollingGZIPOutputStream(stream, bufferSize, flushPeriod, true, level, file.getName());
+                counting = stream;
+                firstMillis = timeMillis;
+            }
+
+            gzip.write(b, off, len);
+            rawBytes += len;
+        }
+    }
+}
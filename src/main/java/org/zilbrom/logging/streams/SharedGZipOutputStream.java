@@ -0,0 +1,297 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream for a file which several processes append to at once.
+ * <p>
+ * Written bytes are collected in memory and compressed into a self-contained gzip member when the collected input
+ * reaches the member size, when the flush period passes or when the stream is closed. The member is appended
+ * to the end of the file under an exclusive lock of the whole file, so members of different processes never
+ * interleave and every process takes the lock a few times per second at most. A gzip reader reads the concatenated
+ * members as one stream.
+ * <p>
+ * Flushing the stream does not write anything: a batch is only written as a whole member, so written events reach
+ * the file within the flush period. If another process rolls the file over, the stream notices that the path
+ * belongs to another file before the next append and reopens it. The file is told by its file key, or where
+ * the file system has none, as on Windows, by its creation time and by its size not shrinking below the size
+ * after the last append.
+ */
+public class SharedGZipOutputStream extends OutputStream {
+    public static final int DEFAULT_MEMBER_SIZE = 1024 * 1024;
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final int memberSize;
+    private final int level;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] deflateBuffer = new byte[DEFLATE_BUFFER_SIZE];
+    private final ByteArrayOutputStream member = new ByteArrayOutputStream();
+    private final Thread flushThread;
+
+    private byte[] buffer;
+    private int count;
+    private volatile FileChannel channel;
+    private Object fileKey;
+    private long fileSize;
+    private long memberCount;
+    private long lockWaitNanos;
+    private long reopenCount;
+    private volatile boolean closed;
+    private volatile boolean forceOnClose;
+
+    /**
+     * Creates the stream. The file is opened with the first member.
+     * @param file the file to append to
+     * @param memberSize the number of uncompressed bytes which closes a member
+     * @param flushPeriod the period in millis after which collected bytes are written as a member
+     * @param level the deflater level
+     * @param name the name of the file, used for the name of the flush thread
+     */
+    public SharedGZipOutputStream(final File file, final int memberSize, final long flushPeriod, final int level,
+                                  final String name) {
+        this.path = file.toPath();
+        this.memberSize = memberSize;
+        this.level = level;
+        this.deflater = new Deflater(level, true);
+        this.buffer = new byte[Math.min(memberSize, DEFLATE_BUFFER_SIZE)];
+        this.fileSize = file.length();
+
+        flushThread = BackgroundThreads.start("GZipSharedFlush-" + name, () -> {
+            while (!closed) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushPeriod));
+
+                try {
+                    synchronized (this) {
+                        if (!closed && count > 0) {
+                            writeMember();
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Unable to flush the shared stream {}", name, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (count + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(count + len, Math.min(buffer.length * 2, memberSize)));
+        }
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+
+        if (count >= memberSize) {
+            writeMember();
+        }
+    }
+
+    /**
+     * Does nothing, the collected bytes are written as a member by size, by time or on close.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes the collected bytes as a member now instead of waiting for the flush period.
+     * @throws IOException if writing fails
+     */
+    public synchronized void syncFlush() throws IOException {
+        if (count > 0) {
+            writeMember();
+        }
+    }
+
+    /**
+     * Forces the appended members to the storage device. Writers are not blocked while the device syncs.
+     * @throws IOException if forcing fails
+     */
+    public void force() throws IOException {
+        final FileChannel current = channel;
+
+        if (current != null) {
+            current.force(false);
+        }
+    }
+
+    /**
+     * Sets whether closing forces the appended members to the storage device first.
+     */
+    public void setForceOnClose(boolean forceOnClose) {
+        this.forceOnClose = forceOnClose;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        LockSupport.unpark(flushThread);
+
+        try {
+            if (count > 0) {
+                writeMember();
+            }
+        } finally {
+            deflater.end();
+
+            if (channel != null) {
+                closeChannel();
+            }
+        }
+    }
+
+    private void writeMember() throws IOException {
+        member.reset();
+        member.write(GZipHeader.encode(level, null, null));
+        crc.reset();
+        crc.update(buffer, 0, count);
+        deflater.reset();
+        deflater.setInput(buffer, 0, count);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            final int length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+            member.write(deflateBuffer, 0, length);
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt(count);
+        member.write(trailer.array());
+        append(ByteBuffer.wrap(member.toByteArray()));
+        count = 0;
+    }
+
+    private void append(final ByteBuffer data) throws IOException {
+        ensureCurrentFile();
+        final long startNanos = System.nanoTime();
+
+        final FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
+        lockWaitNanos += System.nanoTime() - startNanos;
+
+        try {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+
+            fileSize = channel.size();
+        } finally {
+            lock.release();
+        }
+
+        memberCount++;
+    }
+
+    /**
+     * Opens the file or reopens it if the path was moved to another file by another process.
+     */
+    private void ensureCurrentFile() throws IOException {
+        if (channel != null) {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+                if (Objects.equals(fileKey(attributes), fileKey)
+                        && (attributes.fileKey() != null || attributes.size() >= fileSize)) {
+                    return;
+                }
+            } catch (NoSuchFileException noSuchFileException) {
+                // Moved away and not recreated yet, the reopening creates it
+            }
+        }
+
+        if (channel != null) {
+            closeChannel();
+            reopenCount++;
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        fileKey = fileKey(attributes);
+        fileSize = attributes.size();
+    }
+
+    /**
+     * Returns the file key, or the creation time where the file system has no file keys.
+     */
+    private static Object fileKey(final BasicFileAttributes attributes) {
+        return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+    }
+
+    private void closeChannel() throws IOException {
+        try {
+            if (forceOnClose) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the size of the file after the last appended member, including the members of other processes.
+     */
+    public synchronized long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the number of members appended, which is the number of lock acquisitions.
+     */
+    public synchronized long getMemberCount() {
+        return memberCount;
+    }
+
+    /**
+     * Returns the time in nanos spent waiting for the file lock.
+     */
+    public synchronized long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    /**
+     * Returns the number of times the file was reopened after another process rolled it over.
+     */
+    public synchronized long getReopenCount() {
+        return reopenCount;
+    }
+}
@@ -0,0 +1,683 @@
+package org.zilbrom.logging.streams;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.zilbrom.logging.util.BackgroundThreads;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip stream which spreads its data over several stripe files, one per directory, so the write bandwidth
+ * of several devices adds up.
+ * <p>
+ * Written bytes are cut into blocks. Every block is compressed into a self-contained gzip member by the worker
+ * thread of the next stripe in turn and appended to the stripe file of that worker, so compression and writing
+ * also run in parallel. The file of the stream itself is the manifest: a small gzip text file which names
+ * the stripe files and records where the member of every block was written. Concatenating the members in block
+ * order gives a gzip stream of the written data, see {@link #openMerged(Path)} and the StripeMerger tool.
+ * <p>
+ * Flushing the stream does not cut a block, the current block is handed over when it is full, every flush period
+ * and on {@link #syncFlush()} or close. The stream expects a single producer, which the file manager ensures.
+ * <p>
+ * A stream opened in append mode on an existing manifest continues it: the manifest is rewritten with its stripes
+ * and its blocks up to the first missing one, and new blocks are appended to the same stripe files. An existing
+ * file which is not a manifest is moved aside instead of being overwritten.
+ */
+public class StripedGZipOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final String MANIFEST_HEADER = "# striped gzip manifest v1";
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+    private static final int QUEUE_CAPACITY = 4;
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+
+    private final List<Stripe> stripes = new ArrayList<>();
+    private final BlockingQueue<Block> freeBlocks;
+    private final FileOutputStream manifestOut;
+    private final Writer manifest;
+    /**
+     * Guards the manifest writer. A lock and not a monitor, so a virtual stripe worker writing the manifest
+     * does not pin its carrier thread.
+     */
+    private final ReentrantLock manifestLock = new ReentrantLock();
+    private final Thread flushThread;
+    private final Object progress = new Object();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    private Block current;
+    private long sequence;
+    private long completed;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private volatile boolean forceOnClose;
+
+    /**
+     * Creates or continues the stripe files and the manifest and starts one worker per stripe.
+     * @param manifestFile the manifest, which is the file the manager rolls over
+     * @param append true to continue an existing manifest and its stripe files
+     * @param directories the directories of the stripes, unless an existing manifest is continued
+     * @param blockSize the number of uncompressed bytes per block
+     * @param flushPeriod the period in millis after which a partly filled block is handed over
+     * @param level the deflater level
+     * @param name the name used for the worker threads
+     * @throws IOException if a file can not be created
+     */
+    public StripedGZipOutputStream(final File manifestFile, final boolean append, final List<File> directories,
+                                   final int blockSize, final long flushPeriod, final int level, final String name)
+            throws IOException {
+        final Manifest previous = append ? previousManifest(manifestFile) : null;
+        final List<File> stripeFiles = new ArrayList<>();
+
+        if (previous != null) {
+            for (Path stripeFile : previous.stripes) {
+                stripeFiles.add(stripeFile.toFile());
+            }
+
+            sequence = previous.getBlockCount();
+            completed = sequence;
+        } else {
+            final String prefix = manifestFile.getName() + "." + Long.toString(ids.incrementAndGet(), 36) + ".s";
+
+            for (File directory : directories) {
+                stripeFiles.add(new File(directory, prefix + stripeFiles.size()));
+            }
+        }
+
+        for (int i = 0; i < stripeFiles.size(); i++) {
+            Files.createDirectories(stripeFiles.get(i).toPath().toAbsolutePath().getParent());
+            stripes.add(new Stripe(i, stripeFiles.get(i), level));
+        }
+
+        writeManifest(manifestFile, stripeFiles, previous, sequence);
+        // The rewritten manifest is a finished member, the new blocks are recorded in a member appended to it
+        this.manifestOut = new FileOutputStream(manifestFile, true);
+        this.manifest = new OutputStreamWriter(new GZIPOutputStream(manifestOut, true), StandardCharsets.UTF_8);
+        manifest.flush();
+        this.freeBlocks = new ArrayBlockingQueue<>(stripes.size() * QUEUE_CAPACITY);
+
+        for (int i = 0; i < stripes.size() * QUEUE_CAPACITY; i++) {
+            freeBlocks.add(new Block(blockSize));
+        }
+
+        this.current = freeBlocks.poll();
+
+        for (Stripe stripe : stripes) {
+            BackgroundThreads.start("GZipStripe-" + stripe.index + "-" + name, stripe::run);
+        }
+
+        flushThread = BackgroundThreads.start("GZipStripeFlush-" + name, () -> {
+            while (!closed) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushPeriod));
+
+                try {
+                    synchronized (this) {
+                        if (!closed && current.length > 0) {
+                            handOver();
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Unable to flush the striped stream {}", name, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the manifest a new stream continues, or moves the file aside if it is not a manifest.
+     * @return the manifest or null if the stream starts a new one
+     */
+    private static Manifest previousManifest(final File manifestFile) throws IOException {
+        if (manifestFile.length() == 0) {
+            return null;
+        }
+
+        try {
+            return readManifest(manifestFile.toPath());
+        } catch (IOException ioException) {
+            final File aside = new File(manifestFile.getPath() + "." + System.currentTimeMillis());
+            LOGGER.warn("{} is not a striped gzip manifest, moving it to {}", manifestFile, aside);
+            Files.move(manifestFile.toPath(), aside.toPath());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the header, the stripes and the continued blocks of the manifest as one gzip member to a temporary
+     * file and moves it over the manifest, so a crash leaves either the old or the new manifest.
+     */
+    private static void writeManifest(final File manifestFile, final List<File> stripeFiles, final Manifest previous,
+                                      final long blocks) throws IOException {
+        final File temp = new File(manifestFile.getPath() + TEMP_EXTENSION);
+
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)),
+                StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER + "\n");
+
+            for (int i = 0; i < stripeFiles.size(); i++) {
+                writer.write("stripe " + i + " " + stripeFiles.get(i).getAbsolutePath() + "\n");
+            }
+
+            for (int i = 0; i < blocks; i++) {
+                final long[] block = previous.blocks.get(i);
+                writer.write("block " + i + " " + block[0] + " " + block[1] + " " + block[2] + "\n");
+            }
+        }
+
+        Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkFailure();
+
+        if (closed) {
+            throw new IOException("Cannot write to closed striped stream");
+        }
+
+        while (len > 0) {
+            final int count = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, count);
+            current.length += count;
+            off += count;
+            len -= count;
+
+            if (current.length == current.data.length) {
+                handOver();
+            }
+        }
+    }
+
+    /**
+     * Does nothing, blocks are handed over when full, by time, on syncFlush or on close.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Hands the current block over and waits until every block is written to its stripe and recorded
+     * in the manifest.
+     * @throws IOException if a worker failed
+     */
+    public synchronized void syncFlush() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        if (current.length > 0) {
+            handOver();
+        }
+
+        try {
+            synchronized (progress) {
+                while (completed < sequence && failure == null) {
+                    progress.wait();
+                }
+            }
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for stripes");
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Forces the stripe files and the manifest to their storage devices.
+     * @throws IOException if forcing fails
+     */
+    public void force() throws IOException {
+        for (Stripe stripe : stripes) {
+            stripe.out.getChannel().force(false);
+        }
+
+        manifestOut.getChannel().force(false);
+    }
+
+    /**
+     * Sets whether closing forces the stripe files and the manifest to their storage devices first.
+     */
+    public void setForceOnClose(boolean forceOnClose) {
+        this.forceOnClose = forceOnClose;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            syncFlush();
+
+            if (forceOnClose) {
+                force();
+            }
+        } finally {
+            closed = true;
+            LockSupport.unpark(flushThread);
+
+            for (Stripe stripe : stripes) {
+                final Block close = new Block(0);
+                close.sequence = -1;
+                put(stripe.queue, close);
+            }
+
+            for (Stripe stripe : stripes) {
+                try {
+                    stripe.finished.await();
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            manifestLock.lock();
+
+            try {
+                manifest.close();
+            } finally {
+                manifestLock.unlock();
+            }
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Returns the number of compressed bytes written to all stripes.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * Returns the number of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.size();
+    }
+
+    private void handOver() throws IOException {
+        current.sequence = sequence;
+        put(stripes.get((int) (sequence % stripes.size())).queue, current);
+        sequence++;
+
+        try {
+            current = freeBlocks.take();
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for free block");
+        }
+
+        checkFailure();
+    }
+
+    private void blockWritten() {
+        synchronized (progress) {
+            completed++;
+            progress.notifyAll();
+        }
+    }
+
+    private void fail(IOException ioException) {
+        synchronized (progress) {
+            if (failure == null) {
+                failure = ioException;
+            }
+
+            progress.notifyAll();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException exception = failure;
+
+        if (exception != null) {
+            throw new IOException("Striped gzip worker failed", exception);
+        }
+    }
+
+    private static void put(BlockingQueue<Block> queue, Block block) throws InterruptedIOException {
+        try {
+            queue.put(block);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over block");
+        }
+    }
+
+    /**
+     * Deletes the stripe files of a manifest. Does nothing if the file is not a striped manifest,
+     * so rollover strategies call it for every archive they delete.
+     * @param file the manifest or any other archive
+     */
+    public static void deleteStripes(Path file) {
+        final List<Path> stripeFiles;
+
+        try {
+            stripeFiles = readManifest(file).stripes;
+        } catch (IOException ioException) {
+            return;
+        }
+
+        for (Path stripeFile : stripeFiles) {
+            try {
+                Files.deleteIfExists(stripeFile);
+            } catch (IOException ignored) {
+                // The caller deletes the manifest anyway, a left stripe file is only wasted space
+            }
+        }
+    }
+
+    /**
+     * Returns the blocks of a manifest in block order.
+     * @param file the manifest
+     * @return the manifest
+     * @throws IOException if the file can not be read or is not a manifest
+     */
+    public static Manifest readManifest(Path file) throws IOException {
+        final Manifest result = new Manifest();
+        final byte[] expected = (MANIFEST_HEADER + "\n").getBytes(StandardCharsets.UTF_8);
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            // Compare the header before reading lines, an ordinary archive may have no line breaks at all
+            final byte[] header = new byte[expected.length];
+            int length = 0;
+            int count;
+
+            while (length < header.length && (count = in.read(header, length, header.length - length)) > 0) {
+                length += count;
+            }
+
+            if (!Arrays.equals(header, expected)) {
+                throw new IOException(file + " is not a striped gzip manifest");
+            }
+
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+
+            try {
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(" ", 3);
+
+                    if ("stripe".equals(fields[0]) && fields.length == 3) {
+                        result.stripes.add(Paths.get(fields[2]));
+                    } else if ("block".equals(fields[0])) {
+                        final String[] values = line.split(" ");
+
+                        if (values.length == 5) {
+                            result.add(Long.parseLong(values[1]), Integer.parseInt(values[2]),
+                                    Long.parseLong(values[3]), Integer.parseInt(values[4]));
+                        }
+                    }
+                }
+            } catch (EOFException eofException) {
+                // The manifest of the active file ends with an unfinished deflate block
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Opens the data of a manifest as one stream of gzip members in block order. The stream ends at the first
+     * block which is not recorded, so the result of an active file is its contents up to the last complete block.
+     * @param file the manifest
+     * @return the concatenated gzip members
+     * @throws IOException if the manifest can not be read
+     */
+    public static InputStream openMerged(Path file) throws IOException {
+        return new MergedInputStream(readManifest(file));
+    }
+
+    /**
+     * The stripe files and block positions recorded in a manifest.
+     */
+    public static final class Manifest {
+        private final List<Path> stripes = new ArrayList<>();
+        private final List<long[]> blocks = new ArrayList<>();
+
+        private void add(long sequence, int stripe, long offset, int length) {
+            while (blocks.size() <= sequence) {
+                blocks.add(null);
+            }
+
+            blocks.set((int) sequence, new long[]{stripe, offset, length});
+        }
+
+        public List<Path> getStripes() {
+            return stripes;
+        }
+
+        /**
+         * Returns the number of blocks up to the first block which is not recorded.
+         */
+        public int getBlockCount() {
+            int count = 0;
+
+            while (count < blocks.size() && blocks.get(count) != null) {
+                count++;
+            }
+
+            return count;
+        }
+    }
+
+    private static final class MergedInputStream extends InputStream {
+        private final Manifest manifest;
+        private final int blockCount;
+        private final FileChannel[] channels;
+        private ByteBuffer member;
+        private int block;
+
+        MergedInputStream(Manifest manifest) throws IOException {
+            this.manifest = manifest;
+            this.blockCount = manifest.getBlockCount();
+            this.channels = new FileChannel[manifest.stripes.size()];
+
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = FileChannel.open(manifest.stripes.get(i));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (member == null || !member.hasRemaining()) {
+                if (block == blockCount) {
+                    return -1;
+                }
+
+                final long[] position = manifest.blocks.get(block++);
+                member = ByteBuffer.allocate((int) position[2]);
+                final FileChannel channel = channels[(int) position[0]];
+
+                while (member.hasRemaining()) {
+                    if (channel.read(member, position[1] + member.position()) < 0) {
+                        throw new EOFException("Stripe " + position[0] + " ends before block " + (block - 1));
+                    }
+                }
+
+                member.flip();
+            }
+
+            final int count = Math.min(len, member.remaining());
+            member.get(b, off, count);
+            return count;
+        }
+
+        /**
+         * Reports the following blocks as available, GZIPInputStream reads the next member only if it is.
+         */
+        @Override
+        public int available() {
+            if (member != null && member.hasRemaining()) {
+                return member.remaining();
+            }
+
+            return block < blockCount ? 1 : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A recycled buffer of uncompressed bytes.
+     */
+    private static final class Block {
+        final byte[] data;
+        int length;
+        long sequence;
+
+        Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    /**
+     * One stripe file with its worker, which compresses the blocks of the stripe into gzip members.
+     */
+    private final class Stripe {
+        final int index;
+        final FileOutputStream out;
+        final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] deflateBuffer = new byte[64 * 1024];
+        final ByteArrayOutputStream member = new ByteArrayOutputStream();
+        final byte[] header;
+        long offset;
+
+        Stripe(int index, File file, int level) throws IOException {
+            this.index = index;
+            // A continued stripe may end with a member of a crashed stream, which no block of the manifest records
+            this.offset = file.length();
+            this.out = new FileOutputStream(file, true);
+            this.deflater = new Deflater(level, true);
+            this.header = GZipHeader.encode(level, null, null);
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    final Block block;
+
+                    try {
+                        block = queue.take();
+                    } catch (InterruptedException interruptedException) {
+                        continue;
+                    }
+
+                    if (block.sequence < 0) {
+                        return;
+                    }
+
+                    try {
+                        if (failure == null) {
+                            write(block);
+                        }
+                    } catch (IOException ioException) {
+                        fail(ioException);
+                    }
+
+                    block.length = 0;
+                    freeBlocks.offer(block);
+                    blockWritten();
+                }
+            } finally {
+                deflater.end();
+
+                try {
+                    out.close();
+                } catch (IOException ioException) {
+                    fail(ioException);
+                }
+
+                finished.countDown();
+            }
+        }
+
+        private void write(Block block) throws IOException {
+            member.reset();
+            member.write(header);
+            crc.reset();
+            crc.update(block.data, 0, block.length);
+            deflater.reset();
+            deflater.setInput(block.data, 0, block.length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                final int length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+                member.write(deflateBuffer, 0, length);
+            }
+
+            final ByteBuffer trailer = ByteBuffer.allocate(8);
+            trailer.order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue());
+            trailer.putInt(block.length);
+            member.write(trailer.array());
+            member.writeTo(out);
+
+            manifestLock.lock();
+
+            try {
+                manifest.write("block " + block.sequence + " " + index + " " + offset + " " + member.size() + "\n");
+                manifest.flush();
+            } finally {
+                manifestLock.unlock();
+            }
+
+            offset += member.size();
+            writtenBytes.addAndGet(member.size());
+        }
+    }
+}
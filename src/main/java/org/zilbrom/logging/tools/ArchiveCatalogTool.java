@@ -0,0 +1,92 @@
+package org.zilbrom.logging.tools;
+
+import org.zilbrom.logging.strategies.ArchiveCatalog;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the archives of a catalog written by GZipRollingFileAppender which have events in a time range,
+ * or rebuilds the catalog from the statistics stored at the end of the archives. Times are local date-times
+ * like 2026-10-18T14:00 or 2026-10-18 14:00:05, or epoch millis.
+ * <p>
+ * Usage: ArchiveCatalogTool [-from TIME] [-to TIME] CATALOG
+ * <br>
+ * Usage: ArchiveCatalogTool -rebuild GLOB CATALOG
+ */
+public class ArchiveCatalogTool {
+    private ArchiveCatalogTool() {}
+
+    public static void main(String[] args) throws IOException {
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String glob = null;
+        String catalogFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-from".equals(args[i]) && i + 1 < args.length) {
+                from = parseTime(args[++i]);
+            } else if ("-to".equals(args[i]) && i + 1 < args.length) {
+                to = parseTime(args[++i]);
+            } else if ("-rebuild".equals(args[i]) && i + 1 < args.length) {
+                glob = args[++i];
+            } else {
+                catalogFile = args[i];
+            }
+        }
+
+        if (catalogFile == null) {
+            System.err.println("Usage: ArchiveCatalogTool [-from TIME] [-to TIME] CATALOG");
+            System.err.println("       ArchiveCatalogTool -rebuild GLOB CATALOG");
+            System.exit(1);
+        }
+
+        final ArchiveCatalog catalog = ArchiveCatalog.open(Paths.get(catalogFile));
+
+        if (glob != null) {
+            final int count = catalog.rebuild(findArchives(catalog.getFile().getParent(), glob));
+            System.out.println("Rebuilt " + catalog.getFile() + " with " + count + " archives");
+            return;
+        }
+
+        for (Map.Entry<Path, ArchiveMetadata> entry : catalog.find(from, to)) {
+            System.out.println(entry.getKey() + "\t" + entry.getValue());
+        }
+    }
+
+    /**
+     * Parses a local date-time or epoch millis.
+     * @param time the time
+     * @return the epoch millis
+     */
+    static long parseTime(String time) {
+        if (time.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(time);
+        }
+
+        return LocalDateTime.parse(time.replace(' ', 'T')).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static List<Path> findArchives(Path directory, String glob) throws IOException {
+        final List<Path> archives = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path archive : stream) {
+                archives.add(archive);
+            }
+        }
+
+        Collections.sort(archives);
+        return archives;
+    }
+}
@@ -0,0 +1,46 @@
+package org.zilbrom.logging.tools;
+
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.zilbrom.logging.actions.GZipCompactAction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compacts the small archives of file patterns without recompressing them, e.g. from cron while the application
+ * runs. The archives are merged as by {@link GZipCompactAction}.
+ * <p>
+ * Usage: ArchiveCompactor [-smallerThan SIZE] [-maxSize SIZE] FILE_PATTERN...
+ */
+public class ArchiveCompactor {
+    private ArchiveCompactor() {}
+
+    public static void main(String[] args) {
+        long smallerThan = GZipCompactAction.DEFAULT_SMALLER_THAN;
+        long maxSize = GZipCompactAction.DEFAULT_MAX_SIZE;
+        List<String> patterns = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-smallerThan".equals(args[i]) && i + 1 < args.length) {
+                smallerThan = FileSize.parse(args[++i], smallerThan);
+            } else if ("-maxSize".equals(args[i]) && i + 1 < args.length) {
+                maxSize = FileSize.parse(args[++i], maxSize);
+            } else {
+                patterns.add(args[i]);
+            }
+        }
+
+        if (patterns.isEmpty() || patterns.stream().anyMatch(pattern -> !pattern.contains("%i"))) {
+            System.err.println("Usage: ArchiveCompactor [-smallerThan SIZE] [-maxSize SIZE] FILE_PATTERN...");
+            System.err.println("The file patterns must contain the %i index, e.g. 'logs/app-%d{yyyy-MM-dd}-%i.log.gz'");
+            System.exit(1);
+        }
+
+        for (String pattern : patterns) {
+            new GZipCompactAction(pattern, smallerThan, maxSize).execute();
+        }
+
+        System.out.println("Compacted " + GZipCompactAction.getMergedFiles() + " archives into "
+                + GZipCompactAction.getCompactedArchives());
+    }
+}
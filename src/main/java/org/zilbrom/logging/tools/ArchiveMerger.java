@@ -0,0 +1,369 @@
+package org.zilbrom.logging.tools;
+
+import org.apache.logging.log4j.core.appender.rolling.FileSize;
+import org.zilbrom.logging.streams.ArchiveMetadata;
+import org.zilbrom.logging.streams.RollingGZIPOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Merges log files of many nodes and appenders into one stream ordered by the event time, e.g. for the review
+ * of an incident, without decompressing the files to disk and sorting them.
+ * <p>
+ * Every file is read as a stream of events: a line with a timestamp, see {@link TimestampParser}, starts an event
+ * and the following lines without one, like stack traces, belong to it. The files are merged by a priority queue
+ * of their next events, ties are taken in the order of the files and the events of a file keep their order.
+ * A file is opened only when the merge reaches its first event, which is read from the statistics at the end of
+ * the file when they exist, and it is closed at its end, so the rolled archives of a node are open one after
+ * another. Every open file holds one inflater and read-ahead buffers of a bounded size, so the memory does not
+ * depend on the size of the files.
+ * <p>
+ * Usage: ArchiveMerger [-layout PATTERN] [-timezone ZONE] [-readAhead SIZE] [-gzip] [-o FILE] FILE...
+ */
+public class ArchiveMerger {
+    /**
+     * The layout of the project's appenders
+     */
+    public static final String DEFAULT_LAYOUT = "%-5p %d{dd-MM-yyyy HH:mm:ss,SSS} %m%n";
+    public static final int DEFAULT_READ_AHEAD = 64 * 1024;
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+    private final List<Path> files;
+    private final String layoutPattern;
+    private final ZoneId zone;
+    private final int readAhead;
+    private long events;
+    private int maxOpenFiles;
+
+    /**
+     * Creates the merger.
+     * @param files the files, compressed if their names end with .gz
+     * @param layoutPattern the pattern of the layout the files were written with
+     * @param zone the time zone of the timestamps
+     * @param readAhead the size of the read-ahead buffers of every open file
+     */
+    public ArchiveMerger(final List<Path> files, final String layoutPattern, final ZoneId zone, final int readAhead) {
+        this.files = files;
+        this.layoutPattern = layoutPattern;
+        this.zone = zone;
+        this.readAhead = readAhead;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String layout = DEFAULT_LAYOUT;
+        ZoneId zone = ZoneId.systemDefault();
+        int readAhead = DEFAULT_READ_AHEAD;
+        boolean gzip = false;
+        String output = null;
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-layout".equals(args[i]) && i + 1 < args.length) {
+                layout = args[++i];
+            } else if ("-timezone".equals(args[i]) && i + 1 < args.length) {
+                zone = ZoneId.of(args[++i]);
+            } else if ("-readAhead".equals(args[i]) && i + 1 < args.length) {
+                readAhead = (int) FileSize.parse(args[++i], readAhead);
+            } else if ("-gzip".equals(args[i])) {
+                gzip = true;
+            } else if ("-o".equals(args[i]) && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: ArchiveMerger [-layout PATTERN] [-timezone ZONE] [-readAhead SIZE] [-gzip]"
+                    + " [-o FILE] FILE...");
+            System.exit(1);
+        }
+
+        OutputStream out = new BufferedOutputStream(output == null ? System.out : new FileOutputStream(output),
+                OUTPUT_BUFFER_SIZE);
+
+        if (gzip) {
+            out = new RollingGZIPOutputStream(out, OUTPUT_BUFFER_SIZE, TimeUnit.MINUTES.toMillis(1), true,
+                    Deflater.DEFAULT_COMPRESSION);
+        }
+
+        final ArchiveMerger merger = new ArchiveMerger(files, layout, zone, readAhead);
+
+        try {
+            merger.merge(out);
+        } finally {
+            if (output != null || gzip) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        }
+
+        System.err.println("Merged " + merger.getEvents() + " events of " + files.size() + " files, at most "
+                + merger.getMaxOpenFiles() + " files were open at once");
+    }
+
+    /**
+     * Writes the events of all files ordered by their time.
+     * @param out receives the events
+     * @throws IOException if a file can not be read or the output can not be written
+     */
+    public void merge(final OutputStream out) throws IOException {
+        final PriorityQueue<Input> waiting = new PriorityQueue<>(Comparator.comparingLong((Input input) ->
+                input.firstMillis).thenComparingInt(input -> input.order));
+        final PriorityQueue<Input> open = new PriorityQueue<>(Comparator.comparingLong((Input input) ->
+                input.eventMillis).thenComparingInt(input -> input.order));
+
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final Input input = new Input(files.get(i), i);
+                input.firstMillis = input.firstMillis();
+                waiting.add(input);
+            }
+
+            while (true) {
+                while (!waiting.isEmpty()
+                        && (open.isEmpty() || waiting.peek().firstMillis <= open.peek().eventMillis)) {
+                    final Input input = waiting.poll();
+
+                    if (input.open()) {
+                        open.add(input);
+                        maxOpenFiles = Math.max(maxOpenFiles, open.size());
+                    }
+                }
+
+                final Input next = open.poll();
+
+                if (next == null) {
+                    return;
+                }
+
+                out.write(next.event, 0, next.eventLength);
+                events++;
+
+                if (next.nextEvent()) {
+                    open.add(next);
+                } else {
+                    next.close();
+                }
+            }
+        } finally {
+            for (Input input : open) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events written by the last merge.
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the largest number of files which were open at the same time.
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * A file read event by event.
+     */
+    private final class Input implements Closeable {
+        private final Path file;
+        private final int order;
+        private final TimestampParser parser = new TimestampParser(layoutPattern, zone);
+        private InputStream in;
+        private final byte[] buffer = new byte[readAhead];
+        private int position;
+        private int limit;
+        private boolean ended;
+        private long firstMillis;
+
+        /**
+         * The current event, its first line has the timestamp
+         */
+        private byte[] event = new byte[256];
+        private int eventLength;
+        private long eventMillis;
+
+        /**
+         * The line read after the current event
+         */
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private long lineMillis;
+        private boolean hasLine;
+
+        Input(final Path file, final int order) {
+            this.file = file;
+            this.order = order;
+        }
+
+        /**
+         * Returns the time of the first event, from the statistics of the file or by reading it.
+         */
+        long firstMillis() throws IOException {
+            final ArchiveMetadata metadata = file.toString().endsWith(GZIP_EXTENSION)
+                    ? ArchiveMetadata.readTail(file)
+                    : null;
+
+            if (metadata != null) {
+                return metadata.getEvents() > 0 ? metadata.getFirstMillis() : Long.MIN_VALUE;
+            }
+
+            final long first = open() ? eventMillis : Long.MIN_VALUE;
+            close();
+            return first;
+        }
+
+        /**
+         * Opens the file and reads the first event.
+         * @return false if the file has no events
+         */
+        boolean open() throws IOException {
+            final InputStream stream = Files.newInputStream(file);
+            in = file.toString().endsWith(GZIP_EXTENSION) ? new GZIPInputStream(stream, readAhead) : stream;
+            position = 0;
+            limit = 0;
+            ended = false;
+            hasLine = false;
+
+            if (nextEvent()) {
+                return true;
+            }
+
+            close();
+            return false;
+        }
+
+        /**
+         * Reads the next event: the pending line and the following lines without a timestamp. Lines without
+         * a timestamp at the start of the file, like a layout header, belong to the first event.
+         * @return false at the end of the file
+         */
+        boolean nextEvent() throws IOException {
+            if (!hasLine && !readLine()) {
+                return false;
+            }
+
+            eventLength = 0;
+            append(line, lineLength);
+            hasLine = false;
+
+            while (lineMillis == Long.MIN_VALUE && readLine()) {
+                append(line, lineLength);
+            }
+
+            eventMillis = lineMillis;
+
+            while (readLine()) {
+                if (lineMillis != Long.MIN_VALUE) {
+                    hasLine = true;
+                    break;
+                }
+
+                append(line, lineLength);
+            }
+
+            return true;
+        }
+
+        private void append(final byte[] bytes, final int length) {
+            if (eventLength + length > event.length) {
+                final byte[] grown = new byte[Math.max(2 * event.length, eventLength + length)];
+                System.arraycopy(event, 0, grown, 0, eventLength);
+                event = grown;
+            }
+
+            System.arraycopy(bytes, 0, event, eventLength, length);
+            eventLength += length;
+        }
+
+        /**
+         * Reads a line including its line separator into the line buffer.
+         * @return false at the end of the file
+         */
+        private boolean readLine() throws IOException {
+            lineLength = 0;
+
+            while (true) {
+                if (position == limit) {
+                    if (ended || !fill()) {
+                        break;
+                    }
+                }
+
+                int end = position;
+
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+
+                final boolean complete = end < limit;
+                final int count = (complete ? end + 1 : end) - position;
+
+                if (lineLength + count > line.length) {
+                    final byte[] grown = new byte[Math.max(2 * line.length, lineLength + count)];
+                    System.arraycopy(line, 0, grown, 0, lineLength);
+                    line = grown;
+                }
+
+                System.arraycopy(buffer, position, line, lineLength, count);
+                lineLength += count;
+                position += count;
+
+                if (complete) {
+                    break;
+                }
+            }
+
+            if (lineLength == 0) {
+                return false;
+            }
+
+            lineMillis = parser.parse(line, lineLength);
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            final int count = in.read(buffer, 0, buffer.length);
+
+            if (count <= 0) {
+                ended = true;
+                return false;
+            }
+
+            position = 0;
+            limit = count;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
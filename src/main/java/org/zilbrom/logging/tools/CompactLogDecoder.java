@@ -0,0 +1,98 @@
+package org.zilbrom.logging.tools;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.zilbrom.logging.layouts.CompactBinaryReader;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders files written with CompactBinaryLayout as text. The pattern stored in the files is used unless
+ * another one is given.
+ * <p>
+ * Usage: CompactLogDecoder [-pattern PATTERN] FILE...
+ */
+public class CompactLogDecoder {
+    private static final String GZIP_EXTENSION = ".gz";
+
+    private CompactLogDecoder() {}
+
+    public static void main(String[] args) throws IOException {
+        String pattern = null;
+        List<String> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-pattern".equals(args[i]) && i + 1 < args.length) {
+                pattern = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: CompactLogDecoder [-pattern PATTERN] FILE...");
+            System.exit(1);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+        for (String file : files) {
+            decode(file, pattern, writer);
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Renders one file.
+     * @param file the file, compressed if its name ends with .gz
+     * @param pattern the pattern or null to use the one stored in the file
+     * @param writer receives the text
+     * @throws IOException if the file can not be read
+     */
+    public static void decode(String file, String pattern, Writer writer) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        if (file.endsWith(GZIP_EXTENSION)) {
+            in = new GZIPInputStream(in);
+        }
+
+        try (CompactBinaryReader reader = new CompactBinaryReader(in)) {
+            PatternLayout layout = null;
+            String layoutPattern = null;
+            LogEvent event;
+
+            while ((event = reader.read()) != null) {
+                String currentPattern = pattern != null ? pattern : reader.getPattern();
+
+                if (layout == null || !currentPattern.equals(layoutPattern)) {
+                    layout = PatternLayout.newBuilder()
+                            .withPattern(currentPattern)
+                            .withAlwaysWriteExceptions(false)
+                            .build();
+                    layoutPattern = currentPattern;
+                }
+
+                writer.write(layout.toSerializable(event));
+
+                if (reader.getThrownText() != null) {
+                    writer.write(reader.getThrownText());
+                }
+            }
+        } catch (IOException ioException) {
+            // A file which is still written ends with an unfinished deflate block
+            if (!"Unexpected end of ZLIB input stream".equals(ioException.getMessage())) {
+                throw ioException;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.zilbrom.logging.tools;
+
+import org.zilbrom.logging.streams.CompanionArchive;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Prints the events of the companion of a GZipRollingFileAppender file, and with -context the lines of the file
+ * from every event on, which are inflated from the seek point the event points to instead of the start of the file.
+ * <p>
+ * Usage: CompanionReader [-context LINES] FILE...
+ */
+public class CompanionReader {
+    private CompanionReader() {}
+
+    public static void main(String[] args) throws IOException {
+        int context = 0;
+        boolean files = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-context".equals(args[i]) && i + 1 < args.length) {
+                context = Integer.parseInt(args[++i]);
+            } else {
+                print(Paths.get(args[i]), context, System.out);
+                files = true;
+            }
+        }
+
+        if (!files) {
+            System.err.println("Usage: CompanionReader [-context LINES] FILE...");
+            System.exit(1);
+        }
+
+        System.out.flush();
+    }
+
+    /**
+     * Prints the events of the companion of a file.
+     * @param file the log file or archive
+     * @param context the number of lines of the file printed from every event on, 0 for none
+     * @param out receives the events
+     * @throws IOException if a file can not be read
+     */
+    public static void print(Path file, int context, PrintStream out) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(CompanionArchive.companionOf(file))), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final long[] pointer = CompanionArchive.parsePointer(line);
+                out.println(line);
+
+                if (pointer != null && pointer[0] >= 0 && context > 0) {
+                    printContext(file, pointer[0], context, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints lines of a file inflated from a seek point.
+     * @param file the log file or archive
+     * @param block the offset of the seek point
+     * @param lines the number of lines
+     * @param out receives the lines
+     * @throws IOException if the file can not be read
+     */
+    public static void printContext(Path file, long block, int lines, PrintStream out) throws IOException {
+        final Inflater inflater = new Inflater(true);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(block);
+            final InputStream in = new InflaterInputStream(Channels.newInputStream(channel), inflater);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+
+            for (int i = 0; i < lines && (line = reader.readLine()) != null; i++) {
+                out.println("  | " + line);
+            }
+        } catch (EOFException eofException) {
+            // The active file ends with an unfinished deflate stream
+        } finally {
+            inflater.end();
+        }
+    }
+}
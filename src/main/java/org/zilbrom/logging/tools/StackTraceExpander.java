@@ -0,0 +1,119 @@
+package org.zilbrom.logging.tools;
+
+import org.zilbrom.logging.appenders.GZipRollingFileAppender;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Restores the stack traces which GZipRollingFileAppender replaced with references when deduplicateStackTraces
+ * is set, so the output equals the file written without deduplication.
+ * <p>
+ * Usage: StackTraceExpander [-charset CHARSET] FILE...
+ */
+public class StackTraceExpander {
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final Pattern FIRST = Pattern.compile(
+            Pattern.quote(GZipRollingFileAppender.STACK_TRACE_PREFIX) + "([0-9a-f]+), (\\d+) lines]");
+    private static final Pattern REPEATED = Pattern.compile(
+            Pattern.quote(GZipRollingFileAppender.STACK_TRACE_PREFIX) + "([0-9a-f]+) repeated]");
+
+    private StackTraceExpander() {}
+
+    public static void main(String[] args) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        List<String> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-charset".equals(args[i]) && i + 1 < args.length) {
+                charset = Charset.forName(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: StackTraceExpander [-charset CHARSET] FILE...");
+            System.exit(1);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, charset));
+
+        for (String file : files) {
+            expand(file, charset, writer);
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Expands one file. The references of a file point to traces of the same file.
+     * @param file the file, compressed if its name ends with .gz
+     * @param charset the charset of the file
+     * @param writer receives the expanded text
+     * @throws IOException if the file can not be read
+     */
+    public static void expand(String file, Charset charset, Writer writer) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        if (file.endsWith(GZIP_EXTENSION)) {
+            in = new GZIPInputStream(in);
+        }
+
+        Map<String, List<String>> traces = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                Matcher first = FIRST.matcher(line);
+
+                if (first.matches()) {
+                    int count = Integer.parseInt(first.group(2));
+                    List<String> trace = new ArrayList<>(count);
+
+                    for (int i = 0; i < count && (line = reader.readLine()) != null; i++) {
+                        trace.add(line);
+                        writeLine(writer, line);
+                    }
+
+                    traces.put(first.group(1), trace);
+                    continue;
+                }
+
+                Matcher repeated = REPEATED.matcher(line);
+                List<String> trace = repeated.matches() ? traces.get(repeated.group(1)) : null;
+
+                if (trace == null) {
+                    writeLine(writer, line);
+                } else {
+                    for (String traceLine : trace) {
+                        writeLine(writer, traceLine);
+                    }
+                }
+            }
+        } catch (EOFException eofException) {
+            // A file which is still written ends with an unfinished deflate block
+        }
+    }
+
+    private static void writeLine(Writer writer, String line) throws IOException {
+        writer.write(line);
+        writer.write(System.lineSeparator());
+    }
+}
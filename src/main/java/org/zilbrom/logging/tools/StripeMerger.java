@@ -0,0 +1,77 @@
+package org.zilbrom.logging.tools;
+
+import org.zilbrom.logging.streams.StripedGZipOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reconstructs the stream of a striped GZipRollingFileAppender file from its manifest and stripe files.
+ * The output is the uncompressed data, or with -raw the gzip members in block order, which is a valid gzip file.
+ * <p>
+ * Usage: StripeMerger [-raw] MANIFEST...
+ */
+public class StripeMerger {
+    private StripeMerger() {}
+
+    public static void main(String[] args) throws IOException {
+        boolean raw = false;
+        List<String> files = new ArrayList<>();
+
+        for (String arg : args) {
+            if ("-raw".equals(arg)) {
+                raw = true;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: StripeMerger [-raw] MANIFEST...");
+            System.exit(1);
+        }
+
+        OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+
+        for (String file : files) {
+            merge(file, raw, out);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Merges the stripes of one manifest.
+     * @param file the manifest
+     * @param raw true to write the gzip members, false to write the uncompressed data
+     * @param out receives the merged stream
+     * @throws IOException if a file can not be read
+     */
+    public static void merge(String file, boolean raw, OutputStream out) throws IOException {
+        InputStream in = StripedGZipOutputStream.openMerged(Paths.get(file));
+
+        if (!raw) {
+            in = new GZIPInputStream(in);
+        }
+
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int length;
+
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } catch (EOFException eofException) {
+            // A stripe of an active file may end before the last recorded block is complete
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.zilbrom.logging.tools;
+
+import org.apache.logging.log4j.core.util.datetime.FixedDateFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds and parses the timestamp of log lines written with a pattern layout.
+ * <p>
+ * The date format and the position of the first %d conversion are taken from the layout pattern. When everything
+ * before the date has a fixed width, literal text or a level padded to at least five characters as in
+ * {@code %-5p %d{dd-MM-yyyy HH:mm:ss,SSS}}, the timestamp is read at that offset, otherwise it is searched for
+ * in the line. Lines of the same second share the parsed seconds, so only the millis are parsed for them.
+ */
+public class TimestampParser {
+    private static final int SEARCH_LIMIT = 256;
+    private static final int UNKNOWN = -1;
+
+    private final DateTimeFormatter formatter;
+    private final int offset;
+    private final int width;
+    private final Pattern search;
+    private final boolean millisLast;
+    private byte[] cachedPrefix = new byte[0];
+    private long cachedMillis;
+
+    /**
+     * Creates the parser for a layout.
+     * @param layoutPattern the pattern of the layout
+     * @param zone the time zone of the timestamps
+     * @throws IllegalArgumentException if the pattern has no %d conversion
+     */
+    public TimestampParser(final String layoutPattern, final ZoneId zone) {
+        final Matcher date = Pattern.compile("%(?:-?\\d+(?:\\.\\d+)?)?(?:d|date)(?:\\{([^}]*)})?")
+                .matcher(layoutPattern);
+
+        if (!date.find()) {
+            throw new IllegalArgumentException("The layout " + layoutPattern + " has no %d conversion");
+        }
+
+        final String option = date.group(1);
+        final FixedDateFormat.FixedFormat fixedFormat = option == null ? FixedDateFormat.FixedFormat.DEFAULT
+                : FixedDateFormat.FixedFormat.lookup(option);
+        final String datePattern = fixedFormat == null ? option : fixedFormat.getPattern();
+        final String letters = datePattern.replaceAll("'[^']*'", "");
+        final boolean numeric = letters.matches("[^a-zA-Z]*(?:[yuMdHhKkmsS]+[^a-zA-Z]*)*") && !letters.contains("MMM");
+        this.formatter = formatter(datePattern, zone);
+        this.offset = numeric ? prefixWidth(layoutPattern.substring(0, date.start())) : UNKNOWN;
+        this.width = formatter.format(Instant.EPOCH).length();
+        this.search = Pattern.compile(toRegex(datePattern));
+        this.millisLast = numeric && datePattern.endsWith("SSS")
+                && !Character.isLetter(datePattern.charAt(datePattern.length() - 4));
+    }
+
+    private static DateTimeFormatter formatter(final String datePattern, final ZoneId zone) {
+        final String letters = datePattern.replaceAll("'[^']*'", "");
+        final DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder().appendPattern(datePattern);
+
+        // Formats like ABSOLUTE have no date
+        if (!letters.contains("y") && !letters.contains("u")) {
+            builder.parseDefaulting(ChronoField.YEAR_OF_ERA, 1970);
+        }
+
+        if (!letters.contains("M")) {
+            builder.parseDefaulting(ChronoField.MONTH_OF_YEAR, 1);
+        }
+
+        if (!letters.contains("d")) {
+            builder.parseDefaulting(ChronoField.DAY_OF_MONTH, 1);
+        }
+
+        return builder.toFormatter().withZone(zone);
+    }
+
+    /**
+     * Returns the width of the text a pattern writes or UNKNOWN if it varies.
+     */
+    private static int prefixWidth(final String prefix) {
+        final Matcher level = Pattern.compile("%(-?)(\\d+)(?:\\.\\d+)?(?:p|level)").matcher("");
+        int width = 0;
+        int i = 0;
+
+        while (i < prefix.length()) {
+            if (prefix.charAt(i) != '%') {
+                width++;
+                i++;
+            } else if (prefix.startsWith("%%", i)) {
+                width++;
+                i += 2;
+            } else {
+                level.reset(prefix.substring(i));
+
+                // The standard levels have at most five characters
+                if (!level.lookingAt() || Integer.parseInt(level.group(2)) < 5) {
+                    return UNKNOWN;
+                }
+
+                width += Integer.parseInt(level.group(2));
+                i += level.end();
+            }
+        }
+
+        return width;
+    }
+
+    private static String toRegex(final String datePattern) {
+        final StringBuilder regex = new StringBuilder();
+        int i = 0;
+
+        while (i < datePattern.length()) {
+            final char c = datePattern.charAt(i);
+            int end = i + 1;
+
+            if (c == '\'') {
+                end = datePattern.indexOf('\'', i + 1);
+                end = end < 0 ? datePattern.length() : end + 1;
+                regex.append(Pattern.quote(datePattern.substring(i + 1, Math.max(i + 1, end - 1))));
+            } else if (Character.isLetter(c)) {
+                while (end < datePattern.length() && datePattern.charAt(end) == c) {
+                    end++;
+                }
+
+                regex.append(end - i >= 3 && "MEa".indexOf(c) >= 0 ? "\\p{L}+" : "\\d{" + (end - i) + "}");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+
+            i = end;
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * Returns the time of a line in epoch millis.
+     * @param line the bytes of the line
+     * @param length the length of the line
+     * @return the time or Long.MIN_VALUE if the line has no timestamp, e.g. a line of a stack trace
+     */
+    public long parse(final byte[] line, final int length) {
+        if (offset != UNKNOWN) {
+            if (offset + width > length || !Character.isDigit(line[offset])) {
+                return Long.MIN_VALUE;
+            }
+
+            if (millisLast && sharesPrefix(line)) {
+                final long millis = parseMillis(line, offset + width - 3);
+                return millis < 0 ? Long.MIN_VALUE : cachedMillis + millis;
+            }
+
+            return parse(new String(line, offset, width, StandardCharsets.ISO_8859_1), line);
+        }
+
+        final Matcher matcher = search.matcher(new String(line, 0, Math.min(length, SEARCH_LIMIT),
+                StandardCharsets.ISO_8859_1));
+        return matcher.find() ? parse(matcher.group(), null) : Long.MIN_VALUE;
+    }
+
+    private long parse(final String timestamp, final byte[] line) {
+        try {
+            final long millis = ZonedDateTime.parse(timestamp, formatter).toInstant().toEpochMilli();
+
+            if (line != null && millisLast) {
+                cachedPrefix = new byte[width - 3];
+                System.arraycopy(line, offset, cachedPrefix, 0, cachedPrefix.length);
+                cachedMillis = millis - millis % 1000;
+            }
+
+            return millis;
+        } catch (DateTimeParseException parseException) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private boolean sharesPrefix(final byte[] line) {
+        if (cachedPrefix.length != width - 3) {
+            return false;
+        }
+
+        for (int i = 0; i < cachedPrefix.length; i++) {
+            if (line[offset + i] != cachedPrefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long parseMillis(final byte[] line, final int start) {
+        long millis = 0;
+
+        for (int i = start; i < start + 3; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+
+            millis = millis * 10 + line[i] - '0';
+        }
+
+        return millis;
+    }
+}
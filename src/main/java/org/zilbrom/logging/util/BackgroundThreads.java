@@ -0,0 +1,60 @@
+package org.zilbrom.logging.util;
+
+/**
+ * Starts the threads which do blocking background work: periodic flushes, writes of compressed blocks
+ * and post rollover actions.
+ * <p>
+ * This is the Java 8 variant, which always starts daemon platform threads. The jar is a multi-release one:
+ * on JDK 21 and later the variant from META-INF/versions/21 starts virtual threads instead,
+ * unless the system property {@value #VIRTUAL_THREADS_PROPERTY} is false.
+ */
+public final class BackgroundThreads {
+    public static final String VIRTUAL_THREADS_PROPERTY = "log4j2.gzip.virtualThreads";
+
+    private BackgroundThreads() {
+    }
+
+    /**
+     * Returns true if background threads are virtual.
+     */
+    public static boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Starts a background thread with the normal priority.
+     * @param name the name of the thread
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread start(final String name, final Runnable task) {
+        return start(name, Thread.NORM_PRIORITY, task);
+    }
+
+    /**
+     * Starts a background thread.
+     * @param name the name of the thread
+     * @param priority the priority of the thread, ignored by virtual threads
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread start(final String name, final int priority, final Runnable task) {
+        return startPlatform(name, priority, task);
+    }
+
+    /**
+     * Starts a daemon platform thread even if background threads are virtual, for CPU bound work and for work
+     * whose priority must be honoured.
+     * @param name the name of the thread
+     * @param priority the priority of the thread
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread startPlatform(final String name, final int priority, final Runnable task) {
+        final Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        thread.start();
+        return thread;
+    }
+}
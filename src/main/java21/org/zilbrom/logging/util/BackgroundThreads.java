@@ -0,0 +1,64 @@
+package org.zilbrom.logging.util;
+
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+/**
+ * Starts the threads which do blocking background work: periodic flushes, writes of compressed blocks
+ * and post rollover actions.
+ * <p>
+ * This is the JDK 21 variant, which starts virtual threads, so hundreds of appenders do not keep hundreds
+ * of mostly sleeping platform threads. Setting the system property {@value #VIRTUAL_THREADS_PROPERTY}
+ * to false switches back to daemon platform threads.
+ */
+public final class BackgroundThreads {
+    public static final String VIRTUAL_THREADS_PROPERTY = "log4j2.gzip.virtualThreads";
+    private static final boolean VIRTUAL = PropertiesUtil.getProperties()
+            .getBooleanProperty(VIRTUAL_THREADS_PROPERTY, true);
+
+    private BackgroundThreads() {
+    }
+
+    /**
+     * Returns true if background threads are virtual.
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Starts a background thread with the normal priority.
+     * @param name the name of the thread
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread start(final String name, final Runnable task) {
+        return start(name, Thread.NORM_PRIORITY, task);
+    }
+
+    /**
+     * Starts a background thread.
+     * @param name the name of the thread
+     * @param priority the priority of the thread, ignored by virtual threads
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread start(final String name, final int priority, final Runnable task) {
+        if (VIRTUAL) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+
+        return Thread.ofPlatform().name(name).daemon(true).priority(priority).start(task);
+    }
+
+    /**
+     * Starts a daemon platform thread even if background threads are virtual, for CPU bound work and for work
+     * whose priority must be honoured.
+     * @param name the name of the thread
+     * @param priority the priority of the thread
+     * @param task the work of the thread
+     * @return the started thread
+     */
+    public static Thread startPlatform(final String name, final int priority, final Runnable task) {
+        return Thread.ofPlatform().name(name).daemon(true).priority(priority).start(task);
+    }
+}
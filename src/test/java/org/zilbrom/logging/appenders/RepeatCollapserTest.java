@@ -0,0 +1,85 @@
+package org.zilbrom.logging.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RepeatCollapserTest {
+    private static final long WINDOW_MILLIS = 100;
+
+    /**
+     * The time of the first event, a time of 0 is replaced by the current time
+     */
+    private static final long START_MILLIS = 1_600_000_000_000L;
+
+    @Test
+    public void repeatsWithinWindowAreSummarisedByNextEvent() {
+        final RepeatCollapser collapser = new RepeatCollapser(WINDOW_MILLIS);
+        assertNull(collapser.startRun(event("retry", 0)));
+
+        assertTrue(collapser.collapse(event("retry", 10)));
+        assertTrue(collapser.collapse(event("retry", 20)));
+        assertFalse(collapser.collapse(event("done", 30)));
+
+        final LogEvent summary = collapser.startRun(event("done", 30));
+        assertNotNull(summary);
+        assertTrue(summary.getMessage().getFormattedMessage().startsWith("Previous message repeated 2 times"));
+        assertEquals(START_MILLIS + 20, summary.getTimeMillis());
+        assertEquals(Level.WARN, summary.getLevel());
+        assertEquals(2, collapser.getCollapsed());
+    }
+
+    @Test
+    public void expiredRunIsSummarisedOnce() {
+        final RepeatCollapser collapser = new RepeatCollapser(WINDOW_MILLIS);
+        collapser.startRun(event("retry", 0));
+        assertTrue(collapser.collapse(event("retry", 10)));
+
+        assertNull(collapser.endExpiredRun(START_MILLIS + WINDOW_MILLIS - 1));
+        final LogEvent summary = collapser.endExpiredRun(START_MILLIS + WINDOW_MILLIS);
+        assertNotNull(summary);
+        assertTrue(summary.getMessage().getFormattedMessage().startsWith("Previous message repeated 1 times"));
+        assertNull(collapser.endExpiredRun(START_MILLIS + 2 * WINDOW_MILLIS));
+
+        // The ended run collects no further repeats, the next event starts a new run
+        assertFalse(collapser.collapse(event("retry", WINDOW_MILLIS + 10)));
+        assertNull(collapser.startRun(event("retry", WINDOW_MILLIS + 10)));
+    }
+
+    @Test
+    public void runWithoutRepeatsDoesNotExpire() {
+        final RepeatCollapser collapser = new RepeatCollapser(WINDOW_MILLIS);
+        collapser.startRun(event("retry", 0));
+
+        assertNull(collapser.endExpiredRun(START_MILLIS + 2 * WINDOW_MILLIS));
+        assertTrue(collapser.collapse(event("retry", 10)));
+    }
+
+    @Test
+    public void eventAfterWindowStartsNewRun() {
+        final RepeatCollapser collapser = new RepeatCollapser(WINDOW_MILLIS);
+        collapser.startRun(event("retry", 0));
+
+        assertFalse(collapser.collapse(event("retry", WINDOW_MILLIS)));
+        assertNull(collapser.endRun());
+        assertEquals(0, collapser.getCollapsed());
+    }
+
+    private static LogEvent event(final String message, final long timeMillis) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.WARN)
+                .setThreadName("main")
+                .setTimeMillis(START_MILLIS + timeMillis)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+}
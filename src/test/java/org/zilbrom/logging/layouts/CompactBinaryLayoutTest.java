@@ -0,0 +1,192 @@
+package org.zilbrom.logging.layouts;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactBinaryLayoutTest {
+    private static final String PATTERN = "%d %p %c - %m%n";
+    private static final Level NOTICE = Level.forName("NOTICE", 350);
+
+    @Test
+    public void encodedEventsAreReadBack() throws IOException {
+        final List<LogEvent> events = events();
+
+        assertReadBack(events, encode(layout(CompactBinaryLayout.DEFAULT_MAX_DICTIONARY_SIZE), events, false));
+    }
+
+    @Test
+    public void fullDictionaryWritesLiterals() throws IOException {
+        final List<LogEvent> events = events();
+
+        assertReadBack(events, encode(layout(2), events, false));
+    }
+
+    @Test
+    public void headerResetsDictionary() throws IOException {
+        final List<LogEvent> events = events();
+        final List<LogEvent> twice = new ArrayList<>(events);
+        twice.addAll(events);
+
+        // The second header starts a new dictionary, as a reopened file does
+        assertReadBack(twice, encode(layout(CompactBinaryLayout.DEFAULT_MAX_DICTIONARY_SIZE), events, true));
+    }
+
+    @Test
+    public void recordIsSelfContained() throws IOException {
+        final CompactBinaryLayout layout = layout(CompactBinaryLayout.DEFAULT_MAX_DICTIONARY_SIZE);
+        final List<LogEvent> events = events();
+        encode(layout, events, false);
+
+        final LogEvent event = events.get(events.size() - 1);
+        final CompactBinaryReader reader = new CompactBinaryReader(new ByteArrayInputStream(layout.toByteArray(event)));
+        assertEvent(event, reader.read(), reader);
+        assertNull(reader.read());
+        assertEquals(PATTERN, reader.getPattern());
+    }
+
+    private static CompactBinaryLayout layout(final int maxDictionarySize) {
+        return CompactBinaryLayout.createLayout(PATTERN, maxDictionarySize, new DefaultConfiguration());
+    }
+
+    private static List<LogEvent> events() {
+        final List<LogEvent> events = new ArrayList<>();
+        final long start = 1_600_000_000_000L;
+
+        for (int i = 0; i < 5; i++) {
+            events.add(event(start + i * 10, Level.INFO, new SimpleMessage("Request " + i + " took " + (i * 7 - 3)
+                    + " ms of 12345678901234567890123")));
+            events.add(event(start + i * 10 + 1, NOTICE,
+                    new ParameterizedMessage("User {} logged in from {} with {}", "bob", 42L, null)));
+        }
+
+        final SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("requestId", "r-17");
+        contextData.putValue("user", "bob");
+        events.add(Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Service")
+                .setLevel(Level.ERROR)
+                .setThreadName("worker-1")
+                .setTimeMillis(start - 5)
+                .setMarker(MarkerManager.getMarker("AUDIT"))
+                .setContextData(contextData)
+                .setMessage(new SimpleMessage("Failed"))
+                .setThrown(new IllegalStateException("database down"))
+                .build());
+        return events;
+    }
+
+    private static LogEvent event(final long timeMillis, final Level level, final Message message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Service")
+                .setLevel(level)
+                .setThreadName("main")
+                .setTimeMillis(timeMillis)
+                .setMessage(message)
+                .build();
+    }
+
+    private static byte[] encode(final CompactBinaryLayout layout, final List<LogEvent> events, final boolean twice) {
+        final Destination destination = new Destination();
+
+        for (int pass = 0; pass < (twice ? 2 : 1); pass++) {
+            final byte[] header = layout.getHeader();
+            destination.writeBytes(header, 0, header.length);
+
+            for (LogEvent event : events) {
+                layout.encode(event, destination);
+            }
+        }
+
+        return destination.toByteArray();
+    }
+
+    private static void assertReadBack(final List<LogEvent> expected, final byte[] bytes) throws IOException {
+        try (CompactBinaryReader reader = new CompactBinaryReader(new ByteArrayInputStream(bytes))) {
+            for (LogEvent event : expected) {
+                assertEvent(event, reader.read(), reader);
+            }
+
+            assertNull(reader.read());
+        }
+    }
+
+    private static void assertEvent(final LogEvent expected, final LogEvent actual, final CompactBinaryReader reader) {
+        assertEquals(expected.getTimeMillis(), actual.getTimeMillis());
+        assertEquals(expected.getLevel().name(), actual.getLevel().name());
+        assertEquals(expected.getLevel().intLevel(), actual.getLevel().intLevel());
+        assertEquals(expected.getLoggerName(), actual.getLoggerName());
+        assertEquals(expected.getThreadName(), actual.getThreadName());
+        assertEquals(expected.getMessage().getFormattedMessage(), actual.getMessage().getFormattedMessage());
+
+        if (expected.getMarker() == null) {
+            assertNull(actual.getMarker());
+        } else {
+            assertEquals(expected.getMarker().getName(), actual.getMarker().getName());
+        }
+
+        assertEquals(expected.getContextData().toMap(), actual.getContextData().toMap());
+
+        if (expected.getThrown() == null) {
+            assertNull(reader.getThrownText());
+        } else {
+            assertTrue(reader.getThrownText().startsWith(expected.getThrown().toString()));
+        }
+    }
+
+    /**
+     * A small buffer which drains into a byte array, so events are split over several drains.
+     */
+    private static final class Destination implements ByteBufferDestination {
+        private final ByteBuffer buffer = ByteBuffer.allocate(64);
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(final ByteBuffer buf) {
+            buf.flip();
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(final ByteBuffer data) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        }
+
+        @Override
+        public void writeBytes(final byte[] data, final int offset, final int length) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+        }
+
+        byte[] toByteArray() {
+            drain(buffer);
+            return out.toByteArray();
+        }
+    }
+}
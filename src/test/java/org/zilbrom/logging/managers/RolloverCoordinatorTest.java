@@ -0,0 +1,123 @@
+package org.zilbrom.logging.managers;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.AbstractTriggeringPolicy;
+import org.apache.logging.log4j.core.appender.rolling.RollingFileManager;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zilbrom.logging.appenders.GZipRollingFileAppender;
+import org.zilbrom.logging.strategies.GZipDefaultRolloverStrategy;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertTrue;
+
+public class RolloverCoordinatorTest {
+    private static final String ROLL = "roll";
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Configuration configuration = new DefaultConfiguration();
+    private final RolloverCoordinator coordinator = RolloverCoordinator.getInstance();
+
+    @After
+    public void resetCoordinator() {
+        coordinator.configure(0, 0);
+    }
+
+    @Test
+    public void interruptedDispatcherKeepsRollover() throws InterruptedException {
+        coordinator.configure(0, 1);
+        final GZipRollingFileAppender first = appender("first");
+        final GZipRollingFileAppender second = appender("second");
+        final long completed = coordinator.getCompletedRollovers();
+        final ReentrantLock firstLock = first.getManager().getLock();
+
+        try {
+            // The rollover of the first manager takes the only slot and waits for the lock of its manager
+            firstLock.lock();
+
+            try {
+                first.append(event(ROLL));
+                await(firstLock::hasQueuedThreads);
+
+                // The dispatcher takes the second rollover and waits for the slot
+                second.append(event(ROLL));
+                await(() -> coordinator.getPendingCount() == 0
+                        && coordinator.getDispatcher().getState() == Thread.State.WAITING);
+                coordinator.getDispatcher().interrupt();
+            } finally {
+                firstLock.unlock();
+            }
+
+            await(() -> coordinator.getCompletedRollovers() == completed + 2);
+            assertTrue(new File(folder.getRoot(), "second.1.log.gz").exists());
+
+            // The second manager is not left with a pending rollover and rolls over again
+            second.append(event(ROLL));
+            await(() -> coordinator.getCompletedRollovers() == completed + 3);
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    private GZipRollingFileAppender appender(final String name) {
+        final GZipRollingFileAppender appender = GZipRollingFileAppender.newBuilder()
+                .setName(name)
+                .withFileName(new File(folder.getRoot(), name + ".log").getPath())
+                .withFilePattern(new File(folder.getRoot(), name + ".%i.log").getPath())
+                .withPolicy(new MessageTriggeringPolicy())
+                .withStrategy(GZipDefaultRolloverStrategy.createStrategy("10", null, null, null, null, null, null,
+                        false, configuration))
+                .setLayout(PatternLayout.newBuilder().withPattern("%m%n").withConfiguration(configuration).build())
+                .setConfiguration(configuration)
+                .build();
+        appender.start();
+        return appender;
+    }
+
+    private static LogEvent event(final String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Triggers a rollover with every event whose message is {@value #ROLL}.
+     */
+    private static final class MessageTriggeringPolicy extends AbstractTriggeringPolicy {
+        @Override
+        public void initialize(final RollingFileManager manager) {
+        }
+
+        @Override
+        public boolean isTriggeringEvent(final LogEvent event) {
+            return ROLL.equals(event.getMessage().getFormattedMessage());
+        }
+    }
+}
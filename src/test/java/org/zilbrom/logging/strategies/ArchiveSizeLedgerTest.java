@@ -0,0 +1,98 @@
+package org.zilbrom.logging.strategies;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveSizeLedgerTest {
+    private static final int ARCHIVE_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void trimDeletesOldestArchivesFirst() throws IOException {
+        final ArchiveSizeLedger ledger = ArchiveSizeLedger.get(folder.getRoot().toString());
+        final Path newest = archive("app.1.gz");
+        final Path oldest = archive("app.2.gz");
+        final Path middle = archive("app.3.gz");
+        ledger.add(newest, ARCHIVE_SIZE, 3000);
+        ledger.add(oldest, ARCHIVE_SIZE, 1000);
+        ledger.add(middle, ARCHIVE_SIZE, 2000);
+
+        assertEquals(Arrays.asList(oldest.toAbsolutePath(), middle.toAbsolutePath()), ledger.trim(ARCHIVE_SIZE));
+        assertEquals(1, ledger.getArchiveCount());
+        assertEquals(ARCHIVE_SIZE, ledger.getTotalBytes());
+        assertTrue(Files.exists(newest));
+        assertFalse(Files.exists(oldest));
+        assertFalse(Files.exists(middle));
+    }
+
+    @Test
+    public void trimDeletesOldestArchiveOfAnyOwner() throws IOException {
+        final ArchiveSizeLedger ledger = ArchiveSizeLedger.get(folder.getRoot().toString());
+        final Path other = archive("other.1.gz", 1000);
+        final Path rolled = archive("app.1.gz", 2000);
+        ledger.register("other.%i.gz", Collections.singletonList(other));
+        ledger.register("app.%i.gz", Collections.singletonList(rolled));
+
+        // Only the appender which rolled over adds an archive, the oldest one belongs to the other appender
+        final Path added = archive("app.2.gz", 3000);
+        ledger.add(added, ARCHIVE_SIZE);
+
+        assertEquals(Collections.singletonList(other.toAbsolutePath()), ledger.trim(2 * ARCHIVE_SIZE));
+        assertTrue(Files.exists(rolled));
+        assertTrue(Files.exists(added));
+    }
+
+    @Test
+    public void renameKeepsAge() throws IOException {
+        final ArchiveSizeLedger ledger = ArchiveSizeLedger.get(folder.getRoot().toString());
+        final Path oldest = archive("app.1.gz");
+        final Path newest = archive("app.2.gz");
+        ledger.add(oldest, ARCHIVE_SIZE, 1000);
+        ledger.add(newest, ARCHIVE_SIZE, 2000);
+
+        // Renumbering moves the oldest archive to the highest index
+        final Path renamed = folder.getRoot().toPath().resolve("app.3.gz");
+        Files.move(oldest, renamed);
+        ledger.rename(oldest, renamed);
+
+        assertEquals(Collections.singletonList(renamed.toAbsolutePath()), ledger.trim(ARCHIVE_SIZE));
+        assertTrue(Files.exists(newest));
+    }
+
+    @Test
+    public void registerCountsOwnerOnce() throws IOException {
+        final ArchiveSizeLedger ledger = ArchiveSizeLedger.get(folder.getRoot().toString());
+        final Path archive = archive("app.1.gz");
+
+        assertTrue(ledger.register("app.%i.gz", Collections.singletonList(archive)));
+        assertFalse(ledger.register("app.%i.gz", Collections.singletonList(archive)));
+        assertEquals(1, ledger.getArchiveCount());
+        assertEquals(ARCHIVE_SIZE, ledger.getTotalBytes());
+    }
+
+    private Path archive(final String name) throws IOException {
+        final Path path = folder.getRoot().toPath().resolve(name);
+        Files.write(path, new byte[ARCHIVE_SIZE]);
+        return path;
+    }
+
+    private Path archive(final String name, final long modified) throws IOException {
+        final Path path = archive(name);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+        return path;
+    }
+}
@@ -0,0 +1,153 @@
+package org.zilbrom.logging.streams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelinedGZIPOutputStreamTest {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int QUEUE_CAPACITY = 2;
+    private static final long FLUSH_PERIOD = 60_000;
+
+    @Test
+    public void syncFlushWritesBufferedBytes() throws IOException {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final PipelinedGZIPOutputStream out = open(file);
+
+        // Less than a block, which a plain flush keeps
+        write(out, "first", 10);
+        out.flush();
+        out.syncFlush();
+
+        assertEquals(lines("first", 10), readAvailable(file.toByteArray()));
+
+        write(out, "second", 10);
+        out.syncFlush();
+
+        assertEquals(lines("first", 10) + lines("second", 10), readAvailable(file.toByteArray()));
+        out.close();
+    }
+
+    @Test
+    public void closeWritesCompleteMember() throws IOException {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        final PipelinedGZIPOutputStream out = open(file);
+
+        // Many more blocks than the queues hold, so the caller waits for the stages
+        write(out, "first", 1000);
+        out.syncFlush();
+        write(out, "second", 1000);
+        out.close();
+        out.close();
+
+        assertEquals(lines("first", 1000) + lines("second", 1000), read(file.toByteArray()));
+    }
+
+    @Test
+    public void writeAfterCloseFails() throws IOException {
+        final PipelinedGZIPOutputStream out = open(new ByteArrayOutputStream());
+        out.close();
+
+        try {
+            write(out, "late", 1);
+            fail("Write after close must fail");
+        } catch (IOException expected) {
+            // The stream is closed
+        }
+    }
+
+    @Test
+    public void failedWriterFailsSyncFlushAndClose() throws IOException {
+        final PipelinedGZIPOutputStream out = open(new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        });
+        write(out, "lost", 10);
+
+        try {
+            out.syncFlush();
+            fail("Sync flush must report the failed writer");
+        } catch (IOException expected) {
+            // The writer failed
+        }
+
+        try {
+            out.close();
+            fail("Close must report the failed writer");
+        } catch (IOException expected) {
+            // The writer failed
+        }
+    }
+
+    private static PipelinedGZIPOutputStream open(final OutputStream file) throws IOException {
+        return new PipelinedGZIPOutputStream(file, BUFFER_SIZE, QUEUE_CAPACITY, FLUSH_PERIOD, true,
+                Deflater.BEST_SPEED, "test");
+    }
+
+    private static void write(final OutputStream out, final String prefix, final int count) throws IOException {
+        final byte[] bytes = lines(prefix, count).getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String lines(final String prefix, final int count) {
+        final StringBuilder lines = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            lines.append(prefix).append(" line ").append(i).append('\n');
+        }
+
+        return lines.toString();
+    }
+
+    private static String read(final byte[] file) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(file))) {
+            copy(in, result);
+        }
+
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a member which is not finished yet, up to its last flushed byte.
+     */
+    private static String readAvailable(final byte[] file) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(file))) {
+            copy(in, result);
+        } catch (EOFException eofException) {
+            // The member has no trailer yet
+        }
+
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[4096];
+        int count;
+
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.zilbrom.logging.streams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedGZipOutputStreamTest {
+    private static final int BLOCK_SIZE = 1024;
+    private static final long FLUSH_PERIOD = 60_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restartAfterCloseContinuesManifest() throws IOException {
+        final File manifest = folder.newFile("app.log.gz");
+        final List<File> directories = Arrays.asList(folder.newFolder("a"), folder.newFolder("b"));
+
+        write(open(manifest, true, directories), "first", 100).close();
+        write(open(manifest, true, directories), "second", 100).close();
+
+        assertEquals(lines("first", 100) + lines("second", 100), readMerged(manifest));
+        assertEquals(2, StripedGZipOutputStream.readManifest(manifest.toPath()).getStripes().size());
+    }
+
+    @Test
+    public void restartAfterCrashKeepsFlushedBlocks() throws IOException {
+        final File manifest = folder.newFile("app.log.gz");
+        final List<File> directories = Arrays.asList(folder.newFolder("a"), folder.newFolder("b"));
+
+        // The first stream is never closed, as if the process died after the sync flush
+        final StripedGZipOutputStream crashed = write(open(manifest, true, directories), "first", 100);
+        crashed.syncFlush();
+        write(open(manifest, true, directories), "second", 100).close();
+
+        assertEquals(lines("first", 100) + lines("second", 100), readMerged(manifest));
+    }
+
+    @Test
+    public void withoutAppendStartsNewManifest() throws IOException {
+        final File manifest = folder.newFile("app.log.gz");
+        final List<File> directories = Arrays.asList(folder.newFolder("a"), folder.newFolder("b"));
+
+        write(open(manifest, true, directories), "first", 100).close();
+        write(open(manifest, false, directories), "second", 100).close();
+
+        assertEquals(lines("second", 100), readMerged(manifest));
+    }
+
+    @Test
+    public void appendToOtherFileMovesItAside() throws IOException {
+        final File manifest = folder.newFile("app.log.gz");
+        final List<File> directories = Arrays.asList(folder.newFolder("a"), folder.newFolder("b"));
+        Files.write(manifest.toPath(), "not a manifest".getBytes(StandardCharsets.UTF_8));
+
+        write(open(manifest, true, directories), "first", 10).close();
+
+        assertEquals(lines("first", 10), readMerged(manifest));
+        assertTrue(folder.getRoot().list((directory, name) -> name.startsWith("app.log.gz.")).length > 0);
+    }
+
+    private static StripedGZipOutputStream open(final File manifest, final boolean append,
+                                                final List<File> directories) throws IOException {
+        return new StripedGZipOutputStream(manifest, append, directories, BLOCK_SIZE, FLUSH_PERIOD,
+                Deflater.BEST_SPEED, "test");
+    }
+
+    private static StripedGZipOutputStream write(final StripedGZipOutputStream out, final String prefix,
+                                                 final int count) throws IOException {
+        final byte[] bytes = lines(prefix, count).getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        return out;
+    }
+
+    private static String lines(final String prefix, final int count) {
+        final StringBuilder lines = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            lines.append(prefix).append(" line ").append(i).append('\n');
+        }
+
+        return lines.toString();
+    }
+
+    private static String readMerged(final File manifest) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        try (InputStream in = new GZIPInputStream(StripedGZipOutputStream.openMerged(manifest.toPath()))) {
+            final byte[] buffer = new byte[4096];
+            int count;
+
+            while ((count = in.read(buffer)) > 0) {
+                result.write(buffer, 0, count);
+            }
+        }
+
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+package org.zilbrom.logging.tools;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zilbrom.logging.appenders.GZipRollingFileAppender;
+import org.zilbrom.logging.strategies.GZipDefaultRolloverStrategy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StackTraceExpanderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void expandedFileEqualsFileWithoutDeduplication() throws IOException {
+        final Configuration configuration = new DefaultConfiguration();
+        final PatternLayout layout = PatternLayout.newBuilder()
+                .withPattern("%p %c - %m%n")
+                .withConfiguration(configuration)
+                .build();
+        final File file = new File(folder.getRoot(), "app.log");
+        final GZipRollingFileAppender appender = GZipRollingFileAppender.newBuilder()
+                .setName("test")
+                .withFileName(file.getPath())
+                .withFilePattern(new File(folder.getRoot(), "app.%i.log").getPath())
+                .withPolicy(SizeBasedTriggeringPolicy.createPolicy("10MB"))
+                .withStrategy(GZipDefaultRolloverStrategy.createStrategy("10", null, null, null, null, null, null,
+                        false, configuration))
+                .withDeduplicateStackTraces(true)
+                .setLayout(layout)
+                .setConfiguration(configuration)
+                .build();
+        final List<LogEvent> events = events();
+        final StringBuilder expected = new StringBuilder();
+        appender.start();
+
+        try {
+            for (LogEvent event : events) {
+                appender.append(event);
+                expected.append(layout.toSerializable(event));
+            }
+        } finally {
+            appender.stop();
+        }
+
+        final StringWriter expanded = new StringWriter();
+        StackTraceExpander.expand(file.getPath() + GZipRollingFileAppender.GZIP_EXTENSION, StandardCharsets.UTF_8,
+                expanded);
+
+        assertEquals(8, appender.getDeduplicatedStackTraces());
+        assertEquals(expected.toString().replace("\r\n", "\n"), expanded.toString().replace("\r\n", "\n"));
+    }
+
+    private static List<LogEvent> events() {
+        final Exception cause = new IllegalArgumentException("bad id");
+        final Exception first = new IllegalStateException("database down", cause);
+        final Exception second = new IOException("disk full");
+        final List<LogEvent> events = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            events.add(event("request " + i, null));
+            events.add(event("failed " + i, first));
+            events.add(event("write failed " + i, second));
+        }
+
+        return events;
+    }
+
+    private static LogEvent event(final String message, final Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("org.example.Service")
+                .setLevel(thrown == null ? Level.INFO : Level.ERROR)
+                .setMessage(new SimpleMessage(message))
+                .setThrown(thrown)
+                .build();
+    }
+}